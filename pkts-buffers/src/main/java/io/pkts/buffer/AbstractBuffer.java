@@ -51,6 +51,20 @@ public abstract class AbstractBuffer extends BaseBuffer {
         this.writerIndex = writerIndex;
     }
 
+    /**
+     * Re-point this buffer, which is how a view is re-used by
+     * {@link Buffer#readBytes(int, Buffer)} and
+     * {@link Buffer#slice(int, int, Buffer)}.
+     */
+    protected final void setBoundaries(final int lowerBoundary, final int upperBoundary) {
+        assert lowerBoundary <= upperBoundary;
+        this.readerIndex = 0;
+        this.markedReaderIndex = 0;
+        this.lowerBoundary = lowerBoundary;
+        this.upperBoundary = upperBoundary;
+        this.writerIndex = upperBoundary;
+    }
+
     @Override
     public abstract Buffer clone();
 
@@ -341,6 +341,54 @@ public abstract class BaseBuffer implements Buffer {
         }
     }
 
+    /**
+     * Compare the readable bytes of the buffer with those of the other
+     * buffer, which may be of any type. Used by those buffer implementations
+     * that need to be comparable with other kinds of buffers.
+     *
+     * @param ignoreCase
+     *            whether or not to ignore the case of 7-bit ascii letters
+     * @return true if the other object is a buffer with the same readable
+     *         bytes as the first buffer.
+     */
+    protected static boolean equalsBytes(final boolean ignoreCase, final Buffer buffer, final Object other) {
+        if (buffer == other) {
+            return true;
+        }
+
+        if (!(other instanceof Buffer)) {
+            return false;
+        }
+
+        final Buffer b = (Buffer) other;
+        final int length = buffer.getReadableBytes();
+        if (length != b.getReadableBytes()) {
+            return false;
+        }
+
+        try {
+            for (int i = 0; i < length; ++i) {
+                final byte a1 = buffer.getByte(i);
+                final byte b1 = b.getByte(i);
+                if (a1 != b1) {
+                    // see ByteBuffer for details on the case insensitive
+                    // comparison
+                    if (ignoreCase &&
+                        ((a1 >= 'A' && a1 <= 'Z') || (a1 >= 'a' && a1 <= 'z')) &&
+                        ((b1 >= 'A' && b1 <= 'Z') || (b1 >= 'a' && b1 <= 'z')) &&
+                        (a1 & 0x1f) == (b1 & 0x1f)) {
+                        continue;
+                    }
+                    return false;
+                }
+            }
+        } catch (final IOException e) {
+            return false;
+        }
+
+        return true;
+    }
+
     protected static boolean isByteInArray(final byte b, final byte[] bytes) {
         for (final byte x : bytes) {
             if (x == b) {
@@ -581,7 +581,7 @@ public class BoundedInputStreamBuffer extends BaseBuffer {
 
     @Override
     public int getReaderIndex() {
-        throw new RuntimeException(NOT_IMPLEMENTED_JUST_YET);
+        return assertSafeInt(this.readerIndex);
     }
 
     @Override
@@ -2,6 +2,7 @@ package io.pkts.buffer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 
 /**
@@ -64,6 +65,28 @@ public interface Buffer extends Cloneable {
      */
     Buffer readBytes(int length) throws IndexOutOfBoundsException, IOException;
 
+    /**
+     * Same as {@link #readBytes(int)} but rather than creating a new buffer,
+     * the <code>view</code> is re-pointed at the bytes that were read, if it
+     * is a kind of buffer that this buffer knows how to re-point. This is
+     * meant for a caller that processes one record at a time and doesn't want
+     * every record to leave a handful of buffers behind as garbage. Note that
+     * anything still referring to the view will see the new bytes.
+     * 
+     * @param length
+     * @param view
+     *            a buffer previously returned by this method (or by
+     *            {@link #slice(int, int, Buffer)}) or null.
+     * @return the view or, if the view couldn't be re-used, a new buffer.
+     *         Either way, this is what should be passed in as the view the
+     *         next time around.
+     * @throws IndexOutOfBoundsException
+     * @throws IOException
+     */
+    default Buffer readBytes(final int length, final Buffer view) throws IndexOutOfBoundsException, IOException {
+        return readBytes(length);
+    }
+
     /**
      * Reads a line, i.e., it reads until we hit a line feed ('\n') or a
      * carriage return ('\r'), or a carriage return followed immediately by a
@@ -147,6 +170,21 @@ public interface Buffer extends Cloneable {
         return getArray();
     }
 
+    /**
+     * Write all the readable bytes of this buffer to the output stream
+     * without affecting the reader index.
+     * 
+     * By default, this is the same as writing {@link #getArray()} to the
+     * stream but buffers that can write their bytes without first copying
+     * them will do so.
+     * 
+     * @param out
+     * @throws IOException
+     */
+    default void writeTo(final OutputStream out) throws IOException {
+        out.write(getArray());
+    }
+
     /**
      * Same as {@link #readUntil(4096, 'b')}
      *
@@ -266,6 +304,16 @@ public interface Buffer extends Cloneable {
      */
     Buffer slice(int start, int stop);
 
+    /**
+     * Same as {@link #slice(int, int)} but the <code>view</code> is re-pointed
+     * at the slice, if possible. See {@link #readBytes(int, Buffer)}.
+     * 
+     * @return the view or, if the view couldn't be re-used, a new buffer.
+     */
+    default Buffer slice(final int start, final int stop, final Buffer view) {
+        return slice(start, stop);
+    }
+
     /**
      * Same as {@link #slice(Buffer.getReaderIndex(), int)}
      * 
@@ -113,6 +113,23 @@ public final class Buffers {
         return new ByteBuffer(buffer);
     }
 
+    /**
+     * Wrap the supplied {@link java.nio.ByteBuffer}. The entire capacity of
+     * the {@link java.nio.ByteBuffer} is visible to the returned buffer,
+     * irrespective of its current position and limit, and the data is not
+     * copied.
+     * 
+     * @param buffer
+     * @return
+     */
+    public static Buffer wrap(final java.nio.ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() == 0) {
+            throw new IllegalArgumentException("the buffer cannot be null or empty");
+        }
+
+        return new NioBuffer(buffer);
+    }
+
     /**
      * Same as {@link #wrap(byte[])} but we will clone the byte array first.
      * 
@@ -140,7 +157,6 @@ public final class Buffers {
      * @return
      */
     public static Buffer wrap(final Buffer one, final Buffer two) {
-        // TODO: create an actual composite buffer. 
         final int size1 = one != null ? one.getReadableBytes() : 0;
         final int size2 = two != null ? two.getReadableBytes() : 0;
         if (size1 == 0 && size2 > 0) {
@@ -151,10 +167,7 @@ public final class Buffers {
             return Buffers.EMPTY_BUFFER;
         }
 
-        final Buffer composite = Buffers.createBuffer(size1 + size2);
-        one.getBytes(composite);
-        two.getBytes(composite);
-        return composite;
+        return new CompositeBuffer(one, two);
     }
 
     /**
@@ -6,6 +6,7 @@ package io.pkts.buffer;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 
@@ -19,7 +20,7 @@ public final class ByteBuffer extends AbstractBuffer {
     /**
      * The actual buffer
      */
-    protected final byte[] buffer;
+    protected byte[] buffer;
 
     /**
      * 
@@ -39,6 +40,19 @@ public final class ByteBuffer extends AbstractBuffer {
         this.buffer = buffer;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer slice(final int start, final int stop, final Buffer view) {
+        if (start == stop || view == this || !(view instanceof ByteBuffer)) {
+            return slice(start, stop);
+        }
+        checkIndex(this.lowerBoundary + start);
+        checkIndex(this.lowerBoundary + stop - 1);
+        return ((ByteBuffer) view).repoint(this.lowerBoundary + start, this.lowerBoundary + stop, this.buffer);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -71,6 +85,30 @@ public final class ByteBuffer extends AbstractBuffer {
         return new ByteBuffer(0, lowerBoundary, upperBoundary, writerIndex, this.buffer);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer readBytes(final int length, final Buffer view) throws IndexOutOfBoundsException {
+        if (length == 0 || view == this || !(view instanceof ByteBuffer)) {
+            return readBytes(length);
+        }
+        checkReadableBytes(length);
+        final int lowerBoundary = this.readerIndex + this.lowerBoundary;
+        this.readerIndex += length;
+        return ((ByteBuffer) view).repoint(lowerBoundary, this.readerIndex + this.lowerBoundary, this.buffer);
+    }
+
+    /**
+     * Re-point this buffer at another region, see
+     * {@link Buffer#readBytes(int, Buffer)}.
+     */
+    ByteBuffer repoint(final int lowerBoundary, final int upperBoundary, final byte[] buffer) {
+        this.buffer = buffer;
+        setBoundaries(lowerBoundary, upperBoundary);
+        return this;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -129,6 +167,14 @@ public final class ByteBuffer extends AbstractBuffer {
         return this.buffer;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(this.buffer, this.lowerBoundary + this.readerIndex, getReadableBytes());
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -287,6 +333,9 @@ public final class ByteBuffer extends AbstractBuffer {
             if (this == other) {
                 return true;
             }
+            if (other instanceof Buffer && !(other instanceof ByteBuffer)) {
+                return equalsBytes(ignoreCase, this, other);
+            }
             final ByteBuffer b = (ByteBuffer) other;
             if (getReadableBytes() != b.getReadableBytes()) {
                 return false;
@@ -0,0 +1,527 @@
+/**
+ *
+ */
+package io.pkts.buffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only buffer that is made up of other buffers, which are simply
+ * referenced and never copied. This is what allows a packet to be written
+ * out by having every layer wrap its own headers around the payload of the
+ * layer above it without copying the entire packet at every layer. See
+ * {@link Buffers#wrap(Buffer, Buffer)}.
+ *
+ * Wrapping a {@link CompositeBuffer} in another {@link CompositeBuffer} will
+ * not nest the two but rather reference the components of the first one
+ * directly so no matter how many layers a packet has, accessing a byte will
+ * only ever go through a single level of indirection.
+ *
+ * The components are views of the buffers used to create this buffer so
+ * changing a byte (e.g. {@link #setByte(int, byte)}) will be visible in the
+ * original buffers as well.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class CompositeBuffer extends AbstractBuffer {
+
+    private static final String CANNOT_WRITE_TO_A_COMPOSITE_BUFFER = "Cannot write to a CompositeBuffer";
+
+    /**
+     * The components of this buffer, none of which are empty.
+     */
+    private final Buffer[] components;
+
+    /**
+     * The index at which every component starts, plus the total size of
+     * this buffer as the last element.
+     */
+    private final int[] offsets;
+
+    /**
+     *
+     * @param buffers the buffers to combine, where only the readable bytes
+     *        of each buffer will be part of this buffer. Any of them may be
+     *        null.
+     */
+    CompositeBuffer(final Buffer... buffers) {
+        this(components(buffers));
+    }
+
+    private CompositeBuffer(final List<Buffer> components) {
+        super(0, 0, size(components), size(components));
+        this.components = components.toArray(new Buffer[components.size()]);
+        this.offsets = new int[this.components.length + 1];
+        for (int i = 0; i < this.components.length; ++i) {
+            this.offsets[i + 1] = this.offsets[i] + this.components[i].getReadableBytes();
+        }
+    }
+
+    private static List<Buffer> components(final Buffer... buffers) {
+        final List<Buffer> components = new ArrayList<>(buffers.length);
+        for (final Buffer buffer : buffers) {
+            if (buffer == null || buffer.isEmpty()) {
+                continue;
+            }
+
+            final Buffer slice = buffer.slice();
+            if (slice instanceof CompositeBuffer) {
+                components.addAll(Arrays.asList(((CompositeBuffer) slice).components));
+            } else {
+                components.add(slice);
+            }
+        }
+        return components;
+    }
+
+    private static int size(final List<Buffer> components) {
+        int size = 0;
+        for (final Buffer component : components) {
+            size += component.getReadableBytes();
+        }
+        return size;
+    }
+
+    /**
+     * The number of buffers this buffer is made up of.
+     */
+    public int numberOfComponents() {
+        return this.components.length;
+    }
+
+    /**
+     * Find the component that contains the index.
+     */
+    private int component(final int index) {
+        final int i = Arrays.binarySearch(this.offsets, index);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private void checkRange(final int index) throws IndexOutOfBoundsException {
+        if (index < 0 || index >= this.upperBoundary) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getByte(final int index) throws IndexOutOfBoundsException {
+        checkRange(index);
+        final int i = component(index);
+        return (byte) this.components[i].getUnsignedByte(index - this.offsets[i]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer slice(final int start, final int stop) {
+        if (start == stop) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkRange(start);
+        checkRange(stop - 1);
+
+        final int first = component(start);
+        final int last = component(stop - 1);
+        if (first == last) {
+            return this.components[first].slice(start - this.offsets[first], stop - this.offsets[first]);
+        }
+
+        final List<Buffer> components = new ArrayList<>(last - first + 1);
+        components.add(this.components[first].slice(start - this.offsets[first],
+                this.offsets[first + 1] - this.offsets[first]));
+        for (int i = first + 1; i < last; ++i) {
+            components.add(this.components[i]);
+        }
+        components.add(this.components[last].slice(0, stop - this.offsets[last]));
+        return new CompositeBuffer(components);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer readBytes(final int length) throws IndexOutOfBoundsException {
+        if (length == 0) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkReadableBytes(length);
+        final Buffer slice = slice(this.readerIndex, this.readerIndex + length);
+        this.readerIndex += length;
+        return slice;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasReadableBytes() {
+        return getReadableBytes() > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return getReadableBytes() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getArray() {
+        final int length = getReadableBytes();
+        final byte[] array = new byte[length];
+        copy(this.readerIndex, array, length);
+        return array;
+    }
+
+    /**
+     * Copy the bytes starting at the index, component by component.
+     */
+    private void copy(final int index, final byte[] dst, final int length) {
+        int copied = 0;
+        while (copied < length) {
+            final int i = component(index + copied);
+            final Buffer component = this.components[i];
+            final int from = index + copied - this.offsets[i];
+            final int to = Math.min(this.offsets[i + 1] - this.offsets[i], from + length - copied);
+            if (component instanceof ByteBuffer) {
+                System.arraycopy(component.getRawArray(), component.getLowerBoundary() + from, dst, copied, to
+                        - from);
+            } else {
+                System.arraycopy(component.slice(from, to).getArray(), 0, dst, copied, to - from);
+            }
+            copied += to - from;
+        }
+    }
+
+    /**
+     * Write all the readable bytes of this buffer to the output stream,
+     * component by component and without affecting the reader index. Any
+     * component backed by a byte-array is written straight from that array.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        int index = this.readerIndex;
+        while (index < this.upperBoundary) {
+            final int i = component(index);
+            final int from = index - this.offsets[i];
+            final int to = this.offsets[i + 1] - this.offsets[i];
+            if (from == 0) {
+                this.components[i].writeTo(out);
+            } else {
+                this.components[i].slice(from, to).writeTo(out);
+            }
+            index = this.offsets[i + 1];
+        }
+    }
+
+    /**
+     * Write all the readable bytes of this buffer to the channel in a single
+     * gathering write (or as few as the channel allows) without affecting the
+     * reader index.
+     *
+     * @return the number of bytes written.
+     */
+    public long writeTo(final GatheringByteChannel channel) throws IOException {
+        final List<java.nio.ByteBuffer> buffers = new ArrayList<>(this.components.length);
+        int index = this.readerIndex;
+        while (index < this.upperBoundary) {
+            final int i = component(index);
+            buffers.add(toByteBuffer(this.components[i], index - this.offsets[i], this.offsets[i + 1]
+                    - this.offsets[i]));
+            index = this.offsets[i + 1];
+        }
+
+        final java.nio.ByteBuffer[] srcs = buffers.toArray(new java.nio.ByteBuffer[buffers.size()]);
+        final long length = getReadableBytes();
+        long written = 0;
+        while (written < length) {
+            written += channel.write(srcs);
+        }
+        return written;
+    }
+
+    /**
+     * Get a {@link java.nio.ByteBuffer} view of the component, which only
+     * requires a copy if the component isn't backed by an array or a
+     * {@link java.nio.ByteBuffer}.
+     */
+    private static java.nio.ByteBuffer toByteBuffer(final Buffer component, final int from, final int to) {
+        if (component instanceof ByteBuffer) {
+            return java.nio.ByteBuffer.wrap(component.getRawArray(), component.getLowerBoundary() + from, to
+                    - from);
+        }
+        if (component instanceof NioBuffer) {
+            return ((NioBuffer) component).toByteBuffer(from, to);
+        }
+        return java.nio.ByteBuffer.wrap(component.slice(from, to).getArray());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte readByte() throws IndexOutOfBoundsException {
+        checkReadableBytes(1);
+        return getByte(this.readerIndex++);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte peekByte() throws IndexOutOfBoundsException {
+        return getByte(this.readerIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long readUnsignedInt() throws IndexOutOfBoundsException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readInt() throws IndexOutOfBoundsException {
+        checkReadableBytes(4);
+        final int value = getInt(this.readerIndex);
+        this.readerIndex += 4;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short readShort() throws IndexOutOfBoundsException {
+        checkReadableBytes(2);
+        final short value = getShort(this.readerIndex);
+        this.readerIndex += 2;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readUnsignedShort() throws IndexOutOfBoundsException {
+        return readShort() & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(final int index) throws IndexOutOfBoundsException {
+        return (getByte(index) & 0xff) << 24 | (getByte(index + 1) & 0xff) << 16
+                | (getByte(index + 2) & 0xff) << 8 | getByte(index + 3) & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(final int index) throws IndexOutOfBoundsException {
+        return (short) (getByte(index) << 8 | getByte(index + 1) & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getUnsignedShort(final int index) throws IndexOutOfBoundsException {
+        return getShort(index) & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getUnsignedByte(final int index) throws IndexOutOfBoundsException {
+        return (short) (getByte(index) & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setByte(final int index, final byte value) throws IndexOutOfBoundsException {
+        checkRange(index);
+        final int i = component(index);
+        this.components[i].setByte(index - this.offsets[i], value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUnsignedByte(final int index, final short value) throws IndexOutOfBoundsException {
+        setByte(index, (byte) value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUnsignedShort(final int index, final int value) throws IndexOutOfBoundsException {
+        setByte(index, (byte) (value >> 8));
+        setByte(index + 1, (byte) value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setInt(final int index, final int value) throws IndexOutOfBoundsException {
+        setByte(index, (byte) (value >>> 24));
+        setByte(index + 1, (byte) (value >>> 16));
+        setByte(index + 2, (byte) (value >>> 8));
+        setByte(index + 3, (byte) value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUnsignedInt(final int index, final long value) throws IndexOutOfBoundsException {
+        setInt(index, (int) value);
+    }
+
+    @Override
+    public void getBytes(final Buffer dst) {
+        getBytes(getReaderIndex(), dst);
+    }
+
+    @Override
+    public void getBytes(final int index, final Buffer dst) throws IndexOutOfBoundsException {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index less than zero");
+        }
+        final int stop = Math.min(index + dst.getWritableBytes(), this.upperBoundary);
+        for (int i = index; i < stop; ++i) {
+            dst.write(getByte(i));
+        }
+    }
+
+    @Override
+    public void getBytes(final byte[] dst) throws IndexOutOfBoundsException {
+        copy(this.readerIndex, dst, Math.min(dst.length, getReadableBytes()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String dumpAsHex() {
+        return "dumpAsHex isn't implemented just yet";
+    }
+
+    /**
+     * Cloning a {@link CompositeBuffer} copies all of its components into a
+     * single new buffer.
+     */
+    @Override
+    public Buffer clone() {
+        final byte[] copy = new byte[capacity()];
+        copy(0, copy, copy.length);
+        return Buffers.wrap(copy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object other) {
+        return equalsBytes(false, this, other);
+    }
+
+    @Override
+    public boolean equalsIgnoreCase(final Object other) {
+        return equalsBytes(true, this, other);
+    }
+
+    /**
+     * Same hash code as a {@link ByteBuffer} with the same bytes.
+     */
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = this.readerIndex; i < this.upperBoundary; ++i) {
+            result = 31 * result + getByte(i);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return new String(getArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void setWriterIndex(final int index) {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_COMPOSITE_BUFFER);
+    }
+
+    @Override
+    public void write(final byte b) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_COMPOSITE_BUFFER);
+    }
+
+    @Override
+    public void write(final byte[] bytes) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_COMPOSITE_BUFFER);
+    }
+
+    @Override
+    public void write(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_COMPOSITE_BUFFER);
+    }
+
+    @Override
+    public void write(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_COMPOSITE_BUFFER);
+    }
+
+    @Override
+    public void write(final String s) throws IndexOutOfBoundsException, WriteNotSupportedException,
+            UnsupportedEncodingException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_COMPOSITE_BUFFER);
+    }
+
+    @Override
+    public void write(final String s, final String charset) throws IndexOutOfBoundsException,
+            WriteNotSupportedException, UnsupportedEncodingException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_COMPOSITE_BUFFER);
+    }
+
+    @Override
+    public void writeAsString(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_COMPOSITE_BUFFER);
+    }
+
+    @Override
+    public void writeAsString(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_COMPOSITE_BUFFER);
+    }
+
+}
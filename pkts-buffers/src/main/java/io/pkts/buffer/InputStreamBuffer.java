@@ -10,6 +10,18 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
+ * A buffer that reads its bytes off of an {@link InputStream} and stores them
+ * in a list of rows, each one being <code>localCapacity</code> bytes long.
+ * 
+ * By default, all the rows are kept around, which means that the entire
+ * stream will end up on the heap. When in streaming mode, all rows below the
+ * reader index (and below the marked reader index, if any) are released the
+ * next time {@link #readBytes(int)} is called. All indices are then rebased
+ * so that they are relative to the first row we still hold on to, i.e., you
+ * cannot go back to an index below the reader index or the mark after a call
+ * to {@link #readBytes(int)}. In return, the memory footprint is bounded by the
+ * largest read and as such, streams of any size can be processed.
+ * 
  * @author jonas@jonasborjesson.com
  */
 public final class InputStreamBuffer extends AbstractBuffer {
@@ -32,6 +44,17 @@ public final class InputStreamBuffer extends AbstractBuffer {
      */
     private final int localCapacity;
 
+    /**
+     * Whether or not we should release the rows we have read past.
+     */
+    private final boolean streaming;
+
+    /**
+     * Whether or not anyone has marked the reader index. If not, then the
+     * marked reader index will not prevent us from releasing rows.
+     */
+    private boolean marked;
+
     /**
      * 
      */
@@ -46,28 +69,52 @@ public final class InputStreamBuffer extends AbstractBuffer {
      * @param is
      */
     public InputStreamBuffer(final int initialCapacity, final InputStream is) {
+        this(initialCapacity, is, false);
+    }
+
+    /**
+     * 
+     * @param initialCapacity
+     *            the size of each row of the internal storage
+     * @param is
+     * @param streaming
+     *            whether or not to release the rows we have read past. See
+     *            class documentation.
+     */
+    public InputStreamBuffer(final int initialCapacity, final InputStream is, final boolean streaming) {
         super(0, 0, 0, 0);
         assert is != null;
         this.is = is;
         this.localCapacity = initialCapacity;
+        this.streaming = streaming;
         this.storage = new ArrayList<java.nio.ByteBuffer>();
         this.storage.add(java.nio.ByteBuffer.allocate(this.localCapacity));
     }
 
+    public boolean isStreaming() {
+        return this.streaming;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public Buffer slice(final int start, final int stop) {
+        if (start == stop) {
+            return Buffers.EMPTY_BUFFER;
+        }
         checkIndex(this.lowerBoundary + start);
         checkIndex(this.lowerBoundary + stop - 1);
+        return copy(this.lowerBoundary + start, stop - start);
+    }
 
-        // this has to change now that we can have multiple
-        // rows of byte buffers
-        final java.nio.ByteBuffer buf = getWritingRow();
-        final int upperBoundary = this.lowerBoundary + stop;
-        final int writerIndex = upperBoundary;
-        return new ByteBuffer(0, this.lowerBoundary + start, upperBoundary, writerIndex, buf.array());
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void markReaderIndex() {
+        this.marked = true;
+        super.markReaderIndex();
     }
 
     /**
@@ -105,6 +152,17 @@ public final class InputStreamBuffer extends AbstractBuffer {
      */
     @Override
     public Buffer readBytes(final int length) throws IndexOutOfBoundsException, IOException {
+        return readBytes(length, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Only a view of a single row can be re-used, anything that straddles
+     * two rows is still copied into a new buffer.
+     */
+    @Override
+    public Buffer readBytes(final int length, final Buffer view) throws IndexOutOfBoundsException, IOException {
         if (!checkReadableBytesSafe(length)) {
             final int availableBytes = getReadableBytes();
             final int read = internalReadBytes(length - availableBytes);
@@ -118,22 +176,73 @@ public final class InputStreamBuffer extends AbstractBuffer {
             }
         }
 
-        // perhaps we should create a composite buffer instead of this
-        // copying???
-        int index = 0;
+        if (length == 0) {
+            return Buffers.EMPTY_BUFFER;
+        }
+
+        if (this.streaming) {
+            releaseRows();
+        }
+
+        // The rows are never written to once filled so if all of
+        // the data is within a single row we can simply hand out
+        // a view of that row. Otherwise we have to copy.
+        final int localIndex = getLocalReaderIndex();
+        if (localIndex + length <= this.localCapacity) {
+            final byte[] row = getReadingRow().array();
+            this.readerIndex += length;
+            if (view instanceof ByteBuffer) {
+                return ((ByteBuffer) view).repoint(localIndex, localIndex + length, row);
+            }
+            return Buffers.wrap(row, localIndex, localIndex + length);
+        }
+
+        final Buffer buf = copy(this.lowerBoundary + this.readerIndex, length);
+        this.readerIndex += length;
+        return buf;
+    }
+
+    /**
+     * Copy the bytes starting at the absolute index into a new buffer. All
+     * the bytes must already have been read off of the stream.
+     * 
+     * @param index
+     * @param length
+     * @return
+     */
+    private Buffer copy(final int index, final int length) {
+        int copied = 0;
         final byte[] buf = new byte[length];
-        while (index < length) {
-            final int spaceLeft = getAvailableLocalReadingSpace();
-            final int readAtMost = Math.min(length - index, spaceLeft);
-            final int localIndex = getLocalReaderIndex();
-
-            final java.nio.ByteBuffer bb = getReadingRow();
-            System.arraycopy(bb.array(), localIndex, buf, index, readAtMost);
-            this.readerIndex += readAtMost;
-            index += readAtMost;
+        while (copied < length) {
+            final int localIndex = (index + copied) % this.localCapacity;
+            final int readAtMost = Math.min(length - copied, this.localCapacity - localIndex);
+            final java.nio.ByteBuffer bb = this.storage.get((index + copied) / this.localCapacity);
+            System.arraycopy(bb.array(), localIndex, buf, copied, readAtMost);
+            copied += readAtMost;
         }
         return Buffers.wrap(buf);
+    }
+
+    /**
+     * Release all the rows below the reader index, or the marked reader
+     * index if it has been set and is lower, and rebase all the indices
+     * accordingly.
+     */
+    private void releaseRows() {
+        final int keep = this.marked ? Math.min(this.readerIndex, this.markedReaderIndex) : this.readerIndex;
+        final int rows = Math.min(keep / this.localCapacity, this.storage.size() - 1);
+        if (rows <= 0) {
+            return;
+        }
 
+        this.storage.subList(0, rows).clear();
+        final int released = rows * this.localCapacity;
+        this.readerIndex -= released;
+        if (this.marked) {
+            this.markedReaderIndex -= released;
+        }
+        this.writerIndex -= released;
+        this.upperBoundary -= released;
     }
 
     /**
@@ -189,15 +298,6 @@ public final class InputStreamBuffer extends AbstractBuffer {
         return this.localCapacity - getLocalWriterIndex();
     }
 
-    /**
-     * Find out how many bytes are left to read in the current row
-     * 
-     * @return
-     */
-    private int getAvailableLocalReadingSpace() {
-        return this.localCapacity - getLocalReaderIndex();
-    }
-
     /**
      * Get which "row" we currently are working with for writing
      * 
@@ -309,10 +409,10 @@ public final class InputStreamBuffer extends AbstractBuffer {
      */
     @Override
     public byte getByte(final int index) throws IndexOutOfBoundsException, IOException {
-        checkIndex(this.lowerBoundary + index);
-        final java.nio.ByteBuffer bb = getWritingRow();
-        // this has to be localized as well
-        return bb.get(this.lowerBoundary + index);
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        final java.nio.ByteBuffer bb = this.storage.get(i / this.localCapacity);
+        return bb.get(i % this.localCapacity);
     }
 
     /**
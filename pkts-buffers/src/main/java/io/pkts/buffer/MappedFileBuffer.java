@@ -0,0 +1,699 @@
+package io.pkts.buffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only buffer over a memory mapped file. Any {@link Buffer} returned by
+ * {@link #readBytes(int)} or any of the slice operations is a {@link NioBuffer}
+ * that is a view straight into the mapped file, i.e., no data is copied.
+ *
+ * Since a single mapping cannot exceed 2GB, the file is mapped in windows of
+ * {@link #DEFAULT_WINDOW_SIZE} bytes, where each window extends another
+ * {@link #DEFAULT_WINDOW_OVERLAP} bytes into the next one. That way, any slice
+ * that isn't larger than the overlap will always fit within a single window.
+ * Slices larger than the overlap that happen to straddle two windows will be
+ * copied onto the heap.
+ *
+ * Windows are mapped lazily and only the current one is referenced by this
+ * buffer so memory is released as we move through the file (as long as the
+ * slices themselves are not kept around).
+ *
+ * Note that the reader index is kept as a long and the methods that return an
+ * int index will throw an {@link IllegalStateException} if the index doesn't
+ * fit. For the same reason, {@link #getReadableBytes()} will never report more
+ * than {@link Integer#MAX_VALUE} bytes.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class MappedFileBuffer extends BaseBuffer implements Closeable {
+
+    private static final String CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER = "Cannot write to a MappedFileBuffer";
+
+    /**
+     * The default size of each window, 1GB.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+    /**
+     * The default number of bytes each window overlaps with the next one. This
+     * is the largest slice that is guaranteed to be zero-copy and is
+     * comfortably larger than the max snap length of any pcap.
+     */
+    public static final int DEFAULT_WINDOW_OVERLAP = 1 << 20;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    /**
+     * Where the windows start, which is the beginning of the file unless this
+     * buffer is a region of it.
+     */
+    private final long base;
+
+    private final int windowSize;
+
+    private final int windowOverlap;
+
+    /**
+     * The currently mapped window and its index.
+     */
+    private java.nio.ByteBuffer window;
+    private long windowIndex = -1;
+
+    /**
+     * From where we will continue reading
+     */
+    private long readerIndex;
+
+    private long markedReaderIndex;
+
+    public MappedFileBuffer(final FileChannel channel) throws IOException {
+        this(channel, DEFAULT_WINDOW_SIZE, DEFAULT_WINDOW_OVERLAP);
+    }
+
+    /**
+     *
+     * @param channel the channel to map. Only read access is needed.
+     * @param windowSize the size of each mapped window.
+     * @param windowOverlap how far each window extends into the next one.
+     *        Must be the same or larger than the largest slice you ever
+     *        intend to read in order to guarantee that no data is ever copied.
+     * @throws IOException
+     */
+    public MappedFileBuffer(final FileChannel channel, final int windowSize, final int windowOverlap)
+            throws IOException {
+        if (channel == null) {
+            throw new IllegalArgumentException("The channel cannot be null");
+        }
+        if (windowSize <= 0 || windowOverlap < 0) {
+            throw new IllegalArgumentException("The window size must be positive and the overlap cannot be negative");
+        }
+        if ((long) windowSize + windowOverlap > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The window size plus the overlap cannot exceed 2GB");
+        }
+        this.channel = channel;
+        this.size = channel.size();
+        this.base = 0;
+        this.windowSize = windowSize;
+        this.windowOverlap = windowOverlap;
+    }
+
+    private MappedFileBuffer(final MappedFileBuffer original) {
+        this.channel = original.channel;
+        this.size = original.size;
+        this.base = original.base;
+        this.windowSize = original.windowSize;
+        this.windowOverlap = original.windowOverlap;
+        this.readerIndex = original.readerIndex;
+        this.markedReaderIndex = original.markedReaderIndex;
+    }
+
+    private MappedFileBuffer(final MappedFileBuffer original, final long start, final long stop) {
+        this.channel = original.channel;
+        this.size = stop;
+        this.base = start;
+        this.windowSize = original.windowSize;
+        this.windowOverlap = original.windowOverlap;
+        this.readerIndex = start;
+        this.markedReaderIndex = start;
+    }
+
+    /**
+     * Open and map the file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static MappedFileBuffer open(final Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new MappedFileBuffer(channel);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The total size of the file.
+     *
+     * @return
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Create a new {@link MappedFileBuffer} over the region between the two
+     * absolute indices of the same file. The new buffer has its own reader
+     * index, which starts at <code>start</code>, and will never read beyond
+     * <code>stop</code>. Note that all indices of the new buffer are still
+     * absolute, i.e., relative to the beginning of the file.
+     *
+     * Since the region maps its own windows, starting at <code>start</code>,
+     * it can safely be handed to another thread, which is how a large file is
+     * processed in parallel. The underlying file is shared so do not close
+     * the region unless you intend to close the file.
+     *
+     * @param start the absolute index (inclusive) where the region starts
+     * @param stop the absolute index (exclusive) where the region ends
+     * @return
+     * @throws IndexOutOfBoundsException in case the region isn't within this
+     *         buffer.
+     */
+    public MappedFileBuffer region(final long start, final long stop) throws IndexOutOfBoundsException {
+        if (start < this.base || stop > this.size || start > stop) {
+            throw new IndexOutOfBoundsException("The region " + start + " - " + stop + " is not within " + this.base
+                    + " - " + this.size);
+        }
+        return new MappedFileBuffer(this, start, stop);
+    }
+
+    /**
+     * Get the window that contains the absolute index, mapping it if needed.
+     */
+    private java.nio.ByteBuffer window(final long index) {
+        final long k = (index - this.base) / this.windowSize;
+        if (k != this.windowIndex) {
+            final long position = this.base + k * this.windowSize;
+            final long length = Math.min((long) this.windowSize + this.windowOverlap, this.size - position);
+            try {
+                this.window = this.channel.map(MapMode.READ_ONLY, position, length);
+            } catch (final IOException e) {
+                throw new BufferException("Unable to map the region " + position + " - " + (position + length), e);
+            }
+            this.windowIndex = k;
+        }
+        return this.window;
+    }
+
+    private int windowOffset(final long index) {
+        return (int) ((index - this.base) % this.windowSize);
+    }
+
+    private static int assertSafeInt(final long value) {
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new IllegalStateException("This operation is only supported on the first 2gb of the file. Value="
+                    + value);
+        }
+
+        return (int) value;
+    }
+
+    private void checkIndex(final long index) throws IndexOutOfBoundsException {
+        if (index < this.base || index >= this.size) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * Slice out the region between the two absolute indices.
+     */
+    private Buffer internalSlice(final long start, final long stop) {
+        return internalSlice(start, stop, null);
+    }
+
+    /**
+     * Same as {@link #internalSlice(long, long)} but the view, if it is a
+     * {@link NioBuffer}, is re-pointed at the slice instead of creating a new
+     * one.
+     */
+    private Buffer internalSlice(final long start, final long stop, final Buffer view) {
+        if (start == stop) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkIndex(start);
+        checkIndex(stop - 1);
+        final int length = assertSafeInt(stop - start);
+        final java.nio.ByteBuffer w = window(start);
+        final int offset = windowOffset(start);
+        if (offset + length <= w.capacity()) {
+            if (view instanceof NioBuffer) {
+                return ((NioBuffer) view).repoint(offset, offset + length, w);
+            }
+            return new NioBuffer(0, offset, offset + length, offset + length, w);
+        }
+
+        // the slice is larger than the overlap and straddles
+        // two (or more) windows so we have no choice but to copy.
+        final byte[] copy = new byte[length];
+        internalGetBytes(start, copy, length);
+        return Buffers.wrap(copy);
+    }
+
+    private void internalGetBytes(final long start, final byte[] dst, final int length) {
+        int index = 0;
+        while (index < length) {
+            final long position = start + index;
+            final java.nio.ByteBuffer dup = window(position).duplicate();
+            final int offset = windowOffset(position);
+            final int chunk = Math.min(length - index, dup.capacity() - offset);
+            dup.position(offset);
+            dup.get(dst, index, chunk);
+            index += chunk;
+        }
+    }
+
+    public byte getByte(final long index) throws IndexOutOfBoundsException {
+        checkIndex(index);
+        return window(index).get(windowOffset(index));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getByte(final int index) throws IndexOutOfBoundsException {
+        return getByte((long) index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer readBytes(final int length) throws IndexOutOfBoundsException {
+        return readBytes(length, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer readBytes(final int length, final Buffer view) throws IndexOutOfBoundsException {
+        if (this.readerIndex + length > this.size) {
+            throw new IndexOutOfBoundsException("Not enough bytes left in the file. Wanted " + length
+                    + " but only have " + (this.size - this.readerIndex));
+        }
+        final Buffer slice = internalSlice(this.readerIndex, this.readerIndex + length, view);
+        this.readerIndex += length;
+        return slice;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer slice(final int start, final int stop) {
+        return internalSlice(start, stop);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer slice(final int stop) {
+        return internalSlice(this.readerIndex, stop);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer slice() {
+        return internalSlice(this.readerIndex, this.size);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte readByte() throws IndexOutOfBoundsException {
+        final byte b = getByte(this.readerIndex);
+        ++this.readerIndex;
+        return b;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte peekByte() throws IndexOutOfBoundsException {
+        return getByte(this.readerIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short readUnsignedByte() throws IndexOutOfBoundsException {
+        return (short) (readByte() & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long readUnsignedInt() throws IndexOutOfBoundsException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readInt() throws IndexOutOfBoundsException {
+        final int value = getInt(this.readerIndex);
+        this.readerIndex += 4;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short readShort() throws IndexOutOfBoundsException {
+        final short value = getShort(this.readerIndex);
+        this.readerIndex += 2;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readUnsignedShort() throws IndexOutOfBoundsException {
+        return readShort() & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(final int index) throws IndexOutOfBoundsException {
+        return getInt((long) index);
+    }
+
+    private int getInt(final long index) throws IndexOutOfBoundsException {
+        return (getByte(index) & 0xff) << 24 | (getByte(index + 1) & 0xff) << 16
+                | (getByte(index + 2) & 0xff) << 8 | getByte(index + 3) & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(final int index) throws IndexOutOfBoundsException {
+        return getShort((long) index);
+    }
+
+    private short getShort(final long index) throws IndexOutOfBoundsException {
+        return (short) (getByte(index) << 8 | getByte(index + 1) & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getUnsignedShort(final int index) throws IndexOutOfBoundsException {
+        return getShort(index) & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getUnsignedByte(final int index) throws IndexOutOfBoundsException {
+        return (short) (getByte(index) & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Note that this will never report more than {@link Integer#MAX_VALUE}
+     * bytes even if there are more left in the file.
+     */
+    @Override
+    public int getReadableBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, this.size - this.readerIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasReadableBytes() {
+        return this.readerIndex < this.size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return !hasReadableBytes();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getArray() {
+        final int length = assertSafeInt(this.size - this.readerIndex);
+        final byte[] array = new byte[length];
+        internalGetBytes(this.readerIndex, array, length);
+        return array;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getReaderIndex() {
+        return assertSafeInt(this.readerIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setReaderIndex(final int index) {
+        this.readerIndex = index;
+    }
+
+    /**
+     * Same as {@link #setReaderIndex(int)} but for those files that are
+     * larger than 2GB.
+     *
+     * @param index the absolute index in the file
+     */
+    public void setReaderIndex(final long index) {
+        this.readerIndex = index;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void markReaderIndex() {
+        this.markedReaderIndex = this.readerIndex;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetReaderIndex() {
+        this.readerIndex = this.markedReaderIndex;
+    }
+
+    @Override
+    public int getWriterIndex() {
+        return assertSafeInt(this.size);
+    }
+
+    @Override
+    public void setWriterIndex(final int index) {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public int capacity() {
+        return assertSafeInt(this.size);
+    }
+
+    @Override
+    public int getLowerBoundary() {
+        return 0;
+    }
+
+    @Override
+    public int getUpperBoundary() {
+        return assertSafeInt(this.size);
+    }
+
+    @Override
+    public void getBytes(final Buffer dst) {
+        getBytes(getReaderIndex(), dst);
+    }
+
+    @Override
+    public void getBytes(final int index, final Buffer dst) throws IndexOutOfBoundsException {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index less than zero");
+        }
+        final long stop = Math.min((long) index + dst.getWritableBytes(), this.size);
+        for (long i = index; i < stop; ++i) {
+            dst.write(getByte(i));
+        }
+    }
+
+    @Override
+    public void getBytes(final byte[] dst) throws IndexOutOfBoundsException {
+        final int length = (int) Math.min(dst.length, this.size - this.readerIndex);
+        internalGetBytes(this.readerIndex, dst, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String dumpAsHex() {
+        return "dumpAsHex isn't implemented just yet";
+    }
+
+    /**
+     * Returns a new {@link MappedFileBuffer} over the same file with its own
+     * reader index, which initially is the same as the reader index of this
+     * buffer. The underlying file is shared and will be closed by whichever
+     * of the two buffers that is closed first.
+     */
+    @Override
+    public Buffer clone() {
+        return new MappedFileBuffer(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object other) {
+        return equalsBytes(false, this, other);
+    }
+
+    @Override
+    public boolean equalsIgnoreCase(final Object other) {
+        return equalsBytes(true, this, other);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        // same as for the other buffers but straight off the mapped windows
+        // so we never copy the file onto the heap.
+        int result = 1;
+        long position = this.readerIndex;
+        while (position < this.size) {
+            final java.nio.ByteBuffer window = window(position);
+            final int offset = windowOffset(position);
+            final int end = (int) Math.min(window.capacity(), offset + (this.size - position));
+            for (int i = offset; i < end; ++i) {
+                result = 31 * result + window.get(i);
+            }
+            position += end - offset;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return slice().toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public int getWritableBytes() {
+        return 0;
+    }
+
+    @Override
+    public boolean hasWritableBytes() {
+        return false;
+    }
+
+    @Override
+    public boolean hasWriteSupport() {
+        return false;
+    }
+
+    @Override
+    public void setByte(final int index, final byte value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void setUnsignedByte(final int index, final short value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void setUnsignedShort(final int index, final int value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void setInt(final int index, final int value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void setUnsignedInt(final int index, final long value) throws IndexOutOfBoundsException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final byte b) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final byte[] bytes) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final String s) throws IndexOutOfBoundsException, WriteNotSupportedException,
+            UnsupportedEncodingException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void write(final String s, final String charset) throws IndexOutOfBoundsException,
+            WriteNotSupportedException, UnsupportedEncodingException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void writeAsString(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+    @Override
+    public void writeAsString(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_MAPPED_FILE_BUFFER);
+    }
+
+}
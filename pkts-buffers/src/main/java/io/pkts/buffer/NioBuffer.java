@@ -0,0 +1,436 @@
+/**
+ *
+ */
+package io.pkts.buffer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A buffer backed by a {@link java.nio.ByteBuffer}, which typically is a
+ * region of a memory mapped file (see {@link MappedFileBuffer}). Slicing and
+ * reading bytes off of this buffer will simply create a new view of the same
+ * underlying storage so no data is ever copied.
+ *
+ * If the underlying {@link java.nio.ByteBuffer} is read-only, which is the
+ * case for a file that has been mapped as read-only, the first modification
+ * of this buffer (e.g. {@link #setByte(int, byte)}) will copy the visible
+ * region of this buffer onto the heap and the modification is applied to that
+ * copy. Hence, the file will never be altered and other views of the same
+ * region will not see the change.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class NioBuffer extends AbstractBuffer {
+
+    private static final String CANNOT_WRITE_TO_A_NIO_BUFFER = "Cannot write to a NioBuffer";
+
+    /**
+     * The actual buffer. Note that we will only ever use the absolute get/put
+     * methods so the position and limit of the buffer is never touched.
+     */
+    private java.nio.ByteBuffer buffer;
+
+    protected NioBuffer(final java.nio.ByteBuffer buffer) {
+        this(0, 0, buffer.capacity(), buffer.capacity(), buffer);
+    }
+
+    protected NioBuffer(final int readerIndex, final int lowerBoundary, final int upperBoundary,
+            final int writerIndex, final java.nio.ByteBuffer buffer) {
+        super(readerIndex, lowerBoundary, upperBoundary, writerIndex);
+        assert buffer != null;
+        this.buffer = buffer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer slice(final int start, final int stop, final Buffer view) {
+        if (start == stop || view == this || !(view instanceof NioBuffer)) {
+            return slice(start, stop);
+        }
+        checkIndex(this.lowerBoundary + start);
+        checkIndex(this.lowerBoundary + stop - 1);
+        return ((NioBuffer) view).repoint(this.lowerBoundary + start, this.lowerBoundary + stop, this.buffer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer slice(final int start, final int stop) {
+        if (start == stop) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkIndex(this.lowerBoundary + start);
+        checkIndex(this.lowerBoundary + stop - 1);
+        final int upperBoundary = this.lowerBoundary + stop;
+        final int writerIndex = upperBoundary;
+        return new NioBuffer(0, this.lowerBoundary + start, upperBoundary, writerIndex, this.buffer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer readBytes(final int length) throws IndexOutOfBoundsException {
+        if (length == 0) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        checkReadableBytes(length);
+        final int lowerBoundary = this.readerIndex + this.lowerBoundary;
+        this.readerIndex += length;
+        final int upperBoundary = this.readerIndex + this.lowerBoundary;
+        final int writerIndex = upperBoundary;
+        return new NioBuffer(0, lowerBoundary, upperBoundary, writerIndex, this.buffer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer readBytes(final int length, final Buffer view) throws IndexOutOfBoundsException {
+        if (length == 0 || view == this || !(view instanceof NioBuffer)) {
+            return readBytes(length);
+        }
+        checkReadableBytes(length);
+        final int lowerBoundary = this.readerIndex + this.lowerBoundary;
+        this.readerIndex += length;
+        return ((NioBuffer) view).repoint(lowerBoundary, this.readerIndex + this.lowerBoundary, this.buffer);
+    }
+
+    /**
+     * Re-point this buffer at another region, see
+     * {@link Buffer#readBytes(int, Buffer)}.
+     */
+    NioBuffer repoint(final int lowerBoundary, final int upperBoundary, final java.nio.ByteBuffer buffer) {
+        this.buffer = buffer;
+        setBoundaries(lowerBoundary, upperBoundary);
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasReadableBytes() {
+        return getReadableBytes() > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return getReadableBytes() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getByte(final int index) throws IndexOutOfBoundsException {
+        checkIndex(this.lowerBoundary + index);
+        return this.buffer.get(this.lowerBoundary + index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getArray() {
+        final int length = getReadableBytes();
+        final byte[] array = new byte[length];
+        copy(this.lowerBoundary + this.readerIndex, array, length);
+        return array;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte readByte() throws IndexOutOfBoundsException {
+        return getByte(this.readerIndex++);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte peekByte() throws IndexOutOfBoundsException, IOException {
+        return getByte(this.readerIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long readUnsignedInt() throws IndexOutOfBoundsException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readInt() throws IndexOutOfBoundsException {
+        final int value = getInt(this.readerIndex);
+        this.readerIndex += 4;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short readShort() throws IndexOutOfBoundsException {
+        final short value = getShort(this.readerIndex);
+        this.readerIndex += 2;
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readUnsignedShort() {
+        return readShort() & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(final int index) {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 3);
+        return (this.buffer.get(i) & 0xff) << 24 | (this.buffer.get(i + 1) & 0xff) << 16
+                | (this.buffer.get(i + 2) & 0xff) << 8 | this.buffer.get(i + 3) & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(final int index) {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 1);
+        return (short) (this.buffer.get(i) << 8 | this.buffer.get(i + 1) & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getUnsignedShort(final int index) throws IndexOutOfBoundsException {
+        return getShort(index) & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getUnsignedByte(final int index) throws IndexOutOfBoundsException {
+        return (short) (getByte(index) & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setByte(final int index, final byte value) throws IndexOutOfBoundsException {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        ensureWritable().put(this.lowerBoundary + index, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUnsignedByte(final int index, final short value) throws IndexOutOfBoundsException {
+        setByte(index, (byte) value);
+    }
+
+    @Override
+    public void setUnsignedShort(final int index, final int value) {
+        final int i = this.lowerBoundary + index;
+        checkIndex(i);
+        checkIndex(i + 1);
+        final java.nio.ByteBuffer b = ensureWritable();
+        b.put(this.lowerBoundary + index, (byte) (value >> 8));
+        b.put(this.lowerBoundary + index + 1, (byte) value);
+    }
+
+    @Override
+    public void setInt(final int index, final int value) throws IndexOutOfBoundsException {
+        checkIndex(this.lowerBoundary + index);
+        checkIndex(this.lowerBoundary + index + 3);
+        final java.nio.ByteBuffer b = ensureWritable();
+        b.put(this.lowerBoundary + index + 0, (byte) (value >>> 24));
+        b.put(this.lowerBoundary + index + 1, (byte) (value >>> 16));
+        b.put(this.lowerBoundary + index + 2, (byte) (value >>> 8));
+        b.put(this.lowerBoundary + index + 3, (byte) value);
+    }
+
+    @Override
+    public void setUnsignedInt(final int index, final long value) throws IndexOutOfBoundsException {
+        checkIndex(this.lowerBoundary + index);
+        checkIndex(this.lowerBoundary + index + 3);
+        final java.nio.ByteBuffer b = ensureWritable();
+        b.put(this.lowerBoundary + index + 0, (byte) value);
+        b.put(this.lowerBoundary + index + 1, (byte) (value >>> 8));
+        b.put(this.lowerBoundary + index + 2, (byte) (value >>> 16));
+        b.put(this.lowerBoundary + index + 3, (byte) (value >>> 24));
+    }
+
+    /**
+     * If the underlying buffer is read-only then copy the visible region of
+     * this buffer onto the heap so that we can modify it.
+     *
+     * @return the buffer that is safe to modify
+     */
+    private java.nio.ByteBuffer ensureWritable() {
+        if (!this.buffer.isReadOnly()) {
+            return this.buffer;
+        }
+
+        final int capacity = capacity();
+        final byte[] copy = new byte[capacity];
+        copy(this.lowerBoundary, copy, capacity);
+        this.buffer = java.nio.ByteBuffer.wrap(copy);
+        this.writerIndex -= this.lowerBoundary;
+        this.upperBoundary -= this.lowerBoundary;
+        this.lowerBoundary = 0;
+        return this.buffer;
+    }
+
+    /**
+     * Get a view of the region between the two indices (relative to the
+     * lower boundary, just like {@link #slice(int, int)}) of the underlying
+     * {@link java.nio.ByteBuffer}, without copying it.
+     */
+    java.nio.ByteBuffer toByteBuffer(final int start, final int stop) {
+        final java.nio.ByteBuffer dup = this.buffer.duplicate();
+        dup.limit(this.lowerBoundary + stop);
+        dup.position(this.lowerBoundary + start);
+        return dup;
+    }
+
+    /**
+     * Bulk copy <code>length</code> bytes, starting at the absolute index, from
+     * the underlying buffer into the destination array.
+     */
+    private void copy(final int index, final byte[] dst, final int length) {
+        final java.nio.ByteBuffer dup = this.buffer.duplicate();
+        dup.position(index);
+        dup.get(dst, 0, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String dumpAsHex() {
+        return "dumpAsHex isn't implemented just yet";
+    }
+
+    /**
+     * Cloning a {@link NioBuffer} will copy the data onto the heap and as such
+     * the returned buffer is no longer backed by e.g. a memory mapped file.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer clone() {
+        final int size = capacity();
+        if (size == 0) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        final byte[] copy = new byte[size];
+        copy(this.lowerBoundary, copy, size);
+        return Buffers.wrap(copy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = this.lowerBoundary + this.readerIndex; i < this.upperBoundary; ++i) {
+            result = 31 * result + this.buffer.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object other) {
+        return equalsBytes(false, this, other);
+    }
+
+    @Override
+    public boolean equalsIgnoreCase(final Object other) {
+        return equalsBytes(true, this, other);
+    }
+
+    @Override
+    public String toString() {
+        return new String(getArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void getBytes(final Buffer dst) {
+        getBytes(getReaderIndex(), dst);
+    }
+
+    @Override
+    public void getBytes(final int index, final Buffer dst) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index less than zero");
+        }
+        final int max = dst.getWritableBytes();
+        final int stop = Math.min(this.lowerBoundary + index + max, this.writerIndex);
+        for (int i = this.lowerBoundary + index; i < stop; ++i) {
+            dst.write(this.buffer.get(i));
+        }
+    }
+
+    @Override
+    public void getBytes(final byte[] dst) throws IndexOutOfBoundsException {
+        final int length = Math.min(dst.length, getReadableBytes());
+        copy(this.lowerBoundary + this.readerIndex, dst, length);
+    }
+
+    @Override
+    public void write(final byte[] bytes) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_NIO_BUFFER);
+    }
+
+    @Override
+    public void write(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_NIO_BUFFER);
+    }
+
+    @Override
+    public void write(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_NIO_BUFFER);
+    }
+
+    @Override
+    public void writeAsString(final int value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_NIO_BUFFER);
+    }
+
+    @Override
+    public void writeAsString(final long value) throws IndexOutOfBoundsException, WriteNotSupportedException {
+        throw new WriteNotSupportedException(CANNOT_WRITE_TO_A_NIO_BUFFER);
+    }
+
+}
@@ -0,0 +1,792 @@
+package io.pkts.buffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * An {@link InputStream} that decompresses a gzip stream, where the
+ * independent members of the stream are decompressed in parallel.
+ *
+ * A gzip stream is a sequence of one or more members, where every member can
+ * be decompressed without knowing anything about the members before it. A
+ * stream written by e.g. a rotating writer, or several gzip files simply
+ * concatenated, consists of many members. However, there is no index telling
+ * us where the members start so the compressed stream is cut into segments
+ * at anything that looks like the header of a member. Every segment is then
+ * decompressed on a worker thread and the decompressed data is served in the
+ * same order as the segments appeared in the compressed stream.
+ *
+ * The workers decompress into chunks of a fixed size, which are handed to
+ * the reader as they are filled and re-used once they have been read. Every
+ * segment may only have so many chunks waiting to be read so the amount of
+ * decompressed data in memory is bounded no matter how well the segments
+ * compress. A worker that is ahead of the reader simply waits for it.
+ *
+ * A segment is only used if it decompresses into whole members and nothing
+ * else, which is how a cut that only happened to look like a member header
+ * is detected. When that happens, or when a member is too large to be cut
+ * out of the stream, the rest of the stream is simply decompressed
+ * sequentially, just like {@link java.util.zip.GZIPInputStream} would. Since
+ * the segment starts on a member boundary, whatever the reader has already
+ * got out of it is the same as what the sequential decompression starts
+ * with, so that part is skipped.
+ *
+ * A stream that only consists of a single member, which is what e.g. gzip
+ * itself writes, cannot be decompressed in parallel at all.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class ParallelGzipInputStream extends InputStream {
+
+    /**
+     * The default size of a segment of the compressed stream, 4MB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * How much larger than the segment size a segment is allowed to grow
+     * while looking for the start of the next member before we give up and
+     * decompress the rest of the stream sequentially.
+     */
+    private static final int MAX_SEGMENT_FACTOR = 4;
+
+    /**
+     * The default amount of decompressed data, 256MB, that may be kept in
+     * memory waiting to be read, across all the segments.
+     */
+    private static final int DEFAULT_MAX_INFLATED = 256 * 1024 * 1024;
+
+    /**
+     * The default size of the chunks the segments are decompressed into.
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * The size of the fixed part of a member header.
+     */
+    private static final int HEADER_SIZE = 10;
+
+    private static final int ID1 = 0x1f;
+    private static final int ID2 = 0x8b;
+    private static final int CM_DEFLATE = 8;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int RESERVED_FLAGS = 0xE0;
+
+    /**
+     * What the workers put after the last chunk of a segment that consisted
+     * of whole members, or of one that didn't.
+     */
+    private static final Chunk END = new Chunk(0);
+    private static final Chunk FAILED = new Chunk(0);
+
+    private final InputStream in;
+    private final int segmentSize;
+    private final int parallelism;
+    private final ExecutorService pool;
+
+    private final int chunkSize;
+
+    /**
+     * How many filled chunks a segment may have waiting to be read.
+     */
+    private final int chunksPerSegment;
+
+    /**
+     * The chunks that have been read and can be filled again.
+     */
+    private final Queue<Chunk> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of bytes allocated for chunks, ever.
+     */
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * The segments that have been handed to the workers, in the order they
+     * appeared in the compressed stream.
+     */
+    private final Deque<Segment> pending = new ArrayDeque<>();
+
+    /**
+     * Compressed data that has been read but not yet cut into a segment.
+     */
+    private byte[] carry;
+    private int carryLength;
+    private boolean endOfInput;
+
+    /**
+     * Whether the last segment in {@link #pending} is the tail of the stream,
+     * which has to be decompressed sequentially.
+     */
+    private boolean tail;
+
+    /**
+     * The segment currently being read and the chunk of it we are at.
+     */
+    private Segment head;
+    private Chunk current;
+    private int position;
+
+    /**
+     * Once we have fallen back on decompressing the rest of the stream
+     * sequentially, this is what we are reading from.
+     */
+    private InputStream sequential;
+
+    private boolean closed;
+
+    public ParallelGzipInputStream(final InputStream in) {
+        this(in, Runtime.getRuntime().availableProcessors(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     *
+     * @param in the compressed stream.
+     * @param parallelism the number of worker threads.
+     * @param segmentSize the (smallest) size of a segment of the compressed
+     *        stream that will be decompressed by a single worker.
+     */
+    public ParallelGzipInputStream(final InputStream in, final int parallelism, final int segmentSize) {
+        this(in, parallelism, segmentSize, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_INFLATED);
+    }
+
+    /**
+     *
+     * @param in the compressed stream.
+     * @param parallelism the number of worker threads.
+     * @param segmentSize the (smallest) size of a segment of the compressed
+     *        stream that will be decompressed by a single worker.
+     * @param chunkSize the size of the chunks the segments are decompressed
+     *        into.
+     * @param maxInflated roughly how much decompressed data may be kept in
+     *        memory, waiting to be read. However, every segment will always
+     *        have room for at least one filled chunk and one that is being
+     *        filled.
+     */
+    ParallelGzipInputStream(final InputStream in, final int parallelism, final int segmentSize,
+            final int chunkSize, final int maxInflated) {
+        if (in == null) {
+            throw new IllegalArgumentException("The input stream cannot be null");
+        }
+        if (parallelism <= 0 || segmentSize <= 0 || chunkSize <= 0 || maxInflated <= 0) {
+            throw new IllegalArgumentException("The parallelism and sizes must be positive");
+        }
+        this.in = in;
+        this.segmentSize = segmentSize;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+
+        // every pending segment has one chunk being filled by its worker,
+        // on top of the ones waiting to be read.
+        this.chunksPerSegment = Math.max(1, maxInflated / chunkSize / getMaxPending() - 1);
+
+        // the segments must be started in the order they were cut, so that
+        // the one being read always has a thread of its own.
+        this.pool = Executors.newFixedThreadPool(parallelism, r -> {
+            final Thread thread = new Thread(r, "pkts-gunzip");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.carry = new byte[segmentSize + HEADER_SIZE];
+    }
+
+    /**
+     * Check whether the first bytes of a stream is the magic of a gzip
+     * stream.
+     *
+     * @param magic at least the first two bytes of the stream.
+     */
+    public static boolean isGzip(final byte[] magic) {
+        return magic.length >= 2 && (magic[0] & 0xFF) == ID1 && (magic[1] & 0xFF) == ID2;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        final int read = read(b, 0, 1);
+        return read == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("The stream has been closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (this.sequential != null) {
+                return this.sequential.read(b, off, len);
+            }
+
+            if (this.current != null && this.position < this.current.length) {
+                final int length = Math.min(len, this.current.length - this.position);
+                System.arraycopy(this.current.data, this.position, b, off, length);
+                this.position += length;
+                this.head.served += length;
+                return length;
+            }
+
+            if (!nextChunk()) {
+                this.pool.shutdown();
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Move on to the next decompressed chunk, of this segment or the next,
+     * or, if the segment couldn't be decompressed on its own, fall back on
+     * decompressing the rest of the stream sequentially.
+     *
+     * @return false if there is nothing more to read.
+     */
+    private boolean nextChunk() throws IOException {
+        if (this.current != null) {
+            recycle(this.current);
+            this.current = null;
+            this.position = 0;
+        }
+
+        while (true) {
+            if (this.head == null) {
+                // keep a few segments ahead of the reader but not the entire
+                // stream since all of it would have to be kept in memory.
+                while (!this.tail && this.pending.size() < getMaxPending()) {
+                    final Segment segment = cut();
+                    if (segment == null) {
+                        break;
+                    }
+                    this.pending.add(segment);
+                }
+
+                this.head = this.pending.poll();
+                if (this.head == null) {
+                    return false;
+                }
+                if (this.head.chunks == null) {
+                    fallBack();
+                    return true;
+                }
+            }
+
+            final Chunk chunk = take(this.head);
+            if (chunk == END) {
+                this.head = null;
+            } else if (chunk == FAILED) {
+                fallBack();
+                return true;
+            } else {
+                this.current = chunk;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Decompress the rest of the stream sequentially, starting with the
+     * segment being read.
+     */
+    private void fallBack() throws IOException {
+        // every segment before this one ended on a member boundary so this
+        // one starts on one and we can decompress the rest from here.
+        final List<InputStream> rest = new ArrayList<>();
+        rest.add(new ByteArrayInputStream(this.head.compressed));
+        for (final Segment s : this.pending) {
+            if (s.task != null) {
+                s.task.cancel(true);
+            }
+            rest.add(new ByteArrayInputStream(s.compressed));
+        }
+        this.pending.clear();
+        rest.add(new ByteArrayInputStream(this.carry, 0, this.carryLength));
+        this.carryLength = 0;
+        if (!this.endOfInput) {
+            rest.add(this.in);
+        }
+        this.sequential = new Members(new SequenceInputStream(Collections.enumeration(rest)));
+
+        // the reader has already got this much out of the segment
+        long remaining = this.head.served;
+        final byte[] skip = remaining > 0 ? new byte[(int) Math.min(65536, remaining)] : null;
+        while (remaining > 0) {
+            final int read = this.sequential.read(skip, 0, (int) Math.min(skip.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Unexpected end of the compressed stream");
+            }
+            remaining -= read;
+        }
+        this.head = null;
+    }
+
+    /**
+     * The number of segments to keep ahead of the reader.
+     */
+    private int getMaxPending() {
+        return 2 * this.parallelism;
+    }
+
+    /**
+     * Cut the next segment off the compressed stream and hand it to a
+     * worker.
+     *
+     * @return the segment or null if the entire stream has been cut into
+     *         segments.
+     */
+    private Segment cut() throws IOException {
+        fill(this.segmentSize + HEADER_SIZE);
+        if (this.carryLength == 0) {
+            return null;
+        }
+
+        int from = this.segmentSize;
+        final int max = MAX_SEGMENT_FACTOR * this.segmentSize;
+        while (true) {
+            final int stop = this.endOfInput ? this.carryLength : this.carryLength - HEADER_SIZE;
+            for (int i = from; i < stop; ++i) {
+                if (isMemberHeader(this.carry, i, this.carryLength)) {
+                    return submit(i);
+                }
+            }
+
+            if (this.endOfInput) {
+                return submit(this.carryLength);
+            }
+
+            if (this.carryLength >= max) {
+                // no member starts anywhere near here, which is what a
+                // single (huge) member looks like.
+                final Segment segment = new Segment(take(this.carryLength), null);
+                this.tail = true;
+                return segment;
+            }
+
+            from = Math.max(from, stop);
+            fill(Math.min(max, this.carryLength * 2) + HEADER_SIZE);
+        }
+    }
+
+    private Segment submit(final int length) {
+        final Segment segment = new Segment(take(length), new ArrayBlockingQueue<>(this.chunksPerSegment));
+        segment.task = this.pool.submit(() -> inflate(segment));
+        return segment;
+    }
+
+    /**
+     * Take the first bytes of the carry, which is then shifted down.
+     */
+    private byte[] take(final int length) {
+        final byte[] bytes = new byte[length];
+        System.arraycopy(this.carry, 0, bytes, 0, length);
+        System.arraycopy(this.carry, length, this.carry, 0, this.carryLength - length);
+        this.carryLength -= length;
+        return bytes;
+    }
+
+    /**
+     * Read from the compressed stream until the carry holds (at least) the
+     * given number of bytes or there is nothing more to read.
+     */
+    private void fill(final int size) throws IOException {
+        if (this.carry.length < size) {
+            final byte[] carry = new byte[size];
+            System.arraycopy(this.carry, 0, carry, 0, this.carryLength);
+            this.carry = carry;
+        }
+
+        while (!this.endOfInput && this.carryLength < size) {
+            final int read = this.in.read(this.carry, this.carryLength, size - this.carryLength);
+            if (read == -1) {
+                this.endOfInput = true;
+            } else {
+                this.carryLength += read;
+            }
+        }
+    }
+
+    /**
+     * Check whether what is at the index looks like the header of a member.
+     * It is a fairly strict check but it can still be fooled by compressed
+     * data that just happens to look like a header.
+     */
+    private static boolean isMemberHeader(final byte[] data, final int index, final int length) {
+        if (index + HEADER_SIZE > length) {
+            return false;
+        }
+        final int flags = data[index + 3] & 0xFF;
+        final int xfl = data[index + 8] & 0xFF;
+        final int os = data[index + 9] & 0xFF;
+        return (data[index] & 0xFF) == ID1
+                && (data[index + 1] & 0xFF) == ID2
+                && data[index + 2] == CM_DEFLATE
+                && (flags & RESERVED_FLAGS) == 0
+                && (xfl == 0 || xfl == 2 || xfl == 4)
+                && (os <= 13 || os == 255);
+    }
+
+    /**
+     * Decompress a segment into chunks, which is what the workers do. The
+     * last chunk is followed by {@link #END} or, if the segment turned out
+     * not to consist of whole members, {@link #FAILED}.
+     */
+    private void inflate(final Segment segment) {
+        final Members members = new Members(new ByteArrayInputStream(segment.compressed));
+        Chunk marker = FAILED;
+        try {
+            Chunk chunk = null;
+            int read = 0;
+            while (read != -1) {
+                if (chunk == null) {
+                    chunk = allocate();
+                }
+                read = members.read(chunk.data, chunk.length, chunk.data.length - chunk.length);
+                if (read > 0) {
+                    chunk.length += read;
+                }
+                if (chunk.length == chunk.data.length || read == -1 && chunk.length > 0) {
+                    segment.chunks.put(chunk);
+                    chunk = null;
+                }
+            }
+            if (chunk != null) {
+                recycle(chunk);
+            }
+            if (!members.garbage) {
+                marker = END;
+            }
+        } catch (final IOException | RuntimeException e) {
+            // the reader will decompress it sequentially instead, which is
+            // where any real problem with the stream is reported.
+        } catch (final InterruptedException e) {
+            // we have been cancelled
+            return;
+        } finally {
+            members.inflater.end();
+        }
+
+        try {
+            segment.chunks.put(marker);
+        } catch (final InterruptedException e) {
+            // we have been cancelled
+        }
+    }
+
+    private Chunk allocate() {
+        final Chunk chunk = this.free.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        this.allocated.addAndGet(this.chunkSize);
+        return new Chunk(this.chunkSize);
+    }
+
+    private void recycle(final Chunk chunk) {
+        chunk.length = 0;
+        this.free.offer(chunk);
+    }
+
+    private static Chunk take(final Segment segment) throws IOException {
+        try {
+            return segment.chunks.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decompressing", e);
+        }
+    }
+
+    /**
+     * The number of bytes that have been allocated for chunks, which is how
+     * much decompressed data there has been in memory at most.
+     */
+    long getAllocatedBytes() {
+        return this.allocated.get();
+    }
+
+    /**
+     * Stop the workers and close the compressed stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        for (final Segment segment : this.pending) {
+            if (segment.task != null) {
+                segment.task.cancel(true);
+            }
+        }
+        if (this.head != null && this.head.task != null) {
+            this.head.task.cancel(true);
+        }
+        this.pending.clear();
+        this.pool.shutdownNow();
+        if (this.sequential != null) {
+            this.sequential.close();
+        } else {
+            this.in.close();
+        }
+    }
+
+    private static final class Segment {
+        private final byte[] compressed;
+
+        /**
+         * The decompressed chunks, or null for the tail of the stream.
+         */
+        private final BlockingQueue<Chunk> chunks;
+
+        private Future<?> task;
+
+        /**
+         * How many decompressed bytes the reader has got out of the segment.
+         */
+        private long served;
+
+        private Segment(final byte[] compressed, final BlockingQueue<Chunk> chunks) {
+            this.compressed = compressed;
+            this.chunks = chunks;
+        }
+    }
+
+    private static final class Chunk {
+        private final byte[] data;
+        private int length;
+
+        private Chunk(final int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    /**
+     * Sequentially decompresses all the members of a gzip stream.
+     *
+     * Unlike {@link java.util.zip.GZIPInputStream}, which relies on
+     * {@link InputStream#available()} to figure out if there is another
+     * member, this one keeps going until the end of the stream. Anything
+     * after the last member that isn't a member is ignored, just like gzip
+     * does, but it is recorded as garbage.
+     */
+    private static final class Members extends InputStream {
+        private final InputStream in;
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+
+        private final byte[] buffer = new byte[65536];
+        private int bufferPosition;
+        private int bufferLength;
+
+        private boolean inMember;
+        private boolean first = true;
+        private boolean done;
+        private long size;
+
+        /**
+         * Whether there was something after the last member that wasn't a
+         * member.
+         */
+        private boolean garbage;
+
+        private Members(final InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (!this.done) {
+                if (!this.inMember) {
+                    this.inMember = readHeader();
+                    continue;
+                }
+
+                try {
+                    final int read = this.inflater.inflate(b, off, len);
+                    this.bufferPosition = this.bufferLength - this.inflater.getRemaining();
+                    if (read > 0) {
+                        this.crc.update(b, off, read);
+                        this.size += read;
+                        return read;
+                    }
+                } catch (final DataFormatException e) {
+                    throw new ZipException(e.getMessage());
+                }
+
+                if (this.inflater.finished()) {
+                    readTrailer();
+                    this.inMember = false;
+                } else if (this.inflater.needsDictionary()) {
+                    throw new ZipException("Unexpected preset dictionary");
+                } else if (this.inflater.needsInput()) {
+                    if (!refill()) {
+                        throw new EOFException("Unexpected end of the compressed stream");
+                    }
+                    this.inflater.setInput(this.buffer, this.bufferPosition,
+                            this.bufferLength - this.bufferPosition);
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         * Read the header of the next member, if there is one.
+         *
+         * @return true if there was another member.
+         */
+        private boolean readHeader() throws IOException {
+            if (this.bufferPosition == this.bufferLength && !refill()) {
+                if (this.first) {
+                    throw new EOFException("Empty gzip stream");
+                }
+                this.done = true;
+                return false;
+            }
+
+            final int id1 = readUnsignedByte();
+            if (id1 != ID1 || !refill() || readUnsignedByte() != ID2) {
+                if (this.first) {
+                    throw new ZipException("Not in gzip format");
+                }
+                this.garbage = true;
+                this.done = true;
+                return false;
+            }
+
+            if (readUnsignedByte() != CM_DEFLATE) {
+                throw new ZipException("Unsupported compression method");
+            }
+            final int flags = readUnsignedByte();
+            skip(6); // mtime, xfl and os
+
+            if ((flags & FEXTRA) != 0) {
+                skip(readUnsignedShort());
+            }
+            if ((flags & FNAME) != 0) {
+                skipString();
+            }
+            if ((flags & FCOMMENT) != 0) {
+                skipString();
+            }
+            if ((flags & FHCRC) != 0) {
+                skip(2);
+            }
+
+            this.first = false;
+            this.crc.reset();
+            this.size = 0;
+            this.inflater.reset();
+            this.inflater.setInput(this.buffer, this.bufferPosition, this.bufferLength - this.bufferPosition);
+            return true;
+        }
+
+        private void readTrailer() throws IOException {
+            final long crc = readUnsignedInt();
+            final long size = readUnsignedInt();
+            if (crc != this.crc.getValue()) {
+                throw new ZipException("Corrupt gzip trailer, the CRC doesn't match");
+            }
+            if (size != (this.size & 0xFFFFFFFFL)) {
+                throw new ZipException("Corrupt gzip trailer, the size doesn't match");
+            }
+        }
+
+        /**
+         * Read more compressed data, but only once all of the buffer has been
+         * consumed.
+         *
+         * @return false if there is no more data.
+         */
+        private boolean refill() throws IOException {
+            if (this.bufferPosition < this.bufferLength) {
+                return true;
+            }
+            int read;
+            do {
+                read = this.in.read(this.buffer, 0, this.buffer.length);
+            } while (read == 0);
+            if (read == -1) {
+                return false;
+            }
+            this.bufferPosition = 0;
+            this.bufferLength = read;
+            return true;
+        }
+
+        private int readUnsignedByte() throws IOException {
+            if (!refill()) {
+                throw new EOFException("Unexpected end of the compressed stream");
+            }
+            return this.buffer[this.bufferPosition++] & 0xFF;
+        }
+
+        private int readUnsignedShort() throws IOException {
+            return readUnsignedByte() | readUnsignedByte() << 8;
+        }
+
+        private long readUnsignedInt() throws IOException {
+            return (readUnsignedShort() | (long) readUnsignedShort() << 16) & 0xFFFFFFFFL;
+        }
+
+        private void skip(final int count) throws IOException {
+            for (int i = 0; i < count; ++i) {
+                readUnsignedByte();
+            }
+        }
+
+        private void skipString() throws IOException {
+            while (readUnsignedByte() != 0) {
+                // keep going
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.inflater.end();
+            this.in.close();
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+package io.pkts.buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An {@link InputStream} that reads ahead of its consumer on a separate
+ * thread. The read-ahead thread fills large buffers from the underlying
+ * stream and hands them over to the consumer through a bounded queue. Once
+ * the consumer has copied all the data out of a buffer, the buffer is
+ * recycled and handed back to the read-ahead thread. Hence, the read-ahead
+ * thread is at most <code>bufferCount</code> buffers ahead of the consumer and
+ * no buffers are allocated after the stream has been created.
+ *
+ * This allows for the (blocking) I/O to overlap with whatever the consumer is
+ * doing with the data, such as framing packets, which is where the gain is
+ * when the data is on a slow disk or a network file system.
+ *
+ * The read-ahead thread is a daemon thread that ends when the end of the
+ * underlying stream is reached or when this stream is closed.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class ReadAheadInputStream extends InputStream {
+
+    /**
+     * The default size of each buffer, 1MB.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The default number of buffers, i.e., how many buffers the read-ahead
+     * thread can be ahead of the consumer.
+     */
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    /**
+     * How long, in nanoseconds, a buffer may be filling up while the
+     * underlying stream has nothing more available before it is handed over
+     * anyway, so that the consumer of a live capture isn't kept waiting.
+     */
+    private static final long MAX_FILL_TIME = 20000000L;
+
+    /**
+     * Marks the end of the underlying stream.
+     */
+    private static final Chunk END_OF_STREAM = new Chunk(null, 0, null);
+
+    private final InputStream in;
+
+    /**
+     * Buffers that have been filled by the read-ahead thread.
+     */
+    private final BlockingQueue<Chunk> filled;
+
+    /**
+     * Buffers that the consumer is done with and that are free to be filled
+     * again.
+     */
+    private final BlockingQueue<byte[]> free;
+
+    private final Thread reader;
+
+    /**
+     * The chunk the consumer is currently reading from and how far into it
+     * the consumer has read.
+     */
+    private Chunk current;
+    private int position;
+
+    private volatile boolean closed;
+
+    public ReadAheadInputStream(final InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     *
+     * @param in the stream to read ahead of.
+     * @param bufferSize the size of each buffer.
+     * @param bufferCount the number of buffers, which must be at least two
+     *        since the consumer holds on to one of them while the read-ahead
+     *        thread is filling the other.
+     */
+    public ReadAheadInputStream(final InputStream in, final int bufferSize, final int bufferCount) {
+        if (in == null) {
+            throw new IllegalArgumentException("The input stream cannot be null");
+        }
+        if (bufferSize <= 0 || bufferCount < 2) {
+            throw new IllegalArgumentException("The buffer size must be positive and there must be at least "
+                    + "two buffers");
+        }
+        this.in = in;
+        this.filled = new ArrayBlockingQueue<>(bufferCount + 1);
+        this.free = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; ++i) {
+            this.free.add(new byte[bufferSize]);
+        }
+
+        this.reader = new Thread(this::readAhead, "pkts-read-ahead");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * The loop of the read-ahead thread.
+     */
+    private void readAhead() {
+        try {
+            while (!this.closed) {
+                final byte[] buffer = this.free.take();
+                final int length = fill(buffer);
+                if (length == -1) {
+                    this.filled.put(END_OF_STREAM);
+                    return;
+                }
+                this.filled.put(new Chunk(buffer, length, null));
+            }
+        } catch (final InterruptedException e) {
+            // closed
+        } catch (final Throwable e) {
+            // there is always room for one more since there are more slots
+            // than buffers. Anything goes here or the consumer would be left
+            // waiting for a chunk that never comes.
+            this.filled.offer(new Chunk(null, 0, e));
+        }
+    }
+
+    /**
+     * Fill the buffer until it is full or the end of the stream is reached,
+     * since every underlying read typically only gets a fraction of the
+     * buffer. However, once the buffer has been filling up for
+     * {@link #MAX_FILL_TIME} and the underlying stream has nothing more
+     * available, what we have got so far is handed over rather than having
+     * the consumer of a stream that is still being written to (such as a live
+     * capture piped to us) wait for the buffer to fill up.
+     *
+     * @return the number of bytes read or -1 if the end of the stream was
+     *         reached before a single byte could be read.
+     */
+    private int fill(final byte[] buffer) throws IOException {
+        final long start = System.nanoTime();
+        int length = 0;
+        while (length < buffer.length) {
+            final int read = this.in.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                return length == 0 ? -1 : length;
+            }
+            length += read;
+            if (System.nanoTime() - start >= MAX_FILL_TIME && this.in.available() <= 0) {
+                return length;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Make sure that there is a chunk to read from.
+     *
+     * @return false if we have reached the end of the stream.
+     */
+    private boolean ensureChunk() throws IOException {
+        if (this.current != null && this.position < this.current.length) {
+            return true;
+        }
+
+        if (this.current == END_OF_STREAM) {
+            return false;
+        }
+
+        if (this.current != null) {
+            this.free.offer(this.current.data);
+            this.current = null;
+        }
+
+        if (this.closed) {
+            throw new IOException("The stream has been closed");
+        }
+
+        try {
+            this.current = this.filled.take();
+            this.position = 0;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for data", e);
+        }
+
+        if (this.current.error != null) {
+            final Throwable error = this.current.error;
+            this.current = END_OF_STREAM;
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            throw new IOException("Unable to read ahead", error);
+        }
+
+        return this.current != END_OF_STREAM;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+        return this.current.data[this.position++] & 0xFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureChunk()) {
+            return -1;
+        }
+        final int length = Math.min(len, this.current.length - this.position);
+        System.arraycopy(this.current.data, this.position, b, off, length);
+        this.position += length;
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() throws IOException {
+        if (this.current == null || this.current == END_OF_STREAM) {
+            return 0;
+        }
+        return this.current.length - this.position;
+    }
+
+    /**
+     * Stop the read-ahead thread and close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.reader.interrupt();
+        this.in.close();
+    }
+
+    private static final class Chunk {
+        private final byte[] data;
+        private final int length;
+        private final Throwable error;
+
+        private Chunk(final byte[] data, final int length, final Throwable error) {
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+}
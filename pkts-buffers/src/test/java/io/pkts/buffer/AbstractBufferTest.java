@@ -232,6 +232,29 @@ public abstract class AbstractBufferTest {
         assertThat(buffer.readUntil((byte) 'i').toString(), is("g str"));
     }
 
+    /**
+     * Reading into a view must give the same result as a regular read,
+     * whether or not the view could be re-pointed, and the view must not
+     * be affected by what is read next.
+     */
+    @Test
+    public void testReadBytesIntoView() throws Exception {
+        final Buffer buffer = createBuffer("hello big world".getBytes());
+        Buffer view = buffer.readBytes(5, null);
+        assertThat(view.toString(), is("hello"));
+
+        buffer.readByte();
+        view = buffer.readBytes(3, view);
+        assertThat(view.toString(), is("big"));
+        assertThat(view.getReaderIndex(), is(0));
+
+        buffer.readByte();
+        final Buffer slice = view.slice(1, 3, null);
+        view = buffer.readBytes(5, view);
+        assertThat(view.toString(), is("world"));
+        assertThat(view.slice(1, 3, slice).toString(), is("or"));
+    }
+
     @Test
     public void testReadUntil() throws Exception {
         Buffer buffer = createBuffer("hello world".getBytes());
@@ -171,6 +171,25 @@ public class ByteBufferTest extends AbstractBufferTest {
         assertBuffers(sliceClone, slice);
     }
 
+    /**
+     * A view of the same kind is re-pointed rather than a new buffer being
+     * created.
+     */
+    @Test
+    public void testReadBytesRepointsView() throws Exception {
+        final Buffer buffer = Buffers.wrap("hello world".getBytes());
+        final Buffer view = buffer.readBytes(5, null);
+        buffer.readByte();
+        assertThat(buffer.readBytes(5, view) == view, is(true));
+        assertThat(view.toString(), is("world"));
+        assertThat(buffer.slice(0, 4, view) == view, is(true));
+        assertThat(view.toString(), is("hell"));
+
+        // a view can never be re-pointed at itself
+        assertThat(view.slice(1, 3, view) == view, is(false));
+        assertThat(view.toString(), is("hell"));
+    }
+
     @Test
     public void testMap() throws Exception {
         final Buffer a = createBuffer("hello");
@@ -3,9 +3,17 @@
  */
 package io.pkts.buffer;
 
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 import org.junit.Test;
 
 /**
@@ -60,4 +68,145 @@ public class CompositeBufferTest {
         assertThat(buffer.isEmpty(), is(true));
     }
 
+    /**
+     * The composite buffer is a view of the two buffers so any change to the
+     * original buffers must be visible through the composite buffer and the
+     * other way around.
+     */
+    @Test
+    public void testNoCopy() throws Exception {
+        final Buffer hello = Buffers.wrap("hello");
+        final Buffer world = Buffers.wrap("world");
+        final Buffer buffer = Buffers.wrap(hello, world);
+        assertThat(buffer, instanceOf(CompositeBuffer.class));
+
+        hello.setByte(0, (byte) 'j');
+        assertThat(buffer.toString(), is("jelloworld"));
+
+        buffer.setUnsignedShort(4, 0x2121);
+        assertThat(hello.toString(), is("jell!"));
+        assertThat(world.toString(), is("!orld"));
+    }
+
+    /**
+     * Wrapping composite buffers in composite buffers, which is what happens
+     * when a packet is written layer by layer, must not nest them.
+     */
+    @Test
+    public void testFlatten() throws Exception {
+        Buffer buffer = Buffers.wrap("payload");
+        for (final String header : new String[] { "udp", "ip", "eth", "pcap" }) {
+            buffer = Buffers.wrap(Buffers.wrap(header), buffer);
+        }
+        assertThat(buffer.toString(), is("pcapethipudppayload"));
+        assertThat(((CompositeBuffer) buffer).numberOfComponents(), is(5));
+
+        // only the readable bytes are part of the new buffer
+        buffer.readBytes(4);
+        final Buffer wrapped = Buffers.wrap(buffer, Buffers.wrap("!"));
+        assertThat(wrapped.toString(), is("ethipudppayload!"));
+        assertThat(((CompositeBuffer) wrapped).numberOfComponents(), is(5));
+    }
+
+    @Test
+    public void testGetByte() throws Exception {
+        final Buffer buffer = Buffers.wrap(Buffers.wrap("ab"), Buffers.wrap(Buffers.wrap("cde"), Buffers.wrap("f")));
+        final String expected = "abcdef";
+        for (int i = 0; i < expected.length(); ++i) {
+            assertThat(buffer.getByte(i), is((byte) expected.charAt(i)));
+        }
+        assertThat(buffer.getUnsignedShort(1), is('b' << 8 | 'c'));
+        assertThat(buffer.getInt(1), is('b' << 24 | 'c' << 16 | 'd' << 8 | 'e'));
+
+        assertThat(buffer.readByte(), is((byte) 'a'));
+        assertThat(buffer.readUnsignedShort(), is('b' << 8 | 'c'));
+        assertThat(buffer.peekByte(), is((byte) 'd'));
+        assertThat(buffer.getReadableBytes(), is(3));
+        assertThat(buffer.toString(), is("def"));
+    }
+
+    @Test
+    public void testSlice() throws Exception {
+        final Buffer buffer = Buffers.wrap(Buffers.wrap("hello"), Buffers.wrap(Buffers.wrap(" "), Buffers.wrap("world")));
+        assertThat(buffer.slice(0, 5).toString(), is("hello"));
+        assertThat(buffer.slice(1, 3).toString(), is("el"));
+        assertThat(buffer.slice(3, 8).toString(), is("lo wo"));
+        assertThat(buffer.slice(5, 11).toString(), is(" world"));
+        assertThat(buffer.slice(4, 4).isEmpty(), is(true));
+
+        // a slice within a single component is just a slice of that component
+        assertThat(buffer.slice(6, 11), instanceOf(ByteBuffer.class));
+
+        buffer.readBytes(2);
+        assertThat(buffer.slice().toString(), is("llo world"));
+        assertThat(buffer.readBytes(5).toString(), is("llo w"));
+        assertThat(buffer.readUntil((byte) 'l').toString(), is("or"));
+    }
+
+    @Test
+    public void testGetBytes() throws Exception {
+        final Buffer buffer = Buffers.wrap(Buffers.wrap("hello"), Buffers.wrap("world"));
+        final byte[] array = new byte[8];
+        buffer.readByte();
+        buffer.getBytes(array);
+        assertThat(new String(array, "UTF-8"), is("elloworl"));
+
+        final Buffer dst = Buffers.createBuffer(4);
+        buffer.getBytes(3, dst);
+        assertThat(dst.toString(), is("lowo"));
+
+        assertThat(buffer.getArray().length, is(9));
+        assertThat(buffer.clone().toString(), is("helloworld"));
+    }
+
+    @Test
+    public void testEquals() throws Exception {
+        final Buffer buffer = Buffers.wrap(Buffers.wrap("hello"), Buffers.wrap("world"));
+        assertThat(buffer.equals(Buffers.wrap("helloworld")), is(true));
+        assertThat(Buffers.wrap("helloworld").equals(buffer), is(true));
+        assertThat(buffer.hashCode(), is(Buffers.wrap("helloworld").hashCode()));
+        assertThat(buffer.equalsIgnoreCase(Buffers.wrap("HelloWorld")), is(true));
+        assertThat(buffer.equals(Buffers.wrap("helloworlds")), is(false));
+    }
+
+    @Test
+    public void testWriteToOutputStream() throws Exception {
+        final Buffer buffer = Buffers.wrap(Buffers.wrap("hello"), Buffers.wrap(Buffers.wrap(" "), Buffers.wrap("world")));
+        buffer.readBytes(3);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertThat(new String(out.toByteArray(), "UTF-8"), is("lo world"));
+
+        // and the reader index is left untouched
+        assertThat(buffer.getReadableBytes(), is(8));
+    }
+
+    @Test
+    public void testWriteToChannel() throws Exception {
+        final CompositeBuffer buffer = (CompositeBuffer) Buffers.wrap(Buffers.wrap("hello"), Buffers.wrap("world"));
+        buffer.readByte();
+
+        final Path file = Files.createTempFile("composite", ".bin");
+        final Path copy = Files.createTempFile("composite", ".bin");
+        try {
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                assertThat(buffer.writeTo((GatheringByteChannel) channel), is(9L));
+            }
+            assertThat(new String(Files.readAllBytes(file), "UTF-8"), is("elloworld"));
+
+            // a memory mapped component is written straight from the mapping
+            try (final MappedFileBuffer mapped = MappedFileBuffer.open(file)) {
+                final CompositeBuffer composite = (CompositeBuffer) Buffers.wrap(Buffers.wrap(">"),
+                        mapped.slice(4, 9));
+                try (final FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                    composite.writeTo((GatheringByteChannel) channel);
+                }
+            }
+            assertThat(new String(Files.readAllBytes(copy), "UTF-8"), is(">world"));
+        } finally {
+            Files.delete(file);
+            Files.delete(copy);
+        }
+    }
+
 }
@@ -120,6 +120,71 @@ public class InputStreamBufferTest extends AbstractBufferTest {
 
     }
 
+    /**
+     * In streaming mode the rows we have read past are released and the
+     * indices rebased so even though we are reading through a large stream
+     * the reader index should never move past the first couple of rows.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStreaming() throws Exception {
+        final byte[] content = allocateByteArray(100000);
+        final InputStreamBuffer buffer = new InputStreamBuffer(16, new ByteArrayInputStream(content), true);
+        assertThat(buffer.isStreaming(), is(true));
+
+        int offset = 0;
+        while (offset + 10 <= content.length) {
+            final Buffer ten = buffer.readBytes(10);
+            assertContent(ten, content, offset);
+            assertThat(buffer.getReaderIndex() < 32, is(true));
+            offset += 10;
+        }
+        assertThat(buffer.hasReadableBytes(), is(false));
+    }
+
+    /**
+     * Nothing below the mark may be released.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStreamingKeepsMarkedRows() throws Exception {
+        final byte[] content = allocateByteArray(1000);
+        final InputStreamBuffer buffer = new InputStreamBuffer(16, new ByteArrayInputStream(content), true);
+        buffer.readBytes(100);
+        buffer.markReaderIndex();
+        for (int i = 0; i < 50; ++i) {
+            buffer.readBytes(10);
+        }
+
+        buffer.resetReaderIndex();
+        assertContent(buffer.readBytes(500), content, 100);
+
+        // and the stream continues as usual
+        assertContent(buffer.readBytes(400), content, 600);
+    }
+
+    /**
+     * Without a mark, releasing rows must not push the marked reader index
+     * below zero so resetting the reader index still works.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStreamingResetWithoutMark() throws Exception {
+        final byte[] content = allocateByteArray(1000);
+        final InputStreamBuffer buffer = new InputStreamBuffer(16, new ByteArrayInputStream(content), true);
+        for (int i = 0; i < 50; ++i) {
+            buffer.readBytes(10);
+        }
+
+        buffer.resetReaderIndex();
+        assertThat(buffer.getReaderIndex(), is(0));
+        buffer.readBytes(buffer.getReadableBytes());
+        assertContent(buffer.readBytes(100), content, 500);
+    }
+
     /**
      * After we have been reading etc it is also important that we actually
      * verify that the new read buffers indeed contains the correct content.
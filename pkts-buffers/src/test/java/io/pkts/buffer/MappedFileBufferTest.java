@@ -0,0 +1,142 @@
+package io.pkts.buffer;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class MappedFileBufferTest extends AbstractBufferTest {
+
+    private Path file;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.file = Files.createTempFile("pkts", ".bin");
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(this.file);
+        super.tearDown();
+    }
+
+    @Override
+    public Buffer createBuffer(final byte[] array) {
+        try {
+            Files.write(this.file, array);
+            return MappedFileBuffer.open(this.file);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private MappedFileBuffer createBuffer(final byte[] array, final int windowSize, final int windowOverlap)
+            throws IOException {
+        Files.write(this.file, array);
+        return new MappedFileBuffer(FileChannel.open(this.file, StandardOpenOption.READ), windowSize, windowOverlap);
+    }
+
+    /**
+     * Use really tiny windows to make sure that we can read across window
+     * boundaries, which is what will happen with any file larger than 2GB.
+     */
+    @Test
+    public void testReadAcrossWindows() throws Exception {
+        final MappedFileBuffer buffer = createBuffer(allocateByteArray(100), 16, 8);
+        for (int i = 0; i < 50; ++i) {
+            assertThat(buffer.readByte(), is((byte) i));
+        }
+
+        // 50 - 58 is within the window starting at 48 so should be a view.
+        final Buffer b1 = buffer.readBytes(8);
+        assertThat(b1, instanceOf(NioBuffer.class));
+        assertThat(b1.getByte(0), is((byte) 50));
+        assertThat(b1.getByte(7), is((byte) 57));
+
+        // 58 - 78 straddles three windows so must be copied
+        final Buffer b2 = buffer.readBytes(20);
+        assertThat(b2.capacity(), is(20));
+        for (int i = 0; i < 20; ++i) {
+            assertThat(b2.getByte(i), is((byte) (58 + i)));
+        }
+
+        assertThat(buffer.readInt(), is(0x4E4F5051));
+        assertThat(buffer.getReadableBytes(), is(18));
+        assertThat(buffer.slice().getByte(17), is((byte) 99));
+        buffer.close();
+    }
+
+    @Test
+    public void testRegion() throws Exception {
+        final MappedFileBuffer buffer = createBuffer(allocateByteArray(100), 16, 8);
+        final MappedFileBuffer region = buffer.region(30, 70);
+        assertThat(region.getReaderIndex(), is(30));
+        assertThat(region.getReadableBytes(), is(40));
+
+        // the region maps its own windows, starting at 30
+        assertThat(region.readBytes(16), instanceOf(NioBuffer.class));
+        assertThat(region.readByte(), is((byte) 46));
+        assertThat(region.readBytes(23).getByte(22), is((byte) 69));
+        assertThat(region.hasReadableBytes(), is(false));
+
+        // and the original buffer is untouched
+        assertThat(buffer.getReaderIndex(), is(0));
+        try {
+            region.getByte(29L);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (final IndexOutOfBoundsException e) {
+            // expected
+        }
+        buffer.close();
+    }
+
+    /**
+     * The hash code is calculated over the readable bytes, window by window,
+     * and is the same as for any other buffer with the same bytes.
+     */
+    @Test
+    public void testHashCodeAcrossWindows() throws Exception {
+        final byte[] array = allocateByteArray(100);
+        final MappedFileBuffer buffer = createBuffer(array, 16, 8);
+        assertThat(buffer.hashCode(), is(Buffers.wrap(array).hashCode()));
+
+        buffer.readBytes(13);
+        assertThat(buffer.hashCode(), is(Buffers.wrap(array, 13, 100).hashCode()));
+        assertThat(buffer.region(30, 70).hashCode(), is(Buffers.wrap(array, 30, 70).hashCode()));
+        assertThat(buffer.dumpAsHex() != null, is(true));
+        buffer.close();
+    }
+
+    @Test
+    public void testReadBytesPastEndOfFile() throws Exception {
+        final Buffer buffer = createBuffer(allocateByteArray(20));
+        buffer.readBytes(16);
+        try {
+            buffer.readBytes(16);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (final IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        // and a failed read shouldn't have moved the reader index
+        assertThat(buffer.readBytes(4).getByte(3), is((byte) 19));
+        assertThat(buffer.hasReadableBytes(), is(false));
+    }
+
+}
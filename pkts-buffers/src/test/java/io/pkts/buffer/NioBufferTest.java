@@ -0,0 +1,59 @@
+package io.pkts.buffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class NioBufferTest extends AbstractBufferTest {
+
+    @Override
+    public Buffer createBuffer(final byte[] array) {
+        return Buffers.wrap(java.nio.ByteBuffer.wrap(array));
+    }
+
+    /**
+     * A {@link NioBuffer} must be equal to a {@link ByteBuffer} with the same
+     * content and vice versa, or e.g. header name lookups would fail
+     * depending on where the data came from.
+     */
+    @Test
+    public void testEqualsByteBuffer() throws Exception {
+        final Buffer nio = createBuffer("Call-ID".getBytes());
+        final Buffer heap = Buffers.wrap("Call-ID");
+        assertThat(nio.equals(heap), is(true));
+        assertThat(heap.equals(nio), is(true));
+        assertThat(nio.hashCode(), is(heap.hashCode()));
+        assertThat(heap.equalsIgnoreCase(createBuffer("call-id".getBytes())), is(true));
+        assertThat(heap.equals(createBuffer("call-id".getBytes())), is(false));
+    }
+
+    /**
+     * Modifying a view of a read-only buffer (such as a mapped file) must not
+     * blow up but rather detach that view from the underlying storage.
+     */
+    @Test
+    public void testCopyOnWrite() throws Exception {
+        final java.nio.ByteBuffer readOnly = java.nio.ByteBuffer.wrap(allocateByteArray(100)).asReadOnlyBuffer();
+        final Buffer buffer = Buffers.wrap(readOnly);
+        final Buffer slice = buffer.slice(10, 20);
+        slice.readByte();
+
+        slice.setByte(1, (byte) 0x77);
+        slice.setUnsignedShort(2, 0xABCD);
+        assertThat(slice.getByte(0), is((byte) 10));
+        assertThat(slice.getByte(1), is((byte) 0x77));
+        assertThat(slice.getUnsignedShort(2), is(0xABCD));
+        assertThat(slice.readByte(), is((byte) 0x77));
+        assertThat(slice.getReadableBytes(), is(8));
+        assertThat(slice.capacity(), is(10));
+
+        // the original is left untouched
+        assertThat(buffer.getByte(11), is((byte) 11));
+        assertThat(readOnly.get(12), is((byte) 12));
+    }
+
+}
@@ -0,0 +1,184 @@
+/**
+ * 
+ */
+package io.pkts.buffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class ParallelGzipInputStreamTest {
+
+    /**
+     * Somewhat compressible data.
+     */
+    private static byte[] createData(final int size) {
+        final Random random = new Random(42);
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    /**
+     * Compress the data into one member per piece of the given size.
+     */
+    private static byte[] gzip(final byte[] data, final int memberSize) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < data.length; i += memberSize) {
+            final GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(data, i, Math.min(memberSize, data.length - i));
+            gzip.finish();
+        }
+        return out.toByteArray();
+    }
+
+    @Test(timeout = 10000)
+    public void testMultipleMembers() throws Exception {
+        final byte[] data = createData(100000);
+        final byte[] compressed = gzip(data, 3000);
+        for (int segmentSize = 100; segmentSize < 20000; segmentSize *= 3) {
+            assertArrayEquals(data, readAll(new ParallelGzipInputStream(new ByteArrayInputStream(compressed), 3,
+                    segmentSize)));
+        }
+    }
+
+    /**
+     * A single member cannot be decompressed in parallel but that doesn't
+     * stop us from decompressing it.
+     */
+    @Test(timeout = 10000)
+    public void testSingleMember() throws Exception {
+        final byte[] data = createData(100000);
+        final byte[] compressed = gzip(data, data.length);
+        assertArrayEquals(data, readAll(new ParallelGzipInputStream(new ByteArrayInputStream(compressed), 2, 100)));
+        assertArrayEquals(data, readAll(new ParallelGzipInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    /**
+     * Uncompressed data that looks like the header of a member fools us into
+     * cutting a member in the middle, which must be detected.
+     */
+    @Test(timeout = 10000)
+    public void testFakeMemberHeader() throws Exception {
+        final byte[] data = createData(20000);
+        final byte[] header = new byte[] { 0x1f, (byte) 0x8b, 0x08, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x03 };
+        for (int i = 0; i < data.length - header.length; i += 1000) {
+            System.arraycopy(header, 0, data, i, header.length);
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                this.def.setLevel(Deflater.NO_COMPRESSION);
+            }
+        };
+        gzip.write(data);
+        gzip.finish();
+        final byte[] compressed = out.toByteArray();
+
+        assertArrayEquals(data, readAll(new ParallelGzipInputStream(new ByteArrayInputStream(compressed), 2, 500)));
+    }
+
+    /**
+     * The decompressed data in memory is bounded by what we allow, no matter
+     * how far ahead of the reader the workers get, and the chunks are
+     * re-used once they have been read.
+     */
+    @Test(timeout = 10000)
+    public void testBoundedInflatedData() throws Exception {
+        final byte[] data = createData(200000);
+        final byte[] compressed = gzip(data, 3000);
+        final ParallelGzipInputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(compressed), 2, 500,
+                512, 8192);
+        assertArrayEquals(data, readAll(in));
+        assertThat(in.getAllocatedBytes() <= 8192 + 512, is(true));
+    }
+
+    /**
+     * Same as {@link #testFakeMemberHeader()} but the reader has already got
+     * chunks out of the segment by the time it turns out it was cut in the
+     * middle of a member.
+     */
+    @Test(timeout = 10000)
+    public void testFakeMemberHeaderAfterChunks() throws Exception {
+        final byte[] data = createData(20000);
+        final byte[] header = new byte[] { 0x1f, (byte) 0x8b, 0x08, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x03 };
+        for (int i = 0; i < data.length - header.length; i += 1000) {
+            System.arraycopy(header, 0, data, i, header.length);
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                this.def.setLevel(Deflater.NO_COMPRESSION);
+            }
+        };
+        gzip.write(data);
+        gzip.finish();
+        final byte[] compressed = out.toByteArray();
+
+        assertArrayEquals(data, readAll(new ParallelGzipInputStream(new ByteArrayInputStream(compressed), 2, 500,
+                64, 1024)));
+    }
+
+    @Test(timeout = 10000)
+    public void testTrailingGarbage() throws Exception {
+        final byte[] data = createData(10000);
+        final byte[] compressed = gzip(data, 1000);
+        final byte[] garbage = new byte[compressed.length + 3];
+        System.arraycopy(compressed, 0, garbage, 0, compressed.length);
+        assertArrayEquals(data, readAll(new ParallelGzipInputStream(new ByteArrayInputStream(garbage), 2, 200)));
+    }
+
+    @Test(timeout = 10000)
+    public void testCorrupt() throws Exception {
+        final byte[] data = createData(10000);
+        final byte[] compressed = gzip(data, 1000);
+        // flip a bit in the CRC of the last member
+        compressed[compressed.length - 6] ^= 1;
+        try {
+            readAll(new ParallelGzipInputStream(new ByteArrayInputStream(compressed), 2, 200));
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+
+        try {
+            readAll(new ParallelGzipInputStream(new ByteArrayInputStream(data), 2, 200));
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[777];
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+/**
+ * 
+ */
+package io.pkts.buffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class ReadAheadInputStreamTest {
+
+    private static byte[] createData(final int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    /**
+     * No matter the size of the buffers, or how much we ask for in each read,
+     * we should get the exact same bytes back.
+     */
+    @Test
+    public void testRead() throws Exception {
+        final byte[] data = createData(10000);
+        for (int bufferSize = 1; bufferSize < 200; bufferSize += 7) {
+            for (int readSize = 1; readSize < 300; readSize += 37) {
+                final ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data),
+                        bufferSize, 2);
+                assertArrayEquals(data, readAll(in, readSize));
+                assertThat(in.read(), is(-1));
+                in.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReadSingleBytes() throws Exception {
+        final byte[] data = createData(1000);
+        final ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 64, 3);
+        for (int i = 0; i < data.length; ++i) {
+            assertThat(in.read(), is(data[i] & 0xFF));
+        }
+        assertThat(in.read(), is(-1));
+        assertThat(in.read(new byte[10], 0, 10), is(-1));
+        in.close();
+    }
+
+    /**
+     * A stream that only gives us a little at a time, and never says that
+     * more is available, still fills every buffer all the way.
+     */
+    @Test(timeout = 5000)
+    public void testFillsBuffers() throws Exception {
+        final byte[] data = createData(1000);
+        final InputStream trickle = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(final byte[] b, final int off, final int len) {
+                return super.read(b, off, Math.min(len, 10));
+            }
+
+            @Override
+            public synchronized int available() {
+                return 0;
+            }
+        };
+        final ReadAheadInputStream in = new ReadAheadInputStream(trickle, 400, 2);
+        final byte[] buffer = new byte[1000];
+        assertThat(in.read(buffer, 0, buffer.length), is(400));
+        assertThat(in.read(buffer, 400, buffer.length - 400), is(400));
+        assertThat(in.read(buffer, 800, buffer.length - 800), is(200));
+        assertArrayEquals(data, buffer);
+        in.close();
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception {
+        final ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), 64, 2);
+        assertThat(in.read(), is(-1));
+        in.close();
+    }
+
+    /**
+     * An error on the read-ahead thread must surface on the reading thread,
+     * after all the data read before the error.
+     */
+    @Test(timeout = 5000)
+    public void testError() throws Exception {
+        final InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (++this.count > 100) {
+                    throw new IOException("boom");
+                }
+                return 'a';
+            }
+        };
+
+        final ReadAheadInputStream in = new ReadAheadInputStream(failing, 10, 2);
+        final byte[] buffer = new byte[10];
+        int total = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                total += read;
+            }
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            assertThat(e.getMessage(), is("boom"));
+        }
+        assertThat(total, is(100));
+        in.close();
+    }
+
+    /**
+     * An unchecked exception on the read-ahead thread must not leave the
+     * reading thread waiting forever.
+     */
+    @Test(timeout = 5000)
+    public void testUncheckedError() throws Exception {
+        final InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IllegalStateException("boom");
+            }
+        };
+
+        final ReadAheadInputStream in = new ReadAheadInputStream(failing, 10, 2);
+        try {
+            in.read();
+            fail("Expected an IllegalStateException");
+        } catch (final IllegalStateException e) {
+            assertThat(e.getMessage(), is("boom"));
+        }
+        assertThat(in.read(), is(-1));
+        in.close();
+    }
+
+    /**
+     * Closing the stream before it has been fully consumed must stop the
+     * read-ahead thread, which would otherwise be blocked waiting for a free
+     * buffer forever.
+     */
+    @Test(timeout = 5000)
+    public void testCloseEarly() throws Exception {
+        final ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(createData(10000)), 10,
+                2);
+        assertThat(in.read(), is(0));
+        in.close();
+        try {
+            readAll(in, 100);
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] readAll(final InputStream in, final int readSize) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[readSize];
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+}
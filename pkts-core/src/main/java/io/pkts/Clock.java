@@ -3,6 +3,8 @@
  */
 package io.pkts;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * The wall clock whose time is driven by the timestamps of the captured packets
  * in the pcap file.
@@ -11,6 +13,34 @@ package io.pkts;
  */
 public interface Clock {
 
+    /**
+     * Despite the name, the time is in the same unit as the arrival time of
+     * the packets, see {@link #getTimeUnit()}.
+     */
     long currentTimeMillis();
 
+    /**
+     * The unit of {@link #currentTimeMillis()}, which is microseconds unless
+     * the clock is driven by a capture with nanosecond resolution.
+     */
+    default TimeUnit getTimeUnit() {
+        return TimeUnit.MICROSECONDS;
+    }
+
+    /**
+     * @return the current time in microseconds, whatever the unit of the
+     *         clock.
+     */
+    default long currentTimeMicros() {
+        return toMicros(currentTimeMillis());
+    }
+
+    /**
+     * Convert a time in the unit of this clock, such as the arrival time of a
+     * packet, to microseconds.
+     */
+    default long toMicros(final long time) {
+        return getTimeUnit().toMicros(time);
+    }
+
 }
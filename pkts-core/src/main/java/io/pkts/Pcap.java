@@ -2,24 +2,49 @@ package io.pkts;
 
 import io.pkts.buffer.BoundedInputStreamBuffer;
 import io.pkts.buffer.Buffer;
-import io.pkts.buffer.Buffers;
+import io.pkts.buffer.InputStreamBuffer;
+import io.pkts.buffer.MappedFileBuffer;
+import io.pkts.buffer.ParallelGzipInputStream;
+import io.pkts.buffer.ReadAheadInputStream;
 import io.pkts.filters.Filter;
 import io.pkts.filters.FilterException;
 import io.pkts.filters.FilterFactory;
 import io.pkts.filters.FilterParseException;
+import io.pkts.filters.Prefilter;
 import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.framer.Framer;
 import io.pkts.framer.FramerManager;
 import io.pkts.framer.FramingException;
 import io.pkts.framer.PcapFramer;
+import io.pkts.framer.PcapNgFramer;
+import io.pkts.packet.PCapPacket;
 import io.pkts.packet.Packet;
+import io.pkts.packet.impl.PacketViews;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.nio.ByteOrder;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
 
 /**
  * 
@@ -28,9 +53,44 @@ import java.nio.ByteOrder;
  */
 public class Pcap {
 
+    /**
+     * The size of each row of the {@link InputStreamBuffer} when reading off
+     * of a stream. Any frame that fits within a row is handed out without
+     * being copied.
+     */
+    private static final int STREAMING_ROW_SIZE = 65536;
+
+    /**
+     * The approximate size of each chunk when processing a file in parallel.
+     */
+    private static final long PARALLEL_CHUNK_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * How many packets of a chunk may be framed ahead of the callback when
+     * processing a file in parallel.
+     */
+    private static final int PARALLEL_QUEUE_SIZE = 1024;
+
+    /**
+     * Tells the callback that there are no more packets in a chunk.
+     */
+    private static final Object END_OF_CHUNK = new Object();
+
     private final PcapGlobalHeader header;
     private final Buffer buffer;
     private final FramerManager framerManager;
+    private final Framer<Packet, PCapPacket> framer;
+
+    /**
+     * The unit of the arrival time of the packets, which is what the
+     * {@link Clock} of the {@link FramerManager} is driven in.
+     */
+    private final TimeUnit timeUnit;
+
+    /**
+     * Package private so that the tests can force a small file to be split.
+     */
+    long parallelChunkSize = PARALLEL_CHUNK_SIZE;
 
     /**
      * If the filter is set then only frames that are accepted by the filter
@@ -38,14 +98,46 @@ public class Pcap {
      */
     private Filter filter = null;
 
+    /**
+     * If the prefilter is set then only the records accepted by the prefilter
+     * will be framed at all.
+     */
+    private Prefilter prefilter = null;
+
     private final FilterFactory filterFactory = FilterFactory.getInstance();
 
-    private Pcap(final PcapGlobalHeader header, final Buffer buffer) {
+    /**
+     * The stream we are reading from, if it has threads of its own (read-ahead
+     * or decompression) that must be stopped when we are closed.
+     */
+    private InputStream input;
+
+    private Pcap(final PcapGlobalHeader header, final Buffer buffer, final FramerManager framerManager,
+            final Framer<Packet, PCapPacket> framer) {
         assert header != null;
         assert buffer != null;
+        assert framer != null;
         this.header = header;
         this.buffer = buffer;
-        this.framerManager = FramerManager.getInstance();
+        this.framerManager = framerManager;
+        this.framer = framer;
+        this.timeUnit = header.timestampsInNs() ? TimeUnit.NANOSECONDS : TimeUnit.MICROSECONDS;
+    }
+
+    /**
+     * Figure out whether the stream is a regular pcap or a pcapng and
+     * process the headers accordingly.
+     */
+    private static Pcap open(final Buffer stream) throws IOException {
+        final FramerManager framerManager = FramerManager.getInstance();
+        final PcapNgFramer ngFramer = new PcapNgFramer(framerManager);
+        if (ngFramer.accept(stream)) {
+            final PcapGlobalHeader header = ngFramer.frameHeader(stream);
+            return new Pcap(header, stream, framerManager, ngFramer);
+        }
+
+        final PcapGlobalHeader header = PcapGlobalHeader.parse(stream);
+        return new Pcap(header, stream, framerManager, new PcapFramer(header, framerManager));
     }
 
     /**
@@ -69,10 +161,41 @@ public class Pcap {
         }
     }
 
+    /**
+     * Specify a {@link Prefilter}, which is evaluated on the raw bytes of
+     * every record before any {@link Packet} is created. Any record rejected
+     * by the prefilter is skipped and will never be seen by the filter set
+     * through {@link #setFilter(String)} nor the {@link PacketHandler}.
+     *
+     * E.g., to get rid of everything but SIP over UDP:
+     *
+     * "udp.port == 5060"
+     *
+     * See {@link Prefilter} for the full syntax.
+     *
+     * @param expression
+     *            the expression. If the expression is null or the empty string,
+     *            any previous prefilter is removed.
+     * @throws FilterParseException
+     *             in case the expression is not a valid prefilter expression.
+     */
+    public void setPrefilter(final String expression) throws FilterParseException {
+        if (expression == null || expression.isEmpty()) {
+            this.prefilter = null;
+        } else {
+            this.prefilter = Prefilter.compile(expression);
+        }
+
+        if (this.framer instanceof PcapFramer) {
+            ((PcapFramer) this.framer).setPrefilter(this.prefilter);
+        } else if (this.framer instanceof PcapNgFramer) {
+            ((PcapNgFramer) this.framer).setPrefilter(this.prefilter);
+        }
+    }
+
     public void loop(final PacketHandler callback) throws IOException, FramingException {
-        final ByteOrder byteOrder = this.header.getByteOrder();
-        final PcapFramer framer = new PcapFramer(this.header, this.framerManager);
-        int count = 1;
+        final Framer<Packet, PCapPacket> framer = this.framer;
+        startLoop();
 
         Packet packet = null;
         boolean processNext = true;
@@ -80,7 +203,7 @@ public class Pcap {
             try {
                 // System.out.println(" - " + (count++));
                 final long time = packet.getArrivalTime();
-                this.framerManager.tick(time);
+                this.framerManager.tick(time, this.timeUnit);
                 if (this.filter == null) {
                     processNext = callback.nextPacket(packet);
                 } else if (this.filter != null && this.filter.accept(packet)) {
@@ -95,6 +218,437 @@ public class Pcap {
         }
     }
 
+    /**
+     * The flow hints learned from one capture, or an earlier loop over this
+     * one, have nothing to do with the packets we are about to process so
+     * forget about them.
+     */
+    private void startLoop() {
+        this.framerManager.clearFlowHints();
+    }
+
+    /**
+     * Same as {@link #loop(PacketHandler)} but rather than creating new
+     * packets for every record, the same packet is handed to the callback
+     * every time, re-pointed at the next record, and so is every packet of
+     * the layers it carries (as far as pcap, Ethernet II, IPv4, UDP and RTP
+     * goes). Hence, once warmed up, processing e.g. a capture of RTP doesn't
+     * create any garbage at all.
+     *
+     * The catch is that the packets are only valid until the callback
+     * returns. Any packet that has to outlive that must be
+     * {@link Packet#retain() retained}.
+     *
+     * Only regular pcaps can be framed this way. A pcapng is processed just
+     * as {@link #loop(PacketHandler)} would, in which case retaining a packet
+     * is free.
+     *
+     * @param callback
+     * @throws IOException
+     * @throws FramingException
+     */
+    public void loopViews(final PacketHandler callback) throws IOException, FramingException {
+        if (!(this.framer instanceof PcapFramer)) {
+            loop(callback);
+            return;
+        }
+
+        final PacketViews views = new PacketViews(this.header, this.prefilter);
+        startLoop();
+        Packet packet = null;
+        boolean processNext = true;
+        while (processNext && (packet = views.frame(this.buffer)) != null) {
+            try {
+                this.framerManager.tick(packet.getArrivalTime(), this.timeUnit);
+                if (this.filter == null || this.filter.accept(packet)) {
+                    processNext = callback.nextPacket(packet);
+                }
+            } catch (final FilterException e) {
+                System.err.println("WARN: the filter complained about the last frame. Msg (if any) - " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #loop(PacketHandler)} but the file is split into chunks
+     * that are framed, and filtered (if a filter has been set), on
+     * <code>parallelism</code> threads. The packets are still delivered to
+     * the callback, on the calling thread, in the same order as they appear in
+     * the file so the callback doesn't have to be thread safe.
+     *
+     * Since the callback itself is executed on a single thread, this mostly
+     * pays off when a filter is doing the heavy lifting, e.g. when looking
+     * for a single call in a large capture. If the callback is the expensive
+     * part, take a look at {@link #loopParallel(int, Supplier, BinaryOperator)}
+     * instead.
+     *
+     * Every chunk is framed with a {@link FramerManager} of its own, ahead of
+     * the callback, so flow hints added while the loop is running do not
+     * apply to the packets of this loop.
+     *
+     * Only regular pcap files opened through {@link #openStream(File)} (or
+     * {@link #openStream(Path)}) can be split. Anything else, such as a
+     * stream or a pcapng, will be processed just as {@link #loop(PacketHandler)}
+     * would.
+     *
+     * @param parallelism
+     *            the number of threads to use.
+     * @param callback
+     * @throws IOException
+     * @throws FramingException
+     */
+    public void loopParallel(final int parallelism, final PacketHandler callback) throws IOException,
+            FramingException {
+        final List<long[]> chunks = split();
+        if (chunks == null) {
+            loop(callback);
+            return;
+        }
+
+        startLoop();
+        final ExecutorService pool = createPool(parallelism);
+        final Deque<Chunk> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            boolean processNext = true;
+            while (processNext && (next < chunks.size() || !pending.isEmpty())) {
+                // keep a few chunks ahead of the callback. Since the chunks
+                // are started in order, the one we are waiting for always
+                // has a thread of its own.
+                while (next < chunks.size() && pending.size() < 2 * parallelism) {
+                    final Chunk chunk = new Chunk(chunks.get(next++));
+                    chunk.future = pool.submit(() -> frameChunk(chunk));
+                    pending.add(chunk);
+                }
+
+                final Chunk chunk = pending.poll();
+                Object packet;
+                while (processNext && (packet = chunk.take()) != END_OF_CHUNK) {
+                    this.framerManager.tick(((Packet) packet).getArrivalTime(), this.timeUnit);
+                    processNext = callback.nextPacket((Packet) packet);
+                }
+                if (processNext) {
+                    // the chunk may have ended because framing it failed
+                    await(chunk.future);
+                }
+            }
+        } finally {
+            pending.forEach(c -> c.future.cancel(true));
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Process the file in parallel where every chunk of the file gets its own
+     * {@link PacketHandler}, as created by the supplier, which is called from
+     * whatever thread is processing that chunk. Once all chunks have been
+     * processed, the handlers are merged, in the same order as the chunks
+     * appear in the file, using the combiner and the final result is returned.
+     *
+     * E.g., to count all the SIP packets, the supplier would create a new
+     * counter and the combiner would add two counters together.
+     *
+     * Note that a handler returning false only stops the processing of its own
+     * chunk and that the {@link Clock} is not driven forward by this loop
+     * since the packets are not processed in order.
+     *
+     * Just as {@link #loopParallel(int, PacketHandler)}, only regular pcap
+     * files can be split and anything else ends up with a single handler that
+     * is processed just as {@link #loop(PacketHandler)} would.
+     *
+     * @param parallelism
+     *            the number of threads to use.
+     * @param supplier
+     *            creates a new handler for every chunk of the file.
+     * @param combiner
+     *            merges the handlers of two chunks.
+     * @return the merged handler.
+     * @throws IOException
+     * @throws FramingException
+     */
+    public <T extends PacketHandler> T loopParallel(final int parallelism, final Supplier<T> supplier,
+            final BinaryOperator<T> combiner) throws IOException, FramingException {
+        final List<long[]> chunks = split();
+        if (chunks == null) {
+            final T handler = supplier.get();
+            loop(handler);
+            return handler;
+        }
+
+        final ExecutorService pool = createPool(parallelism);
+        final List<Future<T>> futures = new ArrayList<>(chunks.size());
+        try {
+            for (final long[] chunk : chunks) {
+                futures.add(pool.submit(() -> {
+                    final T handler = supplier.get();
+                    frameChunk(chunk, new FramerManager(), handler);
+                    return handler;
+                }));
+            }
+
+            T result = null;
+            for (final Future<T> future : futures) {
+                final T handler = await(future);
+                result = result == null ? handler : combiner.apply(result, handler);
+            }
+            return result == null ? supplier.get() : result;
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+            pool.shutdownNow();
+        }
+    }
+
+    private static ExecutorService createPool(final int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("The parallelism must be at least one");
+        }
+        return Executors.newFixedThreadPool(parallelism, r -> {
+            final Thread thread = new Thread(r, "pkts-parallel");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Split the file into record aligned chunks of roughly
+     * {@link #parallelChunkSize} bytes, where each chunk is the absolute
+     * start and stop index in the file.
+     *
+     * @return the chunks or null if this capture cannot be split.
+     */
+    private List<long[]> split() {
+        if (!(this.buffer instanceof MappedFileBuffer) || !(this.framer instanceof PcapFramer)) {
+            return null;
+        }
+
+        final MappedFileBuffer file = (MappedFileBuffer) this.buffer;
+        final PcapFramer pcapFramer = (PcapFramer) this.framer;
+        final List<long[]> chunks = new ArrayList<>();
+        long start = this.buffer.getReaderIndex();
+        while (start < file.size()) {
+            final long stop = start + this.parallelChunkSize >= file.size() ? file.size()
+                    : pcapFramer.findRecord(file, start + this.parallelChunkSize);
+            chunks.add(new long[] { start, stop });
+            start = stop;
+        }
+        return chunks;
+    }
+
+    /**
+     * Frame the packets of the chunk onto its queue, followed by
+     * {@link #END_OF_CHUNK}. The packets are framed with a
+     * {@link FramerManager} of their own since the workers are ahead of the
+     * callback and of each other.
+     */
+    private Void frameChunk(final Chunk chunk) throws IOException {
+        try {
+            frameChunk(chunk.range, new FramerManager(), packet -> {
+                chunk.put(packet);
+                return true;
+            });
+        } catch (final InterruptedIOException e) {
+            // the callback is no longer interested
+            return null;
+        } catch (IOException | RuntimeException | Error e) {
+            chunk.put(END_OF_CHUNK);
+            throw e;
+        }
+        chunk.put(END_OF_CHUNK);
+        return null;
+    }
+
+    /**
+     * Frame the packets within the chunk and hand the ones accepted by the
+     * filter, if a filter has been set, to the handler until it says stop.
+     */
+    private void frameChunk(final long[] chunk, final FramerManager framerManager, final PacketHandler handler)
+            throws IOException {
+        final Buffer region = ((MappedFileBuffer) this.buffer).region(chunk[0], chunk[1]);
+        final PcapFramer framer = new PcapFramer(this.header, framerManager);
+        framer.setPrefilter(this.prefilter);
+        Packet packet = null;
+        while ((packet = framer.frame(null, region)) != null) {
+            try {
+                if ((this.filter == null || this.filter.accept(packet)) && !handler.nextPacket(packet)) {
+                    return;
+                }
+            } catch (final FilterException e) {
+                System.err.println("WARN: the filter complained about the last frame. Msg (if any) - " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Create a new {@link PcapFramer}, configured just like the one of this
+     * {@link Pcap}, for processing a part of the file on its own.
+     */
+    private PcapFramer createPcapFramer() {
+        final PcapFramer framer = new PcapFramer(this.header, this.framerManager);
+        framer.setPrefilter(this.prefilter);
+        return framer;
+    }
+
+    /**
+     * A chunk of the file that is being framed and the packets framed so far
+     * that the callback hasn't seen yet. The queue is bounded so a chunk
+     * doesn't get further ahead of the callback than that.
+     */
+    private static final class Chunk {
+
+        private final long[] range;
+
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(PARALLEL_QUEUE_SIZE);
+
+        private Future<Void> future;
+
+        private Chunk(final long[] range) {
+            this.range = range;
+        }
+
+        private void put(final Object packet) throws InterruptedIOException {
+            try {
+                this.queue.put(packet);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while framing the pcap");
+            }
+        }
+
+        private Object take() throws IOException {
+            try {
+                return this.queue.take();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while processing the pcap", e);
+            }
+        }
+    }
+
+    private static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing the pcap", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Index all the records of this pcap. See {@link PcapIndex}.
+     *
+     * @return
+     * @throws IllegalArgumentException
+     *             in case this pcap cannot be indexed, which is the case for
+     *             anything but a regular pcap file.
+     */
+    public PcapIndex createIndex() throws IllegalArgumentException {
+        return PcapIndex.create(this);
+    }
+
+    /**
+     * Frame record n of the index.
+     *
+     * @param index
+     *            the index of this pcap.
+     * @param n
+     *            the record number, starting at zero.
+     * @return
+     * @throws IndexOutOfBoundsException
+     *             in case there is no such record.
+     * @throws IOException
+     * @throws FramingException
+     */
+    public PCapPacket getPacket(final PcapIndex index, final int n) throws IndexOutOfBoundsException, IOException,
+            FramingException {
+        final long offset = index.getOffset(n);
+        final Buffer region = getFile().region(offset, offset + PcapRecordHeader.SIZE + index.getCapturedLength(n));
+        return new PcapFramer(this.header, this.framerManager).frame(null, region);
+    }
+
+    /**
+     * Move to the first record that arrived at, or after, the specified time
+     * so that the next {@link #loop(PacketHandler)} starts from there.
+     *
+     * @param index
+     *            the index of this pcap.
+     * @param arrivalTime
+     *            in the same unit as {@link Packet#getArrivalTime()}.
+     */
+    public void seek(final PcapIndex index, final long arrivalTime) {
+        final int n = index.find(arrivalTime);
+        getFile().setReaderIndex(n < index.size() ? index.getOffset(n) : index.getIndexedLength());
+    }
+
+    /**
+     * Loop over all the records that arrived within <code>[from, to)</code>.
+     * Just like {@link #loop(PacketHandler)}, if a filter has been set only
+     * the packets accepted by the filter are passed on to the callback.
+     *
+     * @param index
+     *            the index of this pcap.
+     * @param from
+     *            in the same unit as {@link Packet#getArrivalTime()}.
+     * @param to
+     *            in the same unit as {@link Packet#getArrivalTime()}.
+     * @param callback
+     * @throws IOException
+     * @throws FramingException
+     */
+    public void loop(final PcapIndex index, final long from, final long to, final PacketHandler callback)
+            throws IOException, FramingException {
+        final int first = index.find(from);
+        final int last = index.find(to);
+        if (first >= last) {
+            return;
+        }
+
+        final long stop = index.getOffset(last - 1) + PcapRecordHeader.SIZE + index.getCapturedLength(last - 1);
+        final Buffer region = getFile().region(index.getOffset(first), stop);
+        final Framer<Packet, PCapPacket> framer = createPcapFramer();
+        startLoop();
+
+        Packet packet = null;
+        boolean processNext = true;
+        while (processNext && (packet = framer.frame(null, region)) != null) {
+            try {
+                this.framerManager.tick(packet.getArrivalTime(), this.timeUnit);
+                if (this.filter == null || this.filter.accept(packet)) {
+                    processNext = callback.nextPacket(packet);
+                }
+            } catch (final FilterException e) {
+                System.err.println("WARN: the filter complained about the last frame. Msg (if any) - " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The underlying file of a regular pcap, which is what can be indexed.
+     *
+     * @throws IllegalArgumentException
+     *             in case this isn't a regular pcap file.
+     */
+    MappedFileBuffer getFile() throws IllegalArgumentException {
+        if (!(this.buffer instanceof MappedFileBuffer) || !(this.framer instanceof PcapFramer)) {
+            throw new IllegalArgumentException("Only regular pcap files can be indexed");
+        }
+        return (MappedFileBuffer) this.buffer;
+    }
+
     /**
      * Create an {@link PcapOutputStream} based on this {@link Pcap}. The new
      * {@link PcapOutputStream} is configured to use the same
@@ -112,16 +666,85 @@ public class Pcap {
     }
 
     /**
-     * Capture packets from the input stream
+     * Capture packets from the input stream.
+     * 
+     * The stream is read in streaming mode, i.e., the memory occupied by the
+     * packets we have already processed is released as we go along (unless of
+     * course you hold on to the packets yourself) so a stream of any size can
+     * be processed with a fixed heap.
+     * 
+     * A gzip compressed stream, such as a .pcap.gz file, is detected and
+     * decompressed on the fly where every member of the compressed stream is
+     * decompressed in parallel. See {@link ParallelGzipInputStream}. Note that
+     * the stream will then be closed when this {@link Pcap} is closed.
      * 
      * @param is
      * @return
      * @throws IOException
      */
     public static Pcap openStream(final InputStream is) throws IOException {
-        final Buffer stream = Buffers.wrap(is);
-        final PcapGlobalHeader header = PcapGlobalHeader.parse(stream);
-        return new Pcap(header, stream);
+        return openStream(is, false);
+    }
+
+    /**
+     * Capture packets from the input stream, optionally reading ahead of the
+     * framing on a separate thread.
+     *
+     * Without read-ahead, every read from the stream blocks the thread that is
+     * also framing (and processing) the packets so the CPU sits idle while
+     * waiting for the I/O and the I/O sits idle while the packets are being
+     * processed. With read-ahead, a {@link ReadAheadInputStream} keeps a few
+     * large buffers filled ahead of the framing, which is where you gain when
+     * the stream is slow, such as a capture on a network file system.
+     *
+     * Note that a file opened through {@link #openStream(File)} is memory
+     * mapped and already benefits from the read-ahead of the operating system.
+     *
+     * @param is
+     * @param readAhead
+     *            whether to read ahead of the framing on a separate thread.
+     * @return
+     * @throws IOException
+     */
+    public static Pcap openStream(final InputStream is, final boolean readAhead) throws IOException {
+        if (is == null) {
+            throw new IllegalArgumentException("the input stream cannot be null");
+        }
+
+        InputStream stream = readAhead ? new ReadAheadInputStream(is) : is;
+        try {
+            final PushbackInputStream pushback = new PushbackInputStream(stream, 2);
+            final boolean gzip = isGzip(pushback);
+            stream = gzip ? new ParallelGzipInputStream(pushback) : pushback;
+
+            final Pcap pcap = open(new InputStreamBuffer(STREAMING_ROW_SIZE, stream, true));
+            if (readAhead || gzip) {
+                pcap.input = stream;
+            }
+            return pcap;
+        } catch (final IOException | RuntimeException e) {
+            if (stream != is) {
+                stream.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Check whether the stream is gzip compressed by peeking at its magic.
+     */
+    private static boolean isGzip(final PushbackInputStream stream) throws IOException {
+        final byte[] magic = new byte[2];
+        int length = 0;
+        while (length < magic.length) {
+            final int read = stream.read(magic, length, magic.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        stream.unread(magic, 0, length);
+        return length == magic.length && ParallelGzipInputStream.isGzip(magic);
     }
 
     /**
@@ -134,11 +757,14 @@ public class Pcap {
      */
     public static Pcap openStream(final InputStream is, final int bufferCapacity) throws IOException {
         final Buffer stream = new BoundedInputStreamBuffer(bufferCapacity, is);
-        final PcapGlobalHeader header = PcapGlobalHeader.parse(stream);
-        return new Pcap(header, stream);
+        return open(stream);
     }
 
     /**
+     * Open the pcap file. The file will be memory mapped and all the frames
+     * will be views straight into the mapped file, i.e., no data will be
+     * copied while reading the file. A gzip compressed file is instead
+     * decompressed as a stream, see {@link #openStream(InputStream)}.
      * 
      * @param file
      *            the pcap file
@@ -148,8 +774,48 @@ public class Pcap {
      * @throws IOException
      */
     public static Pcap openStream(final File file) throws FileNotFoundException, IOException {
-        final InputStream is = new FileInputStream(file);
-        return openStream(is);
+        return openStream(file.toPath());
+    }
+
+    /**
+     * Open the pcap file. See {@link #openStream(File)}.
+     * 
+     * @param file
+     *            the pcap file
+     * @return a new {@link Pcap}
+     * @throws FileNotFoundException
+     *             in case the file doesn't exist.
+     * @throws IOException
+     */
+    public static Pcap openStream(final Path file) throws FileNotFoundException, IOException {
+        if (!Files.exists(file)) {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        if (isGzip(file)) {
+            // no point in memory mapping a compressed file
+            final InputStream is = Files.newInputStream(file);
+            try {
+                return openStream(is);
+            } catch (final IOException | RuntimeException e) {
+                is.close();
+                throw e;
+            }
+        }
+
+        final MappedFileBuffer stream = MappedFileBuffer.open(file);
+        try {
+            return open(stream);
+        } catch (final IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    private static boolean isGzip(final Path file) throws IOException {
+        try (final InputStream is = Files.newInputStream(file)) {
+            return isGzip(new PushbackInputStream(is, 2));
+        }
     }
 
     /**
@@ -164,7 +830,22 @@ public class Pcap {
     }
 
     public void close() {
-        // TODO
+        if (this.input != null) {
+            try {
+                this.input.close();
+            } catch (final IOException e) {
+                // same as below
+            }
+        }
+
+        if (this.buffer instanceof Closeable) {
+            try {
+                ((Closeable) this.buffer).close();
+            } catch (final IOException e) {
+                // nothing we can do about it and the
+                // capture has been fully processed anyway.
+            }
+        }
     }
 
     /**
@@ -0,0 +1,378 @@
+package io.pkts;
+
+import io.pkts.buffer.Buffers;
+import io.pkts.buffer.MappedFileBuffer;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * An index over all the records of a pcap file, which allows for fetching a
+ * particular record, or all the records within a time range, without having
+ * to frame every record from the beginning of the file.
+ *
+ * For every record, the absolute offset in the file, the arrival time (in the
+ * same unit as {@link io.pkts.packet.Packet#getArrivalTime()}) and the
+ * captured length is kept. The index can be saved next to the capture (see
+ * {@link #open(Pcap, Path)}) and since it keeps track of how much of the file
+ * it has covered, a capture that keeps on growing only has its new tail
+ * indexed when the index is updated.
+ *
+ * Note that a time based lookup assumes that the records are in arrival order,
+ * which is how every capture tool writes them.
+ *
+ * Only regular pcap files opened through {@link Pcap#openStream(Path)} (or
+ * {@link Pcap#openStream(java.io.File)}) can be indexed.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapIndex {
+
+    private static final int MAGIC = 0x504B4958; // PKIX
+
+    private static final int VERSION = 1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The global header of the indexed file, which is what we use to make sure
+     * that a saved index actually belongs to the file.
+     */
+    private final byte[] globalHeader;
+
+    private final ByteOrder byteOrder;
+
+    private final long subSecondsPerSecond;
+
+    /**
+     * How far into the file we have indexed, i.e., the offset of the next
+     * record.
+     */
+    private long indexedLength;
+
+    private int size;
+
+    private long[] offsets;
+
+    private long[] arrivalTimes;
+
+    private int[] capturedLengths;
+
+    private PcapIndex(final byte[] globalHeader, final long indexedLength, final int size, final long[] offsets,
+            final long[] arrivalTimes, final int[] capturedLengths) {
+        final PcapGlobalHeader header = parseHeader(globalHeader);
+        this.globalHeader = globalHeader;
+        this.byteOrder = header.getByteOrder();
+        this.subSecondsPerSecond = header.timestampsInNs() ? 1000000000L : 1000000L;
+        this.indexedLength = indexedLength;
+        this.size = size;
+        this.offsets = offsets;
+        this.arrivalTimes = arrivalTimes;
+        this.capturedLengths = capturedLengths;
+    }
+
+    private static PcapGlobalHeader parseHeader(final byte[] globalHeader) throws IllegalArgumentException {
+        try {
+            return PcapGlobalHeader.parse(Buffers.wrap(globalHeader));
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Unable to parse the pcap global header", e);
+        }
+    }
+
+    /**
+     * Create a new index for the pcap. See {@link Pcap#createIndex()}.
+     *
+     * @param pcap
+     * @return
+     * @throws IllegalArgumentException
+     *             in case the pcap cannot be indexed, which is the case for
+     *             anything but a regular pcap file.
+     */
+    public static PcapIndex create(final Pcap pcap) throws IllegalArgumentException {
+        final MappedFileBuffer file = pcap.getFile();
+        final byte[] globalHeader = new byte[PcapGlobalHeader.SIZE];
+        for (int i = 0; i < globalHeader.length; ++i) {
+            globalHeader[i] = file.getByte((long) i);
+        }
+        final PcapIndex index = new PcapIndex(globalHeader, PcapGlobalHeader.SIZE, 0, new long[INITIAL_CAPACITY],
+                new long[INITIAL_CAPACITY], new int[INITIAL_CAPACITY]);
+        index.update(pcap);
+        return index;
+    }
+
+    /**
+     * Load the sidecar index of the pcap if it exists, index whatever has been
+     * appended to the pcap since then and save it back. If there is no
+     * sidecar, or it cannot be read, e.g. because it was cut short, or it
+     * doesn't belong to the pcap, a new index is created.
+     *
+     * @param pcap
+     * @param sidecar
+     *            where the index is kept, typically the name of the capture
+     *            with ".idx" appended to it.
+     * @return
+     * @throws IOException
+     */
+    public static PcapIndex open(final Pcap pcap, final Path sidecar) throws IOException {
+        PcapIndex index = null;
+        if (Files.exists(sidecar)) {
+            try (InputStream in = Files.newInputStream(sidecar)) {
+                index = read(in);
+            } catch (final IOException | IllegalArgumentException e) {
+                // not an index, one we don't understand or one that was only
+                // partially written so just rebuild it
+                index = null;
+            }
+        }
+
+        final boolean updated;
+        if (index == null || !index.belongsTo(pcap)) {
+            index = create(pcap);
+            updated = true;
+        } else {
+            updated = index.update(pcap) > 0;
+        }
+
+        if (updated) {
+            index.save(sidecar);
+        }
+        return index;
+    }
+
+    /**
+     * Index all the records that have been appended to the pcap since the last
+     * time we looked at it. A record that has only been partially written is
+     * left for the next update.
+     *
+     * @param pcap
+     *            the pcap this index was created for, which should have been
+     *            re-opened to see the new data.
+     * @return the number of new records.
+     * @throws IllegalArgumentException
+     *             in case the pcap doesn't belong to this index.
+     */
+    public int update(final Pcap pcap) throws IllegalArgumentException {
+        if (!belongsTo(pcap)) {
+            throw new IllegalArgumentException("The index does not belong to the pcap");
+        }
+
+        final MappedFileBuffer file = pcap.getFile();
+        final long fileSize = file.size();
+        final int before = this.size;
+        long offset = this.indexedLength;
+        while (offset + PcapRecordHeader.SIZE <= fileSize) {
+            final long seconds = getUnsignedInt(file, offset);
+            final long subSeconds = getUnsignedInt(file, offset + 4);
+            final long captured = getUnsignedInt(file, offset + 8);
+            if (offset + PcapRecordHeader.SIZE + captured > fileSize) {
+                break;
+            }
+            add(offset, seconds * this.subSecondsPerSecond + subSeconds, (int) captured);
+            offset += PcapRecordHeader.SIZE + captured;
+        }
+        this.indexedLength = offset;
+        return this.size - before;
+    }
+
+    private void add(final long offset, final long arrivalTime, final int capturedLength) {
+        if (this.size == this.offsets.length) {
+            final int capacity = this.size * 2;
+            this.offsets = Arrays.copyOf(this.offsets, capacity);
+            this.arrivalTimes = Arrays.copyOf(this.arrivalTimes, capacity);
+            this.capturedLengths = Arrays.copyOf(this.capturedLengths, capacity);
+        }
+        this.offsets[this.size] = offset;
+        this.arrivalTimes[this.size] = arrivalTime;
+        this.capturedLengths[this.size] = capturedLength;
+        ++this.size;
+    }
+
+    private boolean belongsTo(final Pcap pcap) {
+        final MappedFileBuffer file = pcap.getFile();
+        if (file.size() < this.indexedLength) {
+            return false;
+        }
+        for (int i = 0; i < this.globalHeader.length; ++i) {
+            if (file.getByte((long) i) != this.globalHeader[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long getUnsignedInt(final MappedFileBuffer file, final long index) {
+        final long a = file.getByte(index) & 0xFF;
+        final long b = file.getByte(index + 1) & 0xFF;
+        final long c = file.getByte(index + 2) & 0xFF;
+        final long d = file.getByte(index + 3) & 0xFF;
+        if (this.byteOrder == ByteOrder.LITTLE_ENDIAN) {
+            return d << 24 | c << 16 | b << 8 | a;
+        }
+        return a << 24 | b << 16 | c << 8 | d;
+    }
+
+    /**
+     * The number of records in the index.
+     *
+     * @return
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * How many bytes of the file that has been indexed.
+     *
+     * @return
+     */
+    public long getIndexedLength() {
+        return this.indexedLength;
+    }
+
+    /**
+     * The absolute offset, in the file, of the record header of record n.
+     *
+     * @param n
+     * @return
+     * @throws IndexOutOfBoundsException
+     */
+    public long getOffset(final int n) throws IndexOutOfBoundsException {
+        checkIndex(n);
+        return this.offsets[n];
+    }
+
+    /**
+     * The arrival time of record n.
+     *
+     * @param n
+     * @return
+     * @throws IndexOutOfBoundsException
+     */
+    public long getArrivalTime(final int n) throws IndexOutOfBoundsException {
+        checkIndex(n);
+        return this.arrivalTimes[n];
+    }
+
+    /**
+     * The captured length of record n.
+     *
+     * @param n
+     * @return
+     * @throws IndexOutOfBoundsException
+     */
+    public int getCapturedLength(final int n) throws IndexOutOfBoundsException {
+        checkIndex(n);
+        return this.capturedLengths[n];
+    }
+
+    private void checkIndex(final int n) throws IndexOutOfBoundsException {
+        if (n < 0 || n >= this.size) {
+            throw new IndexOutOfBoundsException("Record " + n + " is not within the index of " + this.size
+                    + " records");
+        }
+    }
+
+    /**
+     * Find the first record that arrived at, or after, the specified time.
+     *
+     * @param arrivalTime
+     *            in the same unit as
+     *            {@link io.pkts.packet.Packet#getArrivalTime()}
+     * @return the record number or {@link #size()} if all records arrived
+     *         before the specified time.
+     */
+    public int find(final long arrivalTime) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (this.arrivalTimes[mid] < arrivalTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Save the index to the file. The index is first written to a temporary
+     * file, which then replaces the file, so a reader will never see a
+     * partially written index.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(final Path file) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            write(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Write the index to the stream.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(final OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.write(this.globalHeader);
+        data.writeLong(this.indexedLength);
+        data.writeInt(this.size);
+        for (int i = 0; i < this.size; ++i) {
+            data.writeLong(this.offsets[i]);
+            data.writeLong(this.arrivalTimes[i]);
+            data.writeInt(this.capturedLengths[i]);
+        }
+        data.flush();
+    }
+
+    /**
+     * Read an index previously written by {@link #write(OutputStream)}.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             in case the stream doesn't contain an index.
+     */
+    public static PcapIndex read(final InputStream in) throws IOException, IllegalArgumentException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+            throw new IllegalArgumentException("Not a pcap index");
+        }
+        final byte[] globalHeader = new byte[PcapGlobalHeader.SIZE];
+        data.readFully(globalHeader);
+        final long indexedLength = data.readLong();
+        final int size = data.readInt();
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid number of records in the pcap index: " + size);
+        }
+
+        // don't trust the size until the records are actually there
+        final PcapIndex index = new PcapIndex(globalHeader, indexedLength, 0, new long[INITIAL_CAPACITY],
+                new long[INITIAL_CAPACITY], new int[INITIAL_CAPACITY]);
+        for (int i = 0; i < size; ++i) {
+            index.add(data.readLong(), data.readLong(), data.readInt());
+        }
+        return index;
+    }
+
+}
@@ -3,12 +3,18 @@
  */
 package io.pkts;
 
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.buffer.CompositeBuffer;
 import io.pkts.frame.Frame;
 import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
 import io.pkts.packet.Packet;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 
 /**
@@ -28,6 +34,13 @@ public class PcapOutputStream extends OutputStream {
      */
     private final PcapGlobalHeader pcapHeader;
 
+    /**
+     * If we are writing to a file, this is the channel of that file, which
+     * allows us to write a record in a single gathering write straight from
+     * wherever the record is stored.
+     */
+    private final FileChannel channel;
+
     public static PcapOutputStream create(final PcapGlobalHeader pcapHeader, final OutputStream out) {
         if (out == null) {
             throw new IllegalArgumentException("The OutputStream cannot be null");
@@ -53,6 +66,7 @@ public class PcapOutputStream extends OutputStream {
     private PcapOutputStream(final PcapGlobalHeader pcapHeader, final OutputStream out) {
         this.out = out;
         this.pcapHeader = pcapHeader;
+        this.channel = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : null;
     }
 
     /**
@@ -84,6 +98,24 @@ public class PcapOutputStream extends OutputStream {
         packet.write(this);
     }
 
+    /**
+     * Write a record, i.e., the record header followed by the captured bytes
+     * of the frame, without looking at what the frame contains. This is how
+     * a {@link Packet} that hasn't been modified is written.
+     * 
+     * @param header
+     * @param data
+     *            the captured bytes of the frame.
+     */
+    public void writeRecord(final PcapRecordHeader header, final Buffer data) throws IOException {
+        final Buffer record = Buffers.wrap(header.getBuffer(), data);
+        if (this.channel != null && record instanceof CompositeBuffer) {
+            ((CompositeBuffer) record).writeTo(this.channel);
+        } else {
+            record.writeTo(this.out);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -93,6 +125,14 @@ public class PcapOutputStream extends OutputStream {
         this.out.write(b);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        this.out.write(b, off, len);
+    }
+
     /**
      * {@inheritDoc}
      */
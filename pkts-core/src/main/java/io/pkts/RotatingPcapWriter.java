@@ -0,0 +1,403 @@
+/**
+ *
+ */
+package io.pkts;
+
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.packet.PCapPacket;
+import io.pkts.packet.Packet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes packets to a sequence of pcap files, rotating to a new file once the
+ * current one has reached a certain size, number of records or span of
+ * capture time, whichever comes first.
+ *
+ * All the disk I/O is done by a background thread. {@link #write(Packet)}
+ * only serializes the packet, which for a packet that hasn't been modified is
+ * a copy of the original record, and hands it to the writer thread through a
+ * bounded queue. The writer thread writes everything that is in the queue in
+ * one batch before it flushes the file, so the calling thread never waits
+ * for the disk unless the queue is full, in which case it blocks until there
+ * is room again.
+ *
+ * The files are named after the file given to the {@link Builder} with a
+ * sequence number inserted before the extension, i.e., "tap.pcap" becomes
+ * "tap-00000.pcap", "tap-00001.pcap" and so on. Every file gets its own copy
+ * of the {@link PcapGlobalHeader}.
+ *
+ * Any error on the writer thread is thrown by the next call to
+ * {@link #write(Packet)} or {@link #close()}, including one that is blocked
+ * waiting for room in the queue, after which nothing more will be written.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class RotatingPcapWriter implements Closeable {
+
+    /**
+     * The default number of records that can be queued up.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    /**
+     * How long to wait for room in the queue before checking whether the
+     * writer thread has failed, in milliseconds.
+     */
+    private static final long ERROR_CHECK_INTERVAL = 100;
+
+    private final PcapGlobalHeader header;
+    private final Path file;
+    private final long maxBytes;
+    private final long maxRecords;
+    private final long interval;
+
+    private final BlockingQueue<byte[]> queue;
+    private final Thread writer;
+
+    private volatile IOException error;
+    private boolean closed;
+
+    /**
+     * Only accessed by the writer thread.
+     */
+    private PcapOutputStream current;
+    private int fileIndex;
+    private long bytes;
+    private long records;
+    private long firstTimestamp;
+
+    private RotatingPcapWriter(final Builder builder) {
+        this.header = builder.header;
+        this.file = builder.file;
+        this.maxBytes = builder.maxBytes;
+        this.maxRecords = builder.maxRecords;
+        this.interval = builder.interval == null ? 0 : builder.interval.getSeconds();
+        this.queue = new ArrayBlockingQueue<>(builder.queueSize);
+
+        this.writer = new Thread(this::run, "pkts-pcap-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     *
+     * @param header
+     *            the global header of every file, which also decides the byte
+     *            order of the record headers. A record that was captured in
+     *            the other byte order gets its header swapped around before
+     *            it is written. Typically the header of the capture the
+     *            packets were read from, see {@link Pcap#getPcapHeader()}.
+     * @param file
+     *            the name of the files, before the sequence number has been
+     *            inserted.
+     */
+    public static Builder with(final PcapGlobalHeader header, final Path file) {
+        if (header == null) {
+            throw new IllegalArgumentException("The header cannot be null");
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("The file cannot be null");
+        }
+        return new Builder(header, file);
+    }
+
+    /**
+     * Queue the packet for writing.
+     *
+     * @param packet
+     *            the packet to write. If null is passed in, it will silently be
+     *            ignored.
+     * @throws IOException
+     *             in case the writer thread has failed to write an earlier
+     *             packet or we were interrupted while waiting for room in the
+     *             queue.
+     */
+    public void write(final Packet packet) throws IOException {
+        if (packet == null) {
+            return;
+        }
+        if (this.closed) {
+            throw new IOException("The writer has been closed");
+        }
+        checkError();
+
+        final RecordBuffer record = new RecordBuffer(sizeOf(packet));
+        packet.write(record);
+        enqueue(record.toRecord());
+    }
+
+    /**
+     * Wait for room in the queue, unless the writer thread has failed in
+     * which case there is nobody left to make room.
+     */
+    private void enqueue(final byte[] record) throws IOException {
+        try {
+            while (!this.queue.offer(record, ERROR_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                checkError();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for room in the queue", e);
+        }
+    }
+
+    /**
+     * The size of the record of the packet, unless it has been modified, so
+     * that it can be serialized without growing the buffer.
+     */
+    private static int sizeOf(final Packet packet) {
+        Packet frame = packet;
+        while (frame.getParentPacket() != null) {
+            frame = frame.getParentPacket();
+        }
+        if (frame instanceof PCapPacket) {
+            return PcapRecordHeader.SIZE + (int) ((PCapPacket) frame).getCapturedLength();
+        }
+        return 256;
+    }
+
+    /**
+     * Write everything that has been queued up, close the current file and
+     * stop the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        try {
+            enqueue(END_OF_STREAM);
+            this.writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.writer.interrupt();
+            throw new IOException("Interrupted while waiting for the queued packets to be written", e);
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        final IOException e = this.error;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * The loop of the writer thread.
+     */
+    private void run() {
+        final List<byte[]> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch);
+                for (final byte[] record : batch) {
+                    if (record == END_OF_STREAM) {
+                        closeCurrent();
+                        return;
+                    }
+                    writeRecord(record);
+                }
+                batch.clear();
+                this.current.flush();
+            }
+        } catch (final IOException e) {
+            this.error = e;
+        } catch (final InterruptedException e) {
+            this.error = new IOException("The writer thread was interrupted", e);
+        }
+
+        try {
+            closeCurrent();
+        } catch (final IOException e) {
+            // already failed
+        }
+
+        // keep draining so that nobody is blocked on a full queue
+        while (this.queue.poll() != null) {
+            // nothing
+        }
+    }
+
+    private void writeRecord(final byte[] record) throws IOException {
+        toFileByteOrder(record);
+        final long timestamp = PcapGlobalHeader.getUnsignedInt(0, record, this.header.getByteOrder());
+        if (this.current == null || shouldRotate(record.length, timestamp)) {
+            rotate(timestamp);
+        }
+        this.current.write(record);
+        this.bytes += record.length;
+        ++this.records;
+    }
+
+    /**
+     * A record is serialized in the byte order it was captured in, which
+     * isn't necessarily the byte order of our global header. The captured
+     * length is the size of the data that follows the record header, so if
+     * that isn't what we read, the record is in the other byte order and its
+     * four fields are swapped around. A record without any data reads the
+     * same either way and is left as it is.
+     */
+    private void toFileByteOrder(final byte[] record) {
+        final long captured = record.length - PcapRecordHeader.SIZE;
+        if (PcapGlobalHeader.getUnsignedInt(12, record, this.header.getByteOrder()) == captured) {
+            return;
+        }
+        for (int i = 0; i < PcapRecordHeader.SIZE; i += 4) {
+            byte b = record[i];
+            record[i] = record[i + 3];
+            record[i + 3] = b;
+            b = record[i + 1];
+            record[i + 1] = record[i + 2];
+            record[i + 2] = b;
+        }
+    }
+
+    private boolean shouldRotate(final int length, final long timestamp) {
+        if (this.records == 0) {
+            return false;
+        }
+        if (this.maxRecords > 0 && this.records >= this.maxRecords) {
+            return true;
+        }
+        if (this.maxBytes > 0 && this.bytes + length > this.maxBytes) {
+            return true;
+        }
+        return this.interval > 0 && timestamp - this.firstTimestamp >= this.interval;
+    }
+
+    private void rotate(final long timestamp) throws IOException {
+        closeCurrent();
+        final Path next = nextFile();
+        this.current = PcapOutputStream.create(this.header, new BufferedOutputStream(new FileOutputStream(
+                next.toFile()), 65536));
+        this.bytes = PcapGlobalHeader.SIZE;
+        this.records = 0;
+        this.firstTimestamp = timestamp;
+    }
+
+    private void closeCurrent() throws IOException {
+        if (this.current != null) {
+            final PcapOutputStream stream = this.current;
+            this.current = null;
+            stream.close();
+        }
+    }
+
+    /**
+     * "tap.pcap" becomes "tap-00000.pcap" and so on.
+     */
+    private Path nextFile() {
+        final String name = this.file.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        final String sequence = String.format("-%05d", this.fileIndex++);
+        final String numbered = dot > 0 ? name.substring(0, dot) + sequence + name.substring(dot) : name + sequence;
+        return this.file.resolveSibling(numbered);
+    }
+
+    /**
+     * Hands over its buffer, rather than a copy of it, when the record turned
+     * out to be exactly as large as expected.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+
+        private RecordBuffer(final int size) {
+            super(size);
+        }
+
+        private byte[] toRecord() {
+            return this.count == this.buf.length ? this.buf : Arrays.copyOf(this.buf, this.count);
+        }
+    }
+
+    /**
+     * Configures when to rotate to a new file. Any limit that isn't set, or
+     * is set to zero, is simply not used.
+     */
+    public static final class Builder {
+        private final PcapGlobalHeader header;
+        private final Path file;
+        private long maxBytes;
+        private long maxRecords;
+        private Duration interval;
+        private int queueSize = DEFAULT_QUEUE_SIZE;
+
+        private Builder(final PcapGlobalHeader header, final Path file) {
+            this.header = header;
+            this.file = file;
+        }
+
+        /**
+         * Rotate before a file grows beyond this many bytes. A single record
+         * that is larger than this will still be written, to a file of its own.
+         */
+        public Builder withMaxBytes(final long maxBytes) {
+            this.maxBytes = assertNotNegative(maxBytes);
+            return this;
+        }
+
+        /**
+         * Rotate once a file contains this many records.
+         */
+        public Builder withMaxRecords(final long maxRecords) {
+            this.maxRecords = assertNotNegative(maxRecords);
+            return this;
+        }
+
+        /**
+         * Rotate once the capture time of a record is this far from the
+         * capture time of the first record in the file. Note that this is the
+         * time of the capture, not the wall clock. The resolution is seconds.
+         */
+        public Builder withInterval(final Duration interval) {
+            if (interval != null && interval.isNegative()) {
+                throw new IllegalArgumentException("The interval cannot be negative");
+            }
+            this.interval = interval;
+            return this;
+        }
+
+        /**
+         * The number of records that can be queued up before
+         * {@link RotatingPcapWriter#write(Packet)} blocks.
+         */
+        public Builder withQueueSize(final int queueSize) {
+            if (queueSize <= 0) {
+                throw new IllegalArgumentException("The queue size must be positive");
+            }
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        public RotatingPcapWriter build() {
+            return new RotatingPcapWriter(this);
+        }
+
+        private static long assertNotNegative(final long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("The limit cannot be negative");
+            }
+            return value;
+        }
+    }
+
+}
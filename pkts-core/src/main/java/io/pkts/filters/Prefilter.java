@@ -0,0 +1,626 @@
+/**
+ *
+ */
+package io.pkts.filters;
+
+import io.pkts.buffer.Buffer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Prefilter} is evaluated on the raw bytes of a captured frame before
+ * any {@link io.pkts.packet.Packet} has been framed, which means that a
+ * rejected frame costs nothing more than a few byte reads. This is the
+ * equivalent of a BPF filter and is typically used to get rid of the vast
+ * majority of a capture (such as all the RTP) before the more expensive
+ * {@link Filter}s, or your own code, get to look at the packets.
+ *
+ * The expression is compiled into a tree of checks on offsets within the
+ * frame. The syntax follows the display filters of Wireshark:
+ *
+ * <pre>
+ * ip.proto == udp &amp;&amp; udp.port == 5060
+ * ip.src == 10.36.10.0/24 || ip.dst == 10.36.10.1
+ * vlan.id == 100 and !(tcp)
+ * </pre>
+ *
+ * The following fields are supported:
+ * <ul>
+ * <li><code>eth.type</code> - the type of the network layer, i.e., the
+ * ethertype after any VLAN tags</li>
+ * <li><code>vlan</code>, <code>vlan.id</code> - the outermost VLAN tag</li>
+ * <li><code>ip</code>, <code>ip.proto</code>, <code>ip.src</code>,
+ * <code>ip.dst</code>, <code>ip.addr</code> - IPv4 where the addresses may be
+ * in CIDR notation. <code>ip.proto</code> also applies to IPv6, where it is
+ * the protocol following any extension headers</li>
+ * <li><code>ipv6</code>, <code>ipv6.src</code>, <code>ipv6.dst</code>,
+ * <code>ipv6.addr</code> - same as above but for IPv6</li>
+ * <li><code>udp</code>, <code>udp.port</code>, <code>udp.srcport</code>,
+ * <code>udp.dstport</code> and the same for <code>tcp</code></li>
+ * </ul>
+ *
+ * Supported link types are Ethernet, Linux cooked capture (SLL) and raw IP.
+ * Nothing matches a frame of any other link type.
+ *
+ * A {@link Prefilter} doesn't keep any state so the same instance can safely
+ * be used by many threads.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class Prefilter {
+
+    private static final int LINK_TYPE_ETHERNET = 1;
+    private static final int LINK_TYPE_RAW = 101;
+    private static final int LINK_TYPE_SLL = 113;
+    private static final int LINK_TYPE_IPV4 = 228;
+    private static final int LINK_TYPE_IPV6 = 229;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_ARP = 0x0806;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    private static final int ETHERTYPE_QINQ_OLD = 0x9100;
+
+    private static final int PROTOCOL_ICMP = 1;
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+    private static final int PROTOCOL_ICMPV6 = 58;
+    private static final int PROTOCOL_SCTP = 132;
+
+    private final String expression;
+
+    private final Node root;
+
+    private Prefilter(final String expression, final Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * Compile the expression.
+     *
+     * @param expression
+     * @return
+     * @throws FilterParseException
+     *             in case the expression is not a valid prefilter expression.
+     */
+    public static Prefilter compile(final String expression) throws FilterParseException {
+        if (expression == null || expression.trim().isEmpty()) {
+            throw new FilterParseException(0, "The expression cannot be empty");
+        }
+        final Parser parser = new Parser(expression);
+        final Node root = parser.parseExpression();
+        if (parser.hasMoreTokens()) {
+            throw new FilterParseException(parser.offset(), "Unexpected token \"" + parser.peek() + "\"");
+        }
+        return new Prefilter(expression, root);
+    }
+
+    /**
+     * Check whether this filter accepts the frame.
+     *
+     * @param linkType
+     *            the link type of the frame, as found in the pcap global header
+     *            (or the interface description block of a pcapng).
+     * @param frame
+     *            the captured data, starting at the link layer. Note that the
+     *            reader index of the frame is ignored and the frame is never
+     *            modified.
+     * @return
+     */
+    public boolean accept(final int linkType, final Buffer frame) {
+        return this.root.accept(linkType, frame);
+    }
+
+    @Override
+    public String toString() {
+        return this.expression;
+    }
+
+    /**
+     * A check on a frame. All the nodes of the tree are stateless and all
+     * offsets are re-calculated as needed, which is a handful of byte reads.
+     */
+    private interface Node {
+        boolean accept(int linkType, Buffer frame);
+    }
+
+    // ------------------------------------------------------------------
+    // Offset calculations
+    // ------------------------------------------------------------------
+
+    private static boolean fits(final Buffer frame, final int offset, final int length) {
+        return offset >= 0 && offset + length <= frame.capacity();
+    }
+
+    private static boolean isVlan(final int type) {
+        return type == ETHERTYPE_VLAN || type == ETHERTYPE_QINQ || type == ETHERTYPE_QINQ_OLD;
+    }
+
+    /**
+     * The offset of the type field of the link layer, or -1 if the link type
+     * doesn't have one.
+     */
+    private static int linkTypeOffset(final int linkType) {
+        switch (linkType) {
+        case LINK_TYPE_ETHERNET:
+            return 12;
+        case LINK_TYPE_SLL:
+            return 14;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Find the network layer, skipping any VLAN tags.
+     *
+     * @return the ethertype in the upper 32 bits and the offset of the network
+     *         layer in the lower 32 bits, or -1 if there is no network layer.
+     */
+    private static long network(final int linkType, final Buffer frame) {
+        if (linkType == LINK_TYPE_RAW || linkType == LINK_TYPE_IPV4 || linkType == LINK_TYPE_IPV6) {
+            if (!fits(frame, 0, 1)) {
+                return -1;
+            }
+            final int version = (frame.getUnsignedByte(0) & 0xF0) >> 4;
+            if (version == 4) {
+                return (long) ETHERTYPE_IPV4 << 32;
+            }
+            return version == 6 ? (long) ETHERTYPE_IPV6 << 32 : -1;
+        }
+
+        int offset = linkTypeOffset(linkType);
+        if (offset == -1 || !fits(frame, offset, 2)) {
+            return -1;
+        }
+        int type = frame.getUnsignedShort(offset);
+        while (isVlan(type) && fits(frame, offset + 4, 2)) {
+            offset += 4;
+            type = frame.getUnsignedShort(offset);
+        }
+        return (long) type << 32 | offset + 2;
+    }
+
+    /**
+     * Find the transport layer.
+     *
+     * @return the IP protocol in the upper 32 bits and the offset of the
+     *         transport layer in the lower 32 bits, which is
+     *         <code>0xFFFFFFFF</code> if the frame is a fragment (other than
+     *         the first one) and as such, doesn't carry the transport header.
+     *         If there is no IP layer at all, -1 is returned.
+     */
+    private static long transport(final int linkType, final Buffer frame) {
+        final long network = network(linkType, frame);
+        if (network == -1) {
+            return -1;
+        }
+        final int type = (int) (network >>> 32);
+        final int offset = (int) network;
+        if (type == ETHERTYPE_IPV4) {
+            if (!fits(frame, offset, 20) || (frame.getUnsignedByte(offset) & 0xF0) != 0x40) {
+                return -1;
+            }
+            final int protocol = frame.getUnsignedByte(offset + 9);
+            final int fragmentOffset = frame.getUnsignedShort(offset + 6) & 0x1FFF;
+            final int headerLength = (frame.getUnsignedByte(offset) & 0x0F) * 4;
+            return (long) protocol << 32 | (fragmentOffset == 0 ? offset + headerLength : 0xFFFFFFFFL);
+        }
+
+        if (type == ETHERTYPE_IPV6) {
+            if (!fits(frame, offset, 40) || (frame.getUnsignedByte(offset) & 0xF0) != 0x60) {
+                return -1;
+            }
+            int next = frame.getUnsignedByte(offset + 6);
+            int index = offset + 40;
+            boolean firstFragment = true;
+            while (fits(frame, index, 8)) {
+                if (next == 0 || next == 43 || next == 60) {
+                    // hop-by-hop, routing and destination options
+                    final int length = (frame.getUnsignedByte(index + 1) + 1) * 8;
+                    next = frame.getUnsignedByte(index);
+                    index += length;
+                } else if (next == 51) {
+                    // authentication header
+                    final int length = (frame.getUnsignedByte(index + 1) + 2) * 4;
+                    next = frame.getUnsignedByte(index);
+                    index += length;
+                } else if (next == 44) {
+                    firstFragment = frame.getUnsignedShort(index + 2) >> 3 == 0;
+                    next = frame.getUnsignedByte(index);
+                    index += 8;
+                } else {
+                    break;
+                }
+            }
+            return (long) next << 32 | (firstFragment ? index : 0xFFFFFFFFL);
+        }
+
+        return -1;
+    }
+
+    // ------------------------------------------------------------------
+    // The checks
+    // ------------------------------------------------------------------
+
+    private static Node ethertype(final int expected) {
+        return (linkType, frame) -> {
+            final long network = network(linkType, frame);
+            return network != -1 && (int) (network >>> 32) == expected;
+        };
+    }
+
+    private static Node vlan(final int id) {
+        return (linkType, frame) -> {
+            final int offset = linkTypeOffset(linkType);
+            if (offset == -1 || !fits(frame, offset, 4) || !isVlan(frame.getUnsignedShort(offset))) {
+                return false;
+            }
+            return id == -1 || (frame.getUnsignedShort(offset + 2) & 0x0FFF) == id;
+        };
+    }
+
+    private static Node protocol(final int expected) {
+        return (linkType, frame) -> {
+            final long transport = transport(linkType, frame);
+            return transport != -1 && (int) (transport >>> 32) == expected;
+        };
+    }
+
+    /**
+     * Check the source port, destination port or either of them.
+     */
+    private static Node port(final int protocol, final int port, final boolean source, final boolean destination) {
+        return (linkType, frame) -> {
+            final long transport = transport(linkType, frame);
+            if (transport == -1 || (int) (transport >>> 32) != protocol) {
+                return false;
+            }
+            final int offset = (int) transport;
+            if (!fits(frame, offset, 4)) {
+                return false;
+            }
+            return source && frame.getUnsignedShort(offset) == port || destination
+                    && frame.getUnsignedShort(offset + 2) == port;
+        };
+    }
+
+    /**
+     * Check the source address, destination address or either of them against
+     * the network.
+     *
+     * @param network
+     *            the address of the network, which is 4 bytes for IPv4 and 16
+     *            for IPv6.
+     * @param prefixLength
+     *            the number of bits of the network address that must match.
+     */
+    private static Node address(final byte[] network, final int prefixLength, final boolean source,
+            final boolean destination) {
+        final int ethertype = network.length == 4 ? ETHERTYPE_IPV4 : ETHERTYPE_IPV6;
+        final int sourceOffset = network.length == 4 ? 12 : 8;
+        final int destinationOffset = sourceOffset + network.length;
+        return (linkType, frame) -> {
+            final long l3 = network(linkType, frame);
+            if (l3 == -1 || (int) (l3 >>> 32) != ethertype) {
+                return false;
+            }
+            final int offset = (int) l3;
+            if (!fits(frame, offset + destinationOffset, network.length)) {
+                return false;
+            }
+            return source && matches(frame, offset + sourceOffset, network, prefixLength) || destination
+                    && matches(frame, offset + destinationOffset, network, prefixLength);
+        };
+    }
+
+    private static boolean matches(final Buffer frame, final int offset, final byte[] network,
+            final int prefixLength) {
+        int bits = prefixLength;
+        for (int i = 0; bits > 0; ++i) {
+            final int mask = bits >= 8 ? 0xFF : 0xFF << 8 - bits & 0xFF;
+            if ((frame.getUnsignedByte(offset + i) & mask) != (network[i] & mask)) {
+                return false;
+            }
+            bits -= 8;
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------
+    // The parser
+    // ------------------------------------------------------------------
+
+    private static final class Parser {
+
+        private final List<String> tokens = new ArrayList<>();
+
+        /**
+         * The offset within the expression of every token.
+         */
+        private final List<Integer> offsets = new ArrayList<>();
+
+        private final int length;
+
+        private int position;
+
+        private Parser(final String expression) throws FilterParseException {
+            this.length = expression.length();
+            int i = 0;
+            while (i < expression.length()) {
+                final char c = expression.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    ++i;
+                    continue;
+                }
+
+                final int start = i;
+                if (c == '(' || c == ')') {
+                    ++i;
+                } else if (expression.startsWith("&&", i) || expression.startsWith("||", i)
+                        || expression.startsWith("==", i) || expression.startsWith("!=", i)) {
+                    i += 2;
+                } else if (c == '!') {
+                    ++i;
+                } else if (isWordCharacter(c)) {
+                    while (i < expression.length() && isWordCharacter(expression.charAt(i))) {
+                        ++i;
+                    }
+                } else {
+                    throw new FilterParseException(i, "Unexpected character '" + c + "'");
+                }
+                this.tokens.add(expression.substring(start, i));
+                this.offsets.add(start);
+            }
+        }
+
+        private static boolean isWordCharacter(final char c) {
+            return Character.isLetterOrDigit(c) || c == '.' || c == ':' || c == '/' || c == '_' || c == '-';
+        }
+
+        private boolean hasMoreTokens() {
+            return this.position < this.tokens.size();
+        }
+
+        private String peek() {
+            return hasMoreTokens() ? this.tokens.get(this.position) : null;
+        }
+
+        private int offset() {
+            return hasMoreTokens() ? this.offsets.get(this.position) : this.length;
+        }
+
+        private String next() throws FilterParseException {
+            if (!hasMoreTokens()) {
+                throw new FilterParseException(this.length, "Unexpected end of expression");
+            }
+            return this.tokens.get(this.position++);
+        }
+
+        private boolean consume(final String... alternatives) {
+            final String token = peek();
+            for (final String alternative : alternatives) {
+                if (alternative.equalsIgnoreCase(token)) {
+                    ++this.position;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Node parseExpression() throws FilterParseException {
+            Node node = parseAnd();
+            while (consume("||", "or")) {
+                final Node left = node;
+                final Node right = parseAnd();
+                node = (linkType, frame) -> left.accept(linkType, frame) || right.accept(linkType, frame);
+            }
+            return node;
+        }
+
+        private Node parseAnd() throws FilterParseException {
+            Node node = parseUnary();
+            while (consume("&&", "and")) {
+                final Node left = node;
+                final Node right = parseUnary();
+                node = (linkType, frame) -> left.accept(linkType, frame) && right.accept(linkType, frame);
+            }
+            return node;
+        }
+
+        private Node parseUnary() throws FilterParseException {
+            if (consume("!", "not")) {
+                final Node node = parseUnary();
+                return (linkType, frame) -> !node.accept(linkType, frame);
+            }
+
+            if (consume("(")) {
+                final Node node = parseExpression();
+                if (!consume(")")) {
+                    throw new FilterParseException(offset(), "Expected ')'");
+                }
+                return node;
+            }
+
+            return parsePredicate();
+        }
+
+        private Node parsePredicate() throws FilterParseException {
+            final int fieldOffset = offset();
+            final String field = next().toLowerCase();
+            switch (field) {
+            case "ip":
+                return ethertype(ETHERTYPE_IPV4);
+            case "ipv6":
+            case "ip6":
+                return ethertype(ETHERTYPE_IPV6);
+            case "arp":
+                return ethertype(ETHERTYPE_ARP);
+            case "vlan":
+                return vlan(-1);
+            case "udp":
+                return protocol(PROTOCOL_UDP);
+            case "tcp":
+                return protocol(PROTOCOL_TCP);
+            case "icmp":
+                return protocol(PROTOCOL_ICMP);
+            default:
+                break;
+            }
+
+            final boolean negate;
+            if (consume("==")) {
+                negate = false;
+            } else if (consume("!=")) {
+                negate = true;
+            } else {
+                throw new FilterParseException(offset(), "Expected '==' or '!=' after \"" + field + "\"");
+            }
+
+            final int valueOffset = offset();
+            final String value = next();
+            final Node node = createPredicate(field, fieldOffset, value, valueOffset);
+            if (negate) {
+                return (linkType, frame) -> !node.accept(linkType, frame);
+            }
+            return node;
+        }
+
+        private Node createPredicate(final String field, final int fieldOffset, final String value,
+                final int valueOffset) throws FilterParseException {
+            switch (field) {
+            case "eth.type":
+                return ethertype(parseEthertype(value, valueOffset));
+            case "vlan.id":
+                return vlan(parseNumber(value, valueOffset, 0x0FFF));
+            case "ip.proto":
+                return protocol(parseProtocol(value, valueOffset));
+            case "ip.src":
+                return parseAddress(value, valueOffset, 4, true, false);
+            case "ip.dst":
+                return parseAddress(value, valueOffset, 4, false, true);
+            case "ip.addr":
+                return parseAddress(value, valueOffset, 4, true, true);
+            case "ipv6.src":
+                return parseAddress(value, valueOffset, 16, true, false);
+            case "ipv6.dst":
+                return parseAddress(value, valueOffset, 16, false, true);
+            case "ipv6.addr":
+                return parseAddress(value, valueOffset, 16, true, true);
+            case "udp.srcport":
+                return port(PROTOCOL_UDP, parseNumber(value, valueOffset, 0xFFFF), true, false);
+            case "udp.dstport":
+                return port(PROTOCOL_UDP, parseNumber(value, valueOffset, 0xFFFF), false, true);
+            case "udp.port":
+                return port(PROTOCOL_UDP, parseNumber(value, valueOffset, 0xFFFF), true, true);
+            case "tcp.srcport":
+                return port(PROTOCOL_TCP, parseNumber(value, valueOffset, 0xFFFF), true, false);
+            case "tcp.dstport":
+                return port(PROTOCOL_TCP, parseNumber(value, valueOffset, 0xFFFF), false, true);
+            case "tcp.port":
+                return port(PROTOCOL_TCP, parseNumber(value, valueOffset, 0xFFFF), true, true);
+            default:
+                throw new FilterParseException(fieldOffset, "Unknown field \"" + field + "\"");
+            }
+        }
+
+        private static int parseNumber(final String value, final int offset, final int max)
+                throws FilterParseException {
+            try {
+                final int number = Integer.decode(value);
+                if (number < 0 || number > max) {
+                    throw new FilterParseException(offset, "The value " + value + " is out of range");
+                }
+                return number;
+            } catch (final NumberFormatException e) {
+                throw new FilterParseException(offset, "Expected a number but found \"" + value + "\"");
+            }
+        }
+
+        private static int parseEthertype(final String value, final int offset) throws FilterParseException {
+            switch (value.toLowerCase()) {
+            case "ip":
+                return ETHERTYPE_IPV4;
+            case "ipv6":
+                return ETHERTYPE_IPV6;
+            case "arp":
+                return ETHERTYPE_ARP;
+            default:
+                return parseNumber(value, offset, 0xFFFF);
+            }
+        }
+
+        private static int parseProtocol(final String value, final int offset) throws FilterParseException {
+            switch (value.toLowerCase()) {
+            case "icmp":
+                return PROTOCOL_ICMP;
+            case "tcp":
+                return PROTOCOL_TCP;
+            case "udp":
+                return PROTOCOL_UDP;
+            case "icmpv6":
+                return PROTOCOL_ICMPV6;
+            case "sctp":
+                return PROTOCOL_SCTP;
+            default:
+                return parseNumber(value, offset, 0xFF);
+            }
+        }
+
+        /**
+         * Parse an address, optionally followed by a prefix length, e.g.
+         * 10.36.10.0/24.
+         */
+        private static Node parseAddress(final String value, final int offset, final int size,
+                final boolean source, final boolean destination) throws FilterParseException {
+            final int slash = value.indexOf('/');
+            final String address = slash == -1 ? value : value.substring(0, slash);
+            final int prefixLength = slash == -1 ? size * 8 : parseNumber(value.substring(slash + 1), offset
+                    + slash + 1, size * 8);
+
+            final byte[] network = size == 4 ? parseIPv4(address) : parseIPv6(address);
+            if (network == null) {
+                throw new FilterParseException(offset, "Expected an IPv" + (size == 4 ? "4" : "6")
+                        + " address but found \"" + value + "\"");
+            }
+            return address(network, prefixLength, source, destination);
+        }
+
+        private static byte[] parseIPv4(final String address) {
+            final String[] parts = address.split("\\.", -1);
+            if (parts.length != 4) {
+                return null;
+            }
+            final byte[] network = new byte[4];
+            for (int i = 0; i < 4; ++i) {
+                if (!parts[i].matches("\\d{1,3}") || Integer.parseInt(parts[i]) > 255) {
+                    return null;
+                }
+                network[i] = (byte) Integer.parseInt(parts[i]);
+            }
+            return network;
+        }
+
+        /**
+         * Only literal addresses are accepted since we don't want a prefilter
+         * to go off and do dns lookups.
+         */
+        private static byte[] parseIPv6(final String address) {
+            if (!address.contains(":")) {
+                return null;
+            }
+            try {
+                final byte[] network = InetAddress.getByName(address).getAddress();
+                return network.length == 16 ? network : null;
+            } catch (final UnknownHostException e) {
+                return null;
+            }
+        }
+    }
+
+}
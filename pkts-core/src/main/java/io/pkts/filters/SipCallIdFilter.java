@@ -9,6 +9,7 @@ import io.pkts.packet.Packet;
 import io.pkts.packet.PacketParseException;
 import io.pkts.packet.sip.SipPacket;
 import io.pkts.packet.sip.SipPacketParseException;
+import io.pkts.packet.sip.header.CallIdHeader;
 import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
@@ -20,16 +21,27 @@ public final class SipCallIdFilter extends SipFilter {
 
     private final Buffer callId;
 
+    private final SipHeaderScanner scanner;
+
     public SipCallIdFilter(final String callId) {
         this.callId = Buffers.wrap(callId);
+        this.scanner = new SipHeaderScanner(CallIdHeader.NAME.toString(), callId);
     }
 
     /**
      * {@inheritDoc}
+     *
+     * The raw message is first scanned for the Call-ID and only if it matches
+     * is the SIP message actually parsed.
      */
     @Override
     public boolean accept(final Packet packet) throws FilterException {
         try {
+            final Buffer payload = getTransportPayload(packet);
+            if (payload == null || !this.scanner.mayMatch(payload)) {
+                return false;
+            }
+
             if (super.accept(packet)) {
                 final SipPacket msg = (SipPacket) packet.getPacket(Protocol.SIP);
                 return msg.getCallIDHeader().getValue().equals(this.callId);
@@ -3,7 +3,9 @@
  */
 package io.pkts.filters;
 
+import io.pkts.buffer.Buffer;
 import io.pkts.packet.Packet;
+import io.pkts.packet.TransportPacket;
 import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
@@ -32,4 +34,20 @@ public class SipFilter implements Filter {
             throw new FilterException("Unable to process the frame due to IOException", e);
         }
     }
+
+    /**
+     * Get the payload of the UDP or TCP packet, i.e., the raw SIP message,
+     * without framing the SIP message itself.
+     *
+     * @param packet
+     * @return the payload or null if there is no transport layer.
+     * @throws IOException
+     */
+    protected Buffer getTransportPayload(final Packet packet) throws IOException {
+        Packet p = packet;
+        while (p != null && !(p instanceof TransportPacket)) {
+            p = p.getNextPacket();
+        }
+        return p == null ? null : p.getPayload();
+    }
 }
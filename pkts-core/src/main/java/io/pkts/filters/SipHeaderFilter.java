@@ -20,22 +20,32 @@ import java.util.Optional;
 public class SipHeaderFilter extends SipFilter {
     private final Buffer name;
     private final Buffer value;
+    private final SipHeaderScanner scanner;
 
     public SipHeaderFilter(final String name, final String value) {
         this.name = Buffers.wrap(name);
         this.value = Buffers.wrap(value);
+        this.scanner = new SipHeaderScanner(name, value);
     }
 
     /**
      * {@inheritDoc}
+     *
+     * The raw message is first scanned for the header and only if it matches
+     * is the SIP message actually parsed.
      */
     @Override
     public boolean accept(final Packet packet) throws FilterException {
         try {
+            final Buffer payload = getTransportPayload(packet);
+            if (payload == null || !this.scanner.mayMatch(payload)) {
+                return false;
+            }
+
             if (super.accept(packet)) {
                 final SipPacket msg = (SipPacket) packet.getPacket(Protocol.SIP);
                 final Optional<SipHeader> header = msg.getHeader(this.name);
-                if (header.isPresent()) {
+                if (!header.isPresent()) {
                     return false;
                 }
 
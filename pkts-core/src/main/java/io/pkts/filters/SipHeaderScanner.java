@@ -0,0 +1,208 @@
+/**
+ *
+ */
+package io.pkts.filters;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.sip.header.CallIdHeader;
+import io.pkts.packet.sip.header.ContactHeader;
+import io.pkts.packet.sip.header.ContentLengthHeader;
+import io.pkts.packet.sip.header.ContentTypeHeader;
+import io.pkts.packet.sip.header.FromHeader;
+import io.pkts.packet.sip.header.ToHeader;
+import io.pkts.packet.sip.header.ViaHeader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scans the raw bytes of a SIP message for a header, without parsing the
+ * message, and compares the value of that header in place. This is what
+ * allows the SIP filters to throw away the vast majority of the messages
+ * without ever having to frame them.
+ *
+ * The scanner only ever gives a definite answer when the message doesn't
+ * match. Anything that looks like a match (or that the scanner isn't sure
+ * about, such as a header value that has been folded over several lines) must
+ * be verified by actually parsing the message.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class SipHeaderScanner {
+
+    /**
+     * All the long names and their compact form, and the other way around.
+     */
+    private static final Map<String, String> ALTERNATIVE_NAMES = new HashMap<>();
+
+    static {
+        alternative(CallIdHeader.NAME.toString(), CallIdHeader.COMPACT_NAME.toString());
+        alternative(ContactHeader.NAME.toString(), ContactHeader.COMPACT_NAME.toString());
+        alternative(ContentLengthHeader.NAME.toString(), ContentLengthHeader.COMPACT_NAME.toString());
+        alternative(ContentTypeHeader.NAME.toString(), ContentTypeHeader.COMPACT_NAME.toString());
+        alternative(FromHeader.NAME.toString(), FromHeader.COMPACT_NAME.toString());
+        alternative(ToHeader.NAME.toString(), ToHeader.COMPACT_NAME.toString());
+        alternative(ViaHeader.NAME.toString(), ViaHeader.COMPACT_NAME.toString());
+        alternative("Subject", "s");
+        alternative("Supported", "k");
+        alternative("Content-Encoding", "e");
+        alternative("Event", "o");
+        alternative("Allow-Events", "u");
+        alternative("Refer-To", "r");
+        alternative("Referred-By", "b");
+        alternative("Session-Expires", "x");
+    }
+
+    private static void alternative(final String name, final String compactName) {
+        ALTERNATIVE_NAMES.put(name.toLowerCase(), compactName);
+        ALTERNATIVE_NAMES.put(compactName.toLowerCase(), name);
+    }
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SP = ' ';
+    private static final byte HTAB = '\t';
+    private static final byte COLON = ':';
+
+    /**
+     * The name(s) of the header, all in lower case.
+     */
+    private final byte[][] names;
+
+    private final byte[] value;
+
+    /**
+     *
+     * @param name
+     *            the name of the header, which can be either the long or the
+     *            compact form. Either way, both forms will be scanned for.
+     * @param value
+     */
+    SipHeaderScanner(final String name, final String value) {
+        final String alternative = ALTERNATIVE_NAMES.get(name.toLowerCase());
+        if (alternative == null) {
+            this.names = new byte[][] { lowerCase(name) };
+        } else {
+            this.names = new byte[][] { lowerCase(name), lowerCase(alternative) };
+        }
+        this.value = value.trim().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] lowerCase(final String s) {
+        return s.toLowerCase().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check whether the first header with our name has the value we are
+     * looking for.
+     *
+     * @param message
+     *            the raw message, typically the payload of the UDP or TCP
+     *            packet.
+     * @return false if the message definitely doesn't have the header, or it
+     *         has a different value. True if it may match.
+     */
+    boolean mayMatch(final Buffer message) {
+        final int end = message.getReaderIndex() + message.getReadableBytes();
+
+        // skip the initial line
+        int index = nextLine(message, message.getReaderIndex(), end);
+        while (index < end) {
+            final short b = message.getUnsignedByte(index);
+            if (b == CR || b == LF) {
+                // end of headers
+                return false;
+            }
+
+            for (final byte[] name : this.names) {
+                final int valueStart = matchName(message, index, end, name);
+                if (valueStart != -1) {
+                    return matchValue(message, valueStart, end);
+                }
+            }
+            index = nextLine(message, index, end);
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the line starting at index is the header with the name
+     * and if so, return the index of the first byte of its value.
+     */
+    private static int matchName(final Buffer message, final int index, final int end, final byte[] name) {
+        if (index + name.length >= end) {
+            return -1;
+        }
+        for (int i = 0; i < name.length; ++i) {
+            if (toLowerCase(message.getUnsignedByte(index + i)) != name[i]) {
+                return -1;
+            }
+        }
+
+        int i = skipWhitespace(message, index + name.length, end);
+        if (i >= end || message.getUnsignedByte(i) != COLON) {
+            return -1;
+        }
+        return skipWhitespace(message, i + 1, end);
+    }
+
+    /**
+     * Compare the value, which ends at the end of the line (ignoring any
+     * trailing whitespace), with the one we are looking for.
+     */
+    private boolean matchValue(final Buffer message, final int start, final int end) {
+        int stop = start;
+        while (stop < end && message.getUnsignedByte(stop) != CR && message.getUnsignedByte(stop) != LF) {
+            ++stop;
+        }
+
+        // a folded header, leave it to the parser
+        final int next = nextLine(message, start, end);
+        if (next < end && isWhitespace(message.getUnsignedByte(next))) {
+            return true;
+        }
+
+        while (stop > start && isWhitespace(message.getUnsignedByte(stop - 1))) {
+            --stop;
+        }
+
+        if (stop - start != this.value.length) {
+            return false;
+        }
+        for (int i = 0; i < this.value.length; ++i) {
+            if (message.getUnsignedByte(start + i) != (this.value[i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the beginning of the next line.
+     */
+    private static int nextLine(final Buffer message, final int index, final int end) {
+        int i = index;
+        while (i < end && message.getUnsignedByte(i) != LF) {
+            ++i;
+        }
+        return i + 1;
+    }
+
+    private static int skipWhitespace(final Buffer message, final int index, final int end) {
+        int i = index;
+        while (i < end && isWhitespace(message.getUnsignedByte(i))) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(final short b) {
+        return b == SP || b == HTAB;
+    }
+
+    private static short toLowerCase(final short b) {
+        return b >= 'A' && b <= 'Z' ? (short) (b + 32) : b;
+    }
+
+}
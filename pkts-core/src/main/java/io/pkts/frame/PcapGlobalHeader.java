@@ -72,19 +72,6 @@ public final class PcapGlobalHeader {
     }
 
     public static PcapGlobalHeader createDefaultHeader(Protocol protocol) {
-        Buffer body = Buffers.createBuffer(20);
-
-        // major version number
-        body.setUnsignedByte(0, (short) 2);
-        // minor version number
-        body.setUnsignedByte(2, (short) 4);
-        // GMT to local correction - in practice always zero
-        body.setUnsignedInt(4, 0);
-        // accuracy of timestamp - always zero.
-        body.setUnsignedInt(8, 0);
-        // snaplength - typically 65535
-        body.setUnsignedInt(12, 65535);
-
         // data link type - default is ethernet
         // See http://www.tcpdump.org/linktypes.html for a complete list
         if (protocol == null) {
@@ -92,14 +79,44 @@ public final class PcapGlobalHeader {
         }
 
         Long linkType = protocol.getLinkType();
-        if (linkType != null) {
-            body.setUnsignedInt(16, linkType);
-        } else {
+        if (linkType == null) {
             throw new IllegalArgumentException("Unknown protocol \"" + protocol
                     + "\". Not sure how to construct the global header. You probably need to add some code yourself");
         }
 
-        return new PcapGlobalHeader(ByteOrder.LITTLE_ENDIAN, body.getRawArray());
+        // snaplength - typically 65535
+        return createDefaultHeader(linkType, 65535, false);
+    }
+
+    /**
+     * Create a {@link PcapGlobalHeader} for the given data link type. Used
+     * e.g. when reading pcapng files where each interface has its own link
+     * type and timestamp resolution.
+     * 
+     * @param linkType
+     *            the data link type. See http://www.tcpdump.org/linktypes.html
+     * @param snapLength
+     *            the max length of each captured packet
+     * @param nsTimestamps
+     *            whether or not the timestamps are in nanoseconds
+     * @return
+     */
+    public static PcapGlobalHeader createDefaultHeader(final long linkType, final long snapLength,
+            final boolean nsTimestamps) {
+        Buffer body = Buffers.createBuffer(20);
+
+        // major version number
+        body.setUnsignedByte(0, (short) 2);
+        // minor version number
+        body.setUnsignedByte(2, (short) 4);
+        // GMT to local correction - in practice always zero
+        body.setUnsignedInt(4, 0);
+        // accuracy of timestamp - always zero.
+        body.setUnsignedInt(8, 0);
+        body.setUnsignedInt(12, snapLength);
+        body.setUnsignedInt(16, linkType);
+
+        return new PcapGlobalHeader(ByteOrder.LITTLE_ENDIAN, body.getRawArray(), nsTimestamps);
     }
 
     public PcapGlobalHeader(final ByteOrder byteOrder, final byte[] body) {
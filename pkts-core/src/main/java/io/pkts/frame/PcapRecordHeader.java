@@ -89,16 +89,16 @@ public final class PcapRecordHeader {
     // private static void setUnsignedInt(int index, )
 
     public long getTimeStampSeconds() {
-        return PcapGlobalHeader.getUnsignedInt(0, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(0);
     }
 
     @Deprecated
     public long getTimeStampMicroSeconds() {
-        return PcapGlobalHeader.getUnsignedInt(4, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(4);
     }
 
     public long getTimeStampMicroOrNanoSeconds() {
-        return PcapGlobalHeader.getUnsignedInt(4, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(4);
     }
 
     /**
@@ -109,7 +109,7 @@ public final class PcapRecordHeader {
      * @return
      */
     public long getTotalLength() {
-        return PcapGlobalHeader.getUnsignedInt(12, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(12);
     }
 
     public void setTotalLength(final long length) {
@@ -122,15 +122,46 @@ public final class PcapRecordHeader {
      * @return the length in bytes
      */
     public long getCapturedLength() {
-        return PcapGlobalHeader.getUnsignedInt(8, this.body.getArray(), this.byteOrder);
+        return getUnsignedInt(8);
     }
 
     public void setCapturedLength(final long length) {
         this.body.setUnsignedInt(8, length);
     }
 
+    /**
+     * Read the unsigned int straight off of the body so that we don't have to
+     * copy the entire header every time we access one of its fields.
+     */
+    private long getUnsignedInt(final int offset) {
+        final long a = this.body.getUnsignedByte(offset);
+        final long b = this.body.getUnsignedByte(offset + 1);
+        final long c = this.body.getUnsignedByte(offset + 2);
+        final long d = this.body.getUnsignedByte(offset + 3);
+        if (this.byteOrder == ByteOrder.BIG_ENDIAN) {
+            return a << 24 | b << 16 | c << 8 | d;
+        }
+
+        return d << 24 | c << 16 | b << 8 | a;
+    }
+
+    /**
+     * Get the raw header, as it will be written to a stream.
+     */
+    public Buffer getBuffer() {
+        return this.body.slice();
+    }
+
+    /**
+     * Copy this header so that the copy doesn't share its bytes with this
+     * header.
+     */
+    public PcapRecordHeader copy() {
+        return new PcapRecordHeader(this.byteOrder, this.body.clone(), this.nsTimestamps);
+    }
+
     public void write(final OutputStream out) throws IOException {
-        out.write(this.body.getArray());
+        this.body.writeTo(out);
     }
 
     @Override
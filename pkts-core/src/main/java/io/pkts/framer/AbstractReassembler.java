@@ -0,0 +1,365 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import io.pkts.Clock;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.packet.IPPacket;
+import io.pkts.packet.Packet;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base class for reassembling fragmented IP packets. Every fragment is
+ * handed to {@link #reassemble(IPPacket)} and once the last missing piece of
+ * a packet shows up, the reassembled packet is returned as a regular
+ * {@link IPPacket}, which is framed further just like any other.
+ *
+ * The fragments are tracked by the hole descriptors of RFC 815 so it doesn't
+ * matter in which order they arrive, or if they overlap. A datagram that
+ * isn't complete within the timeout is dropped, where the time is the one of
+ * the capture (see {@link FramerManager#tick(long)}) and not the wall clock.
+ * Also, since a capture may contain any number of fragments that will never
+ * be complete (the second fragment of a UDP packet doesn't have any ports so
+ * any capture filtering on ports will miss it) the memory used by the
+ * pending datagrams is capped and once reached, the oldest datagrams are
+ * dropped.
+ *
+ * Note, this class is not thread safe.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public abstract class AbstractReassembler<P extends IPPacket> {
+
+    /**
+     * The largest fragmentable part there is, since the length of an IP
+     * packet is a 16 bit field.
+     */
+    private static final int MAX_DATAGRAM = 65535;
+
+    private final Clock clock;
+
+    /**
+     * The timeout in microseconds, see {@link Clock#currentTimeMicros()}.
+     */
+    private final long timeout;
+
+    private final int maxBytes;
+
+    /**
+     * The datagrams being reassembled, with the oldest first.
+     */
+    private final Map<Object, Datagram> datagrams = new LinkedHashMap<>();
+
+    private int pendingBytes;
+
+    private long reassembled;
+
+    private long expired;
+
+    private long evicted;
+
+    private long dropped;
+
+    /**
+     *
+     * @param clock
+     *            the clock that decides when a datagram has
+     *            timed out.
+     * @param timeout
+     *            how long we wait for all the fragments of a datagram,
+     *            counting from the first one we saw.
+     * @param maxBytes
+     *            the maximum number of bytes held by the datagrams that are
+     *            not yet complete.
+     */
+    protected AbstractReassembler(final Clock clock, final Duration timeout, final int maxBytes) {
+        if (clock == null) {
+            throw new IllegalArgumentException("The clock cannot be null");
+        }
+        if (timeout == null || timeout.isNegative()) {
+            throw new IllegalArgumentException("The timeout cannot be null or negative");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("The max number of bytes must be greater than zero");
+        }
+        this.clock = clock;
+        this.timeout = TimeUnit.NANOSECONDS.toMicros(timeout.toNanos());
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Hand a packet to the reassembler. A packet that isn't a fragment is
+     * simply returned as is.
+     *
+     * @param packet
+     * @return the reassembled datagram, if this packet was the last missing
+     *         fragment, otherwise null.
+     * @throws IOException
+     */
+    public P reassemble(final P packet) throws IOException {
+        expire();
+        if (!packet.isFragmented()) {
+            return packet;
+        }
+
+        final Buffer payload = getFragment(packet);
+        final int first = getFragmentOffset(packet);
+        final int length = payload == null ? 0 : payload.getReadableBytes();
+        final int last = first + length - 1;
+        final boolean more = isMoreFragmentsSet(packet);
+        if (last >= MAX_DATAGRAM || more && length == 0) {
+            ++this.dropped;
+            return null;
+        }
+
+        final Object key = createKey(packet);
+        Datagram datagram = this.datagrams.get(key);
+        if (datagram == null) {
+            datagram = new Datagram(this.clock.currentTimeMicros());
+            this.datagrams.put(key, datagram);
+        }
+
+        final int before = datagram.data.length;
+        datagram.add(first, last, more, payload);
+        if (first == 0) {
+            // we need the headers of the first fragment, which may be a view
+            // that is about to be re-used.
+            datagram.first = (IPPacket) packet.retain();
+        }
+        this.pendingBytes += datagram.data.length - before;
+
+        if (datagram.isComplete()) {
+            this.datagrams.remove(key);
+            this.pendingBytes -= datagram.data.length;
+            ++this.reassembled;
+            final Buffer data = Buffers.wrap(Arrays.copyOf(datagram.data, datagram.length));
+            @SuppressWarnings("unchecked")
+            final P headers = (P) datagram.first;
+            return createPacket(headers, packet.getParentPacket(), data);
+        }
+
+        evict(key, datagram);
+        return null;
+    }
+
+    /**
+     * @return a key that is the same for all the fragments of a packet, and
+     *         for no other fragments, and that implements
+     *         {@link Object#equals(Object)} and {@link Object#hashCode()}.
+     */
+    protected abstract Object createKey(P fragment);
+
+    /**
+     * @return where the fragment goes in the reassembled packet, in bytes.
+     */
+    protected abstract int getFragmentOffset(P fragment);
+
+    protected abstract boolean isMoreFragmentsSet(P fragment);
+
+    /**
+     * @return the part of the fragment that is to be reassembled.
+     */
+    protected abstract Buffer getFragment(P fragment) throws IOException;
+
+    /**
+     * Create the reassembled packet.
+     *
+     * @param first
+     *            the fragment with offset zero, whose headers should be used.
+     * @param parent
+     *            the parent of the last fragment we received.
+     * @param payload
+     *            the reassembled payload.
+     */
+    protected abstract P createPacket(P first, Packet parent, Buffer payload) throws IOException;
+
+    /**
+     * Drop all the datagrams that have timed out. This is done every time a
+     * fragment is handed to the reassembler but if the capture doesn't have
+     * any more fragments you may want to do it yourself.
+     */
+    public void expire() {
+        final long now = this.clock.currentTimeMicros();
+        final Iterator<Datagram> it = this.datagrams.values().iterator();
+        while (it.hasNext()) {
+            final Datagram datagram = it.next();
+            if (now - datagram.created <= this.timeout) {
+                // the rest are younger
+                return;
+            }
+            it.remove();
+            this.pendingBytes -= datagram.data.length;
+            ++this.expired;
+        }
+    }
+
+    /**
+     * Drop the oldest datagrams until we are below the memory cap again. The
+     * one we just added to is dropped only if it alone is above the cap.
+     */
+    private void evict(final Object key, final Datagram current) {
+        final Iterator<Datagram> it = this.datagrams.values().iterator();
+        while (this.pendingBytes > this.maxBytes && it.hasNext()) {
+            final Datagram datagram = it.next();
+            if (datagram != current) {
+                it.remove();
+                this.pendingBytes -= datagram.data.length;
+                ++this.evicted;
+            }
+        }
+
+        if (this.pendingBytes > this.maxBytes) {
+            this.datagrams.remove(key);
+            this.pendingBytes -= current.data.length;
+            ++this.evicted;
+        }
+    }
+
+    /**
+     * @return the number of datagrams that have been reassembled.
+     */
+    public long getReassembled() {
+        return this.reassembled;
+    }
+
+    /**
+     * @return the number of datagrams that were dropped because they didn't
+     *         complete in time.
+     */
+    public long getExpired() {
+        return this.expired;
+    }
+
+    /**
+     * @return the number of datagrams that were dropped to stay below the
+     *         memory cap.
+     */
+    public long getEvicted() {
+        return this.evicted;
+    }
+
+    /**
+     * @return the number of fragments that were dropped because they were
+     *         invalid, e.g. ending beyond the largest possible datagram.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * @return the number of datagrams we are waiting for more fragments of.
+     */
+    public int getPendingDatagrams() {
+        return this.datagrams.size();
+    }
+
+    /**
+     * @return the number of bytes held by the datagrams we are waiting for
+     *         more fragments of.
+     */
+    public int getPendingBytes() {
+        return this.pendingBytes;
+    }
+
+    /**
+     * The fragments received so far, and the holes in between, of one
+     * datagram.
+     */
+    private static final class Datagram {
+
+        private static final byte[] EMPTY = new byte[0];
+
+        private final long created;
+
+        private byte[] data = EMPTY;
+
+        /**
+         * The total length of the datagram, which we don't know until we have
+         * seen the last fragment.
+         */
+        private int length = -1;
+
+        /**
+         * The hole descriptors, first and last byte of each hole, where a
+         * hole that ends at {@link Integer#MAX_VALUE} means that we haven't
+         * seen the last fragment yet.
+         */
+        private int[] holes = { 0, Integer.MAX_VALUE };
+
+        private int holeCount = 1;
+
+        private IPPacket first;
+
+        private Datagram(final long created) {
+            this.created = created;
+        }
+
+        private void add(final int first, final int last, final boolean more, final Buffer payload)
+                throws IOException {
+            if (!more) {
+                this.length = last + 1;
+            }
+
+            int i = 0;
+            while (i < this.holeCount) {
+                final int holeFirst = this.holes[i * 2];
+                final int holeLast = this.holes[i * 2 + 1];
+                if (first > holeLast || last < holeFirst) {
+                    ++i;
+                    continue;
+                }
+
+                removeHole(i);
+                if (first > holeFirst) {
+                    addHole(holeFirst, first - 1);
+                }
+                if (last < holeLast && more) {
+                    addHole(last + 1, holeLast);
+                }
+                // the holes we just added are at the end and don't overlap
+                // with this fragment so no need to check them, but the one
+                // that was moved into this slot must be.
+            }
+
+            if (last >= 0) {
+                ensureCapacity(last + 1);
+                System.arraycopy(payload.getArray(), 0, this.data, first, last - first + 1);
+            }
+        }
+
+        private boolean isComplete() {
+            return this.holeCount == 0 && this.length >= 0 && this.first != null;
+        }
+
+        private void removeHole(final int index) {
+            --this.holeCount;
+            this.holes[index * 2] = this.holes[this.holeCount * 2];
+            this.holes[index * 2 + 1] = this.holes[this.holeCount * 2 + 1];
+        }
+
+        private void addHole(final int first, final int last) {
+            if (this.holes.length < (this.holeCount + 1) * 2) {
+                this.holes = Arrays.copyOf(this.holes, this.holes.length * 2);
+            }
+            this.holes[this.holeCount * 2] = first;
+            this.holes[this.holeCount * 2 + 1] = last;
+            ++this.holeCount;
+        }
+
+        private void ensureCapacity(final int size) {
+            if (this.data.length < size) {
+                this.data = Arrays.copyOf(this.data, Math.min(MAX_DATAGRAM, Math.max(size, this.data.length * 2)));
+            }
+        }
+    }
+
+}
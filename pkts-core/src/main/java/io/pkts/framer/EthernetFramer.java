@@ -20,6 +20,11 @@ import io.pkts.protocol.Protocol;
  */
 public class EthernetFramer implements Framer<PCapPacket, MACPacket> {
 
+    /**
+     * {@link EtherType#values()} creates a new array every time.
+     */
+    private static final EtherType[] ETHER_TYPES = EtherType.values();
+
     public EthernetFramer() {
     }
 
@@ -82,7 +87,7 @@ public class EthernetFramer implements Framer<PCapPacket, MACPacket> {
         if (type < 1536) {
             return EtherType.None;
         }
-        for (EtherType t: EtherType.values()) {
+        for (EtherType t: ETHER_TYPES) {
           if (b1 == t.b1 && b2 == t.b2) {
               return t;
           }
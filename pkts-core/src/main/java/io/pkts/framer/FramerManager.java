@@ -5,7 +5,19 @@ package io.pkts.framer;
 
 import io.pkts.Clock;
 import io.pkts.Pcap;
+import io.pkts.packet.IPPacket;
+import io.pkts.packet.TransportPacket;
+import io.pkts.packet.impl.IPv4PacketImpl;
+import io.pkts.protocol.Protocol;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -23,30 +35,374 @@ public final class FramerManager {
      */
     private final PcapClock clock = new PcapClock();
 
+    /**
+     * The protocol we have been told to expect on a particular ip and port.
+     * E.g., the SDP of an INVITE tells us where the RTP will be sent to so
+     * once we have seen it there is no need to guess whether the traffic to
+     * that ip:port is RTP or something else.
+     */
+    private final ConcurrentMap<FlowKey, FlowHint> flowHints = new ConcurrentHashMap<FlowKey, FlowHint>();
+
+    /**
+     * How long, in microseconds (which is what the arrival time of the
+     * packets are in), a hint is kept around without seeing any traffic for
+     * it.
+     */
+    private volatile long flowHintTimeout = TimeUnit.MINUTES.toMicros(5);
+
+    /**
+     * When we next should look for hints that have timed out, in
+     * microseconds.
+     */
+    private volatile long nextFlowHintSweep;
+
+    /**
+     * The key used for looking up the hint of every packet, one per thread so
+     * that the lookup doesn't create any garbage. It is never put in the map.
+     */
+    private final ThreadLocal<FlowKey> lookupKey = ThreadLocal.withInitial(() -> new FlowKey(0, 0, 0));
+
     public static final FramerManager getInstance() {
         return instance;
     }
 
     /**
-     * 
+     * A manager of your own, with its own clock and flow hints, for when the
+     * packets are not framed in the order of the capture, such as when a
+     * part of a file is framed on a thread of its own. Everyone else should
+     * use {@link #getInstance()}.
      */
-    private FramerManager() {
+    public FramerManager() {
         // left empty intentionally
     }
 
+    /**
+     * The {@link Clock} driven by the arrival time of the packets, i.e., it
+     * is in microseconds unless the capture has nanosecond resolution. All
+     * the timeouts are kept in microseconds, see
+     * {@link Clock#currentTimeMicros()}.
+     */
+    public Clock getClock() {
+        return this.clock;
+    }
+
     /**
      * Move the {@link Clock} to the specified time.
      * 
      * @param time
+     *            in microseconds.
      */
     public void tick(final long time) {
-        this.clock.tick(time);
+        tick(time, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Move the {@link Clock} to the specified time, which is in the unit of
+     * the arrival time of the packets of the capture.
+     * 
+     * @param time
+     * @param unit
+     *            either microseconds or, for a capture with nanosecond
+     *            resolution, nanoseconds.
+     */
+    public void tick(final long time, final TimeUnit unit) {
+        this.clock.tick(time, unit);
+    }
+
+    /**
+     * Tell the {@link FramerManager} that we expect to see the given protocol
+     * on the ip and port. If the same ip and port already have a hint, it is
+     * replaced.
+     * 
+     * @param address
+     *            the IPv4 or IPv6 address. Host names are ignored since we
+     *            won't look them up.
+     * @param port
+     * @param protocol
+     * @param time
+     *            the time, in the unit of the {@link Clock}, when we learned
+     *            about this, which typically is the arrival time of the
+     *            packet that told us.
+     * @return true if the hint was added, false if the address was ignored.
+     */
+    public boolean addFlowHint(final String address, final int port, final Protocol protocol, final long time) {
+        if (protocol == null) {
+            throw new IllegalArgumentException("The protocol cannot be null");
+        }
+
+        final FlowKey key = FlowKey.parse(address, port);
+        if (key == null) {
+            return false;
+        }
+
+        final long now = this.clock.toMicros(time);
+        this.flowHints.put(key, new FlowHint(key, protocol, now));
+        sweepFlowHints(now);
+        return true;
+    }
+
+    /**
+     * Same as {@link #addFlowHint(String, int, Protocol, long)} but for the
+     * source and destination of a transport packet.
+     * 
+     * @param packet
+     * @param protocol
+     */
+    public void addFlowHint(final TransportPacket packet, final Protocol protocol) {
+        if (protocol == null) {
+            throw new IllegalArgumentException("The protocol cannot be null");
+        }
+
+        final IPPacket ip = packet.getParentPacket();
+        final long time = this.clock.toMicros(packet.getArrivalTime());
+        final FlowKey source = new FlowKey(0, 0, 0).source(ip, packet.getSourcePort());
+        final FlowKey destination = new FlowKey(0, 0, 0).destination(ip, packet.getDestinationPort());
+        this.flowHints.put(source, new FlowHint(source, protocol, time));
+        this.flowHints.put(destination, new FlowHint(destination, protocol, time));
+        sweepFlowHints(time);
+    }
+
+    /**
+     * Get the protocol we have been told to expect for the payload of the
+     * transport packet, looking at the destination first and then the
+     * source. A hint that hasn't seen any traffic for longer than the
+     * timeout is dropped, every other hint that matches is kept alive.
+     * 
+     * @param packet
+     * @return the protocol or null if we haven't got a clue, in which case
+     *         you will have to guess.
+     */
+    public Protocol getFlowHint(final TransportPacket packet) {
+        if (this.flowHints.isEmpty()) {
+            return null;
+        }
+
+        final IPPacket ip = packet.getParentPacket();
+        final long time = this.clock.toMicros(packet.getArrivalTime());
+        final FlowKey key = this.lookupKey.get();
+        final Protocol protocol = getFlowHint(key.destination(ip, packet.getDestinationPort()), time);
+        if (protocol != null) {
+            return protocol;
+        }
+        return getFlowHint(key.source(ip, packet.getSourcePort()), time);
+    }
+
+    private Protocol getFlowHint(final FlowKey key, final long time) {
+        final FlowHint hint = this.flowHints.get(key);
+        if (hint == null) {
+            return null;
+        }
+
+        if (time - hint.lastSeen > this.flowHintTimeout) {
+            this.flowHints.remove(hint.key, hint);
+            return null;
+        }
+
+        if (time > hint.lastSeen) {
+            hint.lastSeen = time;
+        }
+        return hint.protocol;
+    }
+
+    /**
+     * How long a hint is kept without seeing any traffic on it. The time is
+     * relative to the arrival time of the packets, not the wall clock.
+     * 
+     * @param timeout
+     */
+    public void setFlowHintTimeout(final Duration timeout) {
+        if (timeout == null || timeout.isNegative()) {
+            throw new IllegalArgumentException("The timeout cannot be null or negative");
+        }
+        this.flowHintTimeout = TimeUnit.NANOSECONDS.toMicros(timeout.toNanos());
+    }
+
+    /**
+     * Forget about all the hints, e.g. when you are done with one capture and
+     * move on to the next. {@link Pcap} does this every time it starts to
+     * loop over a capture.
+     */
+    public void clearFlowHints() {
+        this.flowHints.clear();
+        this.nextFlowHintSweep = 0;
+    }
+
+    /**
+     * The hints we look up are taken care of as we go but the ones for which
+     * there is no more traffic would stick around forever so every now and
+     * then we go through all of them.
+     */
+    private void sweepFlowHints(final long time) {
+        if (time < this.nextFlowHintSweep) {
+            return;
+        }
+
+        this.nextFlowHintSweep = time + this.flowHintTimeout;
+        final Iterator<Map.Entry<FlowKey, FlowHint>> it = this.flowHints.entrySet().iterator();
+        while (it.hasNext()) {
+            if (time - it.next().getValue().lastSeen > this.flowHintTimeout) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class FlowHint {
+
+        /**
+         * The key the hint is stored under, which is what we remove it by
+         * since the key we looked it up by is the lookup key.
+         */
+        private final FlowKey key;
+
+        private final Protocol protocol;
+
+        private volatile long lastSeen;
+
+        private FlowHint(final FlowKey key, final Protocol protocol, final long lastSeen) {
+            this.key = key;
+            this.protocol = protocol;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    /**
+     * An ip and port where the ip is kept as an IPv6 address, an IPv4 address
+     * is simply mapped into IPv6 (::ffff:a.b.c.d) so that looking up an IPv4
+     * packet doesn't have to copy the address out of it.
+     * 
+     * The key is mutable so that the same one can be re-used for every
+     * lookup but a key that has been put in the map is never changed.
+     */
+    private static final class FlowKey {
+
+        private static final long IPV4_MAPPED = 0xFFFF00000000L;
+
+        private long high;
+        private long low;
+        private int port;
+
+        private FlowKey(final long high, final long low, final int port) {
+            set(high, low, port);
+        }
+
+        private FlowKey set(final long high, final long low, final int port) {
+            this.high = high;
+            this.low = low;
+            this.port = port;
+            return this;
+        }
+
+        private static FlowKey ipv4(final int address, final int port) {
+            return new FlowKey(0, 0, 0).setIpv4(address, port);
+        }
+
+        private FlowKey setIpv4(final int address, final int port) {
+            return set(0, IPV4_MAPPED | address & 0xFFFFFFFFL, port);
+        }
+
+        private static FlowKey raw(final byte[] address, final int port) {
+            return new FlowKey(0, 0, 0).setRaw(address, port);
+        }
+
+        private FlowKey setRaw(final byte[] address, final int port) {
+            if (address.length == 4) {
+                return setIpv4((int) toLong(address, 0, 4), port);
+            }
+            return set(toLong(address, 0, 8), toLong(address, 8, 8), port);
+        }
+
+        private static long toLong(final byte[] address, final int offset, final int length) {
+            long value = 0;
+            for (int i = offset; i < offset + length; ++i) {
+                value = value << 8 | address[i] & 0xFF;
+            }
+            return value;
+        }
+
+        private FlowKey source(final IPPacket ip, final int port) {
+            if (ip instanceof IPv4PacketImpl) {
+                return setIpv4(((IPv4PacketImpl) ip).getRawSourceIpInt(), port);
+            }
+            return setRaw(ip.getRawSourceIP(), port);
+        }
+
+        private FlowKey destination(final IPPacket ip, final int port) {
+            if (ip instanceof IPv4PacketImpl) {
+                return setIpv4(((IPv4PacketImpl) ip).getRawDestinationIpInt(), port);
+            }
+            return setRaw(ip.getRawDestinationIP(), port);
+        }
+
+        /**
+         * @return the key or null if the address isn't an IPv4 or IPv6
+         *         address.
+         */
+        private static FlowKey parse(final String address, final int port) {
+            if (address == null || address.isEmpty()) {
+                return null;
+            }
+
+            if (address.indexOf(':') == -1) {
+                final String[] parts = address.split("\\.");
+                if (parts.length != 4) {
+                    return null;
+                }
+                int ip = 0;
+                for (final String part : parts) {
+                    try {
+                        final int value = Integer.parseInt(part);
+                        if (value < 0 || value > 255) {
+                            return null;
+                        }
+                        ip = ip << 8 | value;
+                    } catch (final NumberFormatException e) {
+                        // most likely a host name
+                        return null;
+                    }
+                }
+                return ipv4(ip, port);
+            }
+
+            for (int i = 0; i < address.length(); ++i) {
+                final char c = address.charAt(i);
+                if (c != ':' && c != '.' && Character.digit(c, 16) == -1) {
+                    return null;
+                }
+            }
+
+            try {
+                // nothing but hex digits, ':' and '.', so this can only be
+                // parsed as an IPv6 literal and is never looked up.
+                return raw(InetAddress.getByName(address).getAddress(), port);
+            } catch (final UnknownHostException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Long.hashCode(this.high) + Long.hashCode(this.low)) + this.port;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof FlowKey)) {
+                return false;
+            }
+            final FlowKey key = (FlowKey) other;
+            return this.port == key.port && this.low == key.low && this.high == key.high;
+        }
     }
 
     private static class PcapClock implements Clock {
 
         private final AtomicLong currentTime = new AtomicLong();
 
+        private volatile TimeUnit unit = TimeUnit.MICROSECONDS;
+
         public PcapClock() {
             // left empty intentionally
         }
@@ -56,10 +412,16 @@ public final class FramerManager {
             return this.currentTime.get();
         }
 
-        public void tick(final long time) {
+        @Override
+        public TimeUnit getTimeUnit() {
+            return this.unit;
+        }
+
+        public void tick(final long time, final TimeUnit unit) {
             // final SimpleDateFormat formatter = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss.SSS");
             // final Date date = new Date(time / 1000);
             // System.out.println("Time is: " + formatter.format(date));
+            this.unit = unit;
             this.currentTime.set(time);
         }
 
@@ -0,0 +1,31 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import java.util.ServiceLoader;
+
+/**
+ * The way to plug in your own {@link Framer}s. Implement this interface,
+ * register your {@link Framer}s with the builder and list your implementation
+ * in <code>META-INF/services/io.pkts.framer.FramerProvider</code>, which is
+ * all the {@link ServiceLoader} needs in order to find it.
+ *
+ * The providers are consulted once, when the default {@link FramerRegistry}
+ * is created, and after the built-in {@link Framer}s have been registered.
+ * Hence, a provider may replace any of the built-in ones by registering for
+ * the same link type, ether type etc., or a heuristic one by registering a
+ * heuristic {@link Framer} for the same {@link io.pkts.protocol.Protocol}.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public interface FramerProvider {
+
+    /**
+     * Register all your {@link Framer}s.
+     *
+     * @param registry
+     */
+    void register(FramerRegistry.Builder registry);
+
+}
@@ -0,0 +1,328 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import io.pkts.packet.IPPacket;
+import io.pkts.packet.MACPacket;
+import io.pkts.packet.PCapPacket;
+import io.pkts.packet.Packet;
+import io.pkts.packet.TransportPacket;
+import io.pkts.protocol.Protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Keeps track of which {@link Framer} to use for the payload of a packet.
+ * The {@link Framer}s are registered for the value the packet carrying them
+ * uses to tell what is in its payload, i.e., the link type of the pcap, the
+ * ether type of the Ethernet frame, the protocol number of the IP packet and,
+ * for the application protocols, the port. Since not everything runs on a
+ * well-known port there are also the heuristic {@link Framer}s, which are
+ * asked (in the order they were registered) if they
+ * {@link Framer#accept(io.pkts.buffer.Buffer)} the payload.
+ *
+ * Each of those values is an index into an array so finding the
+ * {@link Framer} is a single lookup no matter how many have been registered.
+ * The arrays are built once and never change, which is why the registry is
+ * created through a {@link Builder}.
+ *
+ * The default registry, which is what the packets use, contains the built-in
+ * {@link Framer}s plus whatever the {@link FramerProvider}s found by the
+ * {@link ServiceLoader} registered.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class FramerRegistry {
+
+    private static final FramerRegistry DEFAULT = load(Thread.currentThread().getContextClassLoader());
+
+    private final Framer<?, ?>[] linkTypes;
+
+    private final Framer<?, ?>[] etherTypes;
+
+    private final Framer<?, ?>[] ipProtocols;
+
+    private final Framer<?, ?>[] ports;
+
+    private final List<Framer<? super TransportPacket, ? extends Packet>> heuristics;
+
+    /**
+     * All the {@link Framer}s of the application protocols, registered for a
+     * port or as a heuristic, by the protocol they frame.
+     */
+    private final Map<Protocol, Framer<? super TransportPacket, ? extends Packet>> applications;
+
+    private FramerRegistry(final Builder builder) {
+        this.linkTypes = toArray(builder.linkTypes);
+        this.etherTypes = toArray(builder.etherTypes);
+        this.ipProtocols = toArray(builder.ipProtocols);
+        this.ports = toArray(builder.ports);
+        this.heuristics = Collections.unmodifiableList(new ArrayList<>(builder.heuristics));
+        this.applications = new EnumMap<>(builder.applications);
+    }
+
+    /**
+     * The registry used when framing the packets off of a capture.
+     */
+    public static FramerRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Get a builder with all the built-in {@link Framer}s already registered.
+     */
+    public static Builder withDefaultFramers() {
+        final IPv4Framer ipv4Framer = new IPv4Framer();
+        final UDPFramer udpFramer = new UDPFramer();
+        final TCPFramer tcpFramer = new TCPFramer();
+        return builder()
+                .linkType(1, new EthernetFramer())
+                .linkType(101, ipv4Framer)
+                .linkType(113, new SllFramer())
+                .etherType(0x0800, ipv4Framer)
+                .etherType(0x86DD, new IPv6Framer())
+                .ipProtocol(6, tcpFramer)
+                .ipProtocol(17, udpFramer)
+                .heuristic(new SIPFramer())
+                .heuristic(new RTCPFramer())
+                .heuristic(new RTPFramer());
+    }
+
+    /**
+     * A provider that cannot be loaded, or fails to register its
+     * {@link Framer}s, is skipped rather than taking every framing call down
+     * with it. Note that whatever a provider registered before it failed is
+     * kept.
+     */
+    static FramerRegistry load(final ClassLoader classLoader) {
+        final Builder builder = withDefaultFramers();
+        final Iterator<FramerProvider> providers = ServiceLoader.load(FramerProvider.class, classLoader).iterator();
+        while (true) {
+            final FramerProvider provider;
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+                provider = providers.next();
+            } catch (final ServiceConfigurationError e) {
+                System.err.println("WARN: Unable to load a FramerProvider, skipping it. Msg - " + e.getMessage());
+                continue;
+            }
+
+            try {
+                provider.register(builder);
+            } catch (final RuntimeException | LinkageError e) {
+                System.err.println("WARN: The FramerProvider " + provider.getClass().getName()
+                        + " failed to register its framers, skipping it. Msg - " + e);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param linkType
+     *            the data link type of the pcap, see
+     *            http://www.tcpdump.org/linktypes.html
+     * @return the framer or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public Framer<? super PCapPacket, ? extends Packet> getLinkTypeFramer(final int linkType) {
+        return (Framer<? super PCapPacket, ? extends Packet>) lookup(this.linkTypes, linkType);
+    }
+
+    /**
+     * @param etherType
+     *            the ether type, e.g. 0x0800 for IPv4
+     * @return the framer or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public Framer<? super MACPacket, ? extends Packet> getEtherTypeFramer(final int etherType) {
+        return (Framer<? super MACPacket, ? extends Packet>) lookup(this.etherTypes, etherType);
+    }
+
+    /**
+     * @param protocol
+     *            the IP protocol number, e.g. 17 for UDP
+     * @return the framer or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public Framer<? super IPPacket, ? extends Packet> getIpProtocolFramer(final int protocol) {
+        return (Framer<? super IPPacket, ? extends Packet>) lookup(this.ipProtocols, protocol);
+    }
+
+    /**
+     * @param port
+     *            the UDP or TCP port
+     * @return the framer or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public Framer<? super TransportPacket, ? extends Packet> getPortFramer(final int port) {
+        return (Framer<? super TransportPacket, ? extends Packet>) lookup(this.ports, port);
+    }
+
+    /**
+     * @return the heuristic framers in the order they should be asked.
+     */
+    public List<Framer<? super TransportPacket, ? extends Packet>> getHeuristicFramers() {
+        return this.heuristics;
+    }
+
+    /**
+     * Get the framer of an application protocol, no matter if it was
+     * registered for a port or as a heuristic one, which is what you need
+     * when you already know what protocol to expect. See
+     * {@link FramerManager#getFlowHint(TransportPacket)}.
+     *
+     * @param protocol
+     * @return the framer or null if there is none.
+     */
+    public Framer<? super TransportPacket, ? extends Packet> getApplicationFramer(final Protocol protocol) {
+        return this.applications.get(protocol);
+    }
+
+    private static Framer<?, ?> lookup(final Framer<?, ?>[] table, final int index) {
+        if (index < 0 || index >= table.length) {
+            return null;
+        }
+        return table[index];
+    }
+
+    private static Framer<?, ?>[] toArray(final Map<Integer, Framer<?, ?>> framers) {
+        int size = 0;
+        for (final int key : framers.keySet()) {
+            size = Math.max(size, key + 1);
+        }
+        final Framer<?, ?>[] table = new Framer<?, ?>[size];
+        for (final Map.Entry<Integer, Framer<?, ?>> entry : framers.entrySet()) {
+            table[entry.getKey()] = entry.getValue();
+        }
+        return table;
+    }
+
+    /**
+     * Registering a {@link Framer} for something that already has one
+     * replaces the old one.
+     */
+    public static final class Builder {
+
+        private final Map<Integer, Framer<?, ?>> linkTypes = new HashMap<>();
+        private final Map<Integer, Framer<?, ?>> etherTypes = new HashMap<>();
+        private final Map<Integer, Framer<?, ?>> ipProtocols = new HashMap<>();
+        private final Map<Integer, Framer<?, ?>> ports = new HashMap<>();
+        private final List<Framer<? super TransportPacket, ? extends Packet>> heuristics = new ArrayList<>();
+        private final Map<Protocol, Framer<? super TransportPacket, ? extends Packet>> applications = new EnumMap<>(
+                Protocol.class);
+
+        private Builder() {
+            // left empty intentionally
+        }
+
+        /**
+         * @param linkType
+         *            the data link type, 0 - 65535.
+         * @param framer
+         */
+        public Builder linkType(final int linkType, final Framer<? super PCapPacket, ? extends Packet> framer) {
+            this.linkTypes.put(ensureRange(linkType, 0xFFFF, "link type"), ensureFramer(framer));
+            return this;
+        }
+
+        /**
+         * @param etherType
+         *            the ether type, 0 - 65535.
+         * @param framer
+         */
+        public Builder etherType(final int etherType, final Framer<? super MACPacket, ? extends Packet> framer) {
+            this.etherTypes.put(ensureRange(etherType, 0xFFFF, "ether type"), ensureFramer(framer));
+            return this;
+        }
+
+        /**
+         * @param protocol
+         *            the IP protocol number, 0 - 255.
+         * @param framer
+         */
+        public Builder ipProtocol(final int protocol, final Framer<? super IPPacket, ? extends Packet> framer) {
+            this.ipProtocols.put(ensureRange(protocol, 0xFF, "IP protocol"), ensureFramer(framer));
+            return this;
+        }
+
+        /**
+         * Register a framer for the payload of any UDP or TCP packet sent to
+         * or from the port. Note that the framer still has to
+         * {@link Framer#accept(io.pkts.buffer.Buffer)} the payload, if it
+         * doesn't the heuristic framers are asked.
+         *
+         * @param port
+         *            the port, 0 - 65535.
+         * @param framer
+         */
+        public Builder port(final int port, final Framer<? super TransportPacket, ? extends Packet> framer) {
+            this.ports.put(ensureRange(port, 0xFFFF, "port"), ensureFramer(framer));
+            this.applications.put(framer.getProtocol(), framer);
+            return this;
+        }
+
+        /**
+         * Register a framer that is asked to accept the payload of any UDP or
+         * TCP packet that none of the framers registered for its ports
+         * accepted. A heuristic framer for a protocol that already has one
+         * takes its place, and hence its turn, otherwise it is asked after
+         * the ones registered before it.
+         *
+         * @param framer
+         */
+        public Builder heuristic(final Framer<? super TransportPacket, ? extends Packet> framer) {
+            ensureFramer(framer);
+            final int index = indexOfHeuristic(framer.getProtocol());
+            if (index == -1) {
+                this.heuristics.add(framer);
+            } else {
+                this.heuristics.set(index, framer);
+            }
+            this.applications.put(framer.getProtocol(), framer);
+            return this;
+        }
+
+        public FramerRegistry build() {
+            return new FramerRegistry(this);
+        }
+
+        private int indexOfHeuristic(final Protocol protocol) {
+            for (int i = 0; i < this.heuristics.size(); ++i) {
+                if (this.heuristics.get(i).getProtocol() == protocol) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static int ensureRange(final int value, final int max, final String name) {
+            if (value < 0 || value > max) {
+                throw new IllegalArgumentException("The " + name + " must be between 0 and " + max);
+            }
+            return value;
+        }
+
+        private static <F extends Framer<?, ?>> F ensureFramer(final F framer) {
+            if (framer == null) {
+                throw new IllegalArgumentException("The framer cannot be null");
+            }
+            return framer;
+        }
+    }
+
+}
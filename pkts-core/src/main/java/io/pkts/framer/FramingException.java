@@ -5,7 +5,7 @@ import io.pkts.protocol.Protocol;
 public class FramingException extends RuntimeException {
   private final Protocol protocol;
 
-  FramingException(final String message, final Protocol protocol) {
+  public FramingException(final String message, final Protocol protocol) {
     super(message);
     this.protocol = protocol;
   }
@@ -0,0 +1,117 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import io.pkts.Clock;
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.IPv4Packet;
+import io.pkts.packet.Packet;
+import io.pkts.packet.impl.IPv4PacketImpl;
+
+import java.time.Duration;
+
+/**
+ * Reassembles fragmented IPv4 datagrams, which are identified by their
+ * source, destination, identification and protocol, see RFC 791.
+ *
+ * Note, this class is not thread safe.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class IPv4Reassembler extends AbstractReassembler<IPv4Packet> {
+
+    /**
+     * A reassembler driven by the clock of the {@link FramerManager}, which
+     * drops incomplete datagrams after 30 seconds and uses at most 4 MB for
+     * the pending ones.
+     */
+    public IPv4Reassembler() {
+        this(FramerManager.getInstance().getClock(), Duration.ofSeconds(30), 4 * 1024 * 1024);
+    }
+
+    /**
+     *
+     * @param clock
+     *            the clock that decides when a datagram has
+     *            timed out.
+     * @param timeout
+     *            how long we wait for all the fragments of a datagram,
+     *            counting from the first one we saw.
+     * @param maxBytes
+     *            the maximum number of bytes held by the datagrams that are
+     *            not yet complete.
+     */
+    public IPv4Reassembler(final Clock clock, final Duration timeout, final int maxBytes) {
+        super(clock, timeout, maxBytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Object createKey(final IPv4Packet fragment) {
+        return new Key((IPv4PacketImpl) fragment);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int getFragmentOffset(final IPv4Packet fragment) {
+        return fragment.getFragmentOffset() * 8;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isMoreFragmentsSet(final IPv4Packet fragment) {
+        return fragment.isMoreFragmentsSet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Buffer getFragment(final IPv4Packet fragment) {
+        return fragment.getPayload();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected IPv4Packet createPacket(final IPv4Packet first, final Packet parent, final Buffer payload) {
+        return ((IPv4PacketImpl) first).reassemble(parent, payload);
+    }
+
+    private static final class Key {
+
+        private final long addresses;
+        private final int idAndProtocol;
+
+        private Key(final IPv4PacketImpl ip) {
+            this.addresses = (long) ip.getRawSourceIpInt() << 32 | ip.getRawDestinationIpInt() & 0xFFFFFFFFL;
+            this.idAndProtocol = ip.getIdentification() << 8 | ip.getProtocolNumber();
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(this.addresses) + this.idAndProtocol;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return this.addresses == key.addresses && this.idAndProtocol == key.idAndProtocol;
+        }
+    }
+
+}
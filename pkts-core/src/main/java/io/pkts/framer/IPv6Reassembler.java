@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import io.pkts.Clock;
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.IPv6Packet;
+import io.pkts.packet.Packet;
+import io.pkts.packet.impl.IPv6PacketImpl;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Reassembles IPv6 packets that have been split up using the Fragment
+ * extension header. The fragments of a packet are identified by their source,
+ * destination and the identification of the Fragment header, see RFC 8200.
+ *
+ * The headers of the reassembled packet are the ones of the first fragment up
+ * until the Fragment header, and whatever extension headers follow it are
+ * framed from the reassembled payload.
+ *
+ * Note, this class is not thread safe.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class IPv6Reassembler extends AbstractReassembler<IPv6Packet> {
+
+    /**
+     * A reassembler driven by the clock of the {@link FramerManager}, which
+     * drops incomplete packets after 60 seconds, as suggested by RFC 8200,
+     * and uses at most 4 MB for the pending ones.
+     */
+    public IPv6Reassembler() {
+        this(FramerManager.getInstance().getClock(), Duration.ofSeconds(60), 4 * 1024 * 1024);
+    }
+
+    /**
+     *
+     * @param clock
+     *            the clock that decides when a packet has
+     *            timed out.
+     * @param timeout
+     *            how long we wait for all the fragments of a packet, counting
+     *            from the first one we saw.
+     * @param maxBytes
+     *            the maximum number of bytes held by the packets that are not
+     *            yet complete.
+     */
+    public IPv6Reassembler(final Clock clock, final Duration timeout, final int maxBytes) {
+        super(clock, timeout, maxBytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Object createKey(final IPv6Packet fragment) {
+        return new Key(fragment);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int getFragmentOffset(final IPv6Packet fragment) {
+        // already in bytes
+        return fragment.getFragmentOffset() & 0xFFFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isMoreFragmentsSet(final IPv6Packet fragment) {
+        return fragment.isMoreFragmentsSet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Buffer getFragment(final IPv6Packet fragment) {
+        return ((IPv6PacketImpl) fragment).getFragment();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected IPv6Packet createPacket(final IPv6Packet first, final Packet parent, final Buffer payload)
+            throws IOException {
+        return ((IPv6PacketImpl) first).reassemble(parent, payload);
+    }
+
+    private static final class Key {
+
+        private final byte[] source;
+        private final byte[] destination;
+        private final long id;
+
+        private Key(final IPv6Packet fragment) {
+            this.source = fragment.getRawSourceIP();
+            this.destination = fragment.getRawDestinationIP();
+            this.id = fragment.getFragmentIdentification();
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(this.id);
+            result = 31 * result + Arrays.hashCode(this.source);
+            return 31 * result + Arrays.hashCode(this.destination);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return this.id == key.id && Arrays.equals(this.source, key.source)
+                    && Arrays.equals(this.destination, key.destination);
+        }
+    }
+
+}
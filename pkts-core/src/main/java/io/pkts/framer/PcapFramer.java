@@ -4,6 +4,8 @@
 package io.pkts.framer;
 
 import io.pkts.buffer.Buffer;
+import io.pkts.buffer.MappedFileBuffer;
+import io.pkts.filters.Prefilter;
 import io.pkts.frame.PcapGlobalHeader;
 import io.pkts.frame.PcapRecordHeader;
 import io.pkts.packet.PCapPacket;
@@ -19,10 +21,32 @@ import java.nio.ByteOrder;
  */
 public final class PcapFramer implements Framer<Packet, PCapPacket> {
 
+    /**
+     * The number of consecutive record headers that must look sane before we
+     * believe that we have found the start of a record.
+     */
+    private static final int RECORD_CHAIN_LENGTH = 8;
+
+    /**
+     * The largest gap, in seconds, we accept between two consecutive records
+     * when looking for the start of a record.
+     */
+    private static final long MAX_RECORD_GAP = 24 * 3600;
+
+    /**
+     * Used when the global header claims a snap length of zero.
+     */
+    private static final long MAX_SNAP_LENGTH = 262144;
+
     private final PcapGlobalHeader globalHeader;
     private final FramerManager framerManager;
     private final ByteOrder byteOrder;
 
+    /**
+     * If set, only the records accepted by the prefilter will be framed.
+     */
+    private Prefilter prefilter;
+
     /**
      * 
      */
@@ -35,6 +59,17 @@ public final class PcapFramer implements Framer<Packet, PCapPacket> {
         this.framerManager = framerManager;
     }
 
+    /**
+     * Only frame the records whose data is accepted by the {@link Prefilter}.
+     * Any other record is skipped before any {@link Packet} is created.
+     *
+     * @param prefilter
+     *            the prefilter or null to frame every record.
+     */
+    public void setPrefilter(final Prefilter prefilter) {
+        this.prefilter = prefilter;
+    }
+
     @Override
     public Protocol getProtocol() {
         return Protocol.PCAP;
@@ -48,23 +83,99 @@ public final class PcapFramer implements Framer<Packet, PCapPacket> {
 
         // note that for the PcapPacket the parent will always be null
         // so we are simply ignoring it.
-        Buffer record = null;
-        try {
-            record = buffer.readBytes(16);
-        } catch (final IndexOutOfBoundsException e) {
-            // we def want to do something nicer than exit
-            // on an exception like this. For now, good enough
-            return null;
+        while (true) {
+            Buffer record = null;
+            try {
+                record = buffer.readBytes(16);
+            } catch (final IndexOutOfBoundsException e) {
+                // we def want to do something nicer than exit
+                // on an exception like this. For now, good enough
+                return null;
+            }
+
+            final PcapRecordHeader header = new PcapRecordHeader(this.byteOrder, record,
+                    this.globalHeader.timestampsInNs());
+            final int length = (int) header.getCapturedLength();
+            if (length < 0) {
+                throw new FramingException(String.format("Invalid PCAP captured length of %d", length),
+                        Protocol.PCAP);
+            }
+            final int total = (int) header.getTotalLength();
+            final Buffer payload = buffer.readBytes(Math.min(length, total));
+            if (this.prefilter == null || this.prefilter.accept(this.globalHeader.getDataLinkType(), payload)) {
+                return new PCapPacketImpl(globalHeader, header, payload, this.framerManager);
+            }
+        }
+    }
+
+    /**
+     * Find the first record that starts at or after the absolute index
+     * <code>from</code> in the file. Since there is nothing in a pcap that
+     * marks the start of a record, every index is tried until we find one
+     * where the next {@link #RECORD_CHAIN_LENGTH} record headers (or all of
+     * them up until the end of the file) look sane, i.e., the captured length
+     * is within the snap length and not larger than the original length, the
+     * sub-second part of the timestamp is within range and consecutive
+     * records are reasonably close in time.
+     *
+     * This is what allows a large pcap to be split into chunks that can be
+     * framed independently of each other.
+     *
+     * @param file
+     * @param from
+     *            the absolute index of the file from where to start looking.
+     * @return the absolute index of the record or the size of the file if
+     *         there are no more records.
+     */
+    public long findRecord(final MappedFileBuffer file, final long from) {
+        final long size = file.size();
+        for (long index = from; index + PcapRecordHeader.SIZE <= size; ++index) {
+            if (isRecordChain(file, index)) {
+                return index;
+            }
         }
+        return size;
+    }
+
+    private boolean isRecordChain(final MappedFileBuffer file, final long start) {
+        final long size = file.size();
+        final long snapLength = this.globalHeader.getSnapLength() == 0 ? MAX_SNAP_LENGTH
+                : this.globalHeader.getSnapLength();
+        final long subSecondsPerSecond = this.globalHeader.timestampsInNs() ? 1000000000L : 1000000L;
+
+        long index = start;
+        long previousSeconds = -1;
+        for (int i = 0; i < RECORD_CHAIN_LENGTH && index != size; ++i) {
+            if (index + PcapRecordHeader.SIZE > size) {
+                return false;
+            }
+            final long seconds = getUnsignedInt(file, index);
+            final long subSeconds = getUnsignedInt(file, index + 4);
+            final long captured = getUnsignedInt(file, index + 8);
+            final long total = getUnsignedInt(file, index + 12);
+            if (subSeconds >= subSecondsPerSecond || captured > snapLength || captured > total
+                    || total > MAX_SNAP_LENGTH) {
+                return false;
+            }
+            if (previousSeconds != -1 && Math.abs(seconds - previousSeconds) > MAX_RECORD_GAP) {
+                return false;
+            }
+            previousSeconds = seconds;
+            index += PcapRecordHeader.SIZE + captured;
+        }
+
+        return index <= size;
+    }
 
-        final PcapRecordHeader header = new PcapRecordHeader(this.byteOrder, record, this.globalHeader.timestampsInNs());
-        final int length = (int) header.getCapturedLength();
-        if (length < 0) {
-            throw new FramingException(String.format("Invalid PCAP captured length of %d", length), Protocol.PCAP);
+    private long getUnsignedInt(final MappedFileBuffer file, final long index) {
+        final long a = file.getByte(index) & 0xFF;
+        final long b = file.getByte(index + 1) & 0xFF;
+        final long c = file.getByte(index + 2) & 0xFF;
+        final long d = file.getByte(index + 3) & 0xFF;
+        if (this.byteOrder == ByteOrder.LITTLE_ENDIAN) {
+            return d << 24 | c << 16 | b << 8 | a;
         }
-        final int total = (int) header.getTotalLength();
-        final Buffer payload = buffer.readBytes(Math.min(length, total));
-        return new PCapPacketImpl(globalHeader, header, payload);
+        return a << 24 | b << 16 | c << 8 | d;
     }
 
     @Override
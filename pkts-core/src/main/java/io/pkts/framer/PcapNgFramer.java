@@ -0,0 +1,417 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.filters.Prefilter;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.packet.PCapPacket;
+import io.pkts.packet.Packet;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.protocol.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Framer for the pcapng format. See
+ * https://www.ietf.org/archive/id/draft-tuexen-opsawg-pcapng-05.html
+ *
+ * A pcapng file is just a sequence of blocks. Every interface the packets
+ * were captured on is described by an Interface Description Block, which
+ * carries the link type and the timestamp resolution for that interface. We
+ * keep track of all the interfaces of the current section and every packet
+ * block is turned into a regular {@link PCapPacket} with a
+ * {@link PcapGlobalHeader} describing the interface it was captured on. That
+ * way, the rest of the framers (Ethernet, SLL etc) just keep working.
+ *
+ * Since the timestamp resolution may differ between interfaces, all
+ * timestamps are converted to microseconds, which is what the arrival time of
+ * a regular pcap is expressed in, so any resolution finer than that is lost.
+ *
+ * Blocks we don't care about are simply skipped and we never hold on to more
+ * than the current block.
+ *
+ * Note that this framer is stateful so you need one per stream.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PcapNgFramer implements Framer<Packet, PCapPacket> {
+
+    public static final long SECTION_HEADER_BLOCK = 0x0A0D0D0AL;
+    public static final long INTERFACE_DESCRIPTION_BLOCK = 0x00000001L;
+    public static final long PACKET_BLOCK = 0x00000002L;
+    public static final long SIMPLE_PACKET_BLOCK = 0x00000003L;
+    public static final long ENHANCED_PACKET_BLOCK = 0x00000006L;
+
+    private static final int OPTION_END_OF_OPTIONS = 0;
+    private static final int OPTION_IF_TSRESOL = 9;
+    private static final int OPTION_IF_TSOFFSET = 14;
+
+    /**
+     * Used when an interface claims a snap length of zero, i.e., no limit.
+     */
+    private static final long DEFAULT_SNAP_LENGTH = 262144;
+
+    private static final long MICROS_PER_SECOND = 1000000L;
+
+    private final FramerManager framerManager;
+
+    private ByteOrder byteOrder;
+
+    /**
+     * All the interfaces of the current section, indexed by interface id.
+     */
+    private final List<Interface> interfaces = new ArrayList<>();
+
+    /**
+     * If set, only the packets accepted by the prefilter will be framed.
+     */
+    private Prefilter prefilter;
+
+    public PcapNgFramer(final FramerManager framerManager) {
+        assert framerManager != null;
+        this.framerManager = framerManager;
+    }
+
+    /**
+     * Only frame the packets whose data is accepted by the {@link Prefilter}.
+     * Any other packet block is skipped before any {@link Packet} is created.
+     *
+     * @param prefilter
+     *            the prefilter or null to frame every packet.
+     */
+    public void setPrefilter(final Prefilter prefilter) {
+        this.prefilter = prefilter;
+    }
+
+    @Override
+    public Protocol getProtocol() {
+        return Protocol.PCAP;
+    }
+
+    /**
+     * Frame the initial Section Header Block and all blocks up until, and
+     * including, the first Interface Description Block. The
+     * {@link PcapGlobalHeader} describing the first interface is returned and
+     * is a good representation of the capture as a whole, e.g. when writing
+     * the packets back out as a regular pcap.
+     *
+     * @param buffer
+     * @return the {@link PcapGlobalHeader} describing the first interface
+     * @throws IOException
+     * @throws FramingException
+     *             in case the buffer doesn't start with a Section Header
+     *             Block or if we never find an Interface Description Block.
+     */
+    public PcapGlobalHeader frameHeader(final Buffer buffer) throws IOException, FramingException {
+        if (!accept(buffer)) {
+            throw new FramingException("Not a pcapng stream. Expected a Section Header Block", Protocol.PCAP);
+        }
+
+        while (this.interfaces.isEmpty()) {
+            final Buffer blockHeader = readBlockHeader(buffer);
+            if (blockHeader == null) {
+                throw new FramingException("No Interface Description Block found in the pcapng stream",
+                        Protocol.PCAP);
+            }
+            final long type = getUnsignedInt(blockHeader, 0);
+            final Buffer body = readBlockBody(type, blockHeader, buffer);
+            if (type == INTERFACE_DESCRIPTION_BLOCK) {
+                this.interfaces.add(frameInterface(body));
+            }
+        }
+
+        return this.interfaces.get(0).header;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Will keep reading blocks until a block containing a packet is found and
+     * as such, the Section Header Blocks and Interface Description Blocks are
+     * processed as part of framing the packets.
+     *
+     * @return the next packet or null if there are no more packets in the
+     *         stream.
+     */
+    @Override
+    public PCapPacket frame(final Packet parent, final Buffer buffer) throws IOException, FramingException {
+        Buffer blockHeader = null;
+        while ((blockHeader = readBlockHeader(buffer)) != null) {
+            final long type = getUnsignedInt(blockHeader, 0);
+            final Buffer body = readBlockBody(type, blockHeader, buffer);
+            PCapPacket packet = null;
+            if (type == ENHANCED_PACKET_BLOCK) {
+                packet = frameEnhancedPacket(body);
+            } else if (type == SIMPLE_PACKET_BLOCK) {
+                packet = frameSimplePacket(body);
+            } else if (type == PACKET_BLOCK) {
+                packet = framePacket(body);
+            } else if (type == INTERFACE_DESCRIPTION_BLOCK) {
+                this.interfaces.add(frameInterface(body));
+            }
+
+            if (packet != null) {
+                return packet;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Check whether the data starts with a Section Header Block.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean accept(final Buffer data) throws IOException {
+        final int index = data.getReaderIndex();
+        try {
+            final byte[] magic = PcapGlobalHeader.MAGIC_NGPCAP;
+            return data.getByte(index) == magic[0] && data.getByte(index + 1) == magic[1]
+                    && data.getByte(index + 2) == magic[2] && data.getByte(index + 3) == magic[3];
+        } catch (final IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the block type and the block length, or null if we have reached
+     * the end of the stream. If the block is a Section Header Block we also
+     * have to read the byte-order magic since it tells us how to interpret the
+     * block length (and everything else in the section).
+     */
+    private Buffer readBlockHeader(final Buffer buffer) throws IOException {
+        try {
+            final Buffer blockHeader = buffer.readBytes(8);
+            if (blockHeader != null && isSectionHeaderBlock(blockHeader)) {
+                startSection(buffer.readBytes(4));
+            }
+            return blockHeader;
+        } catch (final IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the rest of the block, i.e., the block body including the trailing
+     * block length.
+     */
+    private Buffer readBlockBody(final long type, final Buffer blockHeader, final Buffer buffer)
+            throws IOException {
+        final long length = getUnsignedInt(blockHeader, 4);
+        if (length < 12 || length % 4 != 0) {
+            throw new FramingException(String.format("Invalid pcapng block length of %d", length), Protocol.PCAP);
+        }
+
+        // the section header block also had its byte-order magic read.
+        final long remaining = length - (type == SECTION_HEADER_BLOCK ? 12 : 8);
+        try {
+            return buffer.readBytes((int) remaining);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new FramingException("Truncated pcapng block of type " + type, Protocol.PCAP);
+        }
+    }
+
+    private static boolean isSectionHeaderBlock(final Buffer blockHeader) {
+        final byte[] magic = PcapGlobalHeader.MAGIC_NGPCAP;
+        return blockHeader.getUnsignedByte(0) == (magic[0] & 0xFF)
+                && blockHeader.getUnsignedByte(1) == (magic[1] & 0xFF)
+                && blockHeader.getUnsignedByte(2) == (magic[2] & 0xFF)
+                && blockHeader.getUnsignedByte(3) == (magic[3] & 0xFF);
+    }
+
+    /**
+     * A new section starts, which means that all interfaces of the previous
+     * section are gone and the byte order may have changed.
+     */
+    private void startSection(final Buffer byteOrderMagic) {
+        if (byteOrderMagic.getUnsignedByte(0) == 0x1A && byteOrderMagic.getUnsignedByte(1) == 0x2B
+                && byteOrderMagic.getUnsignedByte(2) == 0x3C && byteOrderMagic.getUnsignedByte(3) == 0x4D) {
+            this.byteOrder = ByteOrder.BIG_ENDIAN;
+        } else if (byteOrderMagic.getUnsignedByte(0) == 0x4D && byteOrderMagic.getUnsignedByte(1) == 0x3C
+                && byteOrderMagic.getUnsignedByte(2) == 0x2B && byteOrderMagic.getUnsignedByte(3) == 0x1A) {
+            this.byteOrder = ByteOrder.LITTLE_ENDIAN;
+        } else {
+            throw new FramingException("Unknown byte-order magic in the pcapng Section Header Block", Protocol.PCAP);
+        }
+        this.interfaces.clear();
+    }
+
+    private Interface frameInterface(final Buffer body) {
+        final int linkType = getUnsignedShort(body, 0);
+        long snapLength = getUnsignedInt(body, 4);
+        if (snapLength == 0) {
+            snapLength = DEFAULT_SNAP_LENGTH;
+        }
+
+        long unitsPerSecond = MICROS_PER_SECOND;
+        long offset = 0;
+
+        // the options are all padded to 32 bits and the last
+        // 4 bytes of the body is the trailing block length.
+        int index = 8;
+        final int end = body.capacity() - 4;
+        while (index + 4 <= end) {
+            final int code = getUnsignedShort(body, index);
+            final int length = getUnsignedShort(body, index + 2);
+            index += 4;
+            if (code == OPTION_END_OF_OPTIONS || index + length > end) {
+                break;
+            }
+
+            if (code == OPTION_IF_TSRESOL && length >= 1) {
+                final short resolution = body.getUnsignedByte(index);
+                final int exponent = resolution & 0x7F;
+                if ((resolution & 0x80) == 0) {
+                    unitsPerSecond = pow(10, exponent);
+                } else {
+                    unitsPerSecond = pow(2, exponent);
+                }
+            } else if (code == OPTION_IF_TSOFFSET && length >= 8) {
+                offset = getLong(body, index);
+            }
+
+            index += (length + 3) & ~3;
+        }
+
+        final PcapGlobalHeader header = PcapGlobalHeader.createDefaultHeader(linkType, snapLength, false);
+        return new Interface(header, unitsPerSecond, offset);
+    }
+
+    private static long pow(final long base, final int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent && result <= Long.MAX_VALUE / base; ++i) {
+            result *= base;
+        }
+        return result;
+    }
+
+    private PCapPacket frameEnhancedPacket(final Buffer body) throws FramingException {
+        final Interface iface = getInterface(getUnsignedInt(body, 0));
+        final long timestamp = getUnsignedInt(body, 4) << 32 | getUnsignedInt(body, 8);
+        final long captured = getUnsignedInt(body, 12);
+        final long total = getUnsignedInt(body, 16);
+        return createPacket(iface, body, 20, timestamp, captured, total);
+    }
+
+    /**
+     * The obsolete Packet Block, which is just like the Enhanced Packet Block
+     * but with a 16 bit interface id followed by a drop counter.
+     */
+    private PCapPacket framePacket(final Buffer body) throws FramingException {
+        final Interface iface = getInterface(getUnsignedShort(body, 0));
+        final long timestamp = getUnsignedInt(body, 4) << 32 | getUnsignedInt(body, 8);
+        final long captured = getUnsignedInt(body, 12);
+        final long total = getUnsignedInt(body, 16);
+        return createPacket(iface, body, 20, timestamp, captured, total);
+    }
+
+    /**
+     * The Simple Packet Block doesn't have a timestamp nor a captured length,
+     * which is the original length capped by the snap length of the first
+     * interface.
+     */
+    private PCapPacket frameSimplePacket(final Buffer body) throws FramingException {
+        final Interface iface = getInterface(0);
+        final long total = getUnsignedInt(body, 0);
+        final long captured = Math.min(total, iface.header.getSnapLength());
+        return createPacket(iface, body, 4, 0, captured, total);
+    }
+
+    private Interface getInterface(final long id) throws FramingException {
+        if (id >= this.interfaces.size()) {
+            throw new FramingException("Packet block refers to unknown interface " + id, Protocol.PCAP);
+        }
+        return this.interfaces.get((int) id);
+    }
+
+    /**
+     * Create the packet, unless the prefilter rejects it in which case null is
+     * returned.
+     */
+    private PCapPacket createPacket(final Interface iface, final Buffer body, final int dataOffset,
+            final long timestamp, final long captured, final long total) throws FramingException {
+        // the last 4 bytes of the body is the trailing block length
+        if (captured < 0 || dataOffset + captured > body.capacity() - 4) {
+            throw new FramingException(String.format("Invalid pcapng captured length of %d", captured),
+                    Protocol.PCAP);
+        }
+
+        final Buffer payload = body.slice(dataOffset, dataOffset + (int) captured);
+        if (this.prefilter != null && !this.prefilter.accept(iface.header.getDataLinkType(), payload)) {
+            return null;
+        }
+
+        final long unitsPerSecond = iface.unitsPerSecond;
+        final long seconds = Long.divideUnsigned(timestamp, unitsPerSecond) + iface.offset;
+        final long fraction = Long.remainderUnsigned(timestamp, unitsPerSecond);
+        final long micros;
+        if (unitsPerSecond == MICROS_PER_SECOND) {
+            micros = fraction;
+        } else if (fraction <= Long.MAX_VALUE / MICROS_PER_SECOND) {
+            micros = fraction * MICROS_PER_SECOND / unitsPerSecond;
+        } else {
+            micros = (long) ((double) fraction / unitsPerSecond * MICROS_PER_SECOND);
+        }
+
+        final Buffer record = Buffers.wrap(new byte[PcapRecordHeader.SIZE]);
+        record.setUnsignedInt(0, seconds);
+        record.setUnsignedInt(4, micros);
+        record.setUnsignedInt(8, captured);
+        record.setUnsignedInt(12, total);
+        final PcapRecordHeader header = new PcapRecordHeader(ByteOrder.LITTLE_ENDIAN, record);
+
+        return new PCapPacketImpl(iface.header, header, payload, this.framerManager);
+    }
+
+    private long getUnsignedInt(final Buffer buffer, final int offset) {
+        final long a = buffer.getUnsignedByte(offset);
+        final long b = buffer.getUnsignedByte(offset + 1);
+        final long c = buffer.getUnsignedByte(offset + 2);
+        final long d = buffer.getUnsignedByte(offset + 3);
+        if (this.byteOrder == ByteOrder.LITTLE_ENDIAN) {
+            return d << 24 | c << 16 | b << 8 | a;
+        }
+        return a << 24 | b << 16 | c << 8 | d;
+    }
+
+    private long getLong(final Buffer buffer, final int offset) {
+        if (this.byteOrder == ByteOrder.LITTLE_ENDIAN) {
+            return getUnsignedInt(buffer, offset + 4) << 32 | getUnsignedInt(buffer, offset);
+        }
+        return getUnsignedInt(buffer, offset) << 32 | getUnsignedInt(buffer, offset + 4);
+    }
+
+    private int getUnsignedShort(final Buffer buffer, final int offset) {
+        final int a = buffer.getUnsignedByte(offset);
+        final int b = buffer.getUnsignedByte(offset + 1);
+        if (this.byteOrder == ByteOrder.LITTLE_ENDIAN) {
+            return b << 8 | a;
+        }
+        return a << 8 | b;
+    }
+
+    /**
+     * An interface as described by an Interface Description Block.
+     */
+    private static final class Interface {
+        private final PcapGlobalHeader header;
+        private final long unitsPerSecond;
+        private final long offset;
+
+        private Interface(final PcapGlobalHeader header, final long unitsPerSecond, final long offset) {
+            this.header = header;
+            this.unitsPerSecond = unitsPerSecond;
+            this.offset = offset;
+        }
+    }
+
+}
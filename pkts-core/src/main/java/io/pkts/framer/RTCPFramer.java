@@ -6,6 +6,7 @@ package io.pkts.framer;
 import io.pkts.buffer.Buffer;
 import io.pkts.packet.TransportPacket;
 import io.pkts.packet.rtcp.RtcpPacket;
+import io.pkts.packet.rtcp.impl.RtcpPacketImpl;
 import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
@@ -28,62 +29,92 @@ public final class RTCPFramer implements Framer<TransportPacket, RtcpPacket> {
     }
 
     /**
-     * There is no real good test to make sure that the data indeed is an RTP packet. Appendix 2 in
-     * RFC3550 describes one way of doing it but you really need a sequence of packets in order to
-     * be able to determine if this indeed is a RTP packet or not. The best is to analyze the
-     * session negotiation but here we are just looking at a single packet so can't do that.
-     * 
-     * Also, RTP and RTCP packets are hard to distinguish from each other and you really need help
-     * from outside such as from the Session Description Protocol but until we connect things
-     * together we will do a simple check so that we do not pick up RTCP packets. Note, this check
-     * is not super safe, see RFC 5761.
-     * 
+     * A compound RTCP packet is a sequence of RTCP packets where each one
+     * starts with version 2, has a packet type between {@link RtcpPacket#SR}
+     * and {@link RtcpPacket#XR} and tells us its length, so unlike RTP we
+     * can check that the lengths add up to exactly the size of the payload,
+     * which is a fairly safe test. As in RFC 3550 appendix A.2, the first
+     * packet must also be a SR or RR and only the last packet may be padded.
+     * The one exception is a payload with a single RTCP packet of any type,
+     * which is what a reduced-size RTCP packet looks like, see RFC 5506. On
+     * top of that, a SR, RR or BYE must be long enough for the sender info,
+     * report blocks or sources it says it has.
+     *
      * {@inheritDoc}
      */
     @Override
     public boolean accept(final Buffer data) throws IOException {
-        // a RTP packet has at least 12 bytes. Check that
-        if (data.getReadableBytes() < 12) {
-            // not enough bytes but see if we actually could
-            // get another 12 bytes by forcing the underlying
-            // implementation to read further ahead
-            data.markReaderIndex();
-            try {
-                final Buffer b = data.readBytes(12);
-                if (b.capacity() < 12) {
-                    return false;
-                }
-            } catch (final IndexOutOfBoundsException e) {
-                // guess not...
-            }
-            data.resetReaderIndex();
-        }
+        return findPackets(data) != null;
+    }
 
-        // both RTP and RTCP has a 2 in this field
-        // so if that isn't the case then it cannot
-        // be RTP nor RTCP
-        final byte b = data.getByte(0);
-        if (!((b & 0xC0) >> 6 == 0x02)) {
-            return false;
+    @Override
+    public RtcpPacket frame(final TransportPacket parent, final Buffer buffer) throws IOException {
+        if (parent == null) {
+            throw new IllegalArgumentException("The parent frame cannot be null");
         }
 
-        // The second byte is for RTCP equal to the Packet Type (pt)
-        // and if following the guidelines of RFC 5761 (section 4) then
-        // RTP Payload Type + 128 != RTCP Packet Type
-        final byte b2 = data.getByte(1);
-        if (b2 == (byte) 0xc8 || b2 == (byte) 0xc9 || b2 == (byte) 0xca || b2 == (byte) 0xcb || b2 == (byte) 0xcc) {
-            return false;
+        final int[] offsets = findPackets(buffer);
+        if (offsets == null) {
+            throw new FramingException("The payload is not a compound RTCP packet", Protocol.RTCP);
         }
 
-        return true;
+        return new RtcpPacketImpl(parent, buffer.slice(), offsets);
     }
 
-    @Override
-    public RtcpPacket frame(final TransportPacket parent, final Buffer buffer) throws IOException {
-        if (parent == null) {
-            throw new IllegalArgumentException("The parent frame cannot be null");
+    /**
+     * Walk through the RTCP packets of the compound packet.
+     *
+     * @return where each packet starts, relative to the reader index, plus
+     *         the end of the last one or null if the data isn't a compound
+     *         RTCP packet.
+     */
+    private static int[] findPackets(final Buffer data) {
+        final int readable = data.getReadableBytes();
+        if (readable < 4 || (readable & 0x03) != 0) {
+            return null;
         }
 
-        return null;
+        final int base = data.getReaderIndex();
+        int count = 0;
+        int offset = 0;
+        while (offset < readable) {
+            if (readable - offset < 4 || !isHeader(data, base + offset)) {
+                return null;
+            }
+            final int length = (data.getUnsignedShort(base + offset + 2) + 1) * 4;
+            if (length < RtcpPacketImpl.minLength(data.getUnsignedByte(base + offset + 1),
+                    data.getUnsignedByte(base + offset) & 0x1F)) {
+                return null;
+            }
+            if ((data.getUnsignedByte(base + offset) & 0x20) != 0 && offset + length != readable) {
+                // only the last packet may be padded
+                return null;
+            }
+            offset += length;
+            ++count;
+        }
+
+        if (offset != readable) {
+            return null;
+        }
+
+        final int first = data.getUnsignedByte(base + 1);
+        if (count > 1 && first != RtcpPacket.SR && first != RtcpPacket.RR) {
+            return null;
+        }
+
+        final int[] offsets = new int[count + 1];
+        offset = 0;
+        for (int i = 0; i < count; ++i) {
+            offsets[i] = offset;
+            offset += (data.getUnsignedShort(base + offset + 2) + 1) * 4;
+        }
+        offsets[count] = offset;
+        return offsets;
+    }
+
+    private static boolean isHeader(final Buffer data, final int index) {
+        final int pt = data.getUnsignedByte(index + 1);
+        return (data.getUnsignedByte(index) & 0xC0) == 0x80 && pt >= RtcpPacket.SR && pt <= RtcpPacket.XR;
     }
 }
@@ -73,9 +73,10 @@ public final class RTPFramer implements Framer<TransportPacket, RtpPacket> {
 
         // The second byte is for RTCP equal to the Packet Type (pt)
         // and if following the guidelines of RFC 5761 (section 4) then
-        // RTP Payload Type + 128 != RTCP Packet Type
-        final byte b2 = data.getByte(1);
-        if (b2 == (byte) 0xc8 || b2 == (byte) 0xc9 || b2 == (byte) 0xca || b2 == (byte) 0xcb || b2 == (byte) 0xcc) {
+        // RTP payload types 64 - 95 are not used, which means that a
+        // marker bit plus payload type in the range 192 - 223 is RTCP
+        final int b2 = data.getUnsignedByte(1);
+        if (b2 >= 192 && b2 <= 223) {
             return false;
         }
 
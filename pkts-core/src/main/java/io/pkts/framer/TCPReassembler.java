@@ -0,0 +1,490 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import io.pkts.Clock;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.packet.IPPacket;
+import io.pkts.packet.TCPPacket;
+import io.pkts.packet.TransportPacket;
+import io.pkts.packet.sip.SipMessage;
+import io.pkts.packet.sip.SipPacket;
+import io.pkts.packet.sip.impl.SipMessageStreamBuilder;
+import io.pkts.packet.sip.impl.SipRequestPacketImpl;
+import io.pkts.packet.sip.impl.SipResponsePacketImpl;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles the byte streams of TCP connections and frames the SIP
+ * messages in them. Framing each segment on its own, which is what the
+ * {@link SIPFramer} does, only works as long as every segment carries exactly
+ * one SIP message but a large message, e.g. an INVITE with a lot of headers,
+ * is split across segments and a busy connection may just as well have
+ * several messages in one segment.
+ *
+ * Every segment is handed to {@link #reassemble(TCPPacket)} and each
+ * direction of a connection is tracked as a flow of its own. The segments are
+ * put in order by their sequence numbers, where retransmitted or overlapping
+ * data is trimmed away and segments that arrive ahead of a gap are held back
+ * until the gap is filled. The in-order bytes go into a
+ * {@link SipMessageStreamBuilder} and out come the complete
+ * {@link SipPacket}s, whose parent is the segment that completed them.
+ *
+ * A flow goes away when the connection is closed (FIN or RST) or when it
+ * hasn't seen any traffic within the idle timeout, where the time is the one
+ * of the capture (see {@link FramerManager#tick(long)}). Also, the number of
+ * bytes held back by a single flow is capped and a flow that goes above it
+ * is dropped, and so is the number of flows, where the one we haven't seen
+ * for the longest time is evicted to make room for a new one.
+ *
+ * Note, this class is not thread safe.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class TCPReassembler {
+
+    private final Clock clock;
+
+    /**
+     * The idle timeout in microseconds, see {@link Clock#currentTimeMicros()}.
+     */
+    private final long idleTimeout;
+
+    private final int maxFlowBytes;
+
+    private final int maxFlows;
+
+    private final SipMessageStreamBuilder.Configuration config;
+
+    /**
+     * The flows, with the one we haven't seen for the longest time first.
+     */
+    private final Map<Key, Flow> flows = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long messages;
+
+    private long trimmedBytes;
+
+    private long droppedFlows;
+
+    private long expiredFlows;
+
+    private long evictedFlows;
+
+    /**
+     * A reassembler driven by the clock of the {@link FramerManager}, which
+     * drops flows that have been idle for 5 minutes, holds back at most
+     * 64 KB per flow and tracks at most 10000 flows.
+     */
+    public TCPReassembler() {
+        this(FramerManager.getInstance().getClock(), Duration.ofMinutes(5), 64 * 1024, 10000,
+                createDefaultConfiguration());
+    }
+
+
+    /**
+     *
+     * @param clock
+     *            the clock that decides when a flow has been
+     *            idle for too long.
+     * @param idleTimeout
+     *            how long a flow may go without any traffic.
+     * @param maxFlowBytes
+     *            the maximum number of bytes a flow may hold back while waiting
+     *            for a gap to be filled.
+     * @param maxFlows
+     *            the maximum number of flows to keep track of.
+     * @param config
+     *            the size limits of the SIP messages.
+     */
+    public TCPReassembler(final Clock clock, final Duration idleTimeout, final int maxFlowBytes,
+            final int maxFlows, final SipMessageStreamBuilder.Configuration config) {
+        if (clock == null) {
+            throw new IllegalArgumentException("The clock cannot be null");
+        }
+        if (idleTimeout == null || idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("The idle timeout cannot be null or negative");
+        }
+        if (maxFlowBytes <= 0) {
+            throw new IllegalArgumentException("The max number of bytes per flow must be greater than zero");
+        }
+        if (maxFlows <= 0) {
+            throw new IllegalArgumentException("The max number of flows must be greater than zero");
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("The configuration cannot be null");
+        }
+        this.clock = clock;
+        this.idleTimeout = TimeUnit.NANOSECONDS.toMicros(idleTimeout.toNanos());
+        this.maxFlowBytes = maxFlowBytes;
+        this.maxFlows = maxFlows;
+        this.config = config;
+    }
+
+    /**
+     * The defaults of the {@link SipMessageStreamBuilder} are on the small
+     * side for what you find in the wild so we allow for larger headers and
+     * bodies.
+     */
+    private static SipMessageStreamBuilder.Configuration createDefaultConfiguration() {
+        final SipMessageStreamBuilder.DefaultConfiguration config = new SipMessageStreamBuilder.DefaultConfiguration();
+        config.setMaxAllowedHeadersSize(16 * 1024);
+        config.setMaxAllowedContentLength(16 * 1024);
+        return config;
+    }
+
+    /**
+     * Hand a segment to the reassembler.
+     *
+     * @param segment
+     * @return the SIP messages that were completed by this segment, if any.
+     * @throws IOException
+     */
+    public List<SipPacket> reassemble(final TCPPacket segment) throws IOException {
+        final long now = this.clock.currentTimeMicros();
+        expire(now);
+
+        final Key key = new Key(segment, false);
+        if (segment.isRST()) {
+            // the connection is gone, in both directions
+            this.flows.remove(key);
+            this.flows.remove(new Key(segment, true));
+            return Collections.emptyList();
+        }
+
+        final Buffer payload = segment.getPayload();
+        final int length = payload == null ? 0 : payload.getReadableBytes();
+        Flow flow = this.flows.get(key);
+        if (flow == null) {
+            if (length == 0 && !segment.isSYN()) {
+                // e.g. the last ACK of a connection that has been closed
+                return Collections.emptyList();
+            }
+            if (this.flows.size() >= this.maxFlows) {
+                evict();
+            }
+            flow = new Flow();
+            this.flows.put(key, flow);
+        }
+        flow.lastSeen = now;
+
+        if (segment.isSYN()) {
+            // the SYN takes up a sequence number of its own
+            flow.sync(segment.getSequenceNumber() + 1);
+        } else if (!flow.synced && length > 0) {
+            // we missed the start of the connection
+            flow.sync(segment.getSequenceNumber());
+        }
+
+        if (!flow.synced) {
+            return Collections.emptyList();
+        }
+
+        final long offset = flow.toOffset(segment.getSequenceNumber() + (segment.isSYN() ? 1 : 0));
+        if (segment.isFIN()) {
+            flow.fin = offset + length;
+        }
+
+        List<SipPacket> messages = Collections.emptyList();
+        if (length > 0) {
+            messages = add(key, flow, segment, offset, payload.getArray());
+        }
+
+        if (flow.next >= flow.fin) {
+            this.flows.remove(key);
+        }
+        return messages;
+    }
+
+    private List<SipPacket> add(final Key key, final Flow flow, final TCPPacket segment, final long offset,
+            final byte[] data) throws IOException {
+        final long end = offset + data.length;
+        if (end <= flow.next) {
+            // a retransmission of what we already have
+            this.trimmedBytes += data.length;
+            return Collections.emptyList();
+        }
+
+        if (offset > flow.next) {
+            final byte[] previous = flow.pending.get(offset);
+            if (previous == null || previous.length < data.length) {
+                flow.pending.put(offset, data);
+                flow.pendingBytes += data.length - (previous == null ? 0 : previous.length);
+            }
+            if (flow.pendingBytes > this.maxFlowBytes) {
+                this.flows.remove(key);
+                ++this.droppedFlows;
+            }
+            return Collections.emptyList();
+        }
+
+        final List<SipPacket> messages = new ArrayList<>(1);
+        deliver(flow, segment, offset, data, messages);
+
+        // and whatever was waiting for this gap to be filled
+        final Iterator<Map.Entry<Long, byte[]>> it = flow.pending.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Long, byte[]> entry = it.next();
+            if (entry.getKey() > flow.next) {
+                break;
+            }
+            it.remove();
+            flow.pendingBytes -= entry.getValue().length;
+            if (entry.getKey() + entry.getValue().length <= flow.next) {
+                this.trimmedBytes += entry.getValue().length;
+                continue;
+            }
+            deliver(flow, segment, entry.getKey(), entry.getValue(), messages);
+        }
+        return messages;
+    }
+
+    /**
+     * Push in-order data, of which the beginning may overlap with what we
+     * already have, through the {@link SipMessageStreamBuilder}.
+     */
+    private void deliver(final Flow flow, final TCPPacket segment, final long offset, final byte[] data,
+            final List<SipPacket> messages) throws IOException {
+        final int overlap = (int) (flow.next - offset);
+        this.trimmedBytes += overlap;
+        flow.next = offset + data.length;
+
+        if (flow.builder == null) {
+            // We only start looking for SIP at the beginning of a segment,
+            // which is where a sender usually puts a new message. This keeps
+            // us from buffering up connections that carry something else.
+            if (overlap > 0 || !SIPFramer.couldBeSipMessage(Buffers.wrap(data))) {
+                return;
+            }
+            flow.builder = new SipMessageStreamBuilder(this.config);
+        }
+
+        try {
+            int start = overlap;
+            while (start < data.length) {
+                final int count = Math.min(flow.builder.getWritableBytes(), data.length - start);
+                if (count == 0) {
+                    // the message doesn't fit, give up and wait for the next
+                    // one to show up at the beginning of a segment.
+                    flow.builder = null;
+                    return;
+                }
+                boolean done = flow.builder.process(Arrays.copyOfRange(data, start, start + count));
+                start += count;
+                while (done) {
+                    messages.add(toPacket(segment, flow.builder.build()));
+                    done = flow.builder.hasUnprocessData() && flow.builder.process();
+                }
+            }
+        } catch (final RuntimeException e) {
+            // not SIP after all, or a broken message. Same as above.
+            flow.builder = null;
+        }
+    }
+
+    private SipPacket toPacket(final TCPPacket segment, final SipMessage msg) throws IOException {
+        ++this.messages;
+        final TransportPacket parent = (TransportPacket) segment.retain();
+        if (msg.isRequest()) {
+            return new SipRequestPacketImpl(parent, msg.toRequest());
+        }
+        return new SipResponsePacketImpl(parent, msg.toResponse());
+    }
+
+    /**
+     * Drop all the flows that have been idle for too long. This is done every
+     * time a segment is handed to the reassembler but if the capture doesn't
+     * have any more TCP traffic you may want to do it yourself.
+     */
+    public void expire() {
+        expire(this.clock.currentTimeMicros());
+    }
+
+    private void expire(final long now) {
+        final Iterator<Flow> it = this.flows.values().iterator();
+        while (it.hasNext()) {
+            final Flow flow = it.next();
+            if (now - flow.lastSeen <= this.idleTimeout) {
+                // the rest have been seen more recently
+                return;
+            }
+            it.remove();
+            ++this.expiredFlows;
+        }
+    }
+
+    /**
+     * Drop the flow we haven't seen for the longest time.
+     */
+    private void evict() {
+        final Iterator<Flow> it = this.flows.values().iterator();
+        it.next();
+        it.remove();
+        ++this.evictedFlows;
+    }
+
+    /**
+     * @return the number of SIP messages that have been framed.
+     */
+    public long getMessages() {
+        return this.messages;
+    }
+
+    /**
+     * @return the number of retransmitted, or overlapping, bytes that were
+     *         trimmed away.
+     */
+    public long getTrimmedBytes() {
+        return this.trimmedBytes;
+    }
+
+    /**
+     * @return the number of flows that were dropped because they held back
+     *         too many bytes.
+     */
+    public long getDroppedFlows() {
+        return this.droppedFlows;
+    }
+
+    /**
+     * @return the number of flows that were dropped because they were idle
+     *         for too long.
+     */
+    public long getExpiredFlows() {
+        return this.expiredFlows;
+    }
+
+    /**
+     * @return the number of flows that were dropped to make room for a new
+     *         one.
+     */
+    public long getEvictedFlows() {
+        return this.evictedFlows;
+    }
+
+    /**
+     * @return the number of flows we are currently tracking.
+     */
+    public int getFlows() {
+        return this.flows.size();
+    }
+
+    /**
+     * One direction of a TCP connection.
+     */
+    private static final class Key {
+
+        private final byte[] source;
+        private final byte[] destination;
+        private final int ports;
+
+        /**
+         * @param reverse
+         *            whether we want the direction going the other way.
+         */
+        private Key(final TCPPacket segment, final boolean reverse) {
+            final IPPacket ip = segment.getParentPacket();
+            if (reverse) {
+                this.source = ip.getRawDestinationIP();
+                this.destination = ip.getRawSourceIP();
+                this.ports = segment.getDestinationPort() << 16 | segment.getSourcePort();
+            } else {
+                this.source = ip.getRawSourceIP();
+                this.destination = ip.getRawDestinationIP();
+                this.ports = segment.getSourcePort() << 16 | segment.getDestinationPort();
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            int result = this.ports;
+            result = 31 * result + Arrays.hashCode(this.source);
+            return 31 * result + Arrays.hashCode(this.destination);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return this.ports == key.ports && Arrays.equals(this.source, key.source)
+                    && Arrays.equals(this.destination, key.destination);
+        }
+    }
+
+    private static final class Flow {
+
+        private boolean synced;
+
+        /**
+         * The sequence number that offset zero of the byte stream maps to.
+         */
+        private long initialSequenceNumber;
+
+        /**
+         * The offset in the byte stream we expect next. The offsets are 64
+         * bits so we don't have to deal with the sequence numbers wrapping
+         * around anywhere but in {@link #toOffset(long)}.
+         */
+        private long next;
+
+        /**
+         * Where the byte stream ends, once we have seen the FIN.
+         */
+        private long fin = Long.MAX_VALUE;
+
+        /**
+         * The segments ahead of a gap, by their offsets.
+         */
+        private final TreeMap<Long, byte[]> pending = new TreeMap<>();
+
+        private int pendingBytes;
+
+        private long lastSeen;
+
+        /**
+         * Null until we have found the start of a SIP message.
+         */
+        private SipMessageStreamBuilder builder;
+
+        private void sync(final long sequenceNumber) {
+            this.synced = true;
+            this.initialSequenceNumber = sequenceNumber & 0xFFFFFFFFL;
+            this.next = 0;
+        }
+
+        /**
+         * Translate a sequence number to an offset in the byte stream, which
+         * is the one closest to where we are right now.
+         */
+        private long toOffset(final long sequenceNumber) {
+            final long relative = (sequenceNumber - this.initialSequenceNumber) & 0xFFFFFFFFL;
+            final long offset = (this.next & ~0xFFFFFFFFL) | relative;
+            if (offset - this.next > 0x80000000L) {
+                return offset - 0x100000000L;
+            }
+            if (this.next - offset > 0x80000000L) {
+                return offset + 0x100000000L;
+            }
+            return offset;
+        }
+    }
+
+}
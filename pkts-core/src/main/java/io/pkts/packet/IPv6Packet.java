@@ -12,4 +12,21 @@ public interface IPv6Packet extends IPPacket {
     short getTrafficClass();
     int getFlowLabel();
     int getHopLimit();
+
+    /**
+     * The identification of the Fragment extension header, which is what ties
+     * the fragments of a packet together. Note, this should be treated as an
+     * unsigned int.
+     *
+     * @return the identification or -1 if the packet isn't a fragment.
+     */
+    long getFragmentIdentification();
+
+    /**
+     * The M flag of the Fragment extension header.
+     *
+     * @return true if this packet is a fragment and there are more fragments
+     *         after it.
+     */
+    boolean isMoreFragmentsSet();
 }
@@ -3,6 +3,8 @@
  */
 package io.pkts.packet;
 
+import io.pkts.PacketHandler;
+import io.pkts.Pcap;
 import io.pkts.PcapOutputStream;
 import io.pkts.buffer.Buffer;
 import io.pkts.packet.sip.SipPacket;
@@ -11,6 +13,7 @@ import io.pkts.protocol.Protocol;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.List;
 
 /**
  * Represents a captured packet.
@@ -88,6 +91,28 @@ public interface Packet extends Cloneable {
 
     Packet clone();
 
+    /**
+     * Get a packet that is safe to hold on to once the packet handler that
+     * was given this packet has returned. The packets handed out by
+     * {@link Pcap#loopViews(PacketHandler)} are views that are re-used for
+     * the next packet so those have to be copied. Any other packet is simply
+     * returned as is.
+     *
+     * @return this packet or a copy of it.
+     * @throws IOException
+     */
+    Packet retain() throws IOException;
+
+    /**
+     * Copy this packet, including all of the packets it is carried within,
+     * so that the copy doesn't share any bytes with this packet. The copy is
+     * of the same protocol as this packet.
+     *
+     * @return
+     * @throws IOException
+     */
+    Packet copy() throws IOException;
+
     /**
      * Check whether this packet contains a particular protocol. This will cause
      * the packet to examine all the containing packets to check whether they
@@ -138,6 +163,9 @@ public interface Packet extends Cloneable {
      * another frame but there is still raw data within this frame, it only
      * means that we didn't recognize the payload.
      * 
+     * The next frame is only framed the first time you ask for it, after that
+     * the very same packet is returned.
+     * 
      * @return
      * @throws IOException
      * @throws PacketParseException if the next packet can't be parsed by the
@@ -145,6 +173,24 @@ public interface Packet extends Cloneable {
      */
     Packet getNextPacket() throws IOException, PacketParseException;
 
+    /**
+     * Get all the layers of the frame this packet belongs to, starting with
+     * the outermost one (typically the {@link PCapPacket}) and ending with the
+     * innermost one we could frame. E.g., a SIP message over UDP would give you
+     * "pcap, eth, ip, udp, sip".
+     * 
+     * Each layer is only ever framed once, see {@link #getNextPacket()}, so
+     * walking the stack once and picking out the protocols you are interested
+     * in is cheaper than asking for them one by one through
+     * {@link #hasProtocol(Protocol)} and {@link #getPacket(Protocol)}.
+     * 
+     * @return
+     * @throws IOException
+     * @throws PacketParseException if one of the layers can't be parsed by the
+     *                              framer
+     */
+    List<Packet> getProtocolStack() throws IOException, PacketParseException;
+
     /**
      * Almost all packets have a parent, which is the encapsulating protocol.
      * E.g., the parent of a {@link SipPacket} is typically a
@@ -14,6 +14,8 @@ import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * ALL packets within pkts.io must implement this {@link AbstractPacket}.
@@ -32,7 +34,7 @@ public abstract class AbstractPacket implements Packet {
      * A packet may contain additional packets, which are carried within the
      * payload. Note, not all packets have payloads.
      */
-    private final Buffer payload;
+    private Buffer payload;
 
     /**
      * The parent packet.
@@ -40,10 +42,30 @@ public abstract class AbstractPacket implements Packet {
     private final Packet parent;
 
     /**
-     * The next packet.
+     * The next packet, which is framed the first time anyone asks for it and
+     * then kept so that the same layer isn't framed over and over again.
      */
     private Packet nextPacket;
 
+    /**
+     * Whether we have framed the next packet, in which case
+     * {@link #nextPacket} is the answer, even if it is null.
+     */
+    private boolean nextPacketFramed;
+
+    /**
+     * Whether this packet, or any of the packets it carries, has been
+     * modified since it was framed.
+     */
+    private boolean dirty;
+
+    /**
+     * If this packet is one of the re-used views of a {@link PacketViews} then
+     * this is it and the packets carried by this packet will be framed into
+     * views as well, as far as the {@link PacketViews} knows how to.
+     */
+    PacketViews views;
+
     /**
      * 
      * @param p
@@ -76,25 +98,174 @@ public abstract class AbstractPacket implements Packet {
     }
 
     /**
-     * The write strategy is fairly simple. If we have a "nextPacket" it means
-     * that we have been asked to frame our payload which also means that that
-     * payload may have changed and therefore ask the nextPacket to write itself
-     * back out to the stream. If there is no nextPacket we can just take the
-     * raw payload and write it out as is since it cannot have changed since we
-     * framed this packet.
+     * The write strategy is fairly simple. We hand our own payload to
+     * {@link #write(OutputStream, Buffer)}, which adds our headers and passes
+     * it on to our parent and so on. The packets we carry are never asked to
+     * write themselves, even if they have been framed, since not all
+     * application layers (such as SDP and RTP) know how to.
+     * 
+     * However, if nothing in the entire frame has been modified (see
+     * {@link #markDirty()}) we skip all of that and simply write out the
+     * original record, as it was read off of the capture.
      */
     @Override
     public final void write(final OutputStream out) throws IOException {
-        if (this.nextPacket != null) {
-            this.nextPacket.write(out);
-        } else {
-            this.write(out, this.payload);
+        final Packet frame = getFrame();
+        if (frame instanceof AbstractPacket && !((AbstractPacket) frame).dirty
+                && ((AbstractPacket) frame).writeOriginal(out)) {
+            return;
+        }
+
+        this.write(out, this.payload);
+    }
+
+    /**
+     * Write the original bytes of this packet, as they were when the packet
+     * was framed, to the output stream. Only the outermost packet, such as
+     * the {@link PCapPacketImpl}, knows what those bytes are and only if the
+     * packet was framed off of a capture.
+     *
+     * @return false if this packet doesn't know its original bytes, in which
+     *         case nothing was written.
+     */
+    protected boolean writeOriginal(final OutputStream out) throws IOException {
+        return false;
+    }
+
+    /**
+     * Must be called by every method that modifies the bytes of this packet
+     * so that the next time the packet is written, it will be re-assembled
+     * layer by layer rather than written out as the original bytes. The
+     * parent packets are marked as well since they carry this packet.
+     */
+    protected final void markDirty() {
+        Packet packet = this;
+        while (packet instanceof AbstractPacket) {
+            ((AbstractPacket) packet).dirty = true;
+            packet = packet.getParentPacket();
+        }
+    }
+
+    /**
+     * Check whether this packet, or any of the packets carried within it,
+     * has been modified since it was framed.
+     */
+    public boolean isDirty() {
+        return this.dirty;
+    }
+
+    /**
+     * Point this packet at a new payload, which is how a view is re-used for
+     * the next record. See {@link PacketViews}.
+     */
+    protected final void reset(final Buffer payload) {
+        this.payload = payload;
+        this.dirty = false;
+        this.nextPacket = null;
+        this.nextPacketFramed = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Packet retain() throws IOException {
+        final Packet frame = getFrame();
+        if (frame instanceof AbstractPacket && ((AbstractPacket) frame).views != null) {
+            return copy();
         }
+        return this;
+    }
+
+    /**
+     * The entire record is copied and then framed again, down to the same
+     * layer as this packet.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public Packet copy() throws IOException {
+        int depth = 0;
+        Packet frame = this;
+        while (frame.getParentPacket() != null) {
+            frame = frame.getParentPacket();
+            ++depth;
+        }
+
+        if (!(frame instanceof PCapPacketImpl)) {
+            return clone();
+        }
+
+        Packet packet = ((PCapPacketImpl) frame).copyRecord();
+        for (int i = 0; i < depth && packet != null; ++i) {
+            packet = packet.getNextPacket();
+        }
+
+        if (packet == null || packet.getProtocol() != getProtocol()) {
+            throw new IllegalStateException("Unable to frame the copy of the record down to " + getName());
+        }
+
+        if (((AbstractPacket) frame).dirty) {
+            ((AbstractPacket) packet).markDirty();
+        }
+        return packet;
+    }
+
+    /**
+     * Get the outermost packet, i.e., the one without a parent.
+     */
+    private Packet getFrame() {
+        Packet packet = this;
+        while (packet.getParentPacket() != null) {
+            packet = packet.getParentPacket();
+        }
+        return packet;
     }
 
     @Override
     public abstract Packet clone();
 
+    /**
+     * The next packet is only framed once, after that the same packet is
+     * returned every time. If the framing fails, nothing is remembered and
+     * the next call will try again (and most likely fail again).
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public Packet getNextPacket() throws IOException, PacketParseException {
+        if (!this.nextPacketFramed) {
+            this.nextPacket = frameNextPacket();
+            this.nextPacketFramed = true;
+        }
+        return this.nextPacket;
+    }
+
+    /**
+     * Frame the payload of this packet into the next packet. This is only
+     * called once per packet, see {@link #getNextPacket()}.
+     *
+     * @return the next packet or null if there is none.
+     * @throws IOException
+     * @throws PacketParseException
+     *             if the next packet can't be parsed by the framer
+     */
+    protected abstract Packet frameNextPacket() throws IOException, PacketParseException;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Packet> getProtocolStack() throws IOException, PacketParseException {
+        final List<Packet> stack = new ArrayList<>(8);
+        Packet packet = getFrame();
+        while (packet != null) {
+            stack.add(packet);
+            packet = packet.getNextPacket();
+        }
+        return stack;
+    }
+
     @Override
     public Packet getParentPacket() {
         return this.parent;
@@ -5,8 +5,9 @@ package io.pkts.packet.impl;
 
 import io.pkts.buffer.Buffer;
 import io.pkts.buffer.Buffers;
-import io.pkts.framer.TCPFramer;
-import io.pkts.framer.UDPFramer;
+import io.pkts.framer.Framer;
+import io.pkts.framer.FramerRegistry;
+import io.pkts.packet.IPPacket;
 import io.pkts.packet.IPv4Packet;
 import io.pkts.packet.PCapPacket;
 import io.pkts.packet.Packet;
@@ -21,15 +22,11 @@ import java.io.OutputStream;
  */
 public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
 
-    private static final UDPFramer udpFramer = new UDPFramer();
-
-    private static final TCPFramer tcpFramer = new TCPFramer();
-
     private final Packet parent;
 
-    private final Buffer headers;
+    private Buffer headers;
 
-    private final int options;
+    private int options;
 
     /**
      *
@@ -43,6 +40,15 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
         this.options = options;
     }
 
+    /**
+     * Point this view at the next record, see {@link PacketViews}.
+     */
+    void reset(final Buffer headers, final int options, final Buffer payload) {
+        this.headers = headers;
+        this.options = options;
+        reset(payload);
+    }
+
     @Override
     public int getIpChecksum() {
         return this.headers.getUnsignedShort(10);
@@ -147,8 +153,8 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
 
     @Override
     public void write(final OutputStream out, final Buffer payload) throws IOException {
-        // Note, you need to set the total length before you merge the packets since
-        // Buffers.wrap will copy the bytes.
+        // Note, the total length is calculated off of the payload so it has to
+        // be set before the checksum is.
         final int size = this.headers.getReadableBytes() + (payload != null ? payload.getReadableBytes() : 0);
         this.setTotalLength(size);
         reCalculateChecksum();
@@ -163,11 +169,13 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
     }
 
     public void setTotalLength(final int length) {
+        markDirty();
         this.headers.setUnsignedShort(2, length);
     }
 
     @Override
     public void setSourceIP(final int a, final int b, final int c, final int d) {
+        markDirty();
         this.headers.setByte(12, (byte) a);
         this.headers.setByte(13, (byte) b);
         this.headers.setByte(14, (byte) c);
@@ -177,6 +185,7 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
 
     @Override
     public void setSourceIP(final byte a, final byte b, final byte c, final byte d) {
+        markDirty();
         this.headers.setByte(12, a);
         this.headers.setByte(13, b);
         this.headers.setByte(14, c);
@@ -185,6 +194,7 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
 
     @Override
     public void setDestinationIP(final int a, final int b, final int c, final int d) {
+        markDirty();
         this.headers.setByte(16, (byte) a);
         this.headers.setByte(17, (byte) b);
         this.headers.setByte(18, (byte) c);
@@ -194,6 +204,7 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
 
     @Override
     public void setDestinationIP(final byte a, final byte b, final byte c, final byte d) {
+        markDirty();
         this.headers.setByte(16, a);
         this.headers.setByte(17, b);
         this.headers.setByte(18, c);
@@ -218,6 +229,7 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
      * @param address
      */
     private void setIP(final int startIndex, final String address) {
+        markDirty();
         final String[] parts = address.split("\\.");
         this.headers.setByte(startIndex + 0, (byte) Integer.parseInt(parts[0]));
         this.headers.setByte(startIndex + 1, (byte) Integer.parseInt(parts[1]));
@@ -232,6 +244,7 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
      */
     @Override
     public void reCalculateChecksum() {
+        markDirty();
         final int checksum = calculateChecksum();
         this.headers.setUnsignedShort(10, checksum);
     }
@@ -248,8 +261,41 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
         return pkt;
     }
 
+    /**
+     * Create the datagram that this packet, the first fragment, is the start
+     * of. The headers are copied from this packet but without the options
+     * and with the fragment offset and the "more fragments" flag cleared.
+     *
+     * Since the reassembled datagram didn't exist in the capture it will be
+     * written out layer by layer rather than as the original record.
+     *
+     * @param parent
+     *            the parent of the reassembled datagram, typically the parent
+     *            of the fragment that completed it.
+     * @param payload
+     *            the reassembled payload of all the fragments.
+     * @return
+     */
+    public IPv4Packet reassemble(final Packet parent, final Buffer payload) {
+        final Buffer headers = this.headers.clone();
+        headers.setByte(0, (byte) 0x45);
+        headers.setByte(6, (byte) (headers.getUnsignedByte(6) & 0x40));
+        headers.setByte(7, (byte) 0);
+        headers.setUnsignedShort(2, headers.capacity() + payload.capacity());
+        final IPv4PacketImpl pkt = new IPv4PacketImpl(parent, headers, 0, payload);
+        pkt.reCalculateChecksum();
+        return pkt;
+    }
+
     @Override
-    public Packet getNextPacket() throws IOException {
+    protected Packet frameNextPacket() throws IOException {
+        if (this.views != null) {
+            final Packet packet = this.views.frameUdp(this);
+            if (packet != null) {
+                return packet;
+            }
+        }
+
         final Buffer payload = getPayload();
         if (payload == null) {
             return null;
@@ -257,16 +303,15 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
 
         // the protocol is in byte 10
         final byte code = this.headers.getByte(9);
+        final Framer<? super IPPacket, ? extends Packet> framer = FramerRegistry.getDefault()
+                .getIpProtocolFramer(code & 0xFF);
+        if (framer != null) {
+            return framer.frame(this, payload);
+        }
+
         final Protocol protocol = Protocol.valueOf(code);
         if (protocol != null) {
-            switch (protocol) {
-            case UDP:
-                return udpFramer.frame(this, payload);
-            case TCP:
-                return tcpFramer.frame(this, payload);
-            default:
-                throw new PacketParseException(9, String.format("Unsupported inner protocol %s for IPv4", protocol.getName()));
-            }
+            throw new PacketParseException(9, String.format("Unsupported inner protocol %s for IPv4", protocol.getName()));
         } else {
             throw new PacketParseException(9, String.format("Unknown protocol %d inside IPv4 packet", code));
         }
@@ -388,6 +433,13 @@ public final class IPv4PacketImpl extends AbstractPacket implements IPv4Packet {
         return this.headers.getUnsignedShort(4);
     }
 
+    /**
+     * The protocol number of the payload, e.g. 17 for UDP.
+     */
+    public int getProtocolNumber() {
+        return this.headers.getUnsignedByte(9);
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("IPv4 ");
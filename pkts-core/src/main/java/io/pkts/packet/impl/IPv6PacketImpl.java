@@ -6,8 +6,10 @@ package io.pkts.packet.impl;
 import io.pkts.buffer.Buffer;
 import io.pkts.buffer.Buffers;
 import io.pkts.framer.FramingException;
-import io.pkts.framer.TCPFramer;
-import io.pkts.framer.UDPFramer;
+import io.pkts.framer.Framer;
+import io.pkts.framer.FramerRegistry;
+import io.pkts.framer.IPv6Framer;
+import io.pkts.packet.IPPacket;
 import io.pkts.packet.IPv6Packet;
 import io.pkts.packet.Packet;
 import io.pkts.packet.PacketParseException;
@@ -24,20 +26,75 @@ import java.net.UnknownHostException;
 public final class IPv6PacketImpl extends AbstractPacket implements IPv6Packet {
     public static final int FIXED_HEADER_LENGTH = 40;
 
-    private static final UDPFramer udpFramer = new UDPFramer();
-
-    private static final TCPFramer tcpFramer = new TCPFramer();
-
     private final Buffer headers;
 
     private final int nextProtocol;
 
+    /**
+     * Where in the headers the Fragment extension header starts, or -1 if
+     * there is none.
+     */
+    private final int fragmentHeader;
+
     public IPv6PacketImpl(final Packet parent, final Buffer headers, final int nextProtocol, final Buffer payload) {
         super(Protocol.IPv6, parent, payload);
         assert parent != null;
         assert headers != null;
         this.headers = headers;
         this.nextProtocol = nextProtocol;
+        this.fragmentHeader = findHeader(headers, EXTENSION_FRAGMENT);
+    }
+
+    /**
+     * Get the length of an extension header.
+     *
+     * @param header
+     *            the type of the extension header, which is the next header
+     *            field of the header before it.
+     * @param buffer
+     * @param offset
+     *            where in the buffer the extension header starts.
+     * @return the length of the extension header or -1 if it isn't an
+     *         extension header whose length we know, which includes ESP since
+     *         everything after the ESP header is encrypted.
+     */
+    public static int getExtensionHeaderLength(final int header, final Buffer buffer, final int offset) {
+        switch (header) {
+            case EXTENSION_HOP_BY_HOP:
+            case EXTENSION_ROUTING:
+            case EXTENSION_DESTINATION_OPTIONS:
+            case EXTENSION_MOBILITY:
+                return 8 + buffer.getUnsignedByte(offset + 1) * 8;
+            case EXTENSION_FRAGMENT:
+                return 8;
+            case EXTENSION_AH:
+                return 4 * (buffer.getUnsignedByte(offset + 1) + 2);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Walk the chain of extension headers, skipping over each one by its
+     * length, until we find the one we are looking for.
+     *
+     * @return where the extension header starts or -1 if there is none.
+     */
+    private static int findHeader(final Buffer headers, final int extension) {
+        int header = headers.getUnsignedByte(6);
+        int offset = FIXED_HEADER_LENGTH;
+        while (offset < headers.capacity()) {
+            if (header == extension) {
+                return offset;
+            }
+            final int length = getExtensionHeaderLength(header, headers, offset);
+            if (length < 0) {
+                return -1;
+            }
+            header = headers.getUnsignedByte(offset);
+            offset += length;
+        }
+        return -1;
     }
 
     /**
@@ -156,11 +213,13 @@ public final class IPv6PacketImpl extends AbstractPacket implements IPv6Packet {
     }
 
     public void setRawSourceIP(final byte[] ip) {
+        markDirty();
         this.headers.setWriterIndex(8);
         this.headers.write(ip);
     }
 
     public void setRawDestinationIP(final byte[] ip) {
+        markDirty();
         this.headers.setWriterIndex(24);
         this.headers.write(ip);
     }
@@ -173,22 +232,21 @@ public final class IPv6PacketImpl extends AbstractPacket implements IPv6Packet {
     }
 
     @Override
-    public Packet getNextPacket() throws IOException {
+    protected Packet frameNextPacket() throws IOException {
         final Buffer payload = getPayload();
         if (payload == null) {
             return null;
         }
 
+        final Framer<? super IPPacket, ? extends Packet> framer = FramerRegistry.getDefault()
+                .getIpProtocolFramer(nextProtocol);
+        if (framer != null) {
+            return framer.frame(this, payload);
+        }
+
         final Protocol protocol = Protocol.valueOf((byte) nextProtocol);
         if (protocol != null) {
-            switch (protocol) {
-            case UDP:
-                return udpFramer.frame(this, payload);
-            case TCP:
-                return tcpFramer.frame(this, payload);
-            default:
-                throw new PacketParseException(0, "Unsupported inner protocol for IPv6");
-            }
+            throw new PacketParseException(0, "Unsupported inner protocol for IPv6");
         } else {
             throw new PacketParseException(0, String.format("Unknown protocol %d inside IPv6 packet", nextProtocol));
         }
@@ -221,17 +279,100 @@ public final class IPv6PacketImpl extends AbstractPacket implements IPv6Packet {
 
     @Override
     public boolean isFragmented() {
-        return (getHeader(EXTENSION_FRAGMENT) != null);
+        return this.fragmentHeader >= 0;
     }
 
+    /**
+     * Note, unlike IPv4, the offset is in bytes and not in units of eight
+     * bytes.
+     *
+     * {@inheritDoc}
+     */
     @Override
     public short getFragmentOffset() {
-        final Buffer fragmentHeader = getHeader(EXTENSION_FRAGMENT);
-        if (fragmentHeader != null) {
-            final int offset = (fragmentHeader.getShort(2) & 0xFFF8) >> 3;
-            return (short) (offset * 8);
+        if (this.fragmentHeader < 0) {
+            return -1;
         }
-        return -1;
+        return (short) (this.headers.getUnsignedShort(this.fragmentHeader + 2) & 0xFFF8);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFragmentIdentification() {
+        if (this.fragmentHeader < 0) {
+            return -1;
+        }
+        return this.headers.getInt(this.fragmentHeader + 4) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isMoreFragmentsSet() {
+        return this.fragmentHeader >= 0 && (this.headers.getUnsignedByte(this.fragmentHeader + 3) & 0x01) == 0x01;
+    }
+
+    /**
+     * Get the fragmentable part of this fragment, which is everything after
+     * the Fragment extension header. Usually that is the payload but the
+     * first fragment may also have extension headers, e.g. Destination
+     * Options, after the Fragment header.
+     *
+     * @return the fragment or null if this packet isn't a fragment.
+     */
+    public Buffer getFragment() {
+        if (this.fragmentHeader < 0) {
+            return null;
+        }
+        final int start = this.fragmentHeader + 8;
+        if (start == this.headers.capacity()) {
+            return getPayload();
+        }
+        return Buffers.wrap(this.headers.slice(start, this.headers.capacity()), getPayload());
+    }
+
+    /**
+     * Create the packet that this fragment is a part of, see
+     * {@link io.pkts.framer.IPv6Reassembler}. The headers are the ones of
+     * this fragment, which should be the first one, up until the Fragment
+     * extension header, which is dropped.
+     *
+     * @param parent
+     *            the parent of the reassembled packet.
+     * @param payload
+     *            the reassembled fragmentable part.
+     * @return
+     * @throws IOException
+     */
+    public IPv6Packet reassemble(final Packet parent, final Buffer payload) throws IOException {
+        if (this.fragmentHeader < 0) {
+            throw new IllegalArgumentException("Not a fragment");
+        }
+
+        // find the next header field pointing to the Fragment header
+        int pointer = 6;
+        int offset = FIXED_HEADER_LENGTH;
+        while (offset < this.fragmentHeader) {
+            final int length = getExtensionHeaderLength(this.headers.getUnsignedByte(pointer), this.headers, offset);
+            pointer = offset;
+            offset += length;
+        }
+
+        final int payloadLength = this.fragmentHeader - FIXED_HEADER_LENGTH + payload.getReadableBytes();
+        if (payloadLength > 0xFFFF) {
+            throw new PacketParseException(4, "The reassembled IPv6 packet is too large");
+        }
+
+        final byte[] packet = new byte[FIXED_HEADER_LENGTH + payloadLength];
+        System.arraycopy(this.headers.slice(0, this.fragmentHeader).getArray(), 0, packet, 0, this.fragmentHeader);
+        System.arraycopy(payload.getArray(), 0, packet, this.fragmentHeader, payload.getReadableBytes());
+        packet[pointer] = (byte) this.headers.getUnsignedByte(this.fragmentHeader);
+        packet[4] = (byte) (payloadLength >> 8);
+        packet[5] = (byte) payloadLength;
+        return new IPv6Framer().frame(parent, Buffers.wrap(packet));
     }
 
     @Override
@@ -242,47 +383,4 @@ public final class IPv6PacketImpl extends AbstractPacket implements IPv6Packet {
                 .append(" Fragment Offset: ").append(getFragmentOffset());
         return sb.toString();
     }
-
-    private Buffer getHeader(final int extensionNumber) {
-        try {
-            int startOfHeader = IPv6PacketImpl.FIXED_HEADER_LENGTH;
-            byte thisHeaderNumber = this.headers.getByte(6);
-            byte nextHeaderNumber;
-            int headerExtensionLen;
-            // advance to next header
-            while (startOfHeader < this.headers.capacity()) {
-                switch (extensionNumber) {
-                    case IPv6Packet.EXTENSION_HOP_BY_HOP:
-                    case IPv6Packet.EXTENSION_ROUTING:
-                    case IPv6Packet.EXTENSION_DESTINATION_OPTIONS:
-                        nextHeaderNumber = this.headers.getByte(startOfHeader);
-                        headerExtensionLen = 8 + this.headers.getByte(startOfHeader + 1) * 8;
-                        break;
-                    case IPv6Packet.EXTENSION_FRAGMENT:
-                        nextHeaderNumber = this.headers.getByte(startOfHeader);
-                        headerExtensionLen = 8;
-                        break;
-                    case IPv6Packet.EXTENSION_AH:
-                        nextHeaderNumber = this.headers.getByte(startOfHeader);
-                        headerExtensionLen = 4 * (this.headers.getByte(startOfHeader + 1) + 2);
-                        break;
-                    case IPv6Packet.EXTENSION_ESP:
-                        // TODO figure out how length is even parsed...
-                    default:
-                        // out of headers to check
-                        return null;
-                }
-                if (thisHeaderNumber == extensionNumber) {
-                    // extract the header and return in a buffer
-                    return this.headers.slice(startOfHeader, startOfHeader + headerExtensionLen);
-                }
-                // advance to next header
-                startOfHeader += headerExtensionLen;
-                thisHeaderNumber = nextHeaderNumber;
-            }
-        } catch (final IOException e) {
-            throw new PacketParseException(0, String.format("Error extracting extension header %d", extensionNumber), e);
-        }
-        return null;
-    }
 }
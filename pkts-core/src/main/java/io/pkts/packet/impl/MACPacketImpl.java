@@ -7,11 +7,12 @@ import io.pkts.buffer.Buffer;
 import io.pkts.buffer.Buffers;
 import io.pkts.frame.UnknownEtherType;
 import io.pkts.framer.EthernetFramer;
-import io.pkts.framer.IPv4Framer;
-import io.pkts.framer.IPv6Framer;
+import io.pkts.framer.Framer;
+import io.pkts.framer.FramerRegistry;
 import io.pkts.packet.IPPacket;
 import io.pkts.packet.MACPacket;
 import io.pkts.packet.PCapPacket;
+import io.pkts.packet.Packet;
 import io.pkts.packet.PacketParseException;
 import io.pkts.protocol.Protocol;
 
@@ -23,9 +24,6 @@ import java.io.OutputStream;
  */
 public final class MACPacketImpl extends AbstractPacket implements MACPacket {
 
-    private static final IPv4Framer ipv4Framer = new IPv4Framer();
-    private static final IPv6Framer ipv6Framer = new IPv6Framer();
-
     private final PCapPacket parent;
     private final String sourceMacAddress;
     private final String destinationMacAddress;
@@ -34,7 +32,7 @@ public final class MACPacketImpl extends AbstractPacket implements MACPacket {
      * If the headers are set then this overrides any of the source stuff set
      * above.
      */
-    private final Buffer headers;
+    private Buffer headers;
 
     /**
      * Creates a new {@link MACPacketImpl} and it assumes ethernet II and it
@@ -70,6 +68,14 @@ public final class MACPacketImpl extends AbstractPacket implements MACPacket {
         this.destinationMacAddress = null;
     }
 
+    /**
+     * Point this view at the next record, see {@link PacketViews}.
+     */
+    void reset(final Buffer headers, final Buffer payload) {
+        this.headers = headers;
+        reset(payload);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -168,6 +174,7 @@ public final class MACPacketImpl extends AbstractPacket implements MACPacket {
      */
     private void setMacAddress(final String macAddress, final boolean setSourceMacAddress)
             throws IllegalArgumentException {
+        markDirty();
         if (macAddress == null || macAddress.isEmpty()) {
             throw new IllegalArgumentException("Null or empty string cannot be a valid MAC Address.");
         }
@@ -220,24 +227,52 @@ public final class MACPacketImpl extends AbstractPacket implements MACPacket {
                   return Protocol.UNKNOWN;
           }
       } else {
-          // TODO: figure out how an SLL packet indicates IPv4 vs IPv6
-          return Protocol.IPv4;
+          switch (getNextEtherType()) {
+              case 0x0800:
+                  return Protocol.IPv4;
+              case 0x86DD:
+                  return Protocol.IPv6;
+              case 0x0806:
+                  return Protocol.ARP;
+              default:
+                  return Protocol.UNKNOWN;
+          }
       }
     }
 
+    /**
+     * The ether type of the payload. For Linux cooked captures this is the
+     * protocol type of the SLL header.
+     */
+    private int getNextEtherType() throws IOException {
+        if (getProtocol() == Protocol.ETHERNET_II) {
+            final int etherType = this.headers.getUnsignedShort(12);
+            if (etherType == 0x8100) {
+                return this.headers.getUnsignedShort(16);
+            }
+            return etherType;
+        }
+        return this.headers.getUnsignedShort(14);
+    }
+
     @Override
-    public IPPacket getNextPacket() throws IOException {
+    protected Packet frameNextPacket() throws IOException {
+        if (this.views != null) {
+            final IPPacket packet = this.views.frameIPv4(this);
+            if (packet != null) {
+                return packet;
+            }
+        }
+
         final Buffer payload = getPayload();
         if (payload == null) {
             return null;
         }
-        switch (getNextProtocol()) {
-            case IPv4:
-                return ipv4Framer.frame(this, payload);
-            case IPv6:
-                return ipv6Framer.frame(this, payload);
-            default:
-                return null;
+        final Framer<? super MACPacket, ? extends Packet> framer = FramerRegistry.getDefault()
+                .getEtherTypeFramer(getNextEtherType());
+        if (framer == null) {
+            return null;
         }
+        return framer.frame(this, payload);
     }
 }
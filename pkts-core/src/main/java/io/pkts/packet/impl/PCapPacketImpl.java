@@ -3,13 +3,14 @@
  */
 package io.pkts.packet.impl;
 
+import io.pkts.PcapOutputStream;
 import io.pkts.buffer.Buffer;
 import io.pkts.frame.PcapGlobalHeader;
 import io.pkts.frame.PcapRecordHeader;
-import io.pkts.framer.EthernetFramer;
+import io.pkts.framer.Framer;
+import io.pkts.framer.FramerManager;
+import io.pkts.framer.FramerRegistry;
 import io.pkts.framer.FramingException;
-import io.pkts.framer.IPv4Framer;
-import io.pkts.framer.SllFramer;
 import io.pkts.packet.PCapPacket;
 import io.pkts.packet.PacketParseException;
 import io.pkts.packet.Packet;
@@ -28,29 +29,64 @@ import java.util.Date;
  */
 public final class PCapPacketImpl extends AbstractPacket implements PCapPacket {
 
-    private final PcapRecordHeader pcapHeader;
+    private PcapRecordHeader pcapHeader;
 
-    private static final SllFramer sllFramer = new SllFramer();
-    private static final EthernetFramer ethernetFramer = new EthernetFramer();
-    private static final IPv4Framer ipFramer = new IPv4Framer();
     private final PcapGlobalHeader pcapGlobalHeader;
 
+    /**
+     * The {@link FramerManager} whose flow hints the layers of this record
+     * are framed with.
+     */
+    private final FramerManager framerManager;
+
     /**
      * Constructor which assumes an Ethernet link layer.
      */
     public PCapPacketImpl(final PcapRecordHeader header, final Buffer payload) {
-        super(Protocol.PCAP, null, payload);
-        this.pcapGlobalHeader = PcapGlobalHeader.createDefaultHeader();
-        this.pcapHeader = header;
+        this(PcapGlobalHeader.createDefaultHeader(), header, payload);
     }
 
     /**
      * Constructor which uses the PCAP file's global header to support more than just Ethernet link layers
      */
     public PCapPacketImpl(PcapGlobalHeader pcapGlobalHeader, final PcapRecordHeader header, final Buffer payload) {
+        this(pcapGlobalHeader, header, payload, FramerManager.getInstance());
+    }
+
+    /**
+     * 
+     * @param framerManager
+     *            the {@link FramerManager} whose flow hints the layers of
+     *            this record are framed with.
+     */
+    public PCapPacketImpl(final PcapGlobalHeader pcapGlobalHeader, final PcapRecordHeader header,
+            final Buffer payload, final FramerManager framerManager) {
         super(Protocol.PCAP, null, payload);
         this.pcapGlobalHeader = pcapGlobalHeader;
         this.pcapHeader = header;
+        this.framerManager = framerManager;
+    }
+
+    FramerManager getFramerManager() {
+        return this.framerManager;
+    }
+
+    /**
+     * Point this view at the next record, see {@link PacketViews}.
+     */
+    void reset(final PcapRecordHeader header, final Buffer payload) {
+        this.pcapHeader = header;
+        reset(payload);
+    }
+
+    /**
+     * Copy the record header and the captured bytes into a new packet that
+     * doesn't share anything with this one.
+     */
+    PCapPacketImpl copyRecord() {
+        final Buffer payload = getPayload();
+        return new PCapPacketImpl(this.pcapGlobalHeader, this.pcapHeader.copy(), payload == null ? null
+                : payload.clone(), this.framerManager);
     }
 
     /**
@@ -102,7 +138,28 @@ public final class PCapPacketImpl extends AbstractPacket implements PCapPacket {
         this.pcapHeader.setCapturedLength(size);
         this.pcapHeader.setTotalLength(size);
         this.pcapHeader.write(out);
-        out.write(payload.getArray());
+        payload.writeTo(out);
+    }
+
+    /**
+     * Write the record header and the captured bytes exactly as they were
+     * read, which for a {@link PcapOutputStream} is done in a single
+     * (gathering) write.
+     */
+    @Override
+    protected boolean writeOriginal(final OutputStream out) throws IOException {
+        final Buffer payload = getPayload();
+        if (payload == null) {
+            return false;
+        }
+
+        if (out instanceof PcapOutputStream) {
+            ((PcapOutputStream) out).writeRecord(this.pcapHeader, payload);
+        } else {
+            this.pcapHeader.write(out);
+            payload.writeTo(out);
+        }
+        return true;
     }
 
     @Override
@@ -111,25 +168,30 @@ public final class PCapPacketImpl extends AbstractPacket implements PCapPacket {
     }
 
     @Override
-    public Packet getNextPacket() throws IOException, PacketParseException {
+    protected Packet frameNextPacket() throws IOException, PacketParseException {
+        if (this.views != null) {
+            final Packet packet = this.views.frameEthernet(this);
+            if (packet != null) {
+                return packet;
+            }
+        }
+
         final Buffer payload = getPayload();
         if (payload == null) {
             return null;
         }
 
-        switch(pcapGlobalHeader.getDataLinkType())
-        {
-            case 1:
-            default:
-                try {
-                    return ethernetFramer.frame(this, payload);
-                } catch (FramingException e) {
-                    throw new PacketParseException(16, "Ethernet parsing failed", e);
-                }
-            case 113:
-                return sllFramer.frame(this, payload);
-            case 101:
-                return ipFramer.frame(this, payload);
+        final FramerRegistry framers = FramerRegistry.getDefault();
+        Framer<? super PCapPacket, ? extends Packet> framer = framers.getLinkTypeFramer(pcapGlobalHeader.getDataLinkType());
+        if (framer == null) {
+            // anything we don't know about is assumed to be Ethernet
+            framer = framers.getLinkTypeFramer(1);
+        }
+
+        try {
+            return framer.frame(this, payload);
+        } catch (FramingException e) {
+            throw new PacketParseException(16, String.format("%s parsing failed", framer.getProtocol().getName()), e);
         }
     }
 
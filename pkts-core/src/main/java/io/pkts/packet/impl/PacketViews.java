@@ -0,0 +1,302 @@
+/**
+ *
+ */
+package io.pkts.packet.impl;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.filters.Prefilter;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.framer.EthernetFramer;
+import io.pkts.framer.Framer;
+import io.pkts.framer.FramerRegistry;
+import io.pkts.framer.FramingException;
+import io.pkts.framer.IPv4Framer;
+import io.pkts.framer.RTPFramer;
+import io.pkts.framer.UDPFramer;
+import io.pkts.packet.IPPacket;
+import io.pkts.packet.PCapPacket;
+import io.pkts.packet.Packet;
+import io.pkts.packet.UDPPacket;
+import io.pkts.packet.rtp.RtpPacket;
+import io.pkts.packet.rtp.impl.RtpPacketImpl;
+import io.pkts.protocol.Protocol;
+
+import java.io.IOException;
+
+/**
+ * Frames the records of a pcap into one set of packets that is re-used for
+ * every record, i.e., a flyweight per layer. Each layer is only framed when
+ * it is asked for, just like the regular packets, but rather than creating a
+ * new packet (and a handful of buffers) the view of that layer, and the
+ * buffers it is looking at, are simply re-pointed at the new record. Hence,
+ * once the views have been created, framing a record down to the RTP layer
+ * doesn't allocate anything.
+ *
+ * Only the most common layers have views: the pcap record, Ethernet II,
+ * IPv4, UDP and RTP. Anything else, such as IPv6, TCP or SIP, is framed as a
+ * regular packet but since its parent is a view it is only valid for as long
+ * as the view is.
+ *
+ * A view is only used where the {@link FramerRegistry} would have picked the
+ * built-in framer of that layer anyway. If a {@link io.pkts.framer.FramerProvider}
+ * has replaced it, that layer, and everything below it, is framed as usual.
+ *
+ * Which means that none of the packets can be held on to once the next
+ * record has been framed. Use {@link Packet#retain()} for the packets that
+ * have to outlive that.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public final class PacketViews {
+
+    private final PcapGlobalHeader globalHeader;
+    private final Prefilter prefilter;
+    private final boolean builtInEthernet;
+    private final boolean builtInIPv4;
+    private final boolean builtInUdp;
+
+    /**
+     * The buffers that are re-pointed for every record. Note that a buffer
+     * can only re-point a view of the same kind as itself, in which case a
+     * new buffer is returned and the packet of that layer is pointed to that
+     * one instead. Hence, always hold on to whatever was returned.
+     */
+    private Buffer recordBuffer;
+    private Buffer frameBuffer;
+    private Buffer macHeaders;
+    private Buffer macPayload;
+    private Buffer ipHeaders;
+    private Buffer ipPayload;
+    private Buffer udpHeaders;
+    private Buffer udpPayload;
+    private Buffer rtpHeaders;
+    private Buffer rtpPayload;
+
+    private PcapRecordHeader recordHeader;
+    private final PCapPacketImpl pcap;
+    private MACPacketImpl mac;
+    private IPv4PacketImpl ipv4;
+    private UdpPacketImpl udp;
+    private RtpPacketImpl rtp;
+
+    /**
+     *
+     * @param globalHeader
+     * @param prefilter
+     *            if not null, only the records accepted by the prefilter will
+     *            be framed.
+     */
+    public PacketViews(final PcapGlobalHeader globalHeader, final Prefilter prefilter) {
+        assert globalHeader != null;
+        this.globalHeader = globalHeader;
+        this.prefilter = prefilter;
+        final FramerRegistry framers = FramerRegistry.getDefault();
+        Framer<?, ?> linkTypeFramer = framers.getLinkTypeFramer(globalHeader.getDataLinkType());
+        if (linkTypeFramer == null) {
+            // same as the PCapPacketImpl, anything unknown is assumed to be Ethernet
+            linkTypeFramer = framers.getLinkTypeFramer(1);
+        }
+        this.builtInEthernet = isBuiltIn(linkTypeFramer, EthernetFramer.class);
+        this.builtInIPv4 = isBuiltIn(framers.getEtherTypeFramer(0x0800), IPv4Framer.class);
+        this.builtInUdp = isBuiltIn(framers.getIpProtocolFramer(17), UDPFramer.class);
+        this.pcap = new PCapPacketImpl(globalHeader, null, null);
+        this.pcap.views = this;
+    }
+
+    /**
+     * @return true if the framer is the one that comes with pkts and not
+     *         something a {@link io.pkts.framer.FramerProvider} has put in
+     *         its place.
+     */
+    static boolean isBuiltIn(final Framer<?, ?> framer, final Class<?> type) {
+        return framer != null && framer.getClass() == type;
+    }
+
+    /**
+     * Frame the next record off of the buffer into the view of the pcap
+     * record.
+     *
+     * @param buffer
+     * @return the view of the pcap record or null if there are no more
+     *         records.
+     * @throws IOException
+     */
+    public PCapPacket frame(final Buffer buffer) throws IOException {
+        while (true) {
+            final Buffer record;
+            try {
+                record = buffer.readBytes(PcapRecordHeader.SIZE, this.recordBuffer);
+            } catch (final IndexOutOfBoundsException e) {
+                return null;
+            }
+            if (record == null) {
+                return null;
+            }
+
+            if (record != this.recordBuffer) {
+                this.recordBuffer = record;
+                this.recordHeader = new PcapRecordHeader(this.globalHeader.getByteOrder(), record,
+                        this.globalHeader.timestampsInNs());
+            }
+
+            final int length = (int) this.recordHeader.getCapturedLength();
+            if (length < 0) {
+                throw new FramingException(String.format("Invalid PCAP captured length of %d", length),
+                        Protocol.PCAP);
+            }
+            final int total = (int) this.recordHeader.getTotalLength();
+            this.frameBuffer = buffer.readBytes(Math.min(length, total), this.frameBuffer);
+            if (this.prefilter == null || this.prefilter.accept(this.globalHeader.getDataLinkType(), this.frameBuffer)) {
+                this.pcap.reset(this.recordHeader, this.frameBuffer);
+                return this.pcap;
+            }
+        }
+    }
+
+    /**
+     * @return the view of the Ethernet frame or null if the record isn't
+     *         something we have a view for, in which case it should be framed
+     *         as usual.
+     */
+    Packet frameEthernet(final PCapPacketImpl parent) throws IOException {
+        final Buffer frame = this.frameBuffer;
+        if (parent != this.pcap || !this.builtInEthernet || frame.capacity() < 14) {
+            return null;
+        }
+
+        int length = 14;
+        EthernetFramer.EtherType etherType = EthernetFramer.getEtherTypeSafe(frame.getByte(12), frame.getByte(13));
+        if (etherType == EthernetFramer.EtherType.Dot1Q) {
+            if (frame.capacity() < 18) {
+                return null;
+            }
+            etherType = EthernetFramer.getEtherTypeSafe(frame.getByte(16), frame.getByte(17));
+            length = 18;
+        }
+        if (etherType == null) {
+            return null;
+        }
+
+        this.macHeaders = frame.slice(0, length, this.macHeaders);
+        this.macPayload = frame.slice(length, frame.capacity(), this.macPayload);
+        if (this.mac == null) {
+            this.mac = new MACPacketImpl(Protocol.ETHERNET_II, parent, this.macHeaders, this.macPayload);
+            this.mac.views = this;
+        } else {
+            this.mac.reset(this.macHeaders, this.macPayload);
+        }
+        return this.mac;
+    }
+
+    /**
+     * @return the view of the IPv4 packet or null if the frame doesn't carry
+     *         something we have a view for.
+     */
+    IPPacket frameIPv4(final MACPacketImpl parent) throws IOException {
+        if (!this.builtInIPv4 || parent != this.mac || parent.getProtocol() != Protocol.ETHERNET_II
+                || parent.getNextProtocol() != Protocol.IPv4) {
+            return null;
+        }
+
+        final Buffer payload = this.macPayload;
+        if (payload.capacity() < 20) {
+            return null;
+        }
+
+        // same as the IPv4Framer, including that only the first word of any
+        // options is considered to be part of the headers.
+        final int headerLength = payload.getUnsignedByte(0) & 0x0F;
+        int start = 20;
+        int options = 0;
+        if (headerLength > 5) {
+            if (payload.capacity() < 24) {
+                return null;
+            }
+            options = payload.getInt(20);
+            start = 24;
+        }
+
+        final int totalLength = payload.getUnsignedShort(2);
+        final int stop = Math.min(start + totalLength - headerLength * 4, payload.capacity());
+        if (stop < start) {
+            return null;
+        }
+
+        this.ipHeaders = payload.slice(0, 20, this.ipHeaders);
+        this.ipPayload = payload.slice(start, stop, this.ipPayload);
+        if (this.ipv4 == null) {
+            this.ipv4 = new IPv4PacketImpl(parent, this.ipHeaders, options, this.ipPayload);
+            this.ipv4.views = this;
+        } else {
+            this.ipv4.reset(this.ipHeaders, options, this.ipPayload);
+        }
+        return this.ipv4;
+    }
+
+    /**
+     * @return the view of the UDP packet or null if the IPv4 packet doesn't
+     *         carry UDP.
+     */
+    UDPPacket frameUdp(final IPv4PacketImpl parent) {
+        final Buffer payload = this.ipPayload;
+        if (!this.builtInUdp || parent != this.ipv4 || this.ipHeaders.getUnsignedByte(9) != 17
+                || payload.capacity() < 8) {
+            return null;
+        }
+
+        this.udpHeaders = payload.slice(0, 8, this.udpHeaders);
+        this.udpPayload = payload.slice(8, payload.capacity(), this.udpPayload);
+
+        // the UDPFramer doesn't give an empty UDP packet a payload at all
+        final Buffer udpPayload = this.udpPayload.isEmpty() ? null : this.udpPayload;
+        if (this.udp == null) {
+            this.udp = new UdpPacketImpl(parent, this.udpHeaders, udpPayload);
+            this.udp.views = this;
+        } else {
+            this.udp.reset(this.udpHeaders, udpPayload);
+        }
+        return this.udp;
+    }
+
+    /**
+     * Only to be called once the built-in {@link RTPFramer} has accepted the
+     * payload, i.e., it is up to the UDP packet to decide whether it is RTP.
+     *
+     * @return the view of the RTP packet or null if the UDP packet isn't the
+     *         view or the RTP headers run past the payload, in which case it
+     *         is framed as usual.
+     */
+    RtpPacket frameRtp(final TransportPacketImpl parent) throws IOException {
+        final Buffer payload = this.udpPayload;
+        if (parent != this.udp || payload.capacity() < 12) {
+            return null;
+        }
+
+        // same as the RTPFramer, the extension header is skipped but the
+        // contributing sources are left in the payload.
+        int start = 12;
+        if ((payload.getUnsignedByte(0) & 0x10) == 0x10) {
+            if (payload.capacity() < 16) {
+                return null;
+            }
+            start = 16 + payload.getUnsignedShort(14);
+            if (start > payload.capacity()) {
+                return null;
+            }
+        }
+
+        final Buffer headers = payload.slice(0, 12, this.rtpHeaders);
+        final Buffer rtpPayload = payload.slice(start, payload.capacity(), this.rtpPayload);
+
+        // The RTP packet has no setters so there is nothing to reset as long
+        // as it is looking at the same buffers as last time.
+        if (this.rtp == null || headers != this.rtpHeaders || rtpPayload != this.rtpPayload) {
+            this.rtpHeaders = headers;
+            this.rtpPayload = rtpPayload;
+            this.rtp = new RtpPacketImpl(parent, headers, rtpPayload);
+        }
+        return this.rtp;
+    }
+
+}
@@ -72,7 +72,7 @@ public final class SDPPacketImpl extends AbstractPacket implements SDPPacket {
     }
 
     @Override
-    public Packet getNextPacket() throws IOException {
+    protected Packet frameNextPacket() throws IOException {
         // No next packet for an SDP
         return null;
     }
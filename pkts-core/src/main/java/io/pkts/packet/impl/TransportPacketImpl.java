@@ -4,27 +4,26 @@
 package io.pkts.packet.impl;
 
 import io.pkts.buffer.Buffer;
+import io.pkts.framer.Framer;
+import io.pkts.framer.FramerManager;
+import io.pkts.framer.FramerRegistry;
 import io.pkts.framer.RTPFramer;
-import io.pkts.framer.SIPFramer;
 import io.pkts.packet.IPPacket;
 import io.pkts.packet.Packet;
 import io.pkts.packet.TransportPacket;
-import io.pkts.packet.rtp.RtpPacket;
 import io.pkts.protocol.Protocol;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author jonas@jonasborjesson.com
  */
 public abstract class TransportPacketImpl extends AbstractPacket implements TransportPacket {
 
-    private static final SIPFramer sipFramer = new SIPFramer();
-    private static final RTPFramer rtpFramer = new RTPFramer();
-
     private final IPPacket parent;
 
-    private final Buffer headers;
+    private Buffer headers;
 
     protected TransportPacketImpl(final IPPacket parent, final Protocol protocol, final Buffer headers,
                                   final Buffer payload) {
@@ -34,6 +33,14 @@ public abstract class TransportPacketImpl extends AbstractPacket implements Tran
         this.headers = headers;
     }
 
+    /**
+     * Point this view at the next record, see {@link PacketViews}.
+     */
+    void reset(final Buffer headers, final Buffer payload) {
+        this.headers = headers;
+        reset(payload);
+    }
+
     @Override
     public boolean isUDP() {
         return false;
@@ -57,6 +64,7 @@ public abstract class TransportPacketImpl extends AbstractPacket implements Tran
      */
     @Override
     public final void setSourcePort(final int port) {
+        markDirty();
         this.headers.setUnsignedShort(0, port);
     }
 
@@ -73,6 +81,7 @@ public abstract class TransportPacketImpl extends AbstractPacket implements Tran
      */
     @Override
     public final void setDestinationPort(final int port) {
+        markDirty();
         this.headers.setUnsignedShort(2, port);
     }
 
@@ -96,34 +105,95 @@ public abstract class TransportPacketImpl extends AbstractPacket implements Tran
     /*
      * (non-Javadoc)
      * 
-     * @see io.pkts.packet.Packet#getNextPacket()
+     * @see io.pkts.packet.impl.AbstractPacket#frameNextPacket()
      */
     @Override
-    public Packet getNextPacket() throws IOException {
+    protected Packet frameNextPacket() throws IOException {
+        // if we have been told what to expect on this flow, that framer is
+        // asked first. If it doesn't accept the payload, e.g. because the
+        // hint is stale, we guess just as if there was no hint.
+        final Protocol hint = getFramerManager().getFlowHint(this);
         final Buffer payload = getPayload();
         if (payload == null || payload.isEmpty()) {
             return null;
         }
 
-        if (sipFramer.accept(payload)) {
-            return sipFramer.frame(this, payload);
-        } else if (rtpFramer.accept(payload)) {
-            // RTP is tricky to parse so if we return
-            // null then it wasn't an RTP packet afterall
-            // so fall through...
-            final RtpPacket rtp = frameRtp(payload);
-            if (rtp != null) {
-                return rtp;
+        final FramerRegistry framers = FramerRegistry.getDefault();
+        if (hint != null) {
+            Packet packet = frame(framers.getApplicationFramer(hint), payload);
+            if (packet == null && hint == Protocol.RTP) {
+                // RTP and RTCP may share the same port, see RFC 5761
+                packet = frame(framers.getApplicationFramer(Protocol.RTCP), payload);
+            }
+            if (packet != null) {
+                return packet;
+            }
+        }
+
+        Packet packet = frame(framers.getPortFramer(getDestinationPort()), payload);
+        if (packet == null) {
+            packet = frame(framers.getPortFramer(getSourcePort()), payload);
+        }
+        if (packet != null) {
+            return packet;
+        }
+
+        final List<Framer<? super TransportPacket, ? extends Packet>> heuristics = framers.getHeuristicFramers();
+        for (int i = 0; i < heuristics.size(); ++i) {
+            packet = frame(heuristics.get(i), payload);
+            if (packet != null) {
+                return packet;
             }
         }
 
         return new UnknownApplicationPacketImpl(this, payload);
     }
 
-    private RtpPacket frameRtp(final Buffer payload) throws IOException {
+    /**
+     * @return the {@link FramerManager} of the pcap record this packet was
+     *         captured in.
+     */
+    private FramerManager getFramerManager() {
+        Packet packet = getParentPacket();
+        while (packet != null) {
+            if (packet instanceof PCapPacketImpl) {
+                return ((PCapPacketImpl) packet).getFramerManager();
+            }
+            packet = packet.getParentPacket();
+        }
+        return FramerManager.getInstance();
+    }
+
+    /**
+     * Frame the payload if the framer accepts it. Some protocols, such as
+     * RTP, are tricky to tell apart from the rest so a framer that runs out
+     * of bytes means that it wasn't that protocol after all and the next
+     * framer will get its chance.
+     *
+     * If this packet is a view and the framer is the built-in RTP framer, the
+     * RTP packet is a view too, see {@link PacketViews}.
+     *
+     * @return the packet or null if the framer is null or didn't accept the
+     *         payload.
+     */
+    private Packet frame(final Framer<? super TransportPacket, ? extends Packet> framer, final Buffer payload)
+            throws IOException {
+        if (framer == null || !framer.accept(payload)) {
+            return null;
+        }
+
+        if (this.views != null && PacketViews.isBuiltIn(framer, RTPFramer.class)) {
+            final Packet packet = this.views.frameRtp(this);
+            if (packet != null) {
+                return packet;
+            }
+        }
+
+        final int index = payload.getReaderIndex();
         try {
-            return rtpFramer.frame(this, payload);
+            return framer.frame(this, payload);
         } catch (final IndexOutOfBoundsException e) {
+            payload.setReaderIndex(index);
             return null;
         }
     }
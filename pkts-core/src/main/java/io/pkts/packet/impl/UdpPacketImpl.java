@@ -20,7 +20,7 @@ import java.io.OutputStream;
  */
 public final class UdpPacketImpl extends TransportPacketImpl implements UDPPacket {
 
-    private final Buffer headers;
+    private Buffer headers;
 
     /**
      * @param parent
@@ -31,6 +31,15 @@ public final class UdpPacketImpl extends TransportPacketImpl implements UDPPacke
         this.headers = headers;
     }
 
+    /**
+     * Point this view at the next record, see {@link PacketViews}.
+     */
+    @Override
+    void reset(final Buffer headers, final Buffer payload) {
+        this.headers = headers;
+        super.reset(headers, payload);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -50,6 +59,7 @@ public final class UdpPacketImpl extends TransportPacketImpl implements UDPPacke
     }
 
     public void setLength(final int length) {
+        markDirty();
         this.headers.setUnsignedShort(4, length);
     }
 
@@ -66,8 +76,8 @@ public final class UdpPacketImpl extends TransportPacketImpl implements UDPPacke
 
     @Override
     public final void write(final OutputStream out, final Buffer payload) throws IOException {
-        // Note: because the Buffers.wrap will copy the bytes we cannot change the length
-        // in this.headers after we have wrapped them. Simply wont work...
+        // Note: the length must be set before the checksum of the IP packet is
+        // re-calculated.
         final int size = this.headers.getReadableBytes() + (payload != null ? payload.getReadableBytes() : 0);
         this.setLength(size);
         final IPPacket parent = getParentPacket();
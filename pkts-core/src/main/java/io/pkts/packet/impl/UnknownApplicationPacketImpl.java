@@ -26,7 +26,7 @@ public class UnknownApplicationPacketImpl extends AbstractApplicationPacket {
     }
 
     @Override
-    public Packet getNextPacket() throws IOException {
+    protected Packet frameNextPacket() throws IOException {
         // We can't even figure out what this packet is so there is no
         // way we would be able to figure out if this unkown packet
         // has a body of some sort and what potentially that payload would
@@ -1,13 +1,209 @@
 /**
- * 
+ *
  */
 package io.pkts.packet.rtcp;
 
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.TransportPacket;
 import io.pkts.packet.impl.ApplicationPacket;
 
 /**
+ * A compound RTCP packet, which is one or more RTCP packets sent together in
+ * one UDP packet, see RFC 3550 section 6.1.
+ *
+ * The individual RTCP packets are addressed by their index within the compound
+ * packet and all the values are read straight out of the underlying buffer
+ * when asked for, which is why nothing is parsed up front.
+ *
  * @author jonas@jonasborjesson.com
  */
 public interface RtcpPacket extends ApplicationPacket {
 
+    /**
+     * Sender Report
+     */
+    int SR = 200;
+
+    /**
+     * Receiver Report
+     */
+    int RR = 201;
+
+    /**
+     * Source Description
+     */
+    int SDES = 202;
+
+    /**
+     * Goodbye
+     */
+    int BYE = 203;
+
+    /**
+     * Application-defined
+     */
+    int APP = 204;
+
+    /**
+     * Transport layer feedback, see RFC 4585
+     */
+    int RTPFB = 205;
+
+    /**
+     * Payload-specific feedback, see RFC 4585
+     */
+    int PSFB = 206;
+
+    /**
+     * Extended Report, see RFC 3611
+     */
+    int XR = 207;
+
+    /**
+     * The CNAME item of a source description.
+     */
+    int SDES_CNAME = 1;
+
+    /**
+     * @return the number of RTCP packets in this compound packet.
+     */
+    int getCount();
+
+    /**
+     * @param index
+     *            the index of the RTCP packet within the compound packet.
+     * @return the packet type, e.g. {@link #SR}
+     */
+    int getPacketType(int index);
+
+    /**
+     * The 5-bit count field of the RTCP packet, which is the number of
+     * reception report blocks of a SR and RR, the number of chunks of a SDES
+     * and the number of sources of a BYE.
+     *
+     * @param index
+     * @return
+     */
+    int getReportCount(int index);
+
+    /**
+     * @param index
+     * @return the length of the RTCP packet in bytes, including its header.
+     */
+    int getLength(int index);
+
+    /**
+     * The SSRC of whoever sent the RTCP packet, which for a SDES and BYE is the
+     * first source.
+     *
+     * @param index
+     * @return the SSRC or -1 if the packet doesn't have any.
+     */
+    long getSsrc(int index);
+
+    /**
+     * @param index
+     *            the index of a SR packet
+     * @return the NTP timestamp of the sender info, as the 64 bits of the wire
+     *         format.
+     */
+    long getNtpTimestamp(int index);
+
+    /**
+     * @param index
+     *            the index of a SR packet
+     * @return the RTP timestamp of the sender info.
+     */
+    long getRtpTimestamp(int index);
+
+    /**
+     * @param index
+     *            the index of a SR packet
+     * @return the number of RTP packets the sender has sent.
+     */
+    long getSenderPacketCount(int index);
+
+    /**
+     * @param index
+     *            the index of a SR packet
+     * @return the number of payload octets the sender has sent.
+     */
+    long getSenderOctetCount(int index);
+
+    /**
+     * @param index
+     *            the index of a SR or RR packet.
+     * @param block
+     *            the index of the reception report block, see
+     *            {@link #getReportCount(int)}
+     * @return the SSRC of the source the report block is about.
+     */
+    long getReportSsrc(int index, int block);
+
+    /**
+     * @return the fraction of the RTP packets lost since the previous report,
+     *         as a fixed point number with the binary point at the left edge,
+     *         i.e., 0 - 255.
+     */
+    int getFractionLost(int index, int block);
+
+    /**
+     * @return the total number of RTP packets lost, which is a signed 24-bit
+     *         number since duplicates may make it negative.
+     */
+    int getCumulativeLost(int index, int block);
+
+    long getExtendedHighestSequenceNumber(int index, int block);
+
+    /**
+     * @return the interarrival jitter, in timestamp units.
+     */
+    long getJitter(int index, int block);
+
+    /**
+     * @return the middle 32 bits of the NTP timestamp of the last SR received
+     *         from the source.
+     */
+    long getLastSr(int index, int block);
+
+    /**
+     * @return the delay since the last SR was received from the source, in
+     *         units of 1/65536 seconds.
+     */
+    long getDelaySinceLastSr(int index, int block);
+
+    /**
+     * Get an item out of the first chunk of a SDES packet.
+     *
+     * @param index
+     *            the index of a SDES packet
+     * @param type
+     *            the type of the item, e.g. {@link #SDES_CNAME}
+     * @return the value of the item or null if there is none.
+     */
+    Buffer getSdesItem(int index, int type);
+
+    /**
+     * @param index
+     *            the index of a BYE packet
+     * @param source
+     *            the index of the source, see {@link #getReportCount(int)}
+     * @return the SSRC of the source that is leaving.
+     */
+    long getByeSsrc(int index, int source);
+
+    /**
+     * Get a report block out of an extended report.
+     *
+     * @param index
+     *            the index of a XR packet.
+     * @param blockType
+     *            the type of the report block, e.g. 7 for VoIP metrics.
+     * @return the first report block of that type, including its header, or
+     *         null if there is none.
+     */
+    Buffer getXrBlock(int index, int blockType);
+
+    @Override
+    TransportPacket getParentPacket();
 }
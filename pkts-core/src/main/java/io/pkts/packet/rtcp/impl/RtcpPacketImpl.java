@@ -1,5 +1,5 @@
 /**
- * 
+ *
  */
 package io.pkts.packet.rtcp.impl;
 
@@ -14,34 +14,212 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 /**
+ * All the getters read straight out of the buffer holding the compound packet
+ * so the only thing we keep track of is where each RTCP packet starts.
+ *
  * @author jonas@jonasborjesson.com
  */
 public class RtcpPacketImpl extends AbstractPacket implements RtcpPacket {
 
+    /**
+     * The size of the sender info of a SR.
+     */
+    private static final int SENDER_INFO = 20;
+
+    /**
+     * The size of a reception report block.
+     */
+    private static final int REPORT_BLOCK = 24;
+
     private final TransportPacket parent;
 
-    public RtcpPacketImpl(final TransportPacket parent, final Buffer headers, final Buffer payload) {
-        super(Protocol.RTCP, parent, payload);
+    /**
+     * The compound packet.
+     */
+    private final Buffer rtcp;
+
+    /**
+     * Where in the compound packet each RTCP packet starts, plus the end of the
+     * last one.
+     */
+    private final int[] offsets;
+
+    /**
+     *
+     * @param parent
+     * @param rtcp
+     *            the compound packet.
+     * @param offsets
+     *            where in the compound packet each RTCP packet starts, plus
+     *            the end of the last one.
+     */
+    public RtcpPacketImpl(final TransportPacket parent, final Buffer rtcp, final int[] offsets) {
+        super(Protocol.RTCP, parent, rtcp);
         this.parent = parent;
-        // this.headers = headers;
-        // this.payload = payload;
+        this.rtcp = rtcp;
+        this.offsets = offsets;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void write(final OutputStream out, final Buffer payload) throws IOException {
-        // TODO Auto-generated method stub
+    public int getCount() {
+        return this.offsets.length - 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPacketType(final int index) {
+        return this.rtcp.getUnsignedByte(start(index) + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getReportCount(final int index) {
+        return this.rtcp.getUnsignedByte(start(index)) & 0x1F;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLength(final int index) {
+        return this.offsets[index + 1] - start(index);
+    }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSsrc(final int index) {
+        if (getLength(index) < 8) {
+            return -1;
+        }
+        return getUnsignedInt(start(index) + 4);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public Packet getNextPacket() throws IOException {
-        // TODO Auto-generated method stub
+    public long getNtpTimestamp(final int index) {
+        final int start = senderInfo(index);
+        return getUnsignedInt(start) << 32 | getUnsignedInt(start + 4);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRtpTimestamp(final int index) {
+        return getUnsignedInt(senderInfo(index) + 8);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSenderPacketCount(final int index) {
+        return getUnsignedInt(senderInfo(index) + 12);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSenderOctetCount(final int index) {
+        return getUnsignedInt(senderInfo(index) + 16);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getReportSsrc(final int index, final int block) {
+        return getUnsignedInt(reportBlock(index, block));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getFractionLost(final int index, final int block) {
+        return this.rtcp.getUnsignedByte(reportBlock(index, block) + 4);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCumulativeLost(final int index, final int block) {
+        // sign extend the 24 bits
+        return this.rtcp.getInt(reportBlock(index, block) + 4) << 8 >> 8;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getExtendedHighestSequenceNumber(final int index, final int block) {
+        return getUnsignedInt(reportBlock(index, block) + 8);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getJitter(final int index, final int block) {
+        return getUnsignedInt(reportBlock(index, block) + 12);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLastSr(final int index, final int block) {
+        return getUnsignedInt(reportBlock(index, block) + 16);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDelaySinceLastSr(final int index, final int block) {
+        return getUnsignedInt(reportBlock(index, block) + 20);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer getSdesItem(final int index, final int type) {
+        ensureType(index, SDES);
+        if (getReportCount(index) == 0) {
+            return null;
+        }
+
+        // the items of the first chunk follow its SSRC and end with a zero
+        final int end = this.offsets[index + 1];
+        int item = start(index) + 8;
+        while (item + 2 <= end) {
+            final int itemType = this.rtcp.getUnsignedByte(item);
+            if (itemType == 0) {
+                return null;
+            }
+            final int length = this.rtcp.getUnsignedByte(item + 1);
+            if (item + 2 + length > end) {
+                return null;
+            }
+            if (itemType == type) {
+                return this.rtcp.slice(item + 2, item + 2 + length);
+            }
+            item += 2 + length;
+        }
         return null;
     }
 
@@ -49,11 +227,131 @@ public class RtcpPacketImpl extends AbstractPacket implements RtcpPacket {
      * {@inheritDoc}
      */
     @Override
-    public RtcpPacket clone() {
-        // TODO Auto-generated method stub
+    public long getByeSsrc(final int index, final int source) {
+        ensureType(index, BYE);
+        if (source < 0 || source >= getReportCount(index)) {
+            throw new IndexOutOfBoundsException("No source " + source + " in the BYE");
+        }
+        ensureLength(index, 8 + source * 4);
+        return getUnsignedInt(start(index) + 4 + source * 4);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer getXrBlock(final int index, final int blockType) {
+        ensureType(index, XR);
+        final int end = this.offsets[index + 1];
+        int block = start(index) + 8;
+        while (block + 4 <= end) {
+            final int length = 4 + this.rtcp.getUnsignedShort(block + 2) * 4;
+            if (block + length > end) {
+                return null;
+            }
+            if (this.rtcp.getUnsignedByte(block) == blockType) {
+                return this.rtcp.slice(block, block + length);
+            }
+            block += length;
+        }
+        return null;
+    }
+
+    private int start(final int index) {
+        if (index < 0 || index >= getCount()) {
+            throw new IndexOutOfBoundsException("No RTCP packet at index " + index);
+        }
+        return this.offsets[index];
+    }
+
+    private void ensureType(final int index, final int type) {
+        if (getPacketType(index) != type) {
+            throw new IllegalArgumentException("The RTCP packet at index " + index + " is not of type " + type);
+        }
+    }
+
+    /**
+     * The minimum length of an RTCP packet of the given type with that many
+     * report blocks, or sources for a BYE, which is what the framer checks
+     * before accepting a compound packet.
+     *
+     * @param type
+     * @param count
+     *            the report count of the header.
+     * @return the length in bytes.
+     */
+    public static int minLength(final int type, final int count) {
+        switch (type) {
+        case SR:
+            return 8 + SENDER_INFO + count * REPORT_BLOCK;
+        case RR:
+            return 8 + count * REPORT_BLOCK;
+        case BYE:
+            return 4 + count * 4;
+        default:
+            return 4;
+        }
+    }
+
+    private int senderInfo(final int index) {
+        ensureType(index, SR);
+        ensureLength(index, 8 + SENDER_INFO);
+        return start(index) + 8;
+    }
+
+    private int reportBlock(final int index, final int block) {
+        final int type = getPacketType(index);
+        if (type != SR && type != RR) {
+            throw new IllegalArgumentException("The RTCP packet at index " + index + " is not a SR nor RR");
+        }
+        if (block < 0 || block >= getReportCount(index)) {
+            throw new IndexOutOfBoundsException("No report block " + block + " in the RTCP packet");
+        }
+        final int offset = 8 + (type == SR ? SENDER_INFO : 0) + block * REPORT_BLOCK;
+        ensureLength(index, offset + REPORT_BLOCK);
+        return start(index) + offset;
+    }
+
+    /**
+     * Make sure that the RTCP packet is at least this long, which is only
+     * not the case if it wasn't checked by the framer.
+     */
+    private void ensureLength(final int index, final int length) {
+        if (getLength(index) < length) {
+            throw new IndexOutOfBoundsException("The RTCP packet at index " + index + " is too short, "
+                    + getLength(index) + " bytes, to hold " + length + " bytes");
+        }
+    }
+
+    private long getUnsignedInt(final int index) {
+        return this.rtcp.getInt(index) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final OutputStream out, final Buffer payload) throws IOException {
+        this.parent.write(out, payload);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Packet frameNextPacket() throws IOException {
+        // no more packets for RTCP
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RtcpPacket clone() {
+        return new RtcpPacketImpl(this.parent.clone(), this.rtcp.clone(), this.offsets);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -62,4 +360,18 @@ public class RtcpPacketImpl extends AbstractPacket implements RtcpPacket {
         return this.parent.getArrivalTime();
     }
 
+    @Override
+    public TransportPacket getParentPacket() {
+        return (TransportPacket) super.getParentPacket();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("RTCP");
+        for (int i = 0; i < getCount(); ++i) {
+            sb.append(i == 0 ? " " : ", ").append(getPacketType(i)).append(" ssrc=").append(getSsrc(i));
+        }
+        return sb.toString();
+    }
+
 }
@@ -89,8 +89,7 @@ public final class RtpPacketImpl extends AbstractPacket implements RtpPacket {
      */
     @Override
     public int getSeqNumber() throws IOException {
-        // TODO: this is not quite right...
-        return this.headers.getShort(2);
+        return this.headers.getUnsignedShort(2);
     }
 
     /**
@@ -175,7 +174,7 @@ public final class RtpPacketImpl extends AbstractPacket implements RtpPacket {
     }
 
     @Override
-    public Packet getNextPacket() throws IOException {
+    protected Packet frameNextPacket() throws IOException {
         // no more packets for RTP
         return null;
     }
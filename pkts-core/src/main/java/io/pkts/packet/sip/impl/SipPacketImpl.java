@@ -461,10 +461,10 @@ public abstract class SipPacketImpl extends AbstractPacket implements SipPacket
     /*
      * (non-Javadoc)
      * 
-     * @see io.pkts.packet.Packet#getNextPacket()
+     * @see io.pkts.packet.impl.AbstractPacket#frameNextPacket()
      */
     @Override
-    public Packet getNextPacket() throws IOException {
+    protected Packet frameNextPacket() throws IOException {
         final Object content = parseSipContent();
         if (content instanceof SDP) {
             return new SDPPacketImpl(this, (SDP)content);
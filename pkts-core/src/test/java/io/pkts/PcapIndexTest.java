@@ -0,0 +1,195 @@
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import io.pkts.packet.PCapPacket;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapIndexTest extends PktsTestBase {
+
+    private File file;
+
+    /**
+     * The arrival time of every packet in sipp.pcap
+     */
+    private List<Long> arrivalTimes;
+
+    private Path tmp;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.file = new File(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        this.arrivalTimes = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(this.file);
+        pcap.loop(packet -> this.arrivalTimes.add(packet.getArrivalTime()));
+        pcap.close();
+        this.tmp = Files.createTempDirectory("pkts");
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        for (final File f : this.tmp.toFile().listFiles()) {
+            f.delete();
+        }
+        Files.delete(this.tmp);
+        super.tearDown();
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        final Pcap pcap = Pcap.openStream(this.file);
+        final PcapIndex index = pcap.createIndex();
+        assertThat(index.size(), is(30));
+        assertThat(index.getOffset(0), is(24L));
+        assertThat(index.getIndexedLength(), is(this.file.length()));
+        for (int i = 0; i < index.size(); ++i) {
+            assertThat(index.getArrivalTime(i), is(this.arrivalTimes.get(i)));
+        }
+
+        final PCapPacket packet = pcap.getPacket(index, 17);
+        assertThat(packet.getArrivalTime(), is(this.arrivalTimes.get(17)));
+        assertThat(packet.getCapturedLength(), is((long) index.getCapturedLength(17)));
+        assertThat(packet.hasProtocol(Protocol.SIP), is(true));
+        pcap.close();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetPacketOutOfBounds() throws Exception {
+        final Pcap pcap = Pcap.openStream(this.file);
+        pcap.getPacket(pcap.createIndex(), 30);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCannotIndexStream() throws Exception {
+        Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap")).createIndex();
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+        final Pcap pcap = Pcap.openStream(this.file);
+        final PcapIndex index = pcap.createIndex();
+        pcap.seek(index, this.arrivalTimes.get(20));
+        final List<Long> times = new ArrayList<>();
+        pcap.loop(packet -> times.add(packet.getArrivalTime()));
+        assertThat(times, is(this.arrivalTimes.subList(20, 30)));
+        pcap.close();
+    }
+
+    @Test
+    public void testLoopTimeRange() throws Exception {
+        final Pcap pcap = Pcap.openStream(this.file);
+        final PcapIndex index = pcap.createIndex();
+        final List<Long> times = new ArrayList<>();
+        pcap.loop(index, this.arrivalTimes.get(5), this.arrivalTimes.get(12), packet -> times.add(packet
+                .getArrivalTime()));
+        assertThat(times, is(this.arrivalTimes.subList(5, 12)));
+
+        times.clear();
+        pcap.loop(index, 0, this.arrivalTimes.get(0), packet -> times.add(packet.getArrivalTime()));
+        assertThat(times.isEmpty(), is(true));
+        pcap.close();
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final Pcap pcap = Pcap.openStream(this.file);
+        final PcapIndex index = pcap.createIndex();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+
+        final PcapIndex copy = PcapIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(copy.size(), is(index.size()));
+        assertThat(copy.getIndexedLength(), is(index.getIndexedLength()));
+        for (int i = 0; i < index.size(); ++i) {
+            assertThat(copy.getOffset(i), is(index.getOffset(i)));
+            assertThat(copy.getArrivalTime(i), is(index.getArrivalTime(i)));
+            assertThat(copy.getCapturedLength(i), is(index.getCapturedLength(i)));
+        }
+        pcap.close();
+    }
+
+    /**
+     * Simulate a capture that is still being written to and make sure that we
+     * only index the new records as the file grows.
+     */
+    @Test
+    public void testIncrementalSidecar() throws Exception {
+        final byte[] data = Files.readAllBytes(this.file.toPath());
+        final Path capture = this.tmp.resolve("growing.pcap");
+        final Path sidecar = this.tmp.resolve("growing.pcap.idx");
+
+        // cut the file in the middle of record 10
+        final Pcap full = Pcap.openStream(this.file);
+        final PcapIndex fullIndex = full.createIndex();
+        full.close();
+        final int cut = (int) fullIndex.getOffset(10) + 20;
+        Files.write(capture, Arrays.copyOf(data, cut));
+
+        Pcap pcap = Pcap.openStream(capture);
+        PcapIndex index = PcapIndex.open(pcap, sidecar);
+        pcap.close();
+        assertThat(index.size(), is(10));
+        assertThat(index.getIndexedLength(), is(fullIndex.getOffset(10)));
+        assertThat(Files.exists(sidecar), is(true));
+
+        Files.write(capture, data);
+        pcap = Pcap.openStream(capture);
+        index = PcapIndex.open(pcap, sidecar);
+        assertThat(index.size(), is(30));
+        assertThat(index.update(pcap), is(0));
+        assertThat(pcap.getPacket(index, 29).getArrivalTime(), is(this.arrivalTimes.get(29)));
+        pcap.close();
+
+        // and the saved index should now cover the entire file
+        pcap = Pcap.openStream(capture);
+        try (InputStream in = Files.newInputStream(sidecar)) {
+            index = PcapIndex.read(in);
+        }
+        assertThat(index.size(), is(30));
+        assertThat(index.update(pcap), is(0));
+        pcap.close();
+    }
+
+    /**
+     * A sidecar that was cut short, e.g. because we crashed while saving it,
+     * is simply rebuilt.
+     */
+    @Test
+    public void testTruncatedSidecar() throws Exception {
+        final Path sidecar = this.tmp.resolve("sipp.pcap.idx");
+        Pcap pcap = Pcap.openStream(this.file);
+        PcapIndex.open(pcap, sidecar);
+        pcap.close();
+
+        final byte[] saved = Files.readAllBytes(sidecar);
+        Files.write(sidecar, Arrays.copyOf(saved, saved.length - 10));
+
+        pcap = Pcap.openStream(this.file);
+        final PcapIndex index = PcapIndex.open(pcap, sidecar);
+        assertThat(index.size(), is(30));
+        assertThat(pcap.getPacket(index, 29).getArrivalTime(), is(this.arrivalTimes.get(29)));
+        pcap.close();
+        assertThat(Files.readAllBytes(sidecar).length, is(saved.length));
+    }
+
+}
@@ -4,11 +4,21 @@
 package io.pkts;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
 
+import io.pkts.packet.UDPPacket;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -62,4 +72,104 @@ public class PcapOutputStreamTest extends PktsTestBase {
         assertThat(calculator.cancel, is(0)); // i guess un-necessary check...
     }
 
+    /**
+     * Packets that haven't been modified are written out exactly as they were
+     * read, no matter which layer of the packet is written. padded_udp.pcap
+     * contains ethernet frames with padding, which would be lost if the frame
+     * was re-assembled layer by layer.
+     */
+    @Test
+    public void testPassThrough() throws Exception {
+        for (final String resource : new String[] { "sipp.pcap", "padded_udp.pcap" }) {
+            final File original = new File(PktsTestBase.class.getResource(resource).toURI());
+            final byte[] expected = Files.readAllBytes(original.toPath());
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            copy(original, out);
+            assertArrayEquals(expected, out.toByteArray());
+
+            // a file is written through its channel
+            final File copy = File.createTempFile("passthrough", ".pcap");
+            try {
+                try (final FileOutputStream fileOut = new FileOutputStream(copy)) {
+                    copy(original, fileOut);
+                }
+                assertArrayEquals(expected, Files.readAllBytes(copy.toPath()));
+            } finally {
+                copy.delete();
+            }
+        }
+    }
+
+    private static void copy(final File original, final OutputStream out) throws Exception {
+        final Pcap pcap = Pcap.openStream(original);
+        final PcapOutputStream pcapStream = pcap.createOutputStream(out);
+        pcap.loop(packet -> {
+            pcapStream.write(packet.getPacket(Protocol.UDP));
+            return true;
+        });
+        pcap.close();
+        pcapStream.flush();
+    }
+
+    /**
+     * A modified packet must be re-assembled so that the modification makes
+     * it into the output.
+     */
+    @Test
+    public void testWriteModified() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PcapOutputStream pcapStream = pcap.createOutputStream(out);
+        pcap.loop(packet -> {
+            final UDPPacket udp = (UDPPacket) packet.getPacket(Protocol.UDP);
+            if (udp.getDestinationPort() == 5060) {
+                udp.setDestinationPort(5070);
+            }
+            pcapStream.write(udp);
+            return true;
+        });
+        pcap.close();
+
+        final List<Integer> ports = new ArrayList<>();
+        final Pcap modified = Pcap.openStream(new ByteArrayInputStream(out.toByteArray()));
+        modified.loop(packet -> {
+            final UDPPacket udp = (UDPPacket) packet.getPacket(Protocol.UDP);
+            ports.add(udp.getDestinationPort());
+            return true;
+        });
+        assertThat(ports.size(), is(30));
+        assertThat(ports.contains(5060), is(false));
+        assertThat(ports.stream().filter(port -> port == 5070).count(), is(15L));
+    }
+
+    /**
+     * A modified frame whose application layers have been framed must still
+     * be written, even though layers such as RTP cannot write themselves.
+     */
+    @Test
+    public void testWriteModifiedAfterFramingApplication() throws Exception {
+        final File original = new File(PktsTestBase.class.getResource("sip_rtp.pcap").toURI());
+        final Pcap pcap = Pcap.openStream(original);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PcapOutputStream pcapStream = pcap.createOutputStream(out);
+        final int[] framed = new int[2];
+        pcap.loop(packet -> {
+            if (packet.hasProtocol(Protocol.SIP)) {
+                ++framed[0];
+            } else if (packet.hasProtocol(Protocol.RTP)) {
+                ++framed[1];
+            }
+            final UDPPacket udp = (UDPPacket) packet.getPacket(Protocol.UDP);
+            udp.setSourcePort(udp.getSourcePort());
+            pcapStream.write(packet);
+            return true;
+        });
+        pcap.close();
+        pcapStream.flush();
+        assertThat(framed[0] > 0, is(true));
+        assertThat(framed[1] > 0, is(true));
+        assertArrayEquals(Files.readAllBytes(original.toPath()), out.toByteArray());
+    }
+
 }
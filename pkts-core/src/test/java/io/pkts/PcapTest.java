@@ -4,12 +4,26 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.IPv4Packet;
 import io.pkts.packet.Packet;
+import io.pkts.packet.TransportPacket;
+import io.pkts.packet.rtp.RtpPacket;
 import io.pkts.packet.sip.SipPacket;
 import io.pkts.protocol.Protocol;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
 import org.junit.Before;
@@ -40,6 +54,49 @@ public class PcapTest extends PktsTestBase {
         assertThat(handler.count, is(30));
     }
 
+    @Test
+    public void testLoopReadAhead() throws Exception {
+        final InputStream stream = PktsTestBase.class.getResourceAsStream("sipp.pcap");
+        final Pcap pcap = Pcap.openStream(stream, true);
+        final FrameHandlerImpl handler = new FrameHandlerImpl();
+        pcap.loop(handler);
+        pcap.close();
+        assertThat(handler.count, is(30));
+    }
+
+    /**
+     * A gzip compressed capture, consisting of many members, must be detected
+     * both when opened as a stream and as a file.
+     */
+    @Test
+    public void testLoopGzip() throws Exception {
+        final byte[] pcap = Files.readAllBytes(new File(PktsTestBase.class.getResource("sipp.pcap").toURI()).toPath());
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for (int i = 0; i < pcap.length; i += 1000) {
+            final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(pcap, i, Math.min(1000, pcap.length - i));
+            gzip.finish();
+        }
+
+        final FrameHandlerImpl handler = new FrameHandlerImpl();
+        final Pcap stream = Pcap.openStream(new ByteArrayInputStream(compressed.toByteArray()));
+        stream.loop(handler);
+        stream.close();
+        assertThat(handler.count, is(30));
+
+        final File file = File.createTempFile("sipp", ".pcap.gz");
+        try {
+            Files.write(file.toPath(), compressed.toByteArray());
+            final FrameHandlerImpl fileHandler = new FrameHandlerImpl();
+            final Pcap fromFile = Pcap.openStream(file);
+            fromFile.loop(fileHandler);
+            fromFile.close();
+            assertThat(fileHandler.count, is(30));
+        } finally {
+            file.delete();
+        }
+    }
+
     @Test
     public void testWritesPackets() throws Exception {
         final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
@@ -65,6 +122,293 @@ public class PcapTest extends PktsTestBase {
         assertArrayEquals(expectedStream.toByteArray(), outputStream.toByteArray());
     }
 
+    /**
+     * Opening a file will memory map it instead of reading it through an
+     * {@link InputStream} so make sure we get the same result.
+     */
+    @Test
+    public void testLoopMappedFile() throws Exception {
+        final Pcap pcap = Pcap.openStream(new File(PktsTestBase.class.getResource("sipp.pcap").toURI()));
+        final FrameHandlerImpl handler = new FrameHandlerImpl();
+        pcap.loop(handler);
+        pcap.close();
+        assertThat(handler.count, is(30));
+    }
+
+    @Test
+    public void testWritesPacketsMappedFile() throws Exception {
+        final File file = new File(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        final Pcap pcap = Pcap.openStream(file.toPath());
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final PcapOutputStream pcapOutputStream = pcap.createOutputStream(outputStream);
+        pcap.loop(packet -> {
+            pcapOutputStream.write(packet.getPacket(Protocol.IPv4));
+            return true;
+        });
+        pcap.close();
+
+        assertArrayEquals(Files.readAllBytes(file.toPath()), outputStream.toByteArray());
+    }
+
+    /**
+     * The file is mapped read-only but we must still be able to modify the
+     * packets, which of course must not end up in the file.
+     */
+    @Test
+    public void testModifyPacketsMappedFile() throws Exception {
+        final File file = new File(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        final byte[] original = Files.readAllBytes(file.toPath());
+        final Pcap pcap = Pcap.openStream(file);
+        pcap.loop(packet -> {
+            final IPv4Packet ip = (IPv4Packet) packet.getPacket(Protocol.IPv4);
+            ip.setSourceIP("10.36.10.1");
+            assertThat(ip.getSourceIP(), is("10.36.10.1"));
+            return true;
+        });
+        pcap.close();
+
+        assertArrayEquals(original, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Split the file into many small chunks and make sure we still get all
+     * the packets, in the same order as the regular loop.
+     */
+    @Test
+    public void testLoopParallel() throws Exception {
+        final File file = new File(PktsTestBase.class.getResource("sipp.pcap").toURI());
+        final List<Long> expected = new ArrayList<>();
+        final Pcap sequential = Pcap.openStream(file);
+        sequential.loop(packet -> expected.add(packet.getArrivalTime()));
+        sequential.close();
+
+        final Pcap pcap = Pcap.openStream(file);
+        pcap.parallelChunkSize = 1000;
+        final List<Long> actual = new ArrayList<>();
+        pcap.loopParallel(4, packet -> {
+            assertThat(packet.hasProtocol(Protocol.SIP), is(true));
+            return actual.add(packet.getArrivalTime());
+        });
+        pcap.close();
+        assertThat(actual, is(expected));
+    }
+
+    /**
+     * With a single thread, the chunks are still framed one after the other
+     * while the callback is busy with the one before.
+     */
+    @Test
+    public void testLoopParallelSingleThread() throws Exception {
+        final Pcap pcap = Pcap.openStream(new File(PktsTestBase.class.getResource("sipp.pcap").toURI()));
+        pcap.parallelChunkSize = 1000;
+        final AtomicInteger count = new AtomicInteger();
+        pcap.loopParallel(1, packet -> count.incrementAndGet() > 0);
+        pcap.close();
+        assertThat(count.get(), is(30));
+    }
+
+    @Test
+    public void testLoopParallelStop() throws Exception {
+        final Pcap pcap = Pcap.openStream(new File(PktsTestBase.class.getResource("sipp.pcap").toURI()));
+        pcap.parallelChunkSize = 1000;
+        final AtomicInteger count = new AtomicInteger();
+        pcap.loopParallel(4, packet -> count.incrementAndGet() < 7);
+        pcap.close();
+        assertThat(count.get(), is(7));
+    }
+
+    @Test
+    public void testLoopParallelWithFilter() throws Exception {
+        final Pcap pcap = Pcap.openStream(new File(PktsTestBase.class.getResource("sipp.pcap").toURI()));
+        pcap.parallelChunkSize = 1000;
+        pcap.setFilter("sip.Call-ID == 1-16732@127.0.1.1");
+        final AtomicInteger count = new AtomicInteger();
+        pcap.loopParallel(4, packet -> count.incrementAndGet() > 0);
+        pcap.close();
+        assertThat(count.get(), is(6));
+    }
+
+    @Test
+    public void testLoopParallelPerChunk() throws Exception {
+        final Pcap pcap = Pcap.openStream(new File(PktsTestBase.class.getResource("sipp.pcap").toURI()));
+        pcap.parallelChunkSize = 1000;
+        final FrameHandlerImpl handler = pcap.loopParallel(4, FrameHandlerImpl::new, (a, b) -> {
+            a.count += b.count;
+            return a;
+        });
+        pcap.close();
+        assertThat(handler.count, is(30));
+    }
+
+    /**
+     * A stream cannot be split so we should just end up with a regular loop.
+     */
+    @Test
+    public void testLoopParallelStream() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final FrameHandlerImpl handler = pcap.loopParallel(4, FrameHandlerImpl::new, (a, b) -> {
+            fail("There should only be a single handler");
+            return a;
+        });
+        assertThat(handler.count, is(30));
+    }
+
+    /**
+     * The views must look exactly like the regular packets, whether the
+     * capture is streamed or mapped.
+     */
+    @Test
+    public void testLoopViews() throws Exception {
+        for (final String name : new String[] { "sipp.pcap", "sip_rtp.pcap", "padded_udp.pcap", "sipp_sll.pcap" }) {
+            final File file = new File(PktsTestBase.class.getResource(name).toURI());
+            final List<String> expected = new ArrayList<>();
+            Pcap pcap = Pcap.openStream(file);
+            pcap.loop(packet -> expected.add(describe(packet)));
+            pcap.close();
+
+            final List<String> mapped = new ArrayList<>();
+            pcap = Pcap.openStream(file);
+            pcap.loopViews(packet -> mapped.add(describe(packet)));
+            pcap.close();
+            assertThat(mapped, is(expected));
+
+            final List<String> streamed = new ArrayList<>();
+            pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream(name));
+            pcap.loopViews(packet -> streamed.add(describe(packet)));
+            pcap.close();
+            assertThat(streamed, is(expected));
+        }
+    }
+
+    /**
+     * Every layer, down to RTP, should be the very same object for every
+     * record.
+     */
+    @Test
+    public void testLoopViewsReusesPackets() throws Exception {
+        final Pcap pcap = Pcap.openStream(new File(PktsTestBase.class.getResource("sip_rtp.pcap").toURI()));
+        final List<Packet> frames = new ArrayList<>();
+        final List<Packet> rtp = new ArrayList<>();
+        pcap.loopViews(packet -> {
+            if (frames.isEmpty() || frames.get(0) != packet) {
+                frames.add(packet);
+            }
+            final Packet p = packet.getPacket(Protocol.RTP);
+            if (p != null && (rtp.isEmpty() || rtp.get(0) != p)) {
+                rtp.add(p);
+            }
+            return true;
+        });
+        pcap.close();
+        assertThat(frames.size(), is(1));
+        assertThat(rtp.size(), is(1));
+    }
+
+    /**
+     * A retained view must still describe its own record once the loop is
+     * done while a regular packet doesn't have to be copied at all.
+     */
+    @Test
+    public void testRetain() throws Exception {
+        final File file = new File(PktsTestBase.class.getResource("sip_rtp.pcap").toURI());
+        final List<String> expected = new ArrayList<>();
+        Pcap pcap = Pcap.openStream(file);
+        pcap.loop(packet -> {
+            assertThat(packet.retain() == packet, is(true));
+            final Packet udp = packet.getPacket(Protocol.UDP);
+            assertThat(udp.retain() == udp, is(true));
+            return expected.add(describe(udp));
+        });
+        pcap.close();
+
+        final List<Packet> retained = new ArrayList<>();
+        pcap = Pcap.openStream(file);
+        pcap.loopViews(packet -> {
+            final Packet udp = packet.getPacket(Protocol.UDP);
+            final Packet copy = udp.retain();
+            assertThat(copy != udp, is(true));
+            assertThat(copy.getProtocol(), is(Protocol.UDP));
+            return retained.add(copy);
+        });
+        pcap.close();
+
+        final List<String> actual = new ArrayList<>();
+        for (final Packet packet : retained) {
+            actual.add(describe(packet));
+        }
+        assertThat(actual, is(expected));
+    }
+
+    /**
+     * Each layer must only be framed once so asking for it again, no matter
+     * how, must give back the very same packet.
+     */
+    @Test
+    public void testNextPacketIsFramedOnce() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final AtomicInteger count = new AtomicInteger();
+        pcap.loop(packet -> {
+            final List<Packet> stack = packet.getProtocolStack();
+            // the INVITE and the 200 OK will also have an SDP
+            assertThat(stack.size() >= 5, is(true));
+            assertThat(stack.get(0) == packet, is(true));
+            for (int i = 1; i < stack.size(); ++i) {
+                assertThat(stack.get(i - 1).getNextPacket() == stack.get(i), is(true));
+                assertThat(stack.get(i).getParentPacket() == stack.get(i - 1), is(true));
+            }
+
+            assertThat(stack.get(1).getProtocol(), is(Protocol.ETHERNET_II));
+            assertThat(stack.get(2).getProtocol(), is(Protocol.IPv4));
+            assertThat(stack.get(3).getProtocol(), is(Protocol.UDP));
+            assertThat(stack.get(4).getProtocol(), is(Protocol.SIP));
+            assertThat(packet.getPacket(Protocol.SIP) == stack.get(4), is(true));
+            assertThat(packet.getPacket(Protocol.UDP) == stack.get(3), is(true));
+
+            // the stack is the same no matter which layer you ask
+            assertThat(stack.get(3).getProtocolStack(), is(stack));
+            count.incrementAndGet();
+            return true;
+        });
+        pcap.close();
+        assertThat(count.get(), is(30));
+    }
+
+    /**
+     * Describe the packet and everything it carries, including how it is
+     * written back out.
+     */
+    private static String describe(final Packet packet) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(packet.getArrivalTime());
+        Packet p = packet;
+        while (p != null) {
+            sb.append(' ').append(p.getName());
+            if (p instanceof IPv4Packet) {
+                final IPv4Packet ip = (IPv4Packet) p;
+                sb.append(' ').append(ip.getSourceIP()).append('>').append(ip.getDestinationIP());
+            } else if (p instanceof TransportPacket) {
+                final TransportPacket transport = (TransportPacket) p;
+                sb.append(' ').append(transport.getSourcePort()).append('>').append(transport.getDestinationPort());
+            } else if (p instanceof RtpPacket) {
+                sb.append(' ').append(((RtpPacket) p).getSeqNumber());
+            }
+            final Buffer payload = p.getPayload();
+            sb.append(' ').append(payload == null ? "null" : String.valueOf(payload.capacity()));
+            p = p.getNextPacket();
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        packet.write(out);
+        sb.append(' ').append(Arrays.toString(out.toByteArray()));
+        return sb.toString();
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testOpenFileNotFound() throws Exception {
+        Pcap.openStream(new File("no_such_file.pcap"));
+    }
+
     private static class FrameHandlerImpl implements PacketHandler {
         public int count;
 
@@ -0,0 +1,311 @@
+/**
+ *
+ */
+package io.pkts;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.packet.PCapPacket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class RotatingPcapWriterTest extends PktsTestBase {
+
+    private Path dir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.dir = Files.createTempDirectory("pkts-rotate");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+        super.tearDown();
+    }
+
+    /**
+     * sipp.pcap contains 30 packets so with 10 records per file we should end
+     * up with three files of 10 packets each.
+     */
+    @Test(timeout = 10000)
+    public void testRotateOnRecords() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final RotatingPcapWriter writer = RotatingPcapWriter.with(pcap.getPcapHeader(), this.dir.resolve("tap.pcap"))
+                .withMaxRecords(10).withQueueSize(4).build();
+        final List<byte[]> expected = writeAll(pcap, writer);
+
+        final List<Path> files = listFiles();
+        assertThat(files.size(), is(3));
+        assertThat(files.get(0).getFileName().toString(), is("tap-00000.pcap"));
+        assertThat(files.get(2).getFileName().toString(), is("tap-00002.pcap"));
+        for (final Path file : files) {
+            assertThat(count(file), is(10));
+        }
+        assertThat(readAll(files), is(expected.size()));
+        assertSameRecords(files, expected);
+    }
+
+    /**
+     * No file may grow beyond max bytes and all packets must still be there,
+     * in order.
+     */
+    @Test(timeout = 10000)
+    public void testRotateOnBytes() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final RotatingPcapWriter writer = RotatingPcapWriter.with(pcap.getPcapHeader(), this.dir.resolve("tap.pcap"))
+                .withMaxBytes(4096).build();
+        final List<byte[]> expected = writeAll(pcap, writer);
+
+        final List<Path> files = listFiles();
+        assertThat(files.size() > 1, is(true));
+        for (final Path file : files) {
+            assertThat(Files.size(file) <= 4096, is(true));
+        }
+        assertSameRecords(files, expected);
+    }
+
+    /**
+     * The interval is based on the capture time of the packets so the number
+     * of files is given by the timestamps in the capture.
+     */
+    @Test(timeout = 10000)
+    public void testRotateOnInterval() throws Exception {
+        Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final List<Long> seconds = new ArrayList<>();
+        pcap.loop(packet -> {
+            seconds.add(((PCapPacket) packet).getArrivalTime() / 1000000);
+            return true;
+        });
+        pcap.close();
+
+        int expectedFiles = 0;
+        long start = -1;
+        for (final long second : seconds) {
+            if (start == -1 || second - start >= 1) {
+                start = second;
+                ++expectedFiles;
+            }
+        }
+
+        pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final RotatingPcapWriter writer = RotatingPcapWriter.with(pcap.getPcapHeader(), this.dir.resolve("tap.pcap"))
+                .withInterval(Duration.ofSeconds(1)).build();
+        final List<byte[]> expected = writeAll(pcap, writer);
+
+        assertThat(listFiles().size(), is(expectedFiles));
+        assertSameRecords(listFiles(), expected);
+    }
+
+    /**
+     * Writing the packets under a global header of the other byte order must
+     * swap the record headers around, both for the files to be readable and
+     * for the interval to be based on the right timestamps.
+     */
+    @Test(timeout = 10000)
+    public void testOtherByteOrder() throws Exception {
+        Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        RotatingPcapWriter writer = RotatingPcapWriter.with(pcap.getPcapHeader(), this.dir.resolve("same.pcap"))
+                .withInterval(Duration.ofSeconds(1)).build();
+        final ByteOrder order = pcap.getPcapHeader().getByteOrder();
+        writeAll(pcap, writer);
+        final List<Path> same = listFiles();
+
+        pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final PcapGlobalHeader other = otherByteOrder(order);
+        writer = RotatingPcapWriter.with(other, this.dir.resolve("swapped.pcap"))
+                .withInterval(Duration.ofSeconds(1)).build();
+        writeAll(pcap, writer);
+        final List<Path> swapped = listFiles();
+        swapped.removeAll(same);
+
+        assertThat(swapped.size(), is(same.size()));
+        final List<PCapPacket> expected = readPackets(same);
+        final List<PCapPacket> actual = readPackets(swapped);
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            assertThat(actual.get(i).getArrivalTime(), is(expected.get(i).getArrivalTime()));
+            assertArrayEquals(expected.get(i).getPayload().getArray(), actual.get(i).getPayload().getArray());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testNoLimits() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final RotatingPcapWriter writer = RotatingPcapWriter.with(pcap.getPcapHeader(), this.dir.resolve("tap"))
+                .withInterval(Duration.ofHours(1)).build();
+        writeAll(pcap, writer);
+
+        final List<Path> files = listFiles();
+        assertThat(files.size(), is(1));
+        assertThat(files.get(0).getFileName().toString(), is("tap-00000"));
+        assertThat(count(files.get(0)), is(30));
+    }
+
+    @Test(timeout = 10000)
+    public void testWriteAfterClose() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final RotatingPcapWriter writer = RotatingPcapWriter.with(pcap.getPcapHeader(), this.dir.resolve("tap.pcap"))
+                .build();
+        writer.close();
+        // closing twice is fine
+        writer.close();
+        final boolean[] failed = new boolean[1];
+        pcap.loop(packet -> {
+            try {
+                writer.write(packet);
+            } catch (final IOException e) {
+                failed[0] = true;
+            }
+            return false;
+        });
+        pcap.close();
+        assertThat(failed[0], is(true));
+    }
+
+    /**
+     * Once the writer thread has failed, neither writing nor closing may
+     * block waiting for room in a queue that nobody is draining.
+     */
+    @Test(timeout = 10000)
+    public void testWriterThreadFails() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        final RotatingPcapWriter writer = RotatingPcapWriter.with(pcap.getPcapHeader(),
+                this.dir.resolve("missing").resolve("tap.pcap")).withQueueSize(1).build();
+        final int[] failures = new int[1];
+        pcap.loop(packet -> {
+            try {
+                writer.write(packet);
+            } catch (final IOException e) {
+                ++failures[0];
+            }
+            return true;
+        });
+        pcap.close();
+        assertThat(failures[0] > 0, is(true));
+
+        try {
+            writer.close();
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() throws Exception {
+        RotatingPcapWriter.with(PcapGlobalHeader.createDefaultHeader(), this.dir.resolve("tap.pcap")).withMaxBytes(-1);
+    }
+
+    /**
+     * Write all packets of the pcap through the writer and return each
+     * packet as it was serialized.
+     */
+    private static List<byte[]> writeAll(final Pcap pcap, final RotatingPcapWriter writer) throws IOException {
+        final List<byte[]> records = new ArrayList<>();
+        pcap.loop(packet -> {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            packet.write(out);
+            records.add(out.toByteArray());
+            writer.write(packet);
+            return true;
+        });
+        pcap.close();
+        writer.close();
+        return records;
+    }
+
+    /**
+     * A global header for ethernet in the byte order we didn't get.
+     */
+    private static PcapGlobalHeader otherByteOrder(final ByteOrder order) {
+        final ByteOrder other = order == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        final ByteBuffer body = ByteBuffer.allocate(20).order(other);
+        body.putShort(0, (short) 2);
+        body.putShort(2, (short) 4);
+        body.putInt(12, 65535);
+        body.putInt(16, 1);
+        return new PcapGlobalHeader(other, body.array());
+    }
+
+    private static List<PCapPacket> readPackets(final List<Path> files) throws IOException {
+        final List<PCapPacket> packets = new ArrayList<>();
+        for (final Path file : files) {
+            final Pcap pcap = Pcap.openStream(file.toFile());
+            pcap.loop(packet -> {
+                packets.add((PCapPacket) packet);
+                return true;
+            });
+            pcap.close();
+        }
+        return packets;
+    }
+
+    private List<Path> listFiles() throws IOException {
+        try (Stream<Path> files = Files.list(this.dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static int count(final Path file) throws IOException {
+        final int[] count = new int[1];
+        final Pcap pcap = Pcap.openStream(file.toFile());
+        pcap.loop(packet -> {
+            ++count[0];
+            return true;
+        });
+        pcap.close();
+        return count[0];
+    }
+
+    private static int readAll(final List<Path> files) throws IOException {
+        int total = 0;
+        for (final Path file : files) {
+            total += count(file);
+        }
+        return total;
+    }
+
+    private static void assertSameRecords(final List<Path> files, final List<byte[]> expected) throws IOException {
+        final List<byte[]> actual = new ArrayList<>();
+        for (final Path file : files) {
+            final Pcap pcap = Pcap.openStream(file.toFile());
+            pcap.loop(packet -> {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                packet.write(out);
+                actual.add(out.toByteArray());
+                return true;
+            });
+            pcap.close();
+        }
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); ++i) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+}
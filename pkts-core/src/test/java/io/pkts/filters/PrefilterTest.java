@@ -0,0 +1,139 @@
+/**
+ *
+ */
+package io.pkts.filters;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class PrefilterTest {
+
+    /**
+     * sipp.pcap contains 30 SIP messages over UDP, all on 127.0.0.1, where 15
+     * of them are going from port 5090 to 5060 and the other 15 are going the
+     * opposite direction.
+     */
+    @Test
+    public void testEthernet() throws Exception {
+        assertThat(count("sipp.pcap", "udp.port == 5060"), is(30));
+        assertThat(count("sipp.pcap", "udp.srcport == 5060"), is(15));
+        assertThat(count("sipp.pcap", "udp.dstport == 5060 && ip.src == 127.0.0.0/8"), is(15));
+        assertThat(count("sipp.pcap", "ip.proto == udp and not (udp.srcport == 5090)"), is(15));
+        assertThat(count("sipp.pcap", "udp.srcport != 5090"), is(15));
+        assertThat(count("sipp.pcap", "eth.type == 0x0800"), is(30));
+        assertThat(count("sipp.pcap", "ip.addr == 10.0.0.0/8 || tcp"), is(0));
+        assertThat(count("sipp.pcap", "!tcp"), is(30));
+        assertThat(count("sipp.pcap", "vlan"), is(0));
+        assertThat(count("sipp.pcap", "ipv6"), is(0));
+    }
+
+    @Test
+    public void testLinuxCookedCapture() throws Exception {
+        assertThat(count("sipp_sll.pcap", "udp.dstport == 5090"), is(15));
+        assertThat(count("sipp_sll.pcap", "ip.dst == 127.0.0.1"), is(30));
+    }
+
+    /**
+     * ipv6_http.pcap contains 10 HTTP packets over IPv6, where 6 of them are
+     * requests.
+     */
+    @Test
+    public void testIPv6() throws Exception {
+        assertThat(count("ipv6_http.pcap", "ipv6"), is(10));
+        assertThat(count("ipv6_http.pcap", "ip"), is(0));
+        assertThat(count("ipv6_http.pcap", "ip.proto == tcp"), is(10));
+        assertThat(count("ipv6_http.pcap", "ipv6.src == 2002:17fc:32a0:3::/64 && tcp.dstport == 80"), is(6));
+        assertThat(count("ipv6_http.pcap", "ipv6.addr == 2607:f8b0:400a:800::200e"), is(10));
+        assertThat(count("ipv6_http.pcap", "tcp.srcport == 80"), is(4));
+    }
+
+    @Test
+    public void testVlan() throws Exception {
+        // an ethernet frame with a VLAN tag of 100 carrying
+        // udp from 10.36.10.1:5060 to 10.36.10.2:5090
+        final Buffer frame = Buffers.wrap(hex(
+                "00000000000100000000000281000064080045000020000040004011000" +
+                "00a240a010a240a0213c413e2000c000061626364"));
+
+        assertThat(Prefilter.compile("vlan").accept(1, frame), is(true));
+        assertThat(Prefilter.compile("vlan.id == 100 && udp.port == 5060").accept(1, frame), is(true));
+        assertThat(Prefilter.compile("vlan.id == 101").accept(1, frame), is(false));
+        assertThat(Prefilter.compile("eth.type == ip").accept(1, frame), is(true));
+        assertThat(Prefilter.compile("ip.src == 10.36.10.1 && ip.dst == 10.36.10.2").accept(1, frame), is(true));
+        assertThat(Prefilter.compile("ip.src == 10.36.10.0/31").accept(1, frame), is(true));
+        assertThat(Prefilter.compile("ip.src == 10.36.10.2").accept(1, frame), is(false));
+        assertThat(Prefilter.compile("udp.dstport == 5090").accept(1, frame), is(true));
+
+        // unknown link types never match
+        assertThat(Prefilter.compile("vlan").accept(147, frame), is(false));
+
+        // and a truncated frame just doesn't match
+        assertThat(Prefilter.compile("udp.port == 5060").accept(1, frame.slice(30)), is(false));
+    }
+
+    @Test
+    public void testPrefilterAndFilter() throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.setPrefilter("udp.srcport == 5090");
+        pcap.setFilter("sip.Call-ID == 1-16732@127.0.1.1");
+        final AtomicInteger count = new AtomicInteger();
+        pcap.loop(packet -> count.incrementAndGet() > 0);
+        assertThat(count.get(), is(3));
+    }
+
+    @Test
+    public void testParseErrors() throws Exception {
+        assertParseError("udp.port ==");
+        assertParseError("udp.port = 5060");
+        assertParseError("udp.port == 70000");
+        assertParseError("udp.port == sip");
+        assertParseError("foo.bar == 1");
+        assertParseError("ip.src == 300.1.1.1");
+        assertParseError("ip.src == 10.0.0.0/33");
+        assertParseError("ip.src == example.com");
+        assertParseError("ipv6.src == 10.0.0.1");
+        assertParseError("(udp");
+        assertParseError("udp tcp");
+        assertParseError("udp &&");
+        assertParseError("");
+    }
+
+    private static byte[] hex(final String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void assertParseError(final String expression) {
+        try {
+            Prefilter.compile(expression);
+            fail("Expected a FilterParseException for \"" + expression + "\"");
+        } catch (final FilterParseException e) {
+            // expected
+        }
+    }
+
+    private static int count(final String resource, final String expression) throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream(resource));
+        pcap.setPrefilter(expression);
+        final AtomicInteger count = new AtomicInteger();
+        pcap.loop(packet -> count.incrementAndGet() > 0);
+        pcap.close();
+        return count.get();
+    }
+
+}
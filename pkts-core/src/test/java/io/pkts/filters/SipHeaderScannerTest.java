@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package io.pkts.filters;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class SipHeaderScannerTest {
+
+    private static final String MSG = "INVITE sip:bob@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK-1\r\n"
+            + "From: <sip:alice@example.com>;tag=1\r\n"
+            + "To: <sip:bob@example.com>\r\n"
+            + "Call-ID: abc123@10.0.0.1  \r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Content-Length: 13\r\n"
+            + "\r\n"
+            + "Subject: nope";
+
+    private static Buffer msg(final String msg) {
+        return Buffers.wrap(msg);
+    }
+
+    @Test
+    public void testMatch() throws Exception {
+        assertThat(new SipHeaderScanner("Call-ID", "abc123@10.0.0.1").mayMatch(msg(MSG)), is(true));
+        assertThat(new SipHeaderScanner("call-id", "abc123@10.0.0.1").mayMatch(msg(MSG)), is(true));
+        assertThat(new SipHeaderScanner("CSeq", "1 INVITE").mayMatch(msg(MSG)), is(true));
+    }
+
+    @Test
+    public void testNoMatch() throws Exception {
+        assertThat(new SipHeaderScanner("Call-ID", "abc123").mayMatch(msg(MSG)), is(false));
+        assertThat(new SipHeaderScanner("Call-ID", "abc123@10.0.0.2").mayMatch(msg(MSG)), is(false));
+        assertThat(new SipHeaderScanner("CSeq", "2 INVITE").mayMatch(msg(MSG)), is(false));
+        assertThat(new SipHeaderScanner("X-Custom", "1").mayMatch(msg(MSG)), is(false));
+    }
+
+    /**
+     * The headers end at the first empty line and anything in the body must
+     * not be mistaken for a header.
+     */
+    @Test
+    public void testStopAtEndOfHeaders() throws Exception {
+        assertThat(new SipHeaderScanner("Subject", "nope").mayMatch(msg(MSG)), is(false));
+    }
+
+    @Test
+    public void testCompactForm() throws Exception {
+        final String compact = "BYE sip:bob@example.com SIP/2.0\r\n"
+                + "v: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK-1\r\n"
+                + "i : abc123@10.0.0.1\r\n"
+                + "\r\n";
+        assertThat(new SipHeaderScanner("Call-ID", "abc123@10.0.0.1").mayMatch(msg(compact)), is(true));
+        assertThat(new SipHeaderScanner("i", "abc123@10.0.0.1").mayMatch(msg(MSG)), is(true));
+        assertThat(new SipHeaderScanner("Call-ID", "nope").mayMatch(msg(compact)), is(false));
+
+        // and the name must be followed by a colon
+        assertThat(new SipHeaderScanner("To", "x").mayMatch(msg("OPTIONS sip:a SIP/2.0\r\nToad: x\r\n\r\n")),
+                is(false));
+        assertThat(new SipHeaderScanner("v", "x").mayMatch(msg("OPTIONS sip:a SIP/2.0\r\nVia: x\r\n\r\n")),
+                is(true));
+    }
+
+    /**
+     * A folded header is left for the parser to figure out.
+     */
+    @Test
+    public void testFoldedHeader() throws Exception {
+        final String folded = "OPTIONS sip:bob@example.com SIP/2.0\r\n"
+                + "Subject: hello\r\n"
+                + " world\r\n"
+                + "\r\n";
+        assertThat(new SipHeaderScanner("Subject", "whatever").mayMatch(msg(folded)), is(true));
+    }
+
+    @Test
+    public void testNotSip() throws Exception {
+        assertThat(new SipHeaderScanner("Call-ID", "1").mayMatch(Buffers.wrap(new byte[] { (byte) 0x80, 0x08,
+                0x01, 0x02 })), is(false));
+        assertThat(new SipHeaderScanner("Call-ID", "1").mayMatch(Buffers.wrap(new byte[] { 0x0A })), is(false));
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        assertThat(count("sip.Call-ID == 2-16732@127.0.1.1"), is(6));
+        assertThat(count("sip.Call-ID == 2-16732"), is(0));
+        assertThat(count("sip.CSeq == 2 BYE"), is(10));
+        assertThat(count("sip.Max-Forwards == 70"), is(15));
+    }
+
+    private static int count(final String filter) throws Exception {
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.setFilter(filter);
+        final AtomicInteger count = new AtomicInteger();
+        pcap.loop(packet -> count.incrementAndGet() > 0);
+        pcap.close();
+        return count.get();
+    }
+
+}
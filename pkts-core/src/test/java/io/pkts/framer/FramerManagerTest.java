@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.packet.IPPacket;
+import io.pkts.packet.Packet;
+import io.pkts.packet.UDPPacket;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class FramerManagerTest extends PktsTestBase {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.framerManager.clearFlowHints();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        this.framerManager.clearFlowHints();
+        this.framerManager.setFlowHintTimeout(Duration.ofMinutes(5));
+        this.framerManager.tick(0);
+        super.tearDown();
+    }
+
+    /**
+     * The hinted framer is asked first but if it doesn't accept the payload,
+     * we guess just as if there was no hint, so a stale SIP hint on a flow
+     * that now carries RTP doesn't hide the RTP.
+     */
+    @Test
+    public void testFlowHint() throws Exception {
+        final UDPPacket udp = (UDPPacket) firstRtp().getParentPacket();
+        final IPPacket ip = udp.getParentPacket();
+        assertThat(this.framerManager.getFlowHint(udp), nullValue());
+
+        // the loop forgets about any hints so add ours once it is done
+        final Packet other = firstUdp(udp.getDestinationPort());
+        final boolean added = this.framerManager.addFlowHint(ip.getDestinationIP(), udp.getDestinationPort(),
+                Protocol.SIP, udp.getArrivalTime());
+        assertThat(added, is(true));
+        assertThat(this.framerManager.getFlowHint(udp), is(Protocol.SIP));
+        assertThat(other.getNextPacket().getProtocol(), is(Protocol.RTP));
+    }
+
+    /**
+     * The hints are added for both the source and the destination so the
+     * traffic going the other way is covered too.
+     */
+    @Test
+    public void testFlowHintFromPacket() throws Exception {
+        final UDPPacket udp = (UDPPacket) firstRtp().getParentPacket();
+        final Packet other = firstUdp(udp.getSourcePort());
+        this.framerManager.addFlowHint(udp, Protocol.RTP);
+        assertThat(this.framerManager.getFlowHint(udp), is(Protocol.RTP));
+        assertThat(other.getNextPacket().getProtocol(), is(Protocol.RTP));
+    }
+
+    /**
+     * The hints of one capture have nothing to do with the next one so they
+     * are cleared when a loop starts.
+     */
+    @Test
+    public void testLoopClearsFlowHints() throws Exception {
+        final UDPPacket udp = (UDPPacket) firstRtp().getParentPacket();
+        this.framerManager.addFlowHint(udp, Protocol.SIP);
+        assertThat(this.framerManager.getFlowHint(udp), is(Protocol.SIP));
+
+        firstUdp(udp.getSourcePort());
+        assertThat(this.framerManager.getFlowHint(udp), nullValue());
+    }
+
+    @Test
+    public void testFlowHintTimeout() throws Exception {
+        final UDPPacket udp = (UDPPacket) firstRtp().getParentPacket();
+        final IPPacket ip = udp.getParentPacket();
+        this.framerManager.setFlowHintTimeout(Duration.ofSeconds(1));
+
+        // learned two seconds ago so it has timed out
+        this.framerManager.addFlowHint(ip.getDestinationIP(), udp.getDestinationPort(), Protocol.SIP,
+                udp.getArrivalTime() - 2000000);
+        assertThat(this.framerManager.getFlowHint(udp), nullValue());
+
+        // and half a second ago so it is still valid
+        this.framerManager.addFlowHint(ip.getDestinationIP(), udp.getDestinationPort(), Protocol.SIP,
+                udp.getArrivalTime() - 500000);
+        assertThat(this.framerManager.getFlowHint(udp), is(Protocol.SIP));
+    }
+
+    /**
+     * The arrival time of a capture with nanosecond resolution is in
+     * nanoseconds but the timeouts are still counted in microseconds so a
+     * hint learned a second ago mustn't look like it was learned over 16
+     * minutes ago.
+     */
+    @Test
+    public void testNanosecondCapture() throws Exception {
+        final byte[] pcap = createNanosecondPcap(1000000000L, 2000000000L);
+        final List<Protocol> hints = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+        Pcap.openStream(new ByteArrayInputStream(pcap)).loop(packet -> {
+            final UDPPacket udp = (UDPPacket) packet.getPacket(Protocol.UDP);
+            if (times.isEmpty()) {
+                this.framerManager.addFlowHint(udp, Protocol.RTP);
+            } else {
+                hints.add(this.framerManager.getFlowHint(udp));
+            }
+            times.add(this.framerManager.getClock().currentTimeMicros());
+            return true;
+        });
+
+        assertThat(this.framerManager.getClock().getTimeUnit(), is(TimeUnit.NANOSECONDS));
+        assertThat(times, is(Arrays.asList(1000000L, 2000000L)));
+        assertThat(hints, is(Arrays.asList(Protocol.RTP)));
+    }
+
+    @Test
+    public void testFlowHintIgnoresHostNames() throws Exception {
+        assertThat(this.framerManager.addFlowHint("example.com", 5060, Protocol.SIP, 0), is(false));
+        assertThat(this.framerManager.addFlowHint("10.0.0.256", 5060, Protocol.SIP, 0), is(false));
+        assertThat(this.framerManager.addFlowHint("10.0.0.1", 5060, Protocol.SIP, 0), is(true));
+        assertThat(this.framerManager.addFlowHint("::1", 5060, Protocol.SIP, 0), is(true));
+        assertThat(this.framerManager.addFlowHint("example.com:5060", 5060, Protocol.SIP, 0), is(false));
+        assertThat(this.framerManager.addFlowHint("[::1]", 5060, Protocol.SIP, 0), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFlowHintNoProtocol() throws Exception {
+        this.framerManager.addFlowHint("10.0.0.1", 5060, null, 0);
+    }
+
+    /**
+     * A pcap with nanosecond resolution and a small UDP packet, from
+     * 10.0.0.1:5000 to 10.0.0.2:5002, arriving at each of the times.
+     */
+    private static byte[] createNanosecondPcap(final long... times) {
+        final int length = 14 + 20 + 8 + 4;
+        final ByteBuffer pcap = ByteBuffer.allocate(24 + times.length * (16 + length));
+        pcap.put(PcapGlobalHeader.MAGIC_NSEC).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0)
+                .putInt(65535).putInt(1);
+        for (final long time : times) {
+            pcap.putInt((int) (time / 1000000000L)).putInt((int) (time % 1000000000L));
+            pcap.putInt(length).putInt(length);
+            pcap.put(new byte[12]).putShort((short) 0x0800);
+            pcap.put((byte) 0x45).put((byte) 0).putShort((short) (length - 14)).putInt(0);
+            pcap.put((byte) 64).put((byte) 17).putShort((short) 0);
+            pcap.put(new byte[] { 10, 0, 0, 1 }).put(new byte[] { 10, 0, 0, 2 });
+            pcap.putShort((short) 5000).putShort((short) 5002).putShort((short) 12).putShort((short) 0);
+            pcap.put(new byte[] { 1, 2, 3, 4 });
+        }
+        return pcap.array();
+    }
+
+    private static Packet firstRtp() throws IOException {
+        final List<Packet> rtp = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sip_rtp.pcap"));
+        pcap.loop(packet -> {
+            final Packet p = packet.getPacket(Protocol.RTP);
+            return p == null || !rtp.add(p);
+        });
+        pcap.close();
+        return rtp.get(0);
+    }
+
+    /**
+     * Frame the capture again, until the UDP layer, and return the first UDP
+     * packet sent to or from the port.
+     */
+    private static Packet firstUdp(final int port) throws IOException {
+        final List<Packet> udp = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sip_rtp.pcap"));
+        pcap.loop(packet -> {
+            final UDPPacket p = (UDPPacket) packet.getPacket(Protocol.UDP);
+            if (p != null && (p.getSourcePort() == port || p.getDestinationPort() == port)) {
+                udp.add(p);
+                return false;
+            }
+            return true;
+        });
+        pcap.close();
+        return udp.get(0);
+    }
+
+}
@@ -0,0 +1,267 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import io.pkts.PacketHandler;
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.Packet;
+import io.pkts.packet.TransportPacket;
+import io.pkts.packet.impl.UnknownApplicationPacketImpl;
+import io.pkts.packet.rtp.RtpPacket;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class FramerRegistryTest extends PktsTestBase {
+
+    @Test
+    public void testDefaultFramers() throws Exception {
+        final FramerRegistry framers = FramerRegistry.getDefault();
+        assertThat(framers.getLinkTypeFramer(1), instanceOf(EthernetFramer.class));
+        assertThat(framers.getLinkTypeFramer(113), instanceOf(SllFramer.class));
+        assertThat(framers.getLinkTypeFramer(101), instanceOf(IPv4Framer.class));
+        assertThat(framers.getEtherTypeFramer(0x0800), instanceOf(IPv4Framer.class));
+        assertThat(framers.getEtherTypeFramer(0x86DD), instanceOf(IPv6Framer.class));
+        assertThat(framers.getIpProtocolFramer(17), instanceOf(UDPFramer.class));
+        assertThat(framers.getIpProtocolFramer(6), instanceOf(TCPFramer.class));
+        assertThat(framers.getHeuristicFramers().size(), is(3));
+        assertThat(framers.getHeuristicFramers().get(0), instanceOf(SIPFramer.class));
+        assertThat(framers.getApplicationFramer(Protocol.RTP), instanceOf(RTPFramer.class));
+        assertThat(framers.getApplicationFramer(Protocol.RTCP), instanceOf(RTCPFramer.class));
+    }
+
+    @Test
+    public void testNothingRegistered() throws Exception {
+        final FramerRegistry framers = FramerRegistry.builder().build();
+        assertThat(framers.getLinkTypeFramer(1), nullValue());
+        assertThat(framers.getEtherTypeFramer(0x0800), nullValue());
+        assertThat(framers.getIpProtocolFramer(17), nullValue());
+        assertThat(framers.getPortFramer(53), nullValue());
+        assertThat(framers.getPortFramer(-1), nullValue());
+        assertThat(framers.getApplicationFramer(Protocol.SIP), nullValue());
+        assertThat(framers.getHeuristicFramers().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testRegisterPort() throws Exception {
+        final TestFramer framer = new TestFramer(Protocol.UNKNOWN);
+        final FramerRegistry framers = FramerRegistry.withDefaultFramers().port(53, framer).build();
+        assertThat(framers.getPortFramer(53) == framer, is(true));
+        assertThat(framers.getPortFramer(52), nullValue());
+        assertThat(framers.getPortFramer(54), nullValue());
+        assertThat(framers.getPortFramer(65535), nullValue());
+        assertThat(framers.getApplicationFramer(Protocol.UNKNOWN) == framer, is(true));
+    }
+
+    /**
+     * A heuristic framer for a protocol that already has one takes its place
+     * rather than being asked after it.
+     */
+    @Test
+    public void testReplaceHeuristic() throws Exception {
+        final TestFramer rtcp = new TestFramer(Protocol.RTCP);
+        final FramerRegistry framers = FramerRegistry.withDefaultFramers().heuristic(rtcp).build();
+        assertThat(framers.getHeuristicFramers().size(), is(3));
+        assertThat(framers.getHeuristicFramers().get(0), instanceOf(SIPFramer.class));
+        assertThat(framers.getHeuristicFramers().get(1) == rtcp, is(true));
+        assertThat(framers.getHeuristicFramers().get(2), instanceOf(RTPFramer.class));
+        assertThat(framers.getApplicationFramer(Protocol.RTCP) == rtcp, is(true));
+    }
+
+    /**
+     * The {@link TestProvider} is listed in
+     * META-INF/services/io.pkts.framer.FramerProvider of the test resources.
+     */
+    @Test
+    public void testServiceLoader() throws Exception {
+        final FramerRegistry framers = FramerRegistry.getDefault();
+        assertThat(framers.getPortFramer(TestProvider.PORT), instanceOf(TestFramer.class));
+        assertThat(framers.getHeuristicFramers().size(), is(3));
+    }
+
+    /**
+     * A provider listed but missing from the class path, or one that blows up
+     * while registering, must not take the built-in framers down with it.
+     */
+    @Test
+    public void testServiceLoaderSkipsBrokenProviders() throws Exception {
+        final Path dir = Files.createTempDirectory("pkts-providers");
+        try {
+            final Path services = dir.resolve("META-INF/services/" + FramerProvider.class.getName());
+            Files.createDirectories(services.getParent());
+            Files.write(services, Arrays.asList("io.pkts.framer.NoSuchProvider",
+                    FailingProvider.class.getName(), TestProvider.class.getName()), StandardCharsets.UTF_8);
+
+            try (final URLClassLoader loader = new URLClassLoader(new URL[] { dir.toUri().toURL() },
+                    getClass().getClassLoader())) {
+                final FramerRegistry framers = FramerRegistry.load(loader);
+                assertThat(framers.getPortFramer(TestProvider.PORT), instanceOf(TestFramer.class));
+                assertThat(framers.getLinkTypeFramer(1), instanceOf(EthernetFramer.class));
+                assertThat(framers.getHeuristicFramers().size(), is(3));
+            }
+        } finally {
+            Files.delete(dir.resolve("META-INF/services/" + FramerProvider.class.getName()));
+            Files.delete(dir.resolve("META-INF/services"));
+            Files.delete(dir.resolve("META-INF"));
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * The views of {@link Pcap#loopViews(PacketHandler)} must not
+     * jump the queue. The payload looks like RTP but the {@link TestProvider}
+     * has claimed the port so it is the one deciding what it is.
+     */
+    @Test
+    public void testPortFramerWinsOverRtpView() throws Exception {
+        final byte[] rtp = new byte[] { (byte) 0x80, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, (byte) 0xA0, 0x12, 0x34,
+                0x56, 0x78, 0x01, 0x02, 0x03, 0x04 };
+        final byte[] pcap = createPcap(5000, TestProvider.PORT, rtp);
+
+        final List<Packet> packets = new ArrayList<>();
+        final PacketHandler handler = packet -> packets.add(packet.getPacket(Protocol.UDP).getNextPacket());
+        Pcap.openStream(new ByteArrayInputStream(pcap)).loop(handler);
+        Pcap.openStream(new ByteArrayInputStream(pcap)).loopViews(handler);
+        assertThat(packets.size(), is(2));
+        assertThat(packets.get(0), instanceOf(TestPacket.class));
+        assertThat(packets.get(1), instanceOf(TestPacket.class));
+
+        // and on any other port it is still RTP, view or not
+        final byte[] other = createPcap(5000, 5002, rtp);
+        packets.clear();
+        Pcap.openStream(new ByteArrayInputStream(other)).loopViews(handler);
+        assertThat(packets.get(0), instanceOf(RtpPacket.class));
+    }
+
+    /**
+     * A pcap with a single Ethernet/IPv4/UDP record carrying the payload.
+     */
+    private static byte[] createPcap(final int sourcePort, final int destinationPort, final byte[] payload) {
+        final int length = 14 + 20 + 8 + payload.length;
+        final ByteBuffer pcap = ByteBuffer.allocate(24 + 16 + length);
+        pcap.putInt(0xa1b2c3d4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0).putInt(65535).putInt(1);
+        pcap.putInt(1).putInt(0).putInt(length).putInt(length);
+
+        pcap.put(new byte[12]).putShort((short) 0x0800);
+
+        pcap.put((byte) 0x45).put((byte) 0).putShort((short) (20 + 8 + payload.length)).putInt(0);
+        pcap.put((byte) 64).put((byte) 17).putShort((short) 0);
+        pcap.put(new byte[] { 10, 0, 0, 1 }).put(new byte[] { 10, 0, 0, 2 });
+
+        pcap.putShort((short) sourcePort).putShort((short) destinationPort).putShort((short) (8 + payload.length))
+                .putShort((short) 0);
+        pcap.put(payload);
+        return pcap.array();
+    }
+
+    /**
+     * Registering twice for the same thing replaces the first one.
+     */
+    @Test
+    public void testReplace() throws Exception {
+        final IPv4Framer framer = new IPv4Framer();
+        final FramerRegistry framers = FramerRegistry.withDefaultFramers().etherType(0x0800, framer).build();
+        assertThat(framers.getEtherTypeFramer(0x0800) == framer, is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPortOutOfRange() throws Exception {
+        FramerRegistry.builder().port(65536, new TestFramer(Protocol.UNKNOWN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIpProtocolOutOfRange() throws Exception {
+        FramerRegistry.builder().ipProtocol(256, new UDPFramer());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoFramer() throws Exception {
+        FramerRegistry.builder().linkType(1, null);
+    }
+
+    /**
+     * Registers a framer for the discard port, which nothing in the test
+     * captures is sent to.
+     */
+    public static class TestProvider implements FramerProvider {
+
+        private static final int PORT = 9;
+
+        @Override
+        public void register(final FramerRegistry.Builder registry) {
+            registry.port(PORT, new TestFramer(Protocol.UNKNOWN, true));
+        }
+    }
+
+    public static class FailingProvider implements FramerProvider {
+
+        @Override
+        public void register(final FramerRegistry.Builder registry) {
+            throw new IllegalStateException("Boom");
+        }
+    }
+
+    private static class TestFramer implements Framer<TransportPacket, Packet> {
+
+        private final Protocol protocol;
+
+        /**
+         * Whether to claim any payload it is asked about.
+         */
+        private final boolean greedy;
+
+        private TestFramer(final Protocol protocol) {
+            this(protocol, false);
+        }
+
+        private TestFramer(final Protocol protocol, final boolean greedy) {
+            this.protocol = protocol;
+            this.greedy = greedy;
+        }
+
+        @Override
+        public Protocol getProtocol() {
+            return this.protocol;
+        }
+
+        @Override
+        public Packet frame(final TransportPacket parent, final Buffer buffer) throws IOException {
+            return this.greedy ? new TestPacket(parent, buffer) : null;
+        }
+
+        @Override
+        public boolean accept(final Buffer data) throws IOException {
+            return this.greedy;
+        }
+    }
+
+    private static class TestPacket extends UnknownApplicationPacketImpl {
+
+        private TestPacket(final TransportPacket parent, final Buffer payload) {
+            super(parent, payload);
+        }
+    }
+
+}
@@ -0,0 +1,276 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import io.pkts.Clock;
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.packet.IPv4Packet;
+import io.pkts.packet.UDPPacket;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.protocol.Protocol;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class IPv4ReassemblerTest extends PktsTestBase {
+
+    /**
+     * The capture time, in microseconds.
+     */
+    private long now;
+
+    private final Clock clock = () -> this.now;
+
+    /**
+     * An Ethernet frame carrying a SIP message over UDP.
+     */
+    private byte[] frame;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.now = 0;
+        this.frame = firstSipFrame();
+    }
+
+    @Test
+    public void testNotFragmented() throws Exception {
+        final IPv4Reassembler reassembler = new IPv4Reassembler(this.clock, Duration.ofSeconds(30), 65535);
+        final IPv4Packet ip = frame(this.frame);
+        assertThat(reassembler.reassemble(ip) == ip, is(true));
+        assertThat(reassembler.getPendingDatagrams(), is(0));
+    }
+
+    @Test
+    public void testReassembleInOrder() throws Exception {
+        final IPv4Reassembler reassembler = new IPv4Reassembler(this.clock, Duration.ofSeconds(30), 65535);
+        final List<IPv4Packet> fragments = fragment(this.frame, 1, 64);
+        for (int i = 0; i < fragments.size() - 1; ++i) {
+            assertThat(reassembler.reassemble(fragments.get(i)), nullValue());
+        }
+        assertThat(reassembler.getPendingDatagrams(), is(1));
+        assertReassembled(reassembler.reassemble(fragments.get(fragments.size() - 1)));
+        assertThat(reassembler.getReassembled(), is(1L));
+        assertThat(reassembler.getPendingDatagrams(), is(0));
+        assertThat(reassembler.getPendingBytes(), is(0));
+    }
+
+    /**
+     * Last fragment first, first fragment last and one of them twice.
+     */
+    @Test
+    public void testReassembleOutOfOrder() throws Exception {
+        final IPv4Reassembler reassembler = new IPv4Reassembler(this.clock, Duration.ofSeconds(30), 65535);
+        final List<IPv4Packet> fragments = fragment(this.frame, 1, 64);
+        final IPv4Packet first = fragments.remove(0);
+        assertThat(reassembler.reassemble(fragments.get(fragments.size() - 1)), nullValue());
+        for (int i = fragments.size() - 2; i >= 0; --i) {
+            assertThat(reassembler.reassemble(fragments.get(i)), nullValue());
+        }
+        assertThat(reassembler.reassemble(fragments.get(0)), nullValue());
+        assertReassembled(reassembler.reassemble(first));
+    }
+
+    /**
+     * The two datagrams only differ by their identification and are
+     * interleaved.
+     */
+    @Test
+    public void testTwoDatagrams() throws Exception {
+        final IPv4Reassembler reassembler = new IPv4Reassembler(this.clock, Duration.ofSeconds(30), 65535);
+        final List<IPv4Packet> a = fragment(this.frame, 1, 256);
+        final List<IPv4Packet> b = fragment(this.frame, 2, 256);
+        for (int i = 0; i < a.size() - 1; ++i) {
+            assertThat(reassembler.reassemble(a.get(i)), nullValue());
+            assertThat(reassembler.reassemble(b.get(i)), nullValue());
+        }
+        assertThat(reassembler.getPendingDatagrams(), is(2));
+        assertReassembled(reassembler.reassemble(b.get(b.size() - 1)));
+        assertReassembled(reassembler.reassemble(a.get(a.size() - 1)));
+    }
+
+    /**
+     * The fragments are timed out by the time of the capture.
+     */
+    @Test
+    public void testExpire() throws Exception {
+        final IPv4Reassembler reassembler = new IPv4Reassembler(this.clock, Duration.ofSeconds(30), 65535);
+        final List<IPv4Packet> fragments = fragment(this.frame, 1, 64);
+        reassembler.reassemble(fragments.get(0));
+
+        this.now += 30000000;
+        reassembler.expire();
+        assertThat(reassembler.getPendingDatagrams(), is(1));
+
+        this.now += 1;
+        assertThat(reassembler.reassemble(fragments.get(1)), nullValue());
+        assertThat(reassembler.getExpired(), is(1L));
+
+        // the second fragment started a new datagram, which will never
+        // complete since the first fragment is gone.
+        assertThat(reassembler.getPendingDatagrams(), is(1));
+        for (int i = 2; i < fragments.size(); ++i) {
+            assertThat(reassembler.reassemble(fragments.get(i)), nullValue());
+        }
+    }
+
+    /**
+     * The capture only has the first fragment of a datagram, which will sit
+     * there until it times out.
+     */
+    @Test
+    public void testFirstFragmentOnly() throws Exception {
+        final IPv4Reassembler reassembler = new IPv4Reassembler(this.clock, Duration.ofSeconds(30), 65535);
+        final List<IPv4Packet> packets = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("fragmented_udp_sip.pcap"));
+        pcap.loop(packet -> {
+            this.now = packet.getArrivalTime();
+            final IPv4Packet ip = (IPv4Packet) packet.getPacket(Protocol.IPv4);
+            final IPv4Packet reassembled = reassembler.reassemble(ip);
+            if (reassembled != null) {
+                packets.add(reassembled);
+            }
+            return true;
+        });
+        pcap.close();
+
+        assertThat(packets.size(), is(5));
+        assertThat(reassembler.getPendingDatagrams(), is(1));
+        assertThat(reassembler.getPendingBytes(), is(1480));
+
+        this.now += 31000000;
+        reassembler.expire();
+        assertThat(reassembler.getPendingDatagrams(), is(0));
+        assertThat(reassembler.getPendingBytes(), is(0));
+        assertThat(reassembler.getExpired(), is(1L));
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        final int size = this.frame.length - 34;
+        final IPv4Reassembler reassembler = new IPv4Reassembler(this.clock, Duration.ofSeconds(30), size * 2);
+        final List<IPv4Packet> a = fragment(this.frame, 1, 256);
+        final List<IPv4Packet> b = fragment(this.frame, 2, 256);
+        final List<IPv4Packet> c = fragment(this.frame, 3, 256);
+
+        // the last fragments tell the full size of the datagrams so a and b
+        // fill up the memory and c pushes a out.
+        reassembler.reassemble(a.get(a.size() - 1));
+        reassembler.reassemble(b.get(b.size() - 1));
+        assertThat(reassembler.getEvicted(), is(0L));
+        reassembler.reassemble(c.get(c.size() - 1));
+        assertThat(reassembler.getEvicted(), is(1L));
+        assertThat(reassembler.getPendingDatagrams(), is(2));
+
+        for (int i = 0; i < a.size() - 2; ++i) {
+            reassembler.reassemble(a.get(i));
+        }
+        assertThat(reassembler.reassemble(a.get(a.size() - 2)), nullValue());
+    }
+
+    /**
+     * A fragment that would end up beyond the largest possible datagram.
+     */
+    @Test
+    public void testDropTooLarge() throws Exception {
+        final IPv4Reassembler reassembler = new IPv4Reassembler(this.clock, Duration.ofSeconds(30), 65535);
+        final byte[] payload = Arrays.copyOfRange(this.frame, 34, 34 + 64);
+        final IPv4Packet fragment = createFragment(this.frame, 1, 65528, payload, false);
+        assertThat(reassembler.reassemble(fragment), nullValue());
+        assertThat(reassembler.getDropped(), is(1L));
+        assertThat(reassembler.getPendingDatagrams(), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoClock() throws Exception {
+        new IPv4Reassembler(null, Duration.ofSeconds(30), 65535);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoMemory() throws Exception {
+        new IPv4Reassembler(this.clock, Duration.ofSeconds(30), 0);
+    }
+
+    private static void assertReassembled(final IPv4Packet ip) throws Exception {
+        assertThat(ip, notNullValue());
+        assertThat(ip.isFragmented(), is(false));
+        assertThat(ip.getTotalIPLength(), is(ip.getHeaderLength() + ip.getPayload().getReadableBytes()));
+        final UDPPacket udp = (UDPPacket) ip.getPacket(Protocol.UDP);
+        assertThat(udp.getSourcePort(), is(5060));
+        assertThat(ip.getPacket(Protocol.SIP), notNullValue());
+    }
+
+    /**
+     * Split the IP payload of the frame into fragments of the given size.
+     */
+    private static List<IPv4Packet> fragment(final byte[] frame, final int id, final int size) throws IOException {
+        final List<IPv4Packet> fragments = new ArrayList<>();
+        for (int offset = 0; offset < frame.length - 34; offset += size) {
+            final int end = Math.min(frame.length - 34, offset + size);
+            final byte[] payload = Arrays.copyOfRange(frame, 34 + offset, 34 + end);
+            fragments.add(createFragment(frame, id, offset, payload, end < frame.length - 34));
+        }
+        return fragments;
+    }
+
+    private static IPv4Packet createFragment(final byte[] frame, final int id, final int offset,
+            final byte[] payload, final boolean more) throws IOException {
+        final byte[] fragment = Arrays.copyOf(frame, 34 + payload.length);
+        System.arraycopy(payload, 0, fragment, 34, payload.length);
+        final int length = 20 + payload.length;
+        fragment[16] = (byte) (length >> 8);
+        fragment[17] = (byte) length;
+        fragment[18] = (byte) (id >> 8);
+        fragment[19] = (byte) id;
+        final int flags = (more ? 0x2000 : 0) | offset / 8;
+        fragment[20] = (byte) (flags >> 8);
+        fragment[21] = (byte) flags;
+        return frame(fragment);
+    }
+
+    private static IPv4Packet frame(final byte[] frame) throws IOException {
+        final PCapPacketImpl pcap = new PCapPacketImpl(PcapRecordHeader.createDefaultHeader(0), Buffers.wrap(frame));
+        return (IPv4Packet) pcap.getPacket(Protocol.IPv4);
+    }
+
+    /**
+     * @return the first SIP message over UDP in sipp.pcap, which is sent from
+     *         port 5060 and has an IP header without any options.
+     */
+    private static byte[] firstSipFrame() throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.loop(packet -> {
+            final byte[] frame = packet.getPayload().getArray();
+            if (packet.hasProtocol(Protocol.SIP)) {
+                frames.add(frame);
+                return false;
+            }
+            return true;
+        });
+        pcap.close();
+        return frames.get(0);
+    }
+
+}
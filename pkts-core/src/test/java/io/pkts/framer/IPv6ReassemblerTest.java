@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import io.pkts.Clock;
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.packet.IPv6Packet;
+import io.pkts.packet.UDPPacket;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.protocol.Protocol;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class IPv6ReassemblerTest extends PktsTestBase {
+
+    /**
+     * The capture time, in microseconds.
+     */
+    private long now;
+
+    private final Clock clock = () -> this.now;
+
+    private IPv6Reassembler reassembler;
+
+    /**
+     * The raw frames of ipv6_frag.pcap, which is a UDP packet split into
+     * five fragments.
+     */
+    private List<byte[]> frames;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.now = 0;
+        this.reassembler = new IPv6Reassembler(this.clock, Duration.ofSeconds(60), 65535);
+        this.frames = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("ipv6_frag.pcap"));
+        pcap.loop(packet -> this.frames.add(packet.getPayload().getArray()));
+        pcap.close();
+    }
+
+    @Test
+    public void testFragmentHeader() throws Exception {
+        final IPv6Packet first = frame(this.frames.get(0));
+        assertThat(first.getFragmentIdentification(), is(3746861727L));
+        assertThat(first.isMoreFragmentsSet(), is(true));
+
+        final IPv6Packet last = frame(this.frames.get(4));
+        assertThat(last.getFragmentIdentification(), is(3746861727L));
+        assertThat(last.isMoreFragmentsSet(), is(false));
+        assertThat(last.getFragmentOffset(), is((short) 4928));
+    }
+
+    @Test
+    public void testReassembleInOrder() throws Exception {
+        for (int i = 0; i < 4; ++i) {
+            assertThat(this.reassembler.reassemble(frame(this.frames.get(i))), nullValue());
+        }
+        assertThat(this.reassembler.getPendingDatagrams(), is(1));
+        assertReassembled(this.reassembler.reassemble(frame(this.frames.get(4))));
+        assertThat(this.reassembler.getReassembled(), is(1L));
+        assertThat(this.reassembler.getPendingDatagrams(), is(0));
+        assertThat(this.reassembler.getPendingBytes(), is(0));
+    }
+
+    @Test
+    public void testReassembleOutOfOrder() throws Exception {
+        final List<byte[]> frames = new ArrayList<>(this.frames);
+        Collections.reverse(frames);
+        for (int i = 0; i < 4; ++i) {
+            assertThat(this.reassembler.reassemble(frame(frames.get(i))), nullValue());
+        }
+        assertReassembled(this.reassembler.reassemble(frame(frames.get(4))));
+    }
+
+    /**
+     * The Fragment header is preceded by a Hop-by-Hop header, which has to
+     * be skipped to find it and which is kept in the reassembled packet.
+     */
+    @Test
+    public void testExtensionHeaderBeforeFragmentHeader() throws Exception {
+        final byte[] first = insertHopByHop(this.frames.get(0));
+        final IPv6Packet fragment = frame(first);
+        assertThat(fragment.isFragmented(), is(true));
+        assertThat(fragment.getFragmentIdentification(), is(3746861727L));
+
+        this.reassembler.reassemble(fragment);
+        for (int i = 1; i < 4; ++i) {
+            this.reassembler.reassemble(frame(this.frames.get(i)));
+        }
+        final IPv6Packet ip = this.reassembler.reassemble(frame(this.frames.get(4)));
+        assertReassembled(ip);
+        assertThat(ip.getHeaderLength(), is(48));
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        this.reassembler.reassemble(frame(this.frames.get(0)));
+        this.reassembler.reassemble(frame(this.frames.get(1)));
+        assertThat(this.reassembler.getPendingBytes(), is(2464));
+
+        this.now += 60000001;
+        this.reassembler.expire();
+        assertThat(this.reassembler.getExpired(), is(1L));
+        assertThat(this.reassembler.getPendingDatagrams(), is(0));
+        assertThat(this.reassembler.getPendingBytes(), is(0));
+
+        for (int i = 2; i < 5; ++i) {
+            assertThat(this.reassembler.reassemble(frame(this.frames.get(i))), nullValue());
+        }
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        final IPv6Reassembler reassembler = new IPv6Reassembler(this.clock, Duration.ofSeconds(60), 2048);
+        reassembler.reassemble(frame(this.frames.get(0)));
+        assertThat(reassembler.getEvicted(), is(0L));
+
+        // this one grows the packet beyond what we can hold
+        reassembler.reassemble(frame(this.frames.get(1)));
+        assertThat(reassembler.getEvicted(), is(1L));
+        assertThat(reassembler.getPendingDatagrams(), is(0));
+    }
+
+    @Test
+    public void testNotFragmented() throws Exception {
+        final List<IPv6Packet> packets = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("ipv6_http.pcap"));
+        pcap.loop(packet -> packets.add((IPv6Packet) packet.getPacket(Protocol.IPv6)));
+        pcap.close();
+        final IPv6Packet ip = packets.get(0);
+        assertThat(ip.isFragmented(), is(false));
+        assertThat(ip.getFragmentIdentification(), is(-1L));
+        assertThat(this.reassembler.reassemble(ip) == ip, is(true));
+    }
+
+    private static void assertReassembled(final IPv6Packet ip) throws Exception {
+        assertThat(ip, notNullValue());
+        assertThat(ip.isFragmented(), is(false));
+        final UDPPacket udp = (UDPPacket) ip.getPacket(Protocol.UDP);
+        assertThat(udp, notNullValue());
+        assertThat(udp.getLength(), is(5008));
+        assertThat(udp.getPayload().getReadableBytes(), is(5000));
+    }
+
+    /**
+     * Put an empty Hop-by-Hop header in front of the Fragment header.
+     */
+    private static byte[] insertHopByHop(final byte[] frame) {
+        final int ip = 14;
+        final byte[] hopByHop = new byte[] { IPv6Packet.EXTENSION_FRAGMENT, 0, 0x01, 0x04, 0, 0, 0, 0 };
+        final byte[] result = new byte[frame.length + hopByHop.length];
+        System.arraycopy(frame, 0, result, 0, ip + 40);
+        System.arraycopy(hopByHop, 0, result, ip + 40, hopByHop.length);
+        System.arraycopy(frame, ip + 40, result, ip + 48, frame.length - ip - 40);
+        result[ip + 6] = IPv6Packet.EXTENSION_HOP_BY_HOP;
+        final int payloadLength = ((frame[ip + 4] & 0xFF) << 8 | frame[ip + 5] & 0xFF) + hopByHop.length;
+        result[ip + 4] = (byte) (payloadLength >> 8);
+        result[ip + 5] = (byte) payloadLength;
+        return result;
+    }
+
+    private static IPv6Packet frame(final byte[] frame) throws IOException {
+        final PCapPacketImpl pcap = new PCapPacketImpl(PcapRecordHeader.createDefaultHeader(0), Buffers.wrap(frame));
+        return (IPv6Packet) pcap.getPacket(Protocol.IPv6);
+    }
+
+}
@@ -0,0 +1,218 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.packet.Packet;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * There are no pcapng captures among the test resources so we convert the
+ * regular sipp.pcap into a pcapng and make sure we get the exact same packets
+ * out of it.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+public class PcapNgFramerTest extends PktsTestBase {
+
+    /**
+     * The packets of sipp.pcap as (seconds, microseconds, data).
+     */
+    private List<Object[]> records;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.records = readRecords("sipp.pcap");
+    }
+
+    @Test
+    public void testLoopLittleEndian() throws Exception {
+        final byte[] pcapng = convert(ByteOrder.LITTLE_ENDIAN, false);
+        assertPackets(Pcap.openStream(new ByteArrayInputStream(pcapng)));
+    }
+
+    /**
+     * Big endian, two interfaces where the second one has nanosecond
+     * resolution, and a bunch of blocks we don't care about.
+     */
+    @Test
+    public void testLoopBigEndianMultipleInterfaces() throws Exception {
+        final byte[] pcapng = convert(ByteOrder.BIG_ENDIAN, true);
+        assertPackets(Pcap.openStream(new ByteArrayInputStream(pcapng)));
+    }
+
+    @Test
+    public void testSimplePacketBlock() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSectionHeader(out, ByteOrder.LITTLE_ENDIAN);
+        writeInterface(out, ByteOrder.LITTLE_ENDIAN, 6);
+        final byte[] data = (byte[]) this.records.get(0)[2];
+        final ByteBuffer body = ByteBuffer.allocate(4 + pad(data.length)).order(ByteOrder.LITTLE_ENDIAN);
+        body.putInt(data.length);
+        body.put(data);
+        writeBlock(out, ByteOrder.LITTLE_ENDIAN, PcapNgFramer.SIMPLE_PACKET_BLOCK, body.array());
+
+        final Pcap pcap = Pcap.openStream(new ByteArrayInputStream(out.toByteArray()));
+        final List<Packet> packets = new ArrayList<>();
+        pcap.loop(packet -> packets.add(packet));
+        assertThat(packets.size(), is(1));
+        assertThat(packets.get(0).getArrivalTime(), is(0L));
+        assertThat(packets.get(0).hasProtocol(Protocol.SIP), is(true));
+    }
+
+    @Test(expected = FramingException.class)
+    public void testInvalidBlockLength() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSectionHeader(out, ByteOrder.LITTLE_ENDIAN);
+        writeInterface(out, ByteOrder.LITTLE_ENDIAN, 6);
+        final ByteBuffer block = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        block.putInt((int) PcapNgFramer.ENHANCED_PACKET_BLOCK);
+        block.putInt(13);
+        block.putInt(13);
+        out.write(block.array());
+
+        final Pcap pcap = Pcap.openStream(new ByteArrayInputStream(out.toByteArray()));
+        pcap.loop(packet -> true);
+    }
+
+    private void assertPackets(final Pcap pcap) throws Exception {
+        final List<Packet> packets = new ArrayList<>();
+        pcap.loop(packet -> packets.add(packet));
+        pcap.close();
+
+        assertThat(packets.size(), is(30));
+        for (int i = 0; i < packets.size(); ++i) {
+            final Object[] record = this.records.get(i);
+            final long expected = (Long) record[0] * 1000000L + (Long) record[1];
+            final Packet packet = packets.get(i);
+            assertThat(packet.getArrivalTime(), is(expected));
+            assertThat(packet.getPayload().getArray(), is((byte[]) record[2]));
+            assertThat(packet.hasProtocol(Protocol.SIP), is(true));
+        }
+    }
+
+    /**
+     * Convert sipp.pcap into a pcapng.
+     *
+     * @param multipleInterfaces
+     *            if true, a second interface with nanosecond resolution is
+     *            added and every other packet is written to it. In between
+     *            the packets, some blocks unknown to the framer are written as
+     *            well.
+     */
+    private byte[] convert(final ByteOrder byteOrder, final boolean multipleInterfaces) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSectionHeader(out, byteOrder);
+        writeInterface(out, byteOrder, 6);
+        if (multipleInterfaces) {
+            writeBlock(out, byteOrder, 0x0BADL, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            writeInterface(out, byteOrder, 9);
+        }
+
+        for (int i = 0; i < this.records.size(); ++i) {
+            final Object[] record = this.records.get(i);
+            final int iface = multipleInterfaces ? i % 2 : 0;
+            final long unitsPerSecond = iface == 0 ? 1000000L : 1000000000L;
+            final long subSeconds = iface == 0 ? (Long) record[1] : (Long) record[1] * 1000L;
+            final long timestamp = (Long) record[0] * unitsPerSecond + subSeconds;
+            final byte[] data = (byte[]) record[2];
+
+            final ByteBuffer body = ByteBuffer.allocate(20 + pad(data.length)).order(byteOrder);
+            body.putInt(iface);
+            body.putInt((int) (timestamp >>> 32));
+            body.putInt((int) timestamp);
+            body.putInt(data.length);
+            body.putInt(data.length);
+            body.put(data);
+            writeBlock(out, byteOrder, PcapNgFramer.ENHANCED_PACKET_BLOCK, body.array());
+
+            if (multipleInterfaces) {
+                // a name resolution block, which we don't care about
+                writeBlock(out, byteOrder, 4, new byte[4]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeSectionHeader(final ByteArrayOutputStream out, final ByteOrder byteOrder)
+            throws Exception {
+        final ByteBuffer body = ByteBuffer.allocate(16).order(byteOrder);
+        body.putInt(0x1A2B3C4D);
+        body.putShort((short) 1);
+        body.putShort((short) 0);
+        body.putLong(-1);
+        writeBlock(out, byteOrder, PcapNgFramer.SECTION_HEADER_BLOCK, body.array());
+    }
+
+    private static void writeInterface(final ByteArrayOutputStream out, final ByteOrder byteOrder,
+            final int resolution) throws Exception {
+        final ByteBuffer body = ByteBuffer.allocate(20).order(byteOrder);
+        body.putShort((short) 1); // ethernet
+        body.putShort((short) 0);
+        body.putInt(65535);
+        body.putShort((short) 9); // if_tsresol
+        body.putShort((short) 1);
+        body.put((byte) resolution);
+        body.put(new byte[3]);
+        body.putInt(0); // opt_endofopt
+        writeBlock(out, byteOrder, PcapNgFramer.INTERFACE_DESCRIPTION_BLOCK, body.array());
+    }
+
+    private static void writeBlock(final ByteArrayOutputStream out, final ByteOrder byteOrder, final long type,
+            final byte[] body) throws Exception {
+        final ByteBuffer block = ByteBuffer.allocate(12 + body.length).order(byteOrder);
+        block.putInt((int) type);
+        block.putInt(block.capacity());
+        block.put(body);
+        block.putInt(block.capacity());
+        out.write(block.array());
+    }
+
+    private static int pad(final int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static List<Object[]> readRecords(final String resource) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream is = PktsTestBase.class.getResourceAsStream(resource)) {
+            final byte[] chunk = new byte[4096];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+        }
+
+        // sipp.pcap is little endian
+        final ByteBuffer pcap = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        pcap.position(24);
+        final List<Object[]> records = new ArrayList<>();
+        while (pcap.hasRemaining()) {
+            final long seconds = pcap.getInt() & 0xFFFFFFFFL;
+            final long micros = pcap.getInt() & 0xFFFFFFFFL;
+            final int captured = pcap.getInt();
+            pcap.getInt();
+            final byte[] data = new byte[captured];
+            pcap.get(data);
+            records.add(new Object[] { seconds, micros, data });
+        }
+        return records;
+    }
+
+}
@@ -0,0 +1,322 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.packet.Packet;
+import io.pkts.packet.UDPPacket;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.packet.rtcp.RtcpPacket;
+import io.pkts.packet.rtcp.impl.RtcpPacketImpl;
+import io.pkts.protocol.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class RTCPFramerTest extends PktsTestBase {
+
+    private RTCPFramer framer;
+
+    /**
+     * A SR with one report block followed by a SDES with a CNAME.
+     */
+    private byte[] compound;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.framer = new RTCPFramer();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSenderReport(out);
+        writeSdes(out, "alice@example.com");
+        this.compound = out.toByteArray();
+    }
+
+    @Test
+    public void testAccept() throws Exception {
+        assertThat(this.framer.accept(Buffers.wrap(this.compound)), is(true));
+        assertThat(new RTPFramer().accept(Buffers.wrap(this.compound)), is(false));
+
+        // the lengths no longer add up
+        assertThat(this.framer.accept(Buffers.wrap(Arrays.copyOf(this.compound, this.compound.length - 4))),
+                is(false));
+        assertThat(this.framer.accept(Buffers.wrap(Arrays.copyOf(this.compound, this.compound.length + 4))),
+                is(false));
+
+        // wrong version and a packet type that isn't RTCP
+        final byte[] version = this.compound.clone();
+        version[0] = 0x41;
+        assertThat(this.framer.accept(Buffers.wrap(version)), is(false));
+        final byte[] type = this.compound.clone();
+        type[1] = 0;
+        assertThat(this.framer.accept(Buffers.wrap(type)), is(false));
+        assertThat(this.framer.accept(Buffers.wrap(new byte[] { (byte) 0x80, (byte) 200 })), is(false));
+    }
+
+    /**
+     * A compound packet must start with a SR or RR and only its last packet
+     * may be padded, but a reduced-size RTCP packet is a single packet of any
+     * type.
+     */
+    @Test
+    public void testAcceptCompoundRules() throws Exception {
+        final ByteArrayOutputStream sdesFirst = new ByteArrayOutputStream();
+        writeSdes(sdesFirst, "alice@example.com");
+        assertThat(this.framer.accept(Buffers.wrap(sdesFirst.toByteArray())), is(true));
+        writeSenderReport(sdesFirst);
+        assertThat(this.framer.accept(Buffers.wrap(sdesFirst.toByteArray())), is(false));
+
+        final byte[] paddedFirst = this.compound.clone();
+        paddedFirst[0] |= 0x20;
+        assertThat(this.framer.accept(Buffers.wrap(paddedFirst)), is(false));
+
+        final byte[] paddedLast = this.compound.clone();
+        paddedLast[52] |= 0x20;
+        assertThat(this.framer.accept(Buffers.wrap(paddedLast)), is(true));
+    }
+
+    @Test
+    public void testSenderReport() throws Exception {
+        final RtcpPacket rtcp = frame(this.compound);
+        assertThat(rtcp.getCount(), is(2));
+        assertThat(rtcp.getPacketType(0), is(RtcpPacket.SR));
+        assertThat(rtcp.getReportCount(0), is(1));
+        assertThat(rtcp.getLength(0), is(52));
+        assertThat(rtcp.getSsrc(0), is(0xDEADBEEFL));
+        assertThat(rtcp.getNtpTimestamp(0), is(0x0102030405060708L));
+        assertThat(rtcp.getRtpTimestamp(0), is(160000L));
+        assertThat(rtcp.getSenderPacketCount(0), is(1000L));
+        assertThat(rtcp.getSenderOctetCount(0), is(160000L));
+
+        assertThat(rtcp.getReportSsrc(0, 0), is(0xCAFEBABEL));
+        assertThat(rtcp.getFractionLost(0, 0), is(64));
+        assertThat(rtcp.getCumulativeLost(0, 0), is(-2));
+        assertThat(rtcp.getExtendedHighestSequenceNumber(0, 0), is(0x10005L));
+        assertThat(rtcp.getJitter(0, 0), is(37L));
+        assertThat(rtcp.getLastSr(0, 0), is(0x03040506L));
+        assertThat(rtcp.getDelaySinceLastSr(0, 0), is(65536L));
+    }
+
+    @Test
+    public void testSdes() throws Exception {
+        final RtcpPacket rtcp = frame(this.compound);
+        assertThat(rtcp.getPacketType(1), is(RtcpPacket.SDES));
+        assertThat(rtcp.getSsrc(1), is(0xDEADBEEFL));
+        assertThat(rtcp.getSdesItem(1, RtcpPacket.SDES_CNAME).toString(), is("alice@example.com"));
+        assertThat(rtcp.getSdesItem(1, 2), nullValue());
+    }
+
+    @Test
+    public void testByeAndExtendedReport() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(this.compound);
+
+        // XR with a receiver reference time block (4) and a VoIP metrics
+        // block (7), which we only care about the header of
+        writeHeader(out, 0, RtcpPacket.XR, 1 + 3 + 9);
+        writeInt(out, 0xDEADBEEF);
+        writeInt(out, 4 << 24 | 2);
+        writeInt(out, 1);
+        writeInt(out, 2);
+        writeInt(out, 7 << 24 | 8);
+        for (int i = 0; i < 8; ++i) {
+            writeInt(out, i);
+        }
+
+        writeHeader(out, 2, RtcpPacket.BYE, 2);
+        writeInt(out, 0xDEADBEEF);
+        writeInt(out, 0x12345678);
+
+        final RtcpPacket rtcp = frame(out.toByteArray());
+        assertThat(rtcp.getCount(), is(4));
+        assertThat(rtcp.getPacketType(2), is(RtcpPacket.XR));
+        final Buffer voip = rtcp.getXrBlock(2, 7);
+        assertThat(voip.getReadableBytes(), is(36));
+        assertThat(voip.getInt(32), is(7));
+        assertThat(rtcp.getXrBlock(2, 4).getReadableBytes(), is(12));
+        assertThat(rtcp.getXrBlock(2, 5), nullValue());
+
+        assertThat(rtcp.getPacketType(3), is(RtcpPacket.BYE));
+        assertThat(rtcp.getReportCount(3), is(2));
+        assertThat(rtcp.getByeSsrc(3, 0), is(0xDEADBEEFL));
+        assertThat(rtcp.getByeSsrc(3, 1), is(0x12345678L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongPacketType() throws Exception {
+        frame(this.compound).getSenderPacketCount(1);
+    }
+
+    /**
+     * A SR that claims to have more report blocks than it has room for is not
+     * RTCP, and if it is framed anyway, the report blocks that aren't there
+     * cannot be read.
+     */
+    @Test
+    public void testTooManyReportBlocks() throws Exception {
+        final byte[] data = this.compound.clone();
+        data[0] = (byte) 0x82;
+        assertThat(this.framer.accept(Buffers.wrap(data)), is(false));
+
+        final UDPPacket udp = (UDPPacket) udpFrame(data, 40005).getPacket(Protocol.UDP);
+        final RtcpPacket rtcp = new RtcpPacketImpl(udp, Buffers.wrap(data), new int[] { 0, 52, data.length });
+        assertThat(rtcp.getReportSsrc(0, 0), is(0xCAFEBABEL));
+        try {
+            rtcp.getReportSsrc(0, 1);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (final IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testNoSuchPacket() throws Exception {
+        frame(this.compound).getPacketType(2);
+    }
+
+    /**
+     * A compound RTCP packet on a port no one told us anything about is found
+     * by the heuristics before RTP gets a chance.
+     */
+    @Test
+    public void testDispatch() throws Exception {
+        final Packet udp = udpFrame(this.compound, 40001).getPacket(Protocol.UDP);
+        assertThat(udp.getPacket(Protocol.RTP), nullValue());
+        final RtcpPacket rtcp = (RtcpPacket) udp.getPacket(Protocol.RTCP);
+        assertThat(rtcp.getCount(), is(2));
+        assertThat(rtcp.getParentPacket(), instanceOf(UDPPacket.class));
+        assertThat(rtcp.getSdesItem(1, RtcpPacket.SDES_CNAME).toString(), is("alice@example.com"));
+    }
+
+    /**
+     * With rtcp-mux the RTCP is sent to the port that we were told carries
+     * RTP, see RFC 5761.
+     */
+    @Test
+    public void testDispatchRtcpMux() throws Exception {
+        final Packet udp = udpFrame(this.compound, 40003).getPacket(Protocol.UDP);
+        FramerManager.getInstance().addFlowHint("127.0.0.1", 40003, Protocol.RTP, 0);
+        try {
+            assertThat(udp.getPacket(Protocol.RTCP), instanceOf(RtcpPacket.class));
+        } finally {
+            FramerManager.getInstance().clearFlowHints();
+        }
+    }
+
+    private RtcpPacket frame(final byte[] data) throws Exception {
+        final UDPPacket udp = (UDPPacket) udpFrame(this.compound, 40005).getPacket(Protocol.UDP);
+        return this.framer.frame(udp, Buffers.wrap(data));
+    }
+
+    private static void writeSenderReport(final ByteArrayOutputStream out) {
+        writeHeader(out, 1, RtcpPacket.SR, 12);
+        writeInt(out, 0xDEADBEEF);
+        writeInt(out, 0x01020304);
+        writeInt(out, 0x05060708);
+        writeInt(out, 160000);
+        writeInt(out, 1000);
+        writeInt(out, 160000);
+
+        writeInt(out, 0xCAFEBABE);
+        writeInt(out, 64 << 24 | 0xFFFFFE);
+        writeInt(out, 0x10005);
+        writeInt(out, 37);
+        writeInt(out, 0x03040506);
+        writeInt(out, 65536);
+    }
+
+    private static void writeSdes(final ByteArrayOutputStream out, final String cname) {
+        // the SSRC, the CNAME item and at least one null octet to end the
+        // chunk, padded to 32 bits
+        final int chunk = 4 + 2 + cname.length() + 1;
+        final int words = (chunk + 3) / 4;
+        writeHeader(out, 1, RtcpPacket.SDES, words);
+        writeInt(out, 0xDEADBEEF);
+        out.write(RtcpPacket.SDES_CNAME);
+        out.write(cname.length());
+        out.write(cname.getBytes(), 0, cname.length());
+        for (int i = chunk - 1; i < words * 4; ++i) {
+            out.write(0);
+        }
+    }
+
+    private static void writeHeader(final ByteArrayOutputStream out, final int count, final int type,
+            final int words) {
+        out.write(0x80 | count);
+        out.write(type);
+        out.write(words >> 8);
+        out.write(words);
+    }
+
+    private static void writeInt(final ByteArrayOutputStream out, final int value) {
+        out.write(value >> 24);
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    /**
+     * Replace the UDP payload of the first SIP message in sipp.pcap, which is
+     * sent over IPv4 without options, and have it sent to the given port on
+     * 127.0.0.1.
+     */
+    private static PCapPacketImpl udpFrame(final byte[] payload, final int port) throws IOException {
+        final byte[] sip = firstSipFrame();
+        final byte[] frame = Arrays.copyOf(sip, 42 + payload.length);
+        System.arraycopy(payload, 0, frame, 42, payload.length);
+        final int ipLength = 28 + payload.length;
+        frame[16] = (byte) (ipLength >> 8);
+        frame[17] = (byte) ipLength;
+        frame[30] = 127;
+        frame[31] = 0;
+        frame[32] = 0;
+        frame[33] = 1;
+        frame[34] = (byte) (port >> 8);
+        frame[35] = (byte) port;
+        frame[36] = (byte) (port >> 8);
+        frame[37] = (byte) port;
+        frame[38] = (byte) (ipLength - 20 >> 8);
+        frame[39] = (byte) (ipLength - 20);
+        frame[40] = 0;
+        frame[41] = 0;
+        return new PCapPacketImpl(PcapRecordHeader.createDefaultHeader(0), Buffers.wrap(frame));
+    }
+
+    private static byte[] firstSipFrame() throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("sipp.pcap"));
+        pcap.loop(packet -> {
+            if (packet.hasProtocol(Protocol.SIP)) {
+                frames.add(packet.getPayload().getArray());
+                return false;
+            }
+            return true;
+        });
+        pcap.close();
+        return frames.get(0);
+    }
+
+}
@@ -0,0 +1,240 @@
+/**
+ *
+ */
+package io.pkts.framer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import io.pkts.Clock;
+import io.pkts.Pcap;
+import io.pkts.PktsTestBase;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.packet.TCPPacket;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.packet.sip.SipPacket;
+import io.pkts.packet.sip.impl.SipMessageStreamBuilder.DefaultConfiguration;
+import io.pkts.protocol.Protocol;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class TCPReassemblerTest extends PktsTestBase {
+
+    /**
+     * Where the TCP header starts in the frames of fragmented_tcp_sip.pcap.
+     */
+    private static final int TCP = 14 + 20;
+
+    /**
+     * The capture time, in microseconds.
+     */
+    private long now;
+
+    private final Clock clock = () -> this.now;
+
+    private TCPReassembler reassembler;
+
+    /**
+     * The raw frames of fragmented_tcp_sip.pcap, which is a call over a
+     * single TCP connection where the INVITE is split across three segments.
+     */
+    private List<byte[]> frames;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.now = 0;
+        this.reassembler = createReassembler(64 * 1024);
+        this.frames = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(PktsTestBase.class.getResourceAsStream("fragmented_tcp_sip.pcap"));
+        pcap.loop(packet -> this.frames.add(packet.getPayload().getArray()));
+        pcap.close();
+    }
+
+    @Test
+    public void testReassemble() throws Exception {
+        final List<SipPacket> messages = reassemble(this.frames);
+        assertMessages(messages);
+        assertThat(this.reassembler.getMessages(), is(6L));
+        assertThat(this.reassembler.getTrimmedBytes(), is(0L));
+
+        // both sides closed the connection
+        assertThat(this.reassembler.getFlows(), is(0));
+    }
+
+    /**
+     * The segments of the INVITE arrive in the wrong order.
+     */
+    @Test
+    public void testOutOfOrder() throws Exception {
+        final List<byte[]> frames = new ArrayList<>(this.frames);
+        Collections.swap(frames, 3, 7);
+        final List<SipPacket> messages = reassemble(frames);
+        assertMessages(messages);
+    }
+
+    /**
+     * The second segment of the INVITE is sent twice, and one of the
+     * segments of the INVITE overlaps with the one before it.
+     */
+    @Test
+    public void testRetransmission() throws Exception {
+        final List<byte[]> frames = new ArrayList<>(this.frames);
+        frames.add(6, frames.get(5));
+        frames.set(8, overlap(frames.get(5), frames.get(8), 100));
+
+        assertMessages(reassemble(frames));
+        assertThat(this.reassembler.getTrimmedBytes(), is(1448L + 100L));
+    }
+
+    /**
+     * The 180 Ringing and the 200 OK are sent in one segment.
+     */
+    @Test
+    public void testTwoMessagesInOneSegment() throws Exception {
+        final List<byte[]> frames = new ArrayList<>(this.frames);
+        frames.set(9, append(frames.get(9), frames.remove(10)));
+        assertMessages(reassemble(frames));
+    }
+
+    /**
+     * The first segment of the INVITE is lost, so the flow holds back the
+     * other two, which is more than we allow.
+     */
+    @Test
+    public void testMaxFlowBytes() throws Exception {
+        this.reassembler = createReassembler(2048);
+        final List<byte[]> frames = new ArrayList<>(this.frames);
+        frames.remove(3);
+        final List<SipPacket> messages = reassemble(frames);
+        assertThat(this.reassembler.getDroppedFlows(), is(1L));
+
+        // the flow of the client is picked up again at the ACK
+        assertThat(messages.size(), is(5));
+        assertThat(messages.get(0).getInitialLine().toString(), is("SIP/2.0 180 Ringing"));
+        assertThat(messages.get(2).isAck(), is(true));
+    }
+
+    /**
+     * With room for a single flow, the server side of the connection pushes
+     * out the client side.
+     */
+    @Test
+    public void testMaxFlows() throws Exception {
+        this.reassembler = createReassembler(64 * 1024, 1);
+        reassemble(this.frames.subList(0, 2));
+        assertThat(this.reassembler.getFlows(), is(1));
+        assertThat(this.reassembler.getEvictedFlows(), is(1L));
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        reassemble(this.frames.subList(0, 4));
+        assertThat(this.reassembler.getFlows(), is(2));
+
+        this.now += 300000001;
+        this.reassembler.expire();
+        assertThat(this.reassembler.getFlows(), is(0));
+        assertThat(this.reassembler.getExpiredFlows(), is(2L));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        reassemble(this.frames.subList(0, 4));
+        assertThat(this.reassembler.getFlows(), is(2));
+
+        final byte[] rst = Arrays.copyOf(this.frames.get(2), this.frames.get(2).length);
+        rst[TCP + 13] = 0x04;
+        reassemble(Collections.singletonList(rst));
+        assertThat(this.reassembler.getFlows(), is(0));
+    }
+
+    private static void assertMessages(final List<SipPacket> messages) throws Exception {
+        assertThat(messages.size(), is(6));
+        assertThat(messages.get(0).isInvite(), is(true));
+        assertThat(messages.get(0).toBuffer().getReadableBytes(), is(5155));
+        assertThat(messages.get(0).getCallIDHeader().getValue().toString(), is(
+                messages.get(5).getCallIDHeader().getValue().toString()));
+        assertThat(messages.get(1).getInitialLine().toString(), is("SIP/2.0 180 Ringing"));
+        assertThat(messages.get(2).getInitialLine().toString(), is("SIP/2.0 200 OK"));
+        assertThat(messages.get(3).isAck(), is(true));
+        assertThat(messages.get(4).isBye(), is(true));
+        assertThat(messages.get(5).getInitialLine().toString(), is("SIP/2.0 200 OK"));
+    }
+
+    private TCPReassembler createReassembler(final int maxFlowBytes) {
+        return createReassembler(maxFlowBytes, 10000);
+    }
+
+    private TCPReassembler createReassembler(final int maxFlowBytes, final int maxFlows) {
+        final DefaultConfiguration config = new DefaultConfiguration();
+        config.setMaxAllowedHeadersSize(16 * 1024);
+        return new TCPReassembler(this.clock, Duration.ofMinutes(5), maxFlowBytes, maxFlows, config);
+    }
+
+    private List<SipPacket> reassemble(final List<byte[]> frames) throws IOException {
+        final List<SipPacket> messages = new ArrayList<>();
+        for (final byte[] frame : frames) {
+            final PCapPacketImpl pcap = new PCapPacketImpl(PcapRecordHeader.createDefaultHeader(0), Buffers.wrap(frame));
+            messages.addAll(this.reassembler.reassemble((TCPPacket) pcap.getPacket(Protocol.TCP)));
+        }
+        return messages;
+    }
+
+    private static int getDataOffset(final byte[] frame) {
+        return TCP + ((frame[TCP + 12] & 0xF0) >> 4) * 4;
+    }
+
+    /**
+     * Move the start of the segment back so that it overlaps with the end of
+     * the previous one.
+     */
+    private static byte[] overlap(final byte[] previous, final byte[] frame, final int count) {
+        final int start = getDataOffset(frame);
+        final byte[] result = new byte[frame.length + count];
+        System.arraycopy(frame, 0, result, 0, start);
+        System.arraycopy(previous, previous.length - count, result, start, count);
+        System.arraycopy(frame, start, result, start + count, frame.length - start);
+        setTotalLength(result, result.length - 14);
+
+        final long sequenceNumber = ((frame[TCP + 4] & 0xFFL) << 24 | (frame[TCP + 5] & 0xFF) << 16
+                | (frame[TCP + 6] & 0xFF) << 8 | frame[TCP + 7] & 0xFF) - count;
+        result[TCP + 4] = (byte) (sequenceNumber >> 24);
+        result[TCP + 5] = (byte) (sequenceNumber >> 16);
+        result[TCP + 6] = (byte) (sequenceNumber >> 8);
+        result[TCP + 7] = (byte) sequenceNumber;
+        return result;
+    }
+
+    /**
+     * Add the payload of the second frame to the first one.
+     */
+    private static byte[] append(final byte[] frame, final byte[] other) {
+        final int start = getDataOffset(other);
+        final byte[] result = Arrays.copyOf(frame, frame.length + other.length - start);
+        System.arraycopy(other, start, result, frame.length, other.length - start);
+        setTotalLength(result, result.length - 14);
+        return result;
+    }
+
+    private static void setTotalLength(final byte[] frame, final int length) {
+        frame[14 + 2] = (byte) (length >> 8);
+        frame[14 + 3] = (byte) length;
+    }
+
+}
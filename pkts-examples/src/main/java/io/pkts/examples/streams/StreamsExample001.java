@@ -75,5 +75,9 @@ public final class StreamsExample001 {
         // Step 4 - Call the loop function as usual but pass in the StreamHandler
         //          instead of your own "raw" FrameHandler.
         pcap.loop(streamHandler);
+
+        // Step 5 - Tell the StreamHandler there are no more packets so that
+        //          the streams still going get their endStream.
+        streamHandler.flush();
     }
 }
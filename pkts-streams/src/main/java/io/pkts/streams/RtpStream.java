@@ -15,14 +15,66 @@ import io.pkts.packet.rtp.RtpPacket;
  */
 public interface RtpStream extends Stream<RtpPacket> {
 
+    /**
+     * The interarrival jitter is calculated as described in RFC 3550 section
+     * 6.4.1 as the packets arrive and this is the highest value it has had.
+     *
+     * @return the max jitter in microseconds.
+     */
     long getMaxJitter();
 
+    /**
+     * @return the average of the interarrival jitter, as it was after each
+     *         packet, in microseconds.
+     */
     long getMeanJitter();
 
+    /**
+     * @return the longest time between two consecutive packets, in
+     *         microseconds.
+     */
     long getMaxDelta();
 
+    /**
+     * The number of packets we expected, based on the extended sequence
+     * numbers, but never saw, see RFC 3550 appendix A.3.
+     *
+     * @return
+     */
     long getLostPackets();
 
+    /**
+     * The number of packets that didn't carry the sequence number following
+     * the highest one seen so far, i.e., gaps, packets out of order,
+     * duplicates and jumps in the sequence numbers.
+     *
+     * @return
+     */
     long getSequenceErrors();
 
+    /**
+     * @return the number of packets received, including duplicates.
+     */
+    long getReceivedPackets();
+
+    /**
+     * @return the number of packets the sequence numbers say should have been
+     *         sent.
+     */
+    long getExpectedPackets();
+
+    /**
+     * Duplicates are only detected among the 64 sequence numbers below the
+     * highest one seen so far.
+     *
+     * @return the number of packets we have already seen.
+     */
+    long getDuplicatePackets();
+
+    /**
+     * @return the number of packets that arrived after one with a higher
+     *         sequence number.
+     */
+    long getOutOfOrderPackets();
+
 }
@@ -31,7 +31,9 @@ public interface StreamHandler extends PacketHandler {
     /**
      * Set the {@link FragmentListener}. Note, only one of these listeners is
      * allowed so if you set a second one the previous listener will be thrown
-     * away.
+     * away. Without a listener, fragmented IP packets are reassembled by the
+     * {@link io.pkts.framer.IPv4Reassembler} and
+     * {@link io.pkts.framer.IPv6Reassembler}.
      * 
      * @param listener
      *            the listener or null if you want to remove a previously set
@@ -64,5 +66,20 @@ public interface StreamHandler extends PacketHandler {
      */
     Map<StreamId, ? extends Stream> getStreams();
 
+    /**
+     * Tell the {@link StreamHandler} that there are no more packets, which
+     * ends the RTP streams that are still going through
+     * {@link StreamListener#endStream(Stream)}. Without it, a RTP stream only
+     * ends once it has been idle for a while, which is measured by the time
+     * of the capture and so never happens after the last packet. The SIP
+     * streams that are left are still available through {@link #getStreams()}.
+     * 
+     * Nothing calls this for you, {@link io.pkts.Pcap#loop} included, so call
+     * it once the loop is done. By default it does nothing.
+     */
+    default void flush() {
+        // nothing to flush by default
+    }
+
 
 }
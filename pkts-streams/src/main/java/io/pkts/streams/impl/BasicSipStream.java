@@ -49,9 +49,22 @@ public class BasicSipStream implements SipStream {
      * 
      */
     public BasicSipStream(final PcapGlobalHeader globalHeader, final StreamId streamIdentifier) {
+        this(globalHeader, streamIdentifier, false);
+    }
+
+    /**
+     * 
+     * @param globalHeader
+     * @param streamIdentifier
+     * @param summary
+     *            whether to only keep a summary of the call, in which case
+     *            there are no packets to get, write or save but the call
+     *            state, post dial delay, duration etc are still available.
+     */
+    public BasicSipStream(final PcapGlobalHeader globalHeader, final StreamId streamIdentifier, final boolean summary) {
         this.globalHeader = globalHeader;
         this.streamIdentifier = streamIdentifier;
-        this.fsm = new SimpleCallStateMachine(this.streamIdentifier.asString());
+        this.fsm = new SimpleCallStateMachine(this.streamIdentifier.asString(), summary);
     }
 
     @Override
@@ -63,6 +76,21 @@ public class BasicSipStream implements SipStream {
         return this.fsm.isTerminated();
     }
 
+    /**
+     * @return the status of the first final response to the INVITE or -1 if
+     *         there was none.
+     */
+    public int getFinalStatus() {
+        return this.fsm.getFinalStatus();
+    }
+
+    /**
+     * @return the number of re-transmissions detected.
+     */
+    public int getReTransmissions() {
+        return this.fsm.getReTransmissions();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -152,7 +180,7 @@ public class BasicSipStream implements SipStream {
 
     @Override
     public SipStream createEmptyClone() {
-        return new BasicSipStream(this.globalHeader, this.streamIdentifier);
+        return new BasicSipStream(this.globalHeader, this.streamIdentifier, this.fsm.isSummary());
     }
 
     @Override
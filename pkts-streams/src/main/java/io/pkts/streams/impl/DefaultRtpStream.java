@@ -1,5 +1,5 @@
 /**
- * 
+ *
  */
 package io.pkts.streams.impl;
 
@@ -11,73 +11,388 @@ import io.pkts.streams.StreamId;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.NavigableSet;
-import java.util.TreeSet;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * The statistics are calculated as the packets arrive, following RFC 3550
+ * appendix A.1 and A.8, and only take a handful of fields no matter how long
+ * the stream is. Whether, and how, the packets themselves are kept around is
+ * up to the creator of the stream, see {@link Storage}.
+ *
  * @author jonas@jonasborjesson.com
- * 
+ *
  */
 public final class DefaultRtpStream implements RtpStream {
 
-    private static final Logger logger = LoggerFactory.getLogger(DefaultRtpStream.class);
+    /**
+     * How a {@link DefaultRtpStream} keeps its packets.
+     */
+    public enum Storage {
+        /**
+         * The packets are not kept, only the statistics.
+         */
+        NONE,
+
+        /**
+         * The {@link RtpPacket}s are kept as they are.
+         */
+        PACKETS,
+
+        /**
+         * The fields of the RTP header and the captured frames are kept in
+         * primitive arrays and the {@link RtpPacket}s are framed again when
+         * asked for, which takes a fraction of the memory.
+         */
+        COMPACT
+    }
+
+    /**
+     * A jump in sequence numbers this large is treated as the stream having
+     * restarted, if the next packet follows the new sequence number, see RFC
+     * 3550 appendix A.1.
+     */
+    private static final int MAX_DROPOUT = 3000;
+
+    /**
+     * A packet with a sequence number this much below the highest one is
+     * considered out of order, anything further back is a jump.
+     */
+    private static final int MAX_MISORDER = 100;
+
+    /**
+     * The clock rate we use when the payload type doesn't tell us, which
+     * is what most audio codecs use.
+     */
+    private static final int DEFAULT_CLOCK_RATE = 8000;
 
     private final PcapGlobalHeader globalHeader;
 
+    /**
+     * The unit of the arrival time of the packets, as told by the header.
+     */
+    private final TimeUnit timeUnit;
+
     private final LongStreamId ssrc;
 
-    private final NavigableSet<RtpPacket> packets;
+    private final Storage storage;
+
+    /**
+     * The packets, in the order they were added, if we keep them as they are.
+     */
+    private final List<RtpPacket> packets;
+
+    /**
+     * Whether the packets were added in the order they arrived.
+     */
+    private boolean sorted = true;
+
+    /**
+     * The packets, if we keep them compact.
+     */
+    private final RtpPacketStore store;
+
+    private long timeOfFirstPacket = -1;
+
+    private long timeOfLastPacket = -1;
+
+    private long received;
+
+    private long duplicates;
+
+    private long outOfOrder;
+
+    private long sequenceErrors;
+
+    private long maxDelta;
+
+    /**
+     * The packets that moved the sequence numbers forward or filled a gap.
+     */
+    private long valid;
 
     /**
-     * 
+     * The packets expected before the sequence numbers restarted.
+     */
+    private long priorExpected;
+
+    private int baseSeq;
+
+    private int maxSeq;
+
+    private int badSeq = -1;
+
+    private long cycles;
+
+    /**
+     * Bit n is set if we have seen the sequence number n below maxSeq.
+     */
+    private long window;
+
+    private int clockRate;
+
+    /**
+     * The arrival time of the previous packet in RTP timestamp units, counting
+     * from the first packet.
+     */
+    private long lastArrival;
+
+    private long lastTimestamp;
+
+    /**
+     * The jitter in RTP timestamp units, scaled by 16 as in RFC 3550 A.8.
+     */
+    private long jitter;
+
+    private long maxJitter;
+
+    private long jitterSum;
+
+    private long jitterSamples;
+
+    /**
+     * Same as {@link #DefaultRtpStream(PcapGlobalHeader, long, Storage)} and
+     * the stream will keep all of its packets as they are.
      */
     public DefaultRtpStream(final PcapGlobalHeader globalHeader, final long ssrc) {
+        this(globalHeader, ssrc, Storage.PACKETS);
+    }
+
+    /**
+     *
+     * @param globalHeader
+     *            the link type of the captured frames, which is needed to
+     *            frame the packets again when they are stored
+     *            {@link Storage#COMPACT}, and whether their arrival times are
+     *            in nanoseconds.
+     * @param ssrc
+     * @param storage
+     *            how the packets should be kept, which is needed for
+     *            {@link #getPackets()}. The statistics do not need them.
+     */
+    public DefaultRtpStream(final PcapGlobalHeader globalHeader, final long ssrc, final Storage storage) {
+        if (storage == null) {
+            throw new IllegalArgumentException("The storage cannot be null");
+        }
         this.globalHeader = globalHeader;
+        this.timeUnit = globalHeader != null && globalHeader.timestampsInNs() ? TimeUnit.NANOSECONDS
+                : TimeUnit.MICROSECONDS;
         this.ssrc = new LongStreamId(ssrc);
-        this.packets = new TreeSet<RtpPacket>(new PacketComparator());
+        this.storage = storage;
+        this.packets = storage == Storage.PACKETS ? new ArrayList<RtpPacket>() : null;
+        this.store = storage == Storage.COMPACT ? new RtpPacketStore() : null;
     }
 
-    public void onPacket(final RtpPacket msg) {
+    public void onPacket(final RtpPacket msg) throws IOException {
 
         if (msg == null) {
             return;
         }
 
-        final RtpPacket previousMsg = this.packets.isEmpty() ? null : this.packets.last();
-        this.packets.add(msg);
+        final long time = msg.getArrivalTime();
+        final int seq = msg.getSeqNumber();
+        final long timestamp = msg.getTimestamp();
+
+        if (this.received++ == 0) {
+            this.timeOfFirstPacket = time;
+            this.timeOfLastPacket = time;
+            this.clockRate = getClockRate(msg.getPayloadType());
+            initSequence(seq);
+            this.valid = 1;
+            this.lastTimestamp = timestamp;
+        } else {
+            final long delta = time - this.timeOfLastPacket;
+            if (delta > this.maxDelta) {
+                this.maxDelta = delta;
+            }
+            this.timeOfLastPacket = Math.max(time, this.timeOfLastPacket);
+
+            if (updateSequence(seq)) {
+                updateJitter(time, timestamp);
+            }
+        }
+
+        if (this.packets != null) {
+            if (!this.packets.isEmpty() && time < this.packets.get(this.packets.size() - 1).getArrivalTime()) {
+                this.sorted = false;
+            }
+            this.packets.add(msg);
+        } else if (this.store != null) {
+            this.store.add(msg);
+        }
+    }
+
+    private void initSequence(final int seq) {
+        this.baseSeq = seq;
+        this.maxSeq = seq;
+        this.badSeq = -1;
+        this.cycles = 0;
+        this.window = 1;
+    }
+
+    /**
+     * Update the sequence number state as described in RFC 3550 appendix A.1,
+     * except that the first packet is trusted right away since we are only
+     * looking at a stream someone else has already established.
+     *
+     * @return false if the packet is a duplicate or a jump we don't trust yet.
+     */
+    private boolean updateSequence(final int seq) {
+        final int delta = seq - this.maxSeq & 0xFFFF;
+        if (delta == 0) {
+            ++this.duplicates;
+            ++this.sequenceErrors;
+            return false;
+        }
+
+        if (delta < MAX_DROPOUT) {
+            if (seq < this.maxSeq) {
+                this.cycles += 65536;
+            }
+            if (delta != 1) {
+                ++this.sequenceErrors;
+            }
+            this.window = delta >= 64 ? 1 : this.window << delta | 1;
+            this.maxSeq = seq;
+            ++this.valid;
+            return true;
+        }
+
+        if (delta <= 65536 - MAX_MISORDER) {
+            ++this.sequenceErrors;
+            if (seq != this.badSeq) {
+                this.badSeq = seq + 1 & 0xFFFF;
+                return false;
+            }
+
+            // two packets in sequence after the jump so the sender
+            // restarted the sequence numbers.
+            this.priorExpected += getExtendedMax() - this.baseSeq + 1;
+            initSequence(seq);
+            this.lastTimestamp = -1;
+            ++this.valid;
+            return true;
+        }
+
+        ++this.sequenceErrors;
+        final int back = 65536 - delta;
+        if (back < 64 && (this.window & 1L << back) != 0) {
+            ++this.duplicates;
+            return false;
+        }
+
+        if (back < 64) {
+            this.window |= 1L << back;
+        }
+        ++this.outOfOrder;
+        ++this.valid;
+        return true;
+    }
 
-        if (previousMsg != null && msg.getArrivalTime() < previousMsg.getArrivalTime()) {
-            redrive();
+    /**
+     * Update the interarrival jitter as described in RFC 3550 appendix A.8.
+     */
+    private void updateJitter(final long time, final long timestamp) {
+        final long arrival = this.timeUnit.toMicros(time - this.timeOfFirstPacket) * this.clockRate / 1000000L;
+        if (this.lastTimestamp == -1) {
+            // the RTP timestamps most likely restarted along with the
+            // sequence numbers so there is nothing to compare with
+            this.lastArrival = arrival;
+            this.lastTimestamp = timestamp;
             return;
         }
 
+        // the cast takes care of the RTP timestamp wrapping around
+        long d = arrival - this.lastArrival - (int) (timestamp - this.lastTimestamp);
+        if (d < 0) {
+            d = -d;
+        }
+        this.jitter += d - (this.jitter + 8 >> 4);
+        this.lastArrival = arrival;
+        this.lastTimestamp = timestamp;
+
+        if (this.jitter > this.maxJitter) {
+            this.maxJitter = this.jitter;
+        }
+        this.jitterSum += this.jitter;
+        ++this.jitterSamples;
+    }
+
+    private long getExtendedMax() {
+        return this.cycles + this.maxSeq;
     }
 
     /**
-     * If we merge multiple pcaps we may get packets "arriving" out-of-order. For now, this is a
-     * very simple approach where we just redrive everything, which won't be the most efficient if
-     * you merge a large pcap that was captured before the pcap you already loaded but the merge
-     * command should take care of that and make sure that we merge things in the correct order so
-     * therefore we dont care here...
+     * Convert a jitter, scaled by 16 and in RTP timestamp units, into
+     * microseconds.
      */
-    private void redrive() {
-        // TODO
-        if (logger.isInfoEnabled()) {
-            logger.info("Out-of-sequence event detected. Redriving all traffic.");
+    private long toMicroseconds(final double jitter) {
+        if (this.clockRate == 0) {
+            return 0;
         }
+        return (long) (jitter / 16 * 1000000 / this.clockRate);
+    }
 
+    /**
+     * The clock rates of the static payload types, see RFC 3551. The dynamic
+     * ones (96 - 127) are negotiated in the SDP, through its rtpmap, which we
+     * don't see here, so they get the default of 8000 Hz.
+     */
+    private static int getClockRate(final int payloadType) {
+        switch (payloadType) {
+        case 6:
+            return 16000;
+        case 10:
+        case 11:
+            return 44100;
+        case 14:
+        case 25:
+        case 26:
+        case 28:
+        case 31:
+        case 32:
+        case 33:
+        case 34:
+            return 90000;
+        case 16:
+            return 11025;
+        case 17:
+            return 22050;
+        default:
+            return DEFAULT_CLOCK_RATE;
+        }
     }
 
     /**
      * {@inheritDoc}
+     *
+     * The packets are in the order they arrived, even if several captures
+     * have been merged. If the stream wasn't told to keep its packets this
+     * list is always empty and if they are kept {@link Storage#COMPACT} each
+     * packet is framed when the list is asked for it.
      */
     @Override
     public List<RtpPacket> getPackets() {
-        return new ArrayList<RtpPacket>(this.packets);
+        if (this.store != null) {
+            return this.store.getPackets(this.globalHeader);
+        }
+
+        if (this.packets == null) {
+            return Collections.emptyList();
+        }
+
+        final List<RtpPacket> packets = new ArrayList<RtpPacket>(this.packets);
+        if (!this.sorted) {
+            // a stable sort so packets arriving at the same time are all kept
+            // in the order they were added
+            packets.sort(new PacketComparator());
+        }
+        return packets;
+    }
+
+    public Storage getStorage() {
+        return this.storage;
     }
 
     /**
@@ -85,8 +400,10 @@ public final class DefaultRtpStream implements RtpStream {
      */
     @Override
     public long getDuration() {
-        // TODO Auto-generated method stub
-        return 0;
+        if (this.received < 2) {
+            return -1;
+        }
+        return this.timeOfLastPacket - this.timeOfFirstPacket;
     }
 
     /**
@@ -94,11 +411,7 @@ public final class DefaultRtpStream implements RtpStream {
      */
     @Override
     public long getTimeOfFirstPacket() {
-        if (this.packets.isEmpty()) {
-            return -1;
-        }
-
-        return this.packets.first().getArrivalTime();
+        return this.timeOfFirstPacket;
     }
 
     /**
@@ -106,11 +419,7 @@ public final class DefaultRtpStream implements RtpStream {
      */
     @Override
     public long getTimeOfLastPacket() {
-        if (this.packets.isEmpty()) {
-            return -1;
-        }
-
-        return this.packets.last().getArrivalTime();
+        return this.timeOfLastPacket;
     }
 
     /**
@@ -130,34 +439,91 @@ public final class DefaultRtpStream implements RtpStream {
 
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The jitter is counted in the clock rate of the payload type, which for
+     * a dynamic payload type is assumed to be 8000 Hz since the rtpmap of the
+     * SDP isn't known to the stream. Hence, for e.g. Opus (48000 Hz) or video
+     * (90000 Hz) on a dynamic payload type the RTP timestamps and the arrival
+     * times are counted at different rates and the jitter is way off.
+     */
     @Override
     public long getMaxJitter() {
-        // TODO Auto-generated method stub
-        return 0;
+        return toMicroseconds(this.maxJitter);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Just as for {@link #getMaxJitter()}, a dynamic payload type is assumed
+     * to have a clock rate of 8000 Hz.
+     */
     @Override
     public long getMeanJitter() {
-        // TODO Auto-generated method stub
-        return 0;
+        if (this.jitterSamples == 0) {
+            return 0;
+        }
+        return toMicroseconds((double) this.jitterSum / this.jitterSamples);
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
     public long getMaxDelta() {
-        // TODO Auto-generated method stub
-        return 0;
+        return this.maxDelta;
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
     public long getLostPackets() {
-        // TODO Auto-generated method stub
-        return 0;
+        return Math.max(0, getExpectedPackets() - this.valid);
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
     public long getSequenceErrors() {
-        // TODO Auto-generated method stub
-        return 0;
+        return this.sequenceErrors;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getReceivedPackets() {
+        return this.received;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getExpectedPackets() {
+        if (this.received == 0) {
+            return 0;
+        }
+        return this.priorExpected + getExtendedMax() - this.baseSeq + 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDuplicatePackets() {
+        return this.duplicates;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getOutOfOrderPackets() {
+        return this.outOfOrder;
     }
 
 }
@@ -5,9 +5,15 @@ package io.pkts.streams.impl;
 
 import io.pkts.frame.Frame;
 import io.pkts.framer.FramerManager;
+import io.pkts.framer.IPv4Reassembler;
+import io.pkts.framer.IPv6Reassembler;
+import io.pkts.framer.TCPReassembler;
 import io.pkts.packet.IPPacket;
+import io.pkts.packet.IPv4Packet;
+import io.pkts.packet.IPv6Packet;
 import io.pkts.packet.Packet;
 import io.pkts.packet.PacketParseException;
+import io.pkts.packet.TCPPacket;
 import io.pkts.packet.rtp.RtpPacket;
 import io.pkts.packet.sip.SipPacket;
 import io.pkts.protocol.Protocol;
@@ -22,7 +28,9 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +50,12 @@ public final class DefaultStreamHandler implements StreamHandler {
      */
     private final static Logger logger = LoggerFactory.getLogger(DefaultStreamHandler.class);
 
+    private static final Set<Protocol> IP_SIP_RTP = EnumSet.of(Protocol.IPv4, Protocol.IPv6, Protocol.SIP,
+            Protocol.RTP, Protocol.RTCP);
+
+    private static final Set<Protocol> TCP_SIP_RTP = EnumSet.of(Protocol.TCP, Protocol.SIP, Protocol.RTP,
+            Protocol.RTCP);
+
     /**
      * The {@link FramerManager}
      */
@@ -57,11 +71,35 @@ public final class DefaultStreamHandler implements StreamHandler {
      */
     private RtpStreamHandler rtpStreamHandler;
 
+    /**
+     * Whether the SIP streams only keep a summary of the call.
+     */
+    private boolean sipSummary;
+
+    /**
+     * How the RTP streams keep their packets.
+     */
+    private DefaultRtpStream.Storage rtpStorage = DefaultRtpStream.Storage.NONE;
+
     /**
      * If any IP fragments are detected, then we will consule this listener.
      */
     private FragmentListener fragmentListener;
 
+    /**
+     * If there is no {@link FragmentListener} we reassemble the fragments
+     * ourselves.
+     */
+    private final IPv4Reassembler reassembler = new IPv4Reassembler();
+
+    private final IPv6Reassembler ipv6Reassembler = new IPv6Reassembler();
+
+    /**
+     * SIP over TCP is framed from the reassembled byte streams and not from
+     * the individual segments.
+     */
+    private final TCPReassembler tcpReassembler = new TCPReassembler();
+
     /**
      * 
      */
@@ -77,33 +115,94 @@ public final class DefaultStreamHandler implements StreamHandler {
     public boolean nextPacket(Packet packet) {
 
         try {
-            if (packet.hasProtocol(Protocol.IPv4)) {
-                final IPPacket ip = (IPPacket) packet.getPacket(Protocol.IPv4);
-                if (ip.isFragmented()) {
-                    packet = handleFragmentation(ip);
+            // streams may end on the passing of time alone
+            if (this.sipStreamHandler != null) {
+                this.sipStreamHandler.expire();
+            }
+            if (this.rtpStreamHandler != null) {
+                this.rtpStreamHandler.expire();
+            }
+
+            Packet layer = findLayer(packet, IP_SIP_RTP);
+            if (layer != null && (layer.getProtocol() == Protocol.IPv4 || layer.getProtocol() == Protocol.IPv6)) {
+                if (((IPPacket) layer).isFragmented()) {
+                    packet = handleFragmentation((IPPacket) layer);
                     if (packet == null) {
                         return true;
                     }
+                    layer = packet;
                 }
+                layer = findLayer(layer, TCP_SIP_RTP);
             }
 
-            if (this.sipStreamHandler != null && packet.hasProtocol(Protocol.SIP)) {
+            if (layer == null) {
+                return true;
+            }
+
+            if (layer.getProtocol() == Protocol.TCP) {
+                // SIP over TCP has to be reassembled before it can be framed
+                if (this.sipStreamHandler != null) {
+                    for (final SipPacket msg : this.tcpReassembler.reassemble((TCPPacket) layer)) {
+                        this.sipStreamHandler.processMessage(packet, msg);
+                    }
+                }
+            } else if (this.sipStreamHandler != null && layer.getProtocol() == Protocol.SIP) {
                 this.sipStreamHandler.processFrame(packet);
-            } else if (this.rtpStreamHandler != null && packet.hasProtocol(Protocol.RTP)) {
+            } else if (this.rtpStreamHandler != null && layer.getProtocol() == Protocol.RTP) {
                 this.rtpStreamHandler.processFrame(packet);
+            } else if (this.rtpStreamHandler != null && layer.getProtocol() == Protocol.RTCP) {
+                this.rtpStreamHandler.processRtcp(packet);
             }
-        } catch (final IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
         } catch (final PacketParseException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
+        } catch (final IOException e) {
+            logger.warn("Unable to process the packet", e);
         }
 
         return true;
 
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() {
+        if (this.rtpStreamHandler != null) {
+            this.rtpStreamHandler.flush();
+        }
+    }
+
+    /**
+     * Walk down the protocol stack, starting with the given packet, until we
+     * find any of the protocols we are looking for. Every layer is framed at
+     * most once, which is a lot cheaper than asking
+     * {@link Packet#hasProtocol(Protocol)} for each one of them since every
+     * such call starts over from the top.
+     * 
+     * Just like {@link Packet#hasProtocol(Protocol)}, a layer that can't be
+     * framed is treated as if it isn't there.
+     * 
+     * @param packet
+     * @param protocols
+     * @return the first layer that is any of the protocols or null if none of
+     *         them are present.
+     */
+    private static Packet findLayer(Packet packet, final Set<Protocol> protocols) {
+        try {
+            while (packet != null) {
+                if (protocols.contains(packet.getProtocol())) {
+                    return packet;
+                }
+                packet = packet.getNextPacket();
+            }
+        } catch (final Exception e) {
+            // same as hasProtocol, if we can't frame it, it isn't there.
+        }
+        return null;
+    }
+
     /**
      * To make life easier for the user we will figure out the type of
      * {@link StreamListener} the user passed and based on that setup the
@@ -126,11 +225,13 @@ public final class DefaultStreamHandler implements StreamHandler {
             if (parameterArgClass.equals(SipPacket.class)) {
                 if (this.sipStreamHandler == null) {
                     this.sipStreamHandler = new SipStreamHandler(this.framerManager);
+                    this.sipStreamHandler.setSummary(this.sipSummary);
                 }
                 this.sipStreamHandler.addListener((StreamListener<SipPacket>) listener);
             } else if (parameterArgClass.equals(RtpPacket.class)) {
                 if (this.rtpStreamHandler == null) {
                     this.rtpStreamHandler = new RtpStreamHandler(this.framerManager);
+                    this.rtpStreamHandler.setStorage(this.rtpStorage);
                 }
                 this.rtpStreamHandler.addListener((StreamListener<RtpPacket>) listener);
             }
@@ -158,7 +259,15 @@ public final class DefaultStreamHandler implements StreamHandler {
      */
     private IPPacket handleFragmentation(final IPPacket ipPacket) {
         if (this.fragmentListener == null) {
-            return null;
+            try {
+                if (ipPacket instanceof IPv6Packet) {
+                    return this.ipv6Reassembler.reassemble((IPv6Packet) ipPacket);
+                }
+                return this.reassembler.reassemble((IPv4Packet) ipPacket);
+            } catch (final IOException e) {
+                logger.warn("Unable to reassemble the IP fragment", e);
+                return null;
+            }
         }
         try {
             return this.fragmentListener.handleFragment(ipPacket);
@@ -168,6 +277,36 @@ public final class DefaultStreamHandler implements StreamHandler {
         return null;
     }
 
+    /**
+     * Set whether the SIP streams only keep a summary of the call, i.e. the
+     * state, the times of the key messages and the response codes, instead
+     * of all the messages. By default they keep the messages.
+     *
+     * @param summary
+     */
+    public void setSipSummary(final boolean summary) {
+        this.sipSummary = summary;
+        if (this.sipStreamHandler != null) {
+            this.sipStreamHandler.setSummary(summary);
+        }
+    }
+
+    /**
+     * Set how the RTP streams keep their packets. By default they don't, only
+     * the statistics are calculated, which is enough for most uses.
+     *
+     * @param storage
+     */
+    public void setRtpStorage(final DefaultRtpStream.Storage storage) {
+        if (storage == null) {
+            throw new IllegalArgumentException("The storage cannot be null");
+        }
+        this.rtpStorage = storage;
+        if (this.rtpStreamHandler != null) {
+            this.rtpStreamHandler.setStorage(storage);
+        }
+    }
+
     /**
      * @param listener
      */
@@ -0,0 +1,265 @@
+/**
+ *
+ */
+package io.pkts.streams.impl;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.framer.RTPFramer;
+import io.pkts.packet.Packet;
+import io.pkts.packet.TransportPacket;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.packet.rtp.RtpPacket;
+import io.pkts.protocol.Protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the packets of a RTP stream in a set of growable primitive arrays,
+ * one per field, instead of as a list of {@link RtpPacket}s. The captured
+ * frames are copied, back to back, into one large byte array so the store
+ * never holds on to the buffers of the capture and an {@link RtpPacket} is
+ * only framed again when someone asks for it.
+ *
+ * Note, this class is not thread safe.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class RtpPacketStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final RTPFramer RTP_FRAMER = new RTPFramer();
+
+    private int size;
+
+    private short[] sequenceNumbers = new short[INITIAL_CAPACITY];
+
+    private int[] timestamps = new int[INITIAL_CAPACITY];
+
+    private long[] arrivalTimes = new long[INITIAL_CAPACITY];
+
+    /**
+     * The marker bit and the payload type, just as in the second byte of the
+     * RTP header.
+     */
+    private byte[] markerAndPayloadTypes = new byte[INITIAL_CAPACITY];
+
+    /**
+     * Where in {@link #frames} each frame starts, plus where the next one will
+     * start.
+     */
+    private int[] frameOffsets = new int[INITIAL_CAPACITY + 1];
+
+    private final Frames frames = new Frames();
+
+    /**
+     * Whether the packets were added in the order they arrived, which they
+     * always are unless several captures have been merged.
+     */
+    private boolean sorted = true;
+
+    void add(final RtpPacket rtp) throws IOException {
+        ensureCapacity(this.size + 1);
+
+        final int i = this.size;
+        this.sequenceNumbers[i] = (short) rtp.getSeqNumber();
+        this.timestamps[i] = (int) rtp.getTimestamp();
+        this.arrivalTimes[i] = rtp.getArrivalTime();
+        this.markerAndPayloadTypes[i] = (byte) ((rtp.hasMarker() ? 0x80 : 0) | rtp.getPayloadType());
+        if (i > 0 && this.arrivalTimes[i] < this.arrivalTimes[i - 1]) {
+            this.sorted = false;
+        }
+
+        // the frame is the payload of the pcap record, which is the packet
+        // at the very top.
+        Packet frame = rtp;
+        while (frame.getParentPacket() != null) {
+            frame = frame.getParentPacket();
+        }
+        final Buffer data = frame.getPayload();
+        if (data != null) {
+            data.writeTo(this.frames);
+        }
+        this.frameOffsets[i + 1] = this.frames.size;
+        ++this.size;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    int getSequenceNumber(final int index) {
+        return this.sequenceNumbers[checkIndex(index)] & 0xFFFF;
+    }
+
+    long getTimestamp(final int index) {
+        return this.timestamps[checkIndex(index)] & 0xFFFFFFFFL;
+    }
+
+    long getArrivalTime(final int index) {
+        return this.arrivalTimes[checkIndex(index)];
+    }
+
+    boolean hasMarker(final int index) {
+        return (this.markerAndPayloadTypes[checkIndex(index)] & 0x80) == 0x80;
+    }
+
+    int getPayloadType(final int index) {
+        return this.markerAndPayloadTypes[checkIndex(index)] & 0x7F;
+    }
+
+    /**
+     * @return a copy of the captured frame of the packet, so that whoever
+     *         gets hold of the packet cannot change what is stored here.
+     */
+    Buffer getFrame(final int index) {
+        final int start = this.frameOffsets[checkIndex(index)];
+        final int end = this.frameOffsets[index + 1];
+        if (start == end) {
+            return Buffers.EMPTY_BUFFER;
+        }
+        return Buffers.wrap(Arrays.copyOfRange(this.frames.bytes, start, end));
+    }
+
+    /**
+     * Frame the packet again out of the stored frame. The payload of the UDP
+     * packet is framed as RTP straight away since we already know that is
+     * what it is, no matter what the flow hints or heuristics would say.
+     *
+     * @param globalHeader
+     *            tells us the link type of the frame and how to encode its
+     *            record header.
+     * @return the packet.
+     * @throws IOException
+     *             in case the stored frame cannot be framed down to the RTP
+     *             again.
+     */
+    RtpPacket getPacket(final PcapGlobalHeader globalHeader, final int index) throws IOException {
+        final PcapGlobalHeader global = globalHeader != null ? globalHeader : PcapGlobalHeader.createDefaultHeader();
+        final Buffer frame = getFrame(index);
+        final long arrivalTime = getArrivalTime(index);
+        final long subSecondsPerSecond = global.timestampsInNs() ? 1000000000L : 1000000L;
+
+        final byte[] body = new byte[PcapRecordHeader.SIZE];
+        final ByteBuffer fields = ByteBuffer.wrap(body).order(global.getByteOrder());
+        fields.putInt(0, (int) (arrivalTime / subSecondsPerSecond));
+        fields.putInt(4, (int) (arrivalTime % subSecondsPerSecond));
+        fields.putInt(8, frame.getReadableBytes());
+        fields.putInt(12, frame.getReadableBytes());
+        final PcapRecordHeader header = new PcapRecordHeader(global.getByteOrder(), Buffers.wrap(body),
+                global.timestampsInNs());
+
+        final Packet udp = new PCapPacketImpl(global, header, frame).getPacket(Protocol.UDP);
+        if (udp == null) {
+            throw new IOException("The stored frame of RTP packet " + index + " does not carry UDP");
+        }
+        return RTP_FRAMER.frame((TransportPacket) udp, udp.getPayload());
+    }
+
+    /**
+     * Get a view of the packets, in the order they arrived, which frames each
+     * packet when it is asked for.
+     */
+    List<RtpPacket> getPackets(final PcapGlobalHeader globalHeader) {
+        final int[] order = arrivalOrder();
+        return new AbstractList<RtpPacket>() {
+            @Override
+            public RtpPacket get(final int index) {
+                try {
+                    return getPacket(globalHeader, order == null ? index : order[index]);
+                } catch (final IOException e) {
+                    throw new RuntimeException("Unable to frame the stored RTP packet", e);
+                }
+            }
+
+            @Override
+            public int size() {
+                return order == null ? RtpPacketStore.this.size : order.length;
+            }
+        };
+    }
+
+    /**
+     * @return the indexes of the packets sorted by arrival time, keeping the
+     *         order they were added in for packets that arrived at the same
+     *         time, or null if they were added in that order.
+     */
+    private int[] arrivalOrder() {
+        if (this.sorted) {
+            return null;
+        }
+
+        final Integer[] order = new Integer[this.size];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        final long[] arrivals = this.arrivalTimes;
+        Arrays.sort(order, (a, b) -> Long.compare(arrivals[a], arrivals[b]));
+
+        final int[] result = new int[order.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    private int checkIndex(final int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+        return index;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity <= this.sequenceNumbers.length) {
+            return;
+        }
+
+        final int length = Math.max(capacity, this.sequenceNumbers.length * 2);
+        this.sequenceNumbers = Arrays.copyOf(this.sequenceNumbers, length);
+        this.timestamps = Arrays.copyOf(this.timestamps, length);
+        this.arrivalTimes = Arrays.copyOf(this.arrivalTimes, length);
+        this.markerAndPayloadTypes = Arrays.copyOf(this.markerAndPayloadTypes, length);
+        this.frameOffsets = Arrays.copyOf(this.frameOffsets, length + 1);
+    }
+
+    /**
+     * The captured frames, back to back. Buffers can write themselves to an
+     * {@link OutputStream} without first copying their bytes, which is why
+     * this is one.
+     */
+    private static final class Frames extends OutputStream {
+
+        private byte[] bytes = new byte[INITIAL_CAPACITY * 256];
+
+        private int size;
+
+        @Override
+        public void write(final int b) {
+            ensureCapacity(this.size + 1);
+            this.bytes[this.size++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            ensureCapacity(this.size + len);
+            System.arraycopy(b, off, this.bytes, this.size, len);
+            this.size += len;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (capacity > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(capacity, this.bytes.length * 2));
+            }
+        }
+    }
+
+}
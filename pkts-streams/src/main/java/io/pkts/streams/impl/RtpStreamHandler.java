@@ -1,26 +1,42 @@
 /**
- * 
+ *
  */
 package io.pkts.streams.impl;
 
+import io.pkts.Clock;
 import io.pkts.frame.PcapGlobalHeader;
 import io.pkts.framer.Framer;
 import io.pkts.framer.FramerManager;
+import io.pkts.packet.IPPacket;
 import io.pkts.packet.Packet;
 import io.pkts.packet.PacketParseException;
+import io.pkts.packet.TransportPacket;
+import io.pkts.packet.rtcp.RtcpPacket;
 import io.pkts.packet.rtp.RtpPacket;
 import io.pkts.protocol.Protocol;
 import io.pkts.streams.RtpStream;
 import io.pkts.streams.StreamListener;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Keeps track of the RTP streams, which are identified by the source and
+ * destination address and port plus the SSRC. A stream ends when the sender
+ * says goodbye through a RTCP BYE or when it hasn't seen any packets within
+ * the idle timeout, where the time is the one of the capture. Either way the
+ * {@link StreamListener} is told before we forget about the stream so the
+ * number of streams we hold on to is the number of streams that are active
+ * at the same time, not the number of streams in the capture. The streams
+ * that are still going when the capture ends are ended by {@link #flush()}.
+ *
  * @author jonas@jonasborjesson.com
  */
 public class RtpStreamHandler {
@@ -29,7 +45,13 @@ public class RtpStreamHandler {
 
     private StreamListener<RtpPacket> rtpListener;
 
-    private final Map<Long, DefaultRtpStream> streams = new HashMap<Long, DefaultRtpStream>();
+    private final Map<Key, Entry> streams = new HashMap<Key, Entry>();
+
+    /**
+     * The statistics are calculated as the packets arrive so by default there
+     * is no need to hold on to them.
+     */
+    private DefaultRtpStream.Storage storage = DefaultRtpStream.Storage.NONE;
 
     /**
      * We use the framer manager to update hints when it comes to what protocols the
@@ -39,35 +61,86 @@ public class RtpStreamHandler {
      */
     private final FramerManager framerManager;
 
+    private final Clock clock;
+
+    /**
+     * The idle timeout in microseconds.
+     */
+    private final long idleTimeout;
+
+    /**
+     * Every stream has a timer for when it would have been idle for too long,
+     * which is cancelled if the stream ends early so that the wheel doesn't
+     * hold on to it.
+     */
+    private final TimerWheel<Entry> timers;
+
+    private long expiredStreams;
+
+    private long byeStreams;
+
     /**
-     * 
+     * A handler driven by the clock of the {@link FramerManager}, which ends
+     * the streams that haven't seen any packets for 60 seconds.
      */
     public RtpStreamHandler(final FramerManager framerManager) {
+        this(framerManager, framerManager.getClock(), Duration.ofSeconds(60));
+    }
+
+    /**
+     *
+     * @param framerManager
+     * @param clock
+     *            the clock that decides when a stream has
+     *            been idle for too long.
+     * @param idleTimeout
+     *            how long a stream may go without packets before it is
+     *            considered to have ended.
+     */
+    public RtpStreamHandler(final FramerManager framerManager, final Clock clock, final Duration idleTimeout) {
+        if (clock == null) {
+            throw new IllegalArgumentException("The clock cannot be null");
+        }
+        if (idleTimeout == null || idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("The idle timeout must be greater than zero");
+        }
         this.framerManager = framerManager;
+        this.clock = clock;
+        this.idleTimeout = idleTimeout.toNanos() / 1000;
+
+        // a tick of a second is plenty when the timeout is counted in tens of
+        // seconds, and the wheel turns about once per timeout.
+        final long tick = Math.max(1, Math.min(1000000, this.idleTimeout / 8));
+        this.timers = new TimerWheel<Entry>(tick, (int) Math.min(1 << 12, this.idleTimeout / tick + 1));
     }
 
     public void processFrame(final Packet frame) throws PacketParseException {
         try {
             final RtpPacket rtp = (RtpPacket) frame.getPacket(Protocol.RTP);
-            final long ssrc = rtp.getSyncronizationSource();
-            DefaultRtpStream stream = this.streams.get(ssrc);
-            if (stream == null) {
+            expire();
+
+            final Key key = new Key(rtp.getParentPacket(), rtp.getSyncronizationSource(), 0);
+            Entry entry = this.streams.get(key);
+            if (entry == null) {
                 // TODO: need to fix this.
                 PcapGlobalHeader header = null;
                 if (frame.hasProtocol(Protocol.SLL)) {
-                    header = PcapGlobalHeader.createDefaultHeader(Protocol.SLL);
+                    header = createHeader(Protocol.SLL);
                 } else if (frame.hasProtocol(Protocol.ETHERNET_II)) {
-                    header = PcapGlobalHeader.createDefaultHeader(Protocol.ETHERNET_II);
+                    header = createHeader(Protocol.ETHERNET_II);
                 } else {
                     throw new PacketParseException(0, "Unable to create the PcapGlobalHeader because the "
                             + "link type isn't recognized. Currently only Ethernet II "
                             + "and Linux SLL (linux cooked capture) are implemented");
                 }
-                stream = new DefaultRtpStream(header, ssrc);
-                this.streams.put(ssrc, stream);
-                notifyStartStream(stream, rtp);
+                entry = new Entry(key, new DefaultRtpStream(header, key.ssrc, this.storage));
+                this.streams.put(key, entry);
+                entry.stream.onPacket(rtp);
+                entry.timer = this.timers.schedule(entry, lastSeen(entry.stream) + this.idleTimeout);
+                notifyStartStream(entry.stream, rtp);
             } else {
-                notifyPacketReceived(stream, rtp);
+                entry.stream.onPacket(rtp);
+                notifyPacketReceived(entry.stream, rtp);
             }
         } catch (final IOException e) {
             // TODO Auto-generated catch block
@@ -75,10 +148,147 @@ public class RtpStreamHandler {
         }
     }
 
+    /**
+     * End the streams whose senders say goodbye in the RTCP packet. The RTCP
+     * is expected to be sent between the ports just above the ones of the RTP
+     * or, if RTP and RTCP are multiplexed, the very same ports. A stream that
+     * uses any other port for its RTCP ends through the idle timeout instead.
+     *
+     * @param frame
+     */
+    public void processRtcp(final Packet frame) {
+        try {
+            final RtcpPacket rtcp = (RtcpPacket) frame.getPacket(Protocol.RTCP);
+            expire();
+            if (rtcp == null) {
+                return;
+            }
+
+            final TransportPacket transport = rtcp.getParentPacket();
+            for (int i = 0; i < rtcp.getCount(); ++i) {
+                if (rtcp.getPacketType(i) != RtcpPacket.BYE) {
+                    continue;
+                }
+                for (int j = 0; j < rtcp.getReportCount(i); ++j) {
+                    final long ssrc = rtcp.getByeSsrc(i, j);
+                    if (!endStream(new Key(transport, ssrc, 1))) {
+                        endStream(new Key(transport, ssrc, 0));
+                    }
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            logger.warn("Unable to process the RTCP packet", e);
+        }
+    }
+
+    /**
+     * End the streams that have been idle for too long as of the time of the
+     * {@link Clock}.
+     */
+    public void expire() {
+        final long now = this.clock.currentTimeMicros();
+        this.timers.advance(now, entry -> {
+            final long deadline = lastSeen(entry.stream) + this.idleTimeout;
+            if (deadline > now) {
+                entry.timer = this.timers.schedule(entry, deadline);
+                return;
+            }
+
+            ++this.expiredStreams;
+            notifyEndStream(entry.stream);
+            this.streams.remove(entry.key);
+        });
+    }
+
+    /**
+     * A header for the link type whose timestamps are in the unit of the
+     * {@link Clock}, which is what the arrival times of the packets are in.
+     */
+    private PcapGlobalHeader createHeader(final Protocol protocol) {
+        return PcapGlobalHeader.createDefaultHeader(protocol.getLinkType(), 65535,
+                this.clock.getTimeUnit() == TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the arrival time of the last packet of the stream in
+     *         microseconds, which is what the timeouts are in.
+     */
+    private long lastSeen(final RtpStream stream) {
+        return this.clock.toMicros(stream.getTimeOfLastPacket());
+    }
+
+    private boolean endStream(final Key key) {
+        final Entry entry = this.streams.get(key);
+        if (entry == null) {
+            return false;
+        }
+
+        ++this.byeStreams;
+        notifyEndStream(entry.stream);
+        this.streams.remove(key);
+        this.timers.cancel(entry.timer);
+        return true;
+    }
+
+    /**
+     * End all the streams that are still going, which is what to do once
+     * the capture has been processed since there will be no more packets to
+     * drive the clock forward.
+     */
+    public void flush() {
+        for (final Entry entry : this.streams.values()) {
+            notifyEndStream(entry.stream);
+            this.timers.cancel(entry.timer);
+        }
+        this.streams.clear();
+    }
+
+    /**
+     * Set how the streams created from now on keep their packets.
+     *
+     * @param storage
+     */
+    public void setStorage(final DefaultRtpStream.Storage storage) {
+        if (storage == null) {
+            throw new IllegalArgumentException("The storage cannot be null");
+        }
+        this.storage = storage;
+    }
+
     public void addListener(final StreamListener<RtpPacket> listener) {
         this.rtpListener = listener;
     }
 
+    /**
+     * @return the number of streams that haven't ended yet.
+     */
+    public int getActiveStreams() {
+        return this.streams.size();
+    }
+
+    /**
+     * @return the number of streams that ended because they were idle for
+     *         too long.
+     */
+    public long getExpiredStreams() {
+        return this.expiredStreams;
+    }
+
+    /**
+     * @return the number of streams that ended because of a RTCP BYE.
+     */
+    public long getByeStreams() {
+        return this.byeStreams;
+    }
+
+    /**
+     * @return the number of timers that are scheduled, which is one per
+     *         stream that hasn't ended.
+     */
+    int getScheduledTimers() {
+        return this.timers.size();
+    }
+
     private void notifyStartStream(final RtpStream stream, final RtpPacket pkt) {
         if (this.rtpListener != null) {
             this.rtpListener.startStream(stream, pkt);
@@ -97,4 +307,60 @@ public class RtpStreamHandler {
         }
     }
 
+    private static final class Entry {
+
+        private final Key key;
+
+        private final DefaultRtpStream stream;
+
+        private TimerWheel.Timer<Entry> timer;
+
+        private Entry(final Key key, final DefaultRtpStream stream) {
+            this.key = key;
+            this.stream = stream;
+        }
+    }
+
+    private static final class Key {
+
+        private final byte[] source;
+        private final byte[] destination;
+        private final int ports;
+        private final long ssrc;
+
+        /**
+         * @param portOffset
+         *            what to subtract from the ports of the transport packet,
+         *            which is 1 when the packet is the RTCP of a RTP stream.
+         */
+        private Key(final TransportPacket transport, final long ssrc, final int portOffset) {
+            final IPPacket ip = transport.getParentPacket();
+            this.source = ip.getRawSourceIP();
+            this.destination = ip.getRawDestinationIP();
+            this.ports = transport.getSourcePort() - portOffset << 16 | transport.getDestinationPort() - portOffset;
+            this.ssrc = ssrc;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = this.ports;
+            result = 31 * result + Long.hashCode(this.ssrc);
+            result = 31 * result + Arrays.hashCode(this.source);
+            return 31 * result + Arrays.hashCode(this.destination);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return this.ports == key.ports && this.ssrc == key.ssrc && Arrays.equals(this.source, key.source)
+                    && Arrays.equals(this.destination, key.destination);
+        }
+    }
+
 }
@@ -10,7 +10,6 @@ import static io.pkts.streams.SipStream.CallState.REDIRECT;
 import static io.pkts.streams.SipStream.CallState.REJECTED;
 import io.pkts.packet.sip.SipPacket;
 import io.pkts.packet.sip.SipPacketParseException;
-import io.pkts.packet.sip.SipRequestPacket;
 import io.pkts.packet.sip.SipResponsePacket;
 import io.pkts.streams.SipStream.CallState;
 
@@ -35,6 +34,11 @@ import org.slf4j.LoggerFactory;
  * wrong state. However, the purpose of this state machine is (currently anyway)
  * not to be 100% accurate but close enough to be useful and fast.
  * 
+ * In summary mode the messages are not kept at all, only the state and the
+ * times, response codes and retransmissions needed for the post dial delay,
+ * the duration etc. That also means that messages that arrive out of order
+ * cannot be re-played so they are simply processed in the order they show up.
+ * 
  * @author jonas@jonasborjesson.com
  */
 public final class SimpleCallStateMachine {
@@ -42,10 +46,13 @@ public final class SimpleCallStateMachine {
     private static final Logger logger = LoggerFactory.getLogger(SimpleCallStateMachine.class);
 
     /**
-     * 
+     * All the messages, ordered by arrival time, or null if we are in summary
+     * mode.
      */
     private NavigableSet<SipPacket> messages;
 
+    private final boolean summary;
+
     /**
      * A list of all our transitions.
      */
@@ -60,21 +67,50 @@ public final class SimpleCallStateMachine {
     private final String callId;
 
     /**
-     * The 18x ringing response, if we received one. Only the first will be
-     * recorded.
+     * The arrival time of the first and last message or -1 if we haven't seen
+     * any messages yet.
+     */
+    private long firstMessageTime;
+
+    private long lastMessageTime;
+
+    /**
+     * The arrival time of the first INVITE request we received (if any)
+     */
+    private long inviteTime;
+
+    /**
+     * The arrival time of the 18x ringing response, if we received one. Only
+     * the first will be recorded.
+     */
+    private long ringingTime;
+
+    /**
+     * If this call is successfully established, this will be the arrival
+     * time of the first 2xx that we received.
+     */
+    private long successTime;
+
+    /**
+     * The arrival time of the first ACK request we received (if any)
+     */
+    private long ackTime;
+
+    /**
+     * The arrival time of the first BYE request we received (if any)
      */
-    private SipResponsePacket ringingResponse;
+    private long byeTime;
 
     /**
-     * If this call is successfully established, this will be the the first 2xx
-     * that we received.
+     * The status of the first 18x response or -1 if we didn't get one.
      */
-    private SipResponsePacket successResponse;
+    private int ringingStatus;
 
     /**
-     * The first BYE request we received (if any)
+     * The status of the first final response to the INVITE or -1 if we
+     * didn't get one.
      */
-    private SipRequestPacket byeRequest;
+    private int finalStatus;
 
     /**
      * flag telling us whether we received the ACK on the final response to the
@@ -83,12 +119,24 @@ public final class SimpleCallStateMachine {
     private boolean handshakeIsComplete;
 
     /**
-     * If we detect any kind of re-transmissions we will set this flag.
+     * The number of re-transmissions we have detected.
      */
-    private boolean reTransmisionsDetected = false;
+    private int reTransmissions;
 
     public SimpleCallStateMachine(final String callId) {
+        this(callId, false);
+    }
+
+    /**
+     * 
+     * @param callId
+     * @param summary
+     *            whether to only keep a summary of the call instead of all
+     *            the messages.
+     */
+    public SimpleCallStateMachine(final String callId, final boolean summary) {
         this.callId = callId;
+        this.summary = summary;
         init();
     }
 
@@ -98,7 +146,28 @@ public final class SimpleCallStateMachine {
     private void init() {
         this.currentState = CallState.START;
         this.callTransitions = new ArrayList<CallState>();
-        this.messages = new TreeSet<SipPacket>(new PacketComparator());
+        if (!this.summary) {
+            this.messages = new TreeSet<SipPacket>(new PacketComparator());
+        }
+        this.firstMessageTime = -1;
+        this.lastMessageTime = -1;
+        this.inviteTime = -1;
+        this.ringingTime = -1;
+        this.successTime = -1;
+        this.ackTime = -1;
+        this.byeTime = -1;
+        this.ringingStatus = -1;
+        this.finalStatus = -1;
+        this.handshakeIsComplete = false;
+        this.reTransmissions = 0;
+    }
+
+    /**
+     * @return whether we only keep a summary of the call, in which case we
+     *         don't hold on to any messages.
+     */
+    public boolean isSummary() {
+        return this.summary;
     }
 
     /**
@@ -108,11 +177,7 @@ public final class SimpleCallStateMachine {
      *         one) in case we haven't seen any messages yet.
      */
     public long getTimeOfFirstMessage() {
-        if (this.messages.isEmpty()) {
-            return -1;
-        }
-
-        return this.messages.first().getArrivalTime();
+        return this.firstMessageTime;
     }
 
     /**
@@ -122,11 +187,63 @@ public final class SimpleCallStateMachine {
      *         one) in case we haven't seen any messages yet.
      */
     public long getTimeOfLastMessage() {
-        if (this.messages.isEmpty()) {
-            return -1;
-        }
+        return this.lastMessageTime;
+    }
+
+    /**
+     * @return the arrival time of the first INVITE request or -1 (negative
+     *         one) if we haven't seen one.
+     */
+    public long getTimeOfInvite() {
+        return this.inviteTime;
+    }
+
+    /**
+     * @return the arrival time of the first 18x response or -1 (negative one)
+     *         if we haven't seen one.
+     */
+    public long getTimeOfRinging() {
+        return this.ringingTime;
+    }
 
-        return this.messages.last().getArrivalTime();
+    /**
+     * @return the arrival time of the first 2xx response to the INVITE or -1
+     *         (negative one) if we haven't seen one.
+     */
+    public long getTimeOfSuccess() {
+        return this.successTime;
+    }
+
+    /**
+     * @return the arrival time of the first ACK request or -1 (negative one)
+     *         if we haven't seen one.
+     */
+    public long getTimeOfAck() {
+        return this.ackTime;
+    }
+
+    /**
+     * @return the arrival time of the first BYE request or -1 (negative one)
+     *         if we haven't seen one.
+     */
+    public long getTimeOfBye() {
+        return this.byeTime;
+    }
+
+    /**
+     * @return the status of the first 18x response or -1 (negative one) if we
+     *         haven't seen one.
+     */
+    public int getRingingStatus() {
+        return this.ringingStatus;
+    }
+
+    /**
+     * @return the status of the first final response to the INVITE or -1
+     *         (negative one) if we haven't seen one.
+     */
+    public int getFinalStatus() {
+        return this.finalStatus;
     }
 
     public boolean isHandshakeCompleted() {
@@ -134,7 +251,19 @@ public final class SimpleCallStateMachine {
     }
 
     public boolean reTransmitsDetected() {
-        return this.reTransmisionsDetected;
+        return this.reTransmissions > 0;
+    }
+
+    /**
+     * The number of re-transmitted INVITE requests, 2xx responses to the
+     * INVITE and BYE requests. Note that if the same message is captured more
+     * than once, e.g. on both sides of a proxy, it also counts as a
+     * re-transmission.
+     * 
+     * @return
+     */
+    public int getReTransmissions() {
+        return this.reTransmissions;
     }
 
     /**
@@ -153,21 +282,59 @@ public final class SimpleCallStateMachine {
             return;
         }
 
-        final SipPacket previousMsg = this.messages.isEmpty() ? null : this.messages.last();
-        this.messages.add(msg);
+        if (!this.summary) {
+            final SipPacket previousMsg = this.messages.isEmpty() ? null : this.messages.last();
+            this.messages.add(msg);
 
-        if (previousMsg != null && msg.getArrivalTime() < previousMsg.getArrivalTime()) {
-            redrive();
-            return;
+            if (previousMsg != null && msg.getArrivalTime() < previousMsg.getArrivalTime()) {
+                redrive();
+                return;
+            }
         }
 
         try {
+            record(msg);
             handleStateChange(msg);
         } catch (final SipPacketParseException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Record the times that aren't tied to a particular state.
+     * 
+     * @param msg
+     * @throws SipPacketParseException
+     */
+    private void record(final SipPacket msg) throws SipPacketParseException {
+        final long time = msg.getArrivalTime();
+        if (this.firstMessageTime == -1 || time < this.firstMessageTime) {
+            this.firstMessageTime = time;
+        }
+        if (time > this.lastMessageTime) {
+            this.lastMessageTime = time;
+        }
+
+        if (msg.isRequest()) {
+            if (this.inviteTime == -1 && msg.isInvite()) {
+                this.inviteTime = time;
+            } else if (this.ackTime == -1 && msg.isAck()) {
+                this.ackTime = time;
+            }
+        }
+    }
+
+    /**
+     * Record the status of the first final response to the INVITE.
+     * 
+     * @param response
+     */
+    private void recordFinalStatus(final SipResponsePacket response) {
+        if (this.finalStatus == -1) {
+            this.finalStatus = response.getStatus();
+        }
+    }
+
     private void handleStateChange(final SipPacket msg) throws SipPacketParseException {
         switch (this.currentState) {
             case START:
@@ -232,11 +399,13 @@ public final class SimpleCallStateMachine {
             final SipResponsePacket response = msg.toResponse();
             if (response.isInvite()) {
                 if (response.getStatus() == 487) {
+                    recordFinalStatus(response);
                     transition(CallState.CANCELLED, msg);
                 } else if (response.isSuccess()) {
                     // the cancel didn't make it over in time
                     // so we never cancelled, hence we move
                     // to in call
+                    recordFinalStatus(response);
                     transition(CallState.IN_CALL, msg);
                 }
             }
@@ -265,6 +434,9 @@ public final class SimpleCallStateMachine {
     private void handleInCompletedState(final SipPacket msg) throws SipPacketParseException {
         if (msg.isRequest()) {
             // TODO:
+            if (msg.isBye()) {
+                ++this.reTransmissions;
+            }
         } else {
             if (msg.isBye()) {
                 transition(CallState.COMPLETED, msg);
@@ -283,8 +455,8 @@ public final class SimpleCallStateMachine {
     private void handleInConfirmedState(final SipPacket msg) throws SipPacketParseException {
         if (msg.isRequest()) {
             if (msg.isBye()) {
-                if (this.byeRequest == null) {
-                    this.byeRequest = msg.toRequest();
+                if (this.byeTime == -1) {
+                    this.byeTime = msg.getArrivalTime();
                 }
                 transition(CallState.COMPLETED, msg);
             } else if (msg.isAck()) {
@@ -296,7 +468,7 @@ public final class SimpleCallStateMachine {
             if (response.isSuccess()) {
                 // probably re-transmits.
                 // need to check it better
-                this.reTransmisionsDetected = true;
+                ++this.reTransmissions;
             } else if (response.isBye()) {
                 // already in completed (or should be)
             }
@@ -335,22 +507,30 @@ public final class SimpleCallStateMachine {
             // a proxy case where the same request is captured
             // multiple times so therefore just stay in the same
             // state
+            if (msg.isInvite()) {
+                ++this.reTransmissions;
+            }
             transition(this.currentState, msg);
             return;
         }
 
         final boolean isInvite = msg.isInvite();
         final SipResponsePacket response = (SipResponsePacket) msg;
+        if (isInvite && response.getStatus() >= 200) {
+            recordFinalStatus(response);
+        }
+
         if (response.is100Trying()) {
             transition(CallState.TRYING, msg);
         } else if (response.isRinging()) {
-            if (this.ringingResponse == null) {
-                this.ringingResponse = msg.toResponse();
+            if (this.ringingTime == -1) {
+                this.ringingTime = response.getArrivalTime();
+                this.ringingStatus = response.getStatus();
             }
             transition(CallState.RINGING, msg);
         } else if (response.isSuccess() && isInvite) {
-            if (this.successResponse == null) {
-                this.successResponse = msg.toResponse();
+            if (this.successTime == -1) {
+                this.successTime = response.getArrivalTime();
             }
             transition(CallState.IN_CALL, msg);
         } else if (response.isRedirect()) {
@@ -476,9 +656,12 @@ public final class SimpleCallStateMachine {
     /**
      * Get all the messages that this fsm has seen so far.
      * 
-     * @return
+     * @return the messages or an empty list if we are in summary mode.
      */
     public List<SipPacket> getMessages() {
+        if (this.summary) {
+            return Collections.emptyList();
+        }
         return new ArrayList<SipPacket>(this.messages);
     }
 
@@ -502,13 +685,12 @@ public final class SimpleCallStateMachine {
     }
 
     public long getPostDialDelay() throws SipPacketParseException {
-        if (this.messages.isEmpty() || this.ringingResponse == null && this.successResponse == null) {
+        if (this.firstMessageTime == -1 || this.ringingTime == -1 && this.successTime == -1) {
             return -1;
         }
 
-        final long t1 = this.messages.first().getArrivalTime();
-        final long t2 = this.ringingResponse != null ? this.ringingResponse.getArrivalTime() : this.successResponse
-                .getArrivalTime();
+        final long t1 = this.firstMessageTime;
+        final long t2 = this.ringingTime != -1 ? this.ringingTime : this.successTime;
 
         // if equal, then the first message we received
         // was a 180 or 183 so we can't calculate the PDD
@@ -520,12 +702,12 @@ public final class SimpleCallStateMachine {
     }
 
     public long getDuration() {
-        if (this.messages.isEmpty() || this.byeRequest == null) {
+        if (this.firstMessageTime == -1 || this.byeTime == -1) {
             return -1;
         }
 
-        final long t1 = this.messages.first().getArrivalTime();
-        final long t2 = this.byeRequest.getArrivalTime();
+        final long t1 = this.firstMessageTime;
+        final long t2 = this.byeTime;
         if (t1 == t2) {
             return -1;
         }
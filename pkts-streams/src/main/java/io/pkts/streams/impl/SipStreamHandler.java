@@ -3,11 +3,13 @@
  */
 package io.pkts.streams.impl;
 
+import io.pkts.Clock;
 import io.pkts.frame.PcapGlobalHeader;
 import io.pkts.framer.Framer;
 import io.pkts.framer.FramerManager;
 import io.pkts.packet.Packet;
 import io.pkts.packet.PacketParseException;
+import io.pkts.packet.TransportPacket;
 import io.pkts.packet.sip.SipPacket;
 import io.pkts.packet.sip.SipPacketParseException;
 import io.pkts.packet.sip.SipRequestPacket;
@@ -22,21 +24,47 @@ import io.pkts.streams.StreamId;
 import io.pkts.streams.StreamListener;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Keeps track of the SIP dialogs, which are identified by their call-id.
+ * 
+ * A dialog that has terminated lingers for a while, just like the server
+ * transaction does with Timer H and Timer J (see RFC 3261 section 17.2), so
+ * that the retransmissions of e.g. the final response or the BYE still end up
+ * in the same stream. After that we forget about it. A dialog that never
+ * terminates, because we missed the BYE or the capture started in the middle
+ * of it, is ended after it has been idle for too long. The time is the one of
+ * the capture so the number of dialogs we hold on to is the number of calls
+ * that are going on at the same time, not the number of calls in the capture.
+ * 
  * @author jonas@jonasborjesson.com
  */
 public class SipStreamHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(SipStreamHandler.class);
 
-    private final Map<StreamId, BasicSipStream> sipStreams = new HashMap<StreamId, BasicSipStream>();
-    private final Map<StreamId, BasicSipStream> terminatedStreams = new HashMap<StreamId, BasicSipStream>();
+    /**
+     * 64*T1, which is what both Timer H and Timer J are set to for unreliable
+     * transports.
+     */
+    private static final Duration DEFAULT_LINGER = Duration.ofSeconds(32);
+
+    private static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofHours(2);
+
+    /**
+     * Both are kept in the order the streams were added so the eldest entry
+     * is the one we evict first when there are too many of them.
+     */
+    private final Map<StreamId, BasicSipStream> sipStreams = new LinkedHashMap<StreamId, BasicSipStream>();
+    private final Map<StreamId, BasicSipStream> terminatedStreams = new LinkedHashMap<StreamId, BasicSipStream>();
 
     private StreamListener<SipPacket> sipListener;
 
@@ -51,11 +79,119 @@ public class SipStreamHandler {
 
     private final SipStatisticsImpl stats = new SipStatisticsImpl();
 
+    private final Clock clock;
+
     /**
-     * 
+     * How long, in microseconds, a terminated stream is kept around.
+     */
+    private final long linger;
+
+    /**
+     * How long, in microseconds, a stream that hasn't terminated may go
+     * without any messages before it is considered to have ended.
+     */
+    private final long idleTimeout;
+
+    /**
+     * Every stream has a timer for when it should be let go of, which is
+     * when it has been idle for too long or, once it has terminated, when it
+     * has lingered for long enough.
+     */
+    private final TimerWheel<BasicSipStream> timers;
+
+    /**
+     * The timer of every stream we hold on to, so that it can be cancelled
+     * when the stream is let go of early or gets a new one. Otherwise the
+     * wheel would hold on to the stream, and all its messages, until the
+     * timer expired.
+     */
+    private final Map<StreamId, TimerWheel.Timer<BasicSipStream>> streamTimers = new HashMap<>();
+
+    private int maxStreams = Integer.MAX_VALUE;
+
+    /**
+     * Whether the streams only keep a summary of the call and none of the
+     * messages.
+     */
+    private boolean summary;
+
+    private long expiredStreams;
+
+    private long removedStreams;
+
+    private long evictedStreams;
+
+    /**
+     * A handler driven by the clock of the {@link FramerManager}, which keeps
+     * terminated streams around for 32 seconds and ends the streams that
+     * haven't seen any messages for two hours.
      */
     public SipStreamHandler(final FramerManager framerManager) {
+        this(framerManager, (framerManager != null ? framerManager : FramerManager.getInstance()).getClock(),
+                DEFAULT_LINGER, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * 
+     * @param framerManager
+     * @param clock
+     *            the clock that decides when it is time to
+     *            let go of a stream.
+     * @param linger
+     *            how long a terminated stream is kept around after its last
+     *            message, in case there are retransmissions.
+     * @param idleTimeout
+     *            how long a stream that hasn't terminated may go without
+     *            messages before it is considered to have ended.
+     */
+    public SipStreamHandler(final FramerManager framerManager, final Clock clock, final Duration linger,
+            final Duration idleTimeout) {
+        if (clock == null) {
+            throw new IllegalArgumentException("The clock cannot be null");
+        }
+        if (linger == null || linger.isNegative()) {
+            throw new IllegalArgumentException("The linger cannot be negative");
+        }
+        if (idleTimeout == null || idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("The idle timeout must be greater than zero");
+        }
         this.framerManager = framerManager;
+        this.clock = clock;
+        this.linger = linger.toNanos() / 1000;
+        this.idleTimeout = idleTimeout.toNanos() / 1000;
+
+        // the linger is the shorter one and the one that matters for how many
+        // streams we hold on to, so that is what decides the tick.
+        final long shortest = Math.max(1, Math.min(this.linger, this.idleTimeout));
+        final long tick = Math.max(1, Math.min(1000000, shortest / 8));
+        final long longest = Math.max(this.linger, this.idleTimeout);
+        this.timers = new TimerWheel<BasicSipStream>(tick, (int) Math.min(1 << 12, longest / tick + 1));
+    }
+
+    /**
+     * Set whether the streams created from now on only keep a summary of the
+     * call, which is all that is needed for statistics, instead of all the
+     * messages.
+     * 
+     * @param summary
+     */
+    public void setSummary(final boolean summary) {
+        this.summary = summary;
+    }
+
+    /**
+     * Set the maximum number of streams, terminated or not, to hold on to.
+     * When there are more than that, the terminated stream that was added
+     * first is evicted or, if there are none, the oldest of the others, which
+     * is ended first.
+     * 
+     * @param maxStreams
+     */
+    public void setMaxStreams(final int maxStreams) {
+        if (maxStreams <= 0) {
+            throw new IllegalArgumentException("The maximum number of streams must be greater than zero");
+        }
+        this.maxStreams = maxStreams;
     }
 
     private StreamId getStreamId(final SipPacket msg) throws SipPacketParseException {
@@ -69,16 +205,34 @@ public class SipStreamHandler {
 
     public void processFrame(final Packet frame) throws PacketParseException {
         try {
-            final SipPacket msg = (SipPacket) frame.getPacket(Protocol.SIP);
+            processMessage(frame, (SipPacket) frame.getPacket(Protocol.SIP));
+        } catch (final IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Process a SIP message that has already been framed, which is the case
+     * for messages that were reassembled from a TCP stream.
+     * 
+     * @param frame
+     *            the frame the message arrived in.
+     * @param msg
+     * @throws PacketParseException
+     */
+    public void processMessage(final Packet frame, final SipPacket msg) throws PacketParseException {
+        try {
             final StreamId id = getStreamId(msg);
             if (id == null) {
                 return;
             }
             this.stats.count(msg);
+            updateFlowHints(msg);
             if (msg.isInfo() || msg.isOptions() || msg.isMessage()) {
                 return;
             }
-            // checkMessageForContent(msg);
+            expire();
             BasicSipStream stream = this.sipStreams.get(id);
             if (stream == null) {
                 stream = this.terminatedStreams.get(id);
@@ -95,10 +249,12 @@ public class SipStreamHandler {
                             + "link type isn't recognized. Currently only Ethernet II "
                             + "and Linux SLL (linux cooked capture) are implemented");
                 }
-                stream = new BasicSipStream(header, id);
+                evict();
+                stream = new BasicSipStream(header, id, this.summary);
                 stream.addMessage(msg);
                 notifyStartStream(stream, msg);
                 this.sipStreams.put(id, stream);
+                schedule(id, stream, lastSeen(stream) + this.idleTimeout);
             } else {
                 final boolean wasAlreadyTerminated = stream.isTerminated();
                 stream.addMessage(msg);
@@ -106,6 +262,7 @@ public class SipStreamHandler {
                 if (!wasAlreadyTerminated && stream.isTerminated()) {
                     this.sipStreams.remove(id);
                     this.terminatedStreams.put(id, stream);
+                    schedule(id, stream, lastSeen(stream) + this.linger);
                     notifyEndStream(stream);
                 }
             }
@@ -115,6 +272,112 @@ public class SipStreamHandler {
         }
     }
 
+    /**
+     * Let go of the streams whose time is up as of the time of the
+     * {@link Clock}. A stream that hasn't terminated is ended first.
+     */
+    public void expire() {
+        final long now = this.clock.currentTimeMicros();
+        this.timers.advance(now, stream -> {
+            final StreamId id = stream.getStreamIdentifier();
+            final boolean terminated = this.terminatedStreams.get(id) == stream;
+            final long deadline = lastSeen(stream) + (terminated ? this.linger : this.idleTimeout);
+            if (deadline > now) {
+                schedule(id, stream, deadline);
+                return;
+            }
+
+            this.streamTimers.remove(id);
+            if (terminated) {
+                ++this.removedStreams;
+                this.terminatedStreams.remove(id);
+            } else {
+                ++this.expiredStreams;
+                notifyEndStream(stream);
+                this.sipStreams.remove(id);
+            }
+        });
+    }
+
+    /**
+     * @return the arrival time of the last message of the stream in
+     *         microseconds, which is what the timeouts are in.
+     */
+    private long lastSeen(final SipStream stream) {
+        return this.clock.toMicros(stream.getTimeOfLastPacket());
+    }
+
+    /**
+     * Make room for a new stream if we are at the maximum number of streams.
+     */
+    private void evict() {
+        while (this.sipStreams.size() + this.terminatedStreams.size() >= this.maxStreams) {
+            final boolean terminated = !this.terminatedStreams.isEmpty();
+            final Iterator<BasicSipStream> eldest = (terminated ? this.terminatedStreams : this.sipStreams).values()
+                    .iterator();
+            final BasicSipStream stream = eldest.next();
+            ++this.evictedStreams;
+            if (!terminated) {
+                notifyEndStream(stream);
+            }
+            eldest.remove();
+            this.timers.cancel(this.streamTimers.remove(stream.getStreamIdentifier()));
+        }
+    }
+
+    /**
+     * Replace the timer of the stream.
+     */
+    private void schedule(final StreamId id, final BasicSipStream stream, final long deadline) {
+        this.timers.cancel(this.streamTimers.put(id, this.timers.schedule(stream, deadline)));
+    }
+
+    /**
+     * @return the number of timers that are scheduled, which is one per
+     *         stream we hold on to.
+     */
+    int getScheduledTimers() {
+        return this.timers.size();
+    }
+
+    /**
+     * @return the number of streams that haven't terminated yet.
+     */
+    public int getActiveStreams() {
+        return this.sipStreams.size();
+    }
+
+    /**
+     * @return the number of terminated streams that we still hold on to.
+     */
+    public int getTerminatedStreams() {
+        return this.terminatedStreams.size();
+    }
+
+    /**
+     * @return the number of streams that never terminated but ended because
+     *         they were idle for too long.
+     */
+    public long getExpiredStreams() {
+        return this.expiredStreams;
+    }
+
+    /**
+     * @return the number of terminated streams we let go of once they had
+     *         lingered for long enough.
+     */
+    public long getRemovedStreams() {
+        return this.removedStreams;
+    }
+
+    /**
+     * @return the number of streams that were let go of early because there
+     *         were too many of them.
+     */
+    public long getEvictedStreams() {
+        return this.evictedStreams;
+    }
+
     private void notifyStartStream(final SipStream stream, final SipPacket pkt) {
         if (this.sipListener != null) {
             this.sipListener.startStream(stream, pkt);
@@ -133,6 +396,23 @@ public class SipStreamHandler {
         }
     }
 
+    /**
+     * Tell the {@link FramerManager} that the ports the {@link SipPacket} was
+     * sent between carries SIP and then check the message for content.
+     * 
+     * @param msg
+     */
+    private void updateFlowHints(final SipPacket msg) {
+        if (this.framerManager == null) {
+            return;
+        }
+
+        if (msg.getParentPacket() instanceof TransportPacket) {
+            this.framerManager.addFlowHint((TransportPacket) msg.getParentPacket(), Protocol.SIP);
+        }
+        checkMessageForContent(msg);
+    }
+
     /**
      * Check whether a {@link SipPacket} has a message body and if it is SDP
      * then figure out what ports etc we can expect to see RTP on (if that is
@@ -149,15 +429,24 @@ public class SipStreamHandler {
             final Object content = msg.getContent();
             if (content instanceof SDP) {
                 for (final RTPInfo rtpInfo : ((SDP) content).getRTPInfo()) {
-                    final String address = rtpInfo.getAddress();
                     final int port = rtpInfo.getMediaPort();
-                    // System.out.println("Address: " + address + " port : " + port);
+                    this.framerManager.addFlowHint(rtpInfo.getAddress(), port, Protocol.RTP, msg.getArrivalTime());
+
+                    // unless told otherwise RTCP goes to the next port up, see
+                    // RFC 3550 section 11. With rtcp-mux it shares the RTP
+                    // port, which the RTP hint takes care of.
+                    if (port + 1 <= 65535) {
+                        this.framerManager.addFlowHint(rtpInfo.getAddress(), port + 1, Protocol.RTCP,
+                                msg.getArrivalTime());
+                    }
                 }
             }
         } catch (final SipPacketParseException e) {
-            // System.err.println("Ok so the total length is: " + msg.getTotalLength());
             logger.warn("Unable to parse the content of the sip message", e);
-            // System.exit(1);
+        } catch (final RuntimeException e) {
+            // the SDP wrapper throws a RuntimeException if it can't make
+            // sense of the media descriptions. Just skip the hints then.
+            logger.warn("Unable to get the RTP information out of the SDP", e);
         }
 
     }
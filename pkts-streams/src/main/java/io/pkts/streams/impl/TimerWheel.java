@@ -0,0 +1,212 @@
+/**
+ *
+ */
+package io.pkts.streams.impl;
+
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel driven by the time of the capture rather than the wall
+ * clock, which is what the stream handlers use to find the streams that have
+ * ended without having to look at every one of them.
+ *
+ * The timers are hashed into a slot by the tick they expire on so scheduling
+ * one is constant time and so is advancing the wheel by a tick, no matter how
+ * many timers there are. So is cancelling one, which is what to do when the
+ * thing it was for goes away early so that the wheel doesn't hold on to it.
+ * A timer isn't moved every time the thing it is for sees more traffic
+ * though. Instead, whoever gets told that it expired checks whether it still
+ * matters and, if there was more traffic since, simply schedules a new one.
+ *
+ * Note, this class is not thread safe.
+ *
+ * @author jonas@jonasborjesson.com
+ */
+final class TimerWheel<T> {
+
+    /**
+     * The length of a tick in microseconds.
+     */
+    private final long tick;
+
+    private final Timer<T>[] slots;
+
+    private final int mask;
+
+    /**
+     * The last tick we have expired the timers of, or {@link Long#MIN_VALUE}
+     * if the wheel hasn't been advanced yet.
+     */
+    private long currentTick = Long.MIN_VALUE;
+
+    private int size;
+
+    /**
+     *
+     * @param tick
+     *            the length of a tick, in microseconds. No timer expires
+     *            earlier than it should but it may expire up to a tick later.
+     * @param slots
+     *            the number of slots, which is rounded up to a power of two.
+     *            Timers that are further than this many ticks into the future
+     *            are passed over until the wheel has come round to them.
+     */
+    @SuppressWarnings("unchecked")
+    TimerWheel(final long tick, final int slots) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("The tick must be greater than zero");
+        }
+        if (slots <= 0 || slots > 1 << 20) {
+            throw new IllegalArgumentException("The number of slots must be between 1 and " + (1 << 20));
+        }
+        this.tick = tick;
+        final int length = Integer.highestOneBit(slots) == slots ? slots : Integer.highestOneBit(slots) << 1;
+        this.slots = (Timer<T>[]) new Timer<?>[length];
+        this.mask = length - 1;
+    }
+
+    /**
+     * Schedule a timer.
+     *
+     * @param item
+     *            what the timer is for.
+     * @param deadline
+     *            when the timer expires, in microseconds.
+     * @return the timer, which is what you need to cancel it.
+     */
+    Timer<T> schedule(final T item, final long deadline) {
+        long tick = deadline / this.tick;
+        if (this.currentTick != Long.MIN_VALUE && tick <= this.currentTick) {
+            // already late so it expires the next time the wheel moves
+            tick = this.currentTick + 1;
+        }
+        final Timer<T> timer = new Timer<>(item, deadline);
+        link(timer, (int) (tick & this.mask));
+        ++this.size;
+        return timer;
+    }
+
+    /**
+     * Cancel a timer, unless it has already expired or been cancelled.
+     *
+     * @param timer
+     *            the timer or null, in which case nothing happens.
+     */
+    void cancel(final Timer<T> timer) {
+        if (timer != null && timer.slot != -1) {
+            unlink(timer);
+            --this.size;
+        }
+    }
+
+    /**
+     * Move the wheel forward to the given time and hand over every timer
+     * that has expired by then. The consumer may schedule new timers.
+     *
+     * @param now
+     *            the current time in microseconds.
+     * @param expired
+     */
+    void advance(final long now, final Consumer<T> expired) {
+        final long target = now / this.tick;
+        if (this.currentTick == Long.MIN_VALUE) {
+            // timers may have been scheduled before we knew what time it was
+            // so the first time around they all need a look.
+            this.currentTick = target - this.slots.length;
+        }
+        if (target <= this.currentTick) {
+            return;
+        }
+
+        // if we jumped further than a full turn, every slot needs a look but
+        // only once.
+        final long first = Math.max(this.currentTick + 1, target - this.mask);
+        this.currentTick = target;
+        for (long t = first; t <= target; ++t) {
+            expire((int) (t & this.mask), now, expired);
+        }
+    }
+
+    private void expire(final int slot, final long now, final Consumer<T> expired) {
+        Timer<T> timer = this.slots[slot];
+        if (timer == null) {
+            return;
+        }
+
+        // the consumer may schedule and cancel timers, in this very slot too,
+        // so take out the expired ones before telling anyone about them.
+        Timer<T> first = null;
+        while (timer != null) {
+            final Timer<T> next = timer.next;
+            if (timer.deadline <= now) {
+                unlink(timer);
+                --this.size;
+                timer.next = first;
+                first = timer;
+            }
+            timer = next;
+        }
+
+        while (first != null) {
+            final Timer<T> next = first.next;
+            first.next = null;
+            expired.accept(first.item);
+            first = next;
+        }
+    }
+
+    private void link(final Timer<T> timer, final int slot) {
+        timer.slot = slot;
+        timer.next = this.slots[slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        this.slots[slot] = timer;
+    }
+
+    private void unlink(final Timer<T> timer) {
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            this.slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.slot = -1;
+        timer.previous = null;
+        timer.next = null;
+    }
+
+    /**
+     * @return the number of timers that haven't expired yet.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * A scheduled timer, which is only good for cancelling it.
+     */
+    static final class Timer<T> {
+
+        private final T item;
+
+        private final long deadline;
+
+        /**
+         * The slot the timer is in or -1 if it has expired or been cancelled.
+         */
+        private int slot = -1;
+
+        private Timer<T> previous;
+
+        private Timer<T> next;
+
+        private Timer(final T item, final long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+}
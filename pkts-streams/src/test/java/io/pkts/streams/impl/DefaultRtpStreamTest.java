@@ -0,0 +1,275 @@
+/**
+ *
+ */
+package io.pkts.streams.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import io.pkts.Pcap;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.packet.UDPPacket;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.packet.rtp.RtpPacket;
+import io.pkts.protocol.Protocol;
+import io.pkts.streams.StreamsTestBase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class DefaultRtpStreamTest extends StreamsTestBase {
+
+    /**
+     * An Ethernet frame carrying a G.711 RTP packet.
+     */
+    private byte[] frame;
+
+    /**
+     * Where in the frame the RTP packet starts.
+     */
+    private int offset;
+
+    private DefaultRtpStream stream;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        final List<PCapPacketImpl> frames = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(StreamsTestBase.class.getResourceAsStream("sip_rtp.pcap"));
+        pcap.loop(packet -> {
+            if (packet.hasProtocol(Protocol.RTP)) {
+                frames.add((PCapPacketImpl) packet);
+                return false;
+            }
+            return true;
+        });
+        pcap.close();
+
+        final PCapPacketImpl pcapPacket = frames.get(0);
+        final UDPPacket udp = (UDPPacket) pcapPacket.getPacket(Protocol.UDP);
+        this.frame = pcapPacket.getPayload().getArray();
+        this.offset = this.frame.length - udp.getPayload().getReadableBytes();
+        this.stream = new DefaultRtpStream(null, 0, DefaultRtpStream.Storage.NONE);
+    }
+
+    /**
+     * A packet every 20 ms, just as the RTP timestamps say.
+     */
+    @Test
+    public void testPerfectStream() throws Exception {
+        for (int i = 0; i < 50; ++i) {
+            this.stream.onPacket(rtp(100 + i, 160 * i, 20 * i));
+        }
+        assertThat(this.stream.getReceivedPackets(), is(50L));
+        assertThat(this.stream.getExpectedPackets(), is(50L));
+        assertThat(this.stream.getLostPackets(), is(0L));
+        assertThat(this.stream.getSequenceErrors(), is(0L));
+        assertThat(this.stream.getMaxJitter(), is(0L));
+        assertThat(this.stream.getMeanJitter(), is(0L));
+        assertThat(this.stream.getMaxDelta(), is(20000L));
+        assertThat(this.stream.getTimeOfFirstPacket(), is(0L));
+        assertThat(this.stream.getDuration(), is(49 * 20000L));
+        assertThat(this.stream.getPackets().isEmpty(), is(true));
+    }
+
+    /**
+     * Every other packet is 5 ms late so the jitter approaches 5 ms.
+     */
+    @Test
+    public void testJitter() throws Exception {
+        for (int i = 0; i < 200; ++i) {
+            this.stream.onPacket(rtp(i, 160 * i, 20 * i + (i % 2 == 0 ? 0 : 5)));
+        }
+        assertThat(this.stream.getMaxJitter() > 4900, is(true));
+        assertThat(this.stream.getMaxJitter() <= 5000, is(true));
+        assertThat(this.stream.getMeanJitter() > 4000, is(true));
+        assertThat(this.stream.getMeanJitter() <= this.stream.getMaxJitter(), is(true));
+        assertThat(this.stream.getMaxDelta(), is(25000L));
+    }
+
+    /**
+     * Same as {@link #testJitter()} but with the arrival times in
+     * nanoseconds, which the header of the stream tells it.
+     */
+    @Test
+    public void testJitterNanosecondCapture() throws Exception {
+        final PcapGlobalHeader header = PcapGlobalHeader.createDefaultHeader(1, 65535, true);
+        final DefaultRtpStream stream = new DefaultRtpStream(header, 0, DefaultRtpStream.Storage.NONE);
+        for (int i = 0; i < 200; ++i) {
+            stream.onPacket(rtp(header, i, 160 * i, 20 * i + (i % 2 == 0 ? 0 : 5)));
+        }
+        assertThat(stream.getMaxJitter() > 4900, is(true));
+        assertThat(stream.getMaxJitter() <= 5000, is(true));
+        assertThat(stream.getMeanJitter() > 4000, is(true));
+        assertThat(stream.getMaxDelta(), is(25000000L));
+    }
+
+    @Test
+    public void testLossDuplicatesAndOutOfOrder() throws Exception {
+        final int[] seqs = new int[] { 1, 2, 3, 5, 4, 4, 8, 9 };
+        for (int i = 0; i < seqs.length; ++i) {
+            this.stream.onPacket(rtp(seqs[i], 160 * seqs[i], 20 * i));
+        }
+        assertThat(this.stream.getReceivedPackets(), is(8L));
+        assertThat(this.stream.getExpectedPackets(), is(9L));
+        assertThat(this.stream.getLostPackets(), is(2L));
+        assertThat(this.stream.getDuplicatePackets(), is(1L));
+        assertThat(this.stream.getOutOfOrderPackets(), is(1L));
+        assertThat(this.stream.getSequenceErrors(), is(4L));
+    }
+
+    @Test
+    public void testSequenceNumberWrapAround() throws Exception {
+        final int[] seqs = new int[] { 65534, 65535, 0, 2 };
+        for (int i = 0; i < seqs.length; ++i) {
+            this.stream.onPacket(rtp(seqs[i], 160 * i, 20 * i));
+        }
+        assertThat(this.stream.getExpectedPackets(), is(5L));
+        assertThat(this.stream.getLostPackets(), is(1L));
+        assertThat(this.stream.getSequenceErrors(), is(1L));
+    }
+
+    /**
+     * A jump in the sequence numbers that is followed by a packet in sequence
+     * is the sender starting over.
+     */
+    @Test
+    public void testRestart() throws Exception {
+        final int[] seqs = new int[] { 10, 11, 12, 40000, 40001, 40002 };
+        for (int i = 0; i < seqs.length; ++i) {
+            this.stream.onPacket(rtp(seqs[i], 160 * seqs[i], 20 * i));
+        }
+        assertThat(this.stream.getExpectedPackets(), is(5L));
+        assertThat(this.stream.getLostPackets(), is(0L));
+        assertThat(this.stream.getSequenceErrors(), is(2L));
+        assertThat(this.stream.getMaxJitter(), is(0L));
+    }
+
+    /**
+     * Packets that arrive at the same time are all kept and packets added
+     * out of order come back in the order they arrived.
+     */
+    @Test
+    public void testRetainPackets() throws Exception {
+        final DefaultRtpStream stream = new DefaultRtpStream(null, 0);
+        assertThat(stream.getDuration(), is(-1L));
+        assertThat(stream.getTimeOfFirstPacket(), is(-1L));
+        stream.onPacket(rtp(1, 0, 20));
+        stream.onPacket(rtp(2, 160, 20));
+        stream.onPacket(rtp(3, 320, 10));
+        final List<RtpPacket> packets = stream.getPackets();
+        assertThat(packets.size(), is(3));
+        assertThat(packets.get(0).getSeqNumber(), is(3));
+        assertThat(packets.get(1).getSeqNumber(), is(1));
+        assertThat(packets.get(2).getSeqNumber(), is(2));
+    }
+
+    @Test
+    public void testCompactStorage() throws Exception {
+        final DefaultRtpStream stream = new DefaultRtpStream(null, 0, DefaultRtpStream.Storage.COMPACT);
+        for (int i = 0; i < 100; ++i) {
+            stream.onPacket(rtp(65500 + i & 0xFFFF, 0xFFFFFF00L + 160 * i & 0xFFFFFFFFL, 20 * i));
+        }
+        stream.onPacket(rtp(1000, 0, 5));
+
+        final List<RtpPacket> packets = stream.getPackets();
+        assertThat(packets.size(), is(101));
+        assertThat(packets.get(0).getSeqNumber(), is(65500));
+        assertThat(packets.get(0).getArrivalTime(), is(0L));
+        assertThat(packets.get(1).getSeqNumber(), is(1000));
+        assertThat(packets.get(1).getArrivalTime(), is(5000L));
+        assertThat(packets.get(100).getSeqNumber(), is(63));
+        assertThat(packets.get(100).getTimestamp(), is(0xFFFFFF00L + 160 * 99 & 0xFFFFFFFFL));
+        assertThat(packets.get(100).getPayload().getArray(), is(rtp(63, 0, 0).getPayload().getArray()));
+        assertThat(stream.getReceivedPackets(), is(101L));
+    }
+
+    /**
+     * Changing a packet that was framed out of the store doesn't change what
+     * is stored.
+     */
+    @Test
+    public void testCompactStorageCopiesFrame() throws Exception {
+        final DefaultRtpStream stream = new DefaultRtpStream(null, 0, DefaultRtpStream.Storage.COMPACT);
+        stream.onPacket(rtp(1, 0, 0));
+
+        final byte[] payload = stream.getPackets().get(0).getPayload().getArray();
+        stream.getPackets().get(0).getPayload().setByte(0, (byte) (payload[0] + 1));
+        assertThat(stream.getPackets().get(0).getPayload().getArray(), is(payload));
+    }
+
+    /**
+     * The stored packets get a record header in the byte order of the global
+     * header, which is what they will be written out with.
+     */
+    @Test
+    public void testCompactStorageByteOrder() throws Exception {
+        final byte[] body = new byte[20];
+        body[19] = 1;
+        final PcapGlobalHeader header = new PcapGlobalHeader(ByteOrder.BIG_ENDIAN, body);
+        final DefaultRtpStream stream = new DefaultRtpStream(header, 0, DefaultRtpStream.Storage.COMPACT);
+        stream.onPacket(rtp(1, 0, 1500));
+
+        final RtpPacket packet = stream.getPackets().get(0);
+        assertThat(packet.getSeqNumber(), is(1));
+        assertThat(packet.getArrivalTime(), is(1500000L));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        packet.write(out);
+        final java.nio.ByteBuffer record = java.nio.ByteBuffer.wrap(out.toByteArray());
+        assertThat(record.getInt(0), is(1));
+        assertThat(record.getInt(4), is(500000));
+        assertThat(record.getInt(8), is(this.frame.length));
+    }
+
+    /**
+     * Create a RTP packet out of the frame with the given sequence number,
+     * RTP timestamp and arrival time in milliseconds.
+     */
+    private RtpPacket rtp(final int seq, final long timestamp, final long arrival) throws IOException {
+        return rtp(null, seq, timestamp, arrival);
+    }
+
+    /**
+     * Same as {@link #rtp(int, long, long)} but captured with the global
+     * header, which decides whether the arrival time is in nanoseconds.
+     */
+    private RtpPacket rtp(final PcapGlobalHeader global, final int seq, final long timestamp, final long arrival)
+            throws IOException {
+        final byte[] data = this.frame.clone();
+        data[this.offset + 2] = (byte) (seq >> 8);
+        data[this.offset + 3] = (byte) seq;
+        data[this.offset + 4] = (byte) (timestamp >> 24);
+        data[this.offset + 5] = (byte) (timestamp >> 16);
+        data[this.offset + 6] = (byte) (timestamp >> 8);
+        data[this.offset + 7] = (byte) timestamp;
+        if (global == null) {
+            final PCapPacketImpl pcap = new PCapPacketImpl(PcapRecordHeader.createDefaultHeader(arrival),
+                    Buffers.wrap(data));
+            return (RtpPacket) pcap.getPacket(Protocol.RTP);
+        }
+
+        final Buffer record = Buffers.wrap(new byte[PcapRecordHeader.SIZE]);
+        record.setUnsignedInt(0, arrival / 1000L);
+        record.setUnsignedInt(4, arrival % 1000L * (global.timestampsInNs() ? 1000000L : 1000L));
+        final PcapRecordHeader header = new PcapRecordHeader(global.getByteOrder(), record, global.timestampsInNs());
+        final PCapPacketImpl pcap = new PCapPacketImpl(global, header, Buffers.wrap(data));
+        return (RtpPacket) pcap.getPacket(Protocol.RTP);
+    }
+
+}
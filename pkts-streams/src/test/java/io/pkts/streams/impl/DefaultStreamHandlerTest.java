@@ -10,6 +10,7 @@ import io.pkts.packet.Packet;
 import io.pkts.packet.rtp.RtpPacket;
 import io.pkts.packet.sip.SipPacket;
 import io.pkts.packet.sip.SipPacketParseException;
+import io.pkts.streams.RtpStream;
 import io.pkts.streams.SipStream;
 import io.pkts.streams.Stream;
 import io.pkts.streams.StreamHandler;
@@ -47,7 +48,39 @@ public class DefaultStreamHandlerTest extends StreamsTestBase {
         pcap.close();
         assertThat(streamCounter.startCount, is(1));
         assertThat(streamCounter.packetCount, is(501));
-        assertThat(streamCounter.endCount, is(0)); // because we do not detect end events
+        assertThat(streamCounter.endCount, is(0)); // the capture ends before the stream goes idle
+
+        final RtpStream stream = (RtpStream) streamCounter.streams.get(0);
+        assertThat(stream.getReceivedPackets(), is(501L));
+        assertThat(stream.getLostPackets(), is(0L));
+        assertThat(stream.getPackets().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testCompactRtpStream() throws Exception {
+        final Pcap pcap = Pcap.openStream(StreamsTestBase.class.getResourceAsStream("sip_rtp.pcap"));
+        final DefaultStreamHandler streamHandler = new DefaultStreamHandler();
+        streamHandler.setRtpStorage(DefaultRtpStream.Storage.COMPACT);
+        final List<RtpPacket> received = new ArrayList<RtpPacket>();
+        final RtpCounter streamCounter = new RtpCounter() {
+            @Override
+            public void packetReceived(final Stream<RtpPacket> stream, final RtpPacket packet) {
+                super.packetReceived(stream, packet);
+                received.add(packet);
+            }
+        };
+        streamHandler.addStreamListener(streamCounter);
+        pcap.loop(streamHandler);
+        pcap.close();
+
+        // the first packet of the stream goes to startStream and not to
+        // packetReceived, hence the stream has one more than we received.
+        final List<RtpPacket> packets = streamCounter.streams.get(0).getPackets();
+        assertThat(packets.size(), is(501));
+        final RtpPacket last = packets.get(500);
+        assertThat(last.getSeqNumber(), is(received.get(499).getSeqNumber()));
+        assertThat(last.getArrivalTime(), is(received.get(499).getArrivalTime()));
+        assertThat(last.getParentPacket().getSourcePort(), is(received.get(499).getParentPacket().getSourcePort()));
     }
 
     /**
@@ -94,6 +127,26 @@ public class DefaultStreamHandlerTest extends StreamsTestBase {
         assertStream(streamCounter.streams.get(4), 470, 1002963);
     }
 
+    /**
+     * The INVITE in fragmented_tcp_sip.pcap is split across three TCP
+     * segments, which have to be reassembled before the INVITE can be framed.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSipOverTcp() throws Exception {
+        final Pcap pcap = Pcap.openStream(StreamsTestBase.class.getResourceAsStream("fragmented_tcp_sip.pcap"));
+        final StreamHandler streamHandler = new DefaultStreamHandler();
+        final StreamCounter streamCounter = new StreamCounter();
+        streamHandler.addStreamListener(streamCounter);
+        pcap.loop(streamHandler);
+        pcap.close();
+        assertThat(streamCounter.startCount, is(1));
+        assertThat(streamCounter.packetCount, is(6));
+        assertThat(streamCounter.endCount, is(1));
+        assertThat(streamCounter.getFirstStream().getPackets().get(0).isInvite(), is(true));
+    }
+
     /**
      * Make sure that the {@link SipStream} has the expected PDD etc.
      * 
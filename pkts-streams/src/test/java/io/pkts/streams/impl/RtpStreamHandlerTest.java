@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package io.pkts.streams.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import io.pkts.Clock;
+import io.pkts.Pcap;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.frame.PcapGlobalHeader;
+import io.pkts.frame.PcapRecordHeader;
+import io.pkts.framer.FramerManager;
+import io.pkts.packet.UDPPacket;
+import io.pkts.packet.impl.PCapPacketImpl;
+import io.pkts.packet.rtp.RtpPacket;
+import io.pkts.protocol.Protocol;
+import io.pkts.streams.Stream;
+import io.pkts.streams.StreamListener;
+import io.pkts.streams.StreamsTestBase;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class RtpStreamHandlerTest extends StreamsTestBase {
+
+    /**
+     * The capture time, in microseconds unless the clock says otherwise.
+     */
+    private long now;
+
+    private final Clock clock = () -> this.now;
+
+    /**
+     * An Ethernet frame carrying a RTP packet over IPv4 without options.
+     */
+    private byte[] frame;
+
+    private RtpStreamHandler handler;
+
+    private final List<String> events = new ArrayList<>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        final List<byte[]> frames = new ArrayList<>();
+        final Pcap pcap = Pcap.openStream(StreamsTestBase.class.getResourceAsStream("sip_rtp.pcap"));
+        pcap.loop(packet -> {
+            if (packet.hasProtocol(Protocol.RTP)) {
+                frames.add(packet.getPayload().getArray());
+                return false;
+            }
+            return true;
+        });
+        pcap.close();
+        this.frame = frames.get(0);
+        this.now = 0;
+
+        this.handler = new RtpStreamHandler(FramerManager.getInstance(), this.clock, Duration.ofSeconds(10));
+        this.handler.addListener(new StreamListener<RtpPacket>() {
+            @Override
+            public void startStream(final Stream<RtpPacket> stream, final RtpPacket packet) {
+                RtpStreamHandlerTest.this.events.add("start " + stream.getStreamIdentifier().asString());
+            }
+
+            @Override
+            public void packetReceived(final Stream<RtpPacket> stream, final RtpPacket packet) {
+                // not interested
+            }
+
+            @Override
+            public void endStream(final Stream<RtpPacket> stream) {
+                // the stream is still around when we are told
+                final int active = RtpStreamHandlerTest.this.handler.getActiveStreams();
+                RtpStreamHandlerTest.this.events.add("end " + stream.getStreamIdentifier().asString() + " " + active);
+            }
+        });
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        for (int i = 0; i < 50; ++i) {
+            send(rtp(1, 10000, 20000, i), i * 20);
+        }
+        assertThat(this.handler.getActiveStreams(), is(1));
+
+        // the last packet arrived at 980 ms so the stream is still alive 10
+        // seconds after the first one
+        this.now = 10000000;
+        this.handler.expire();
+        assertThat(this.handler.getActiveStreams(), is(1));
+
+        this.now = 11000000;
+        this.handler.expire();
+        assertThat(this.handler.getActiveStreams(), is(0));
+        assertThat(this.handler.getExpiredStreams(), is(1L));
+        assertThat(this.events, is(Arrays.asList("start 1", "end 1 1")));
+    }
+
+    /**
+     * A capture with nanosecond resolution drives the clock in nanoseconds
+     * but the idle timeout is still ten seconds.
+     */
+    @Test
+    public void testIdleTimeoutNanosecondCapture() throws Exception {
+        final Clock clock = new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return RtpStreamHandlerTest.this.now;
+            }
+
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.NANOSECONDS;
+            }
+        };
+        final RtpStreamHandler handler = new RtpStreamHandler(FramerManager.getInstance(), clock,
+                Duration.ofSeconds(10));
+        final PcapGlobalHeader global = PcapGlobalHeader.createDefaultHeader(1, 65535, true);
+        for (int i = 0; i < 50; ++i) {
+            final long time = i * 20;
+            final Buffer header = Buffers.wrap(new byte[PcapRecordHeader.SIZE]);
+            header.setUnsignedInt(0, time / 1000L);
+            header.setUnsignedInt(4, time % 1000L * 1000000L);
+            this.now = time * 1000000L;
+            handler.processFrame(new PCapPacketImpl(global, new PcapRecordHeader(ByteOrder.LITTLE_ENDIAN, header,
+                    true), Buffers.wrap(rtp(1, 10000, 20000, i))));
+        }
+
+        this.now = 10000000000L;
+        handler.expire();
+        assertThat(handler.getActiveStreams(), is(1));
+
+        this.now = 11000000000L;
+        handler.expire();
+        assertThat(handler.getActiveStreams(), is(0));
+    }
+
+    /**
+     * The same SSRC between other ports is another stream.
+     */
+    @Test
+    public void testKeyedByPortsAndSsrc() throws Exception {
+        send(rtp(1, 10000, 20000, 0), 0);
+        send(rtp(1, 10002, 20002, 0), 0);
+        send(rtp(2, 10000, 20000, 0), 0);
+        send(rtp(1, 10000, 20000, 1), 20);
+        assertThat(this.handler.getActiveStreams(), is(3));
+    }
+
+    @Test
+    public void testRtcpBye() throws Exception {
+        send(rtp(1, 10000, 20000, 0), 0);
+        send(rtp(2, 10000, 20000, 0), 0);
+        send(rtp(3, 30000, 40000, 0), 0);
+
+        // RTCP on the ports above the RTP and multiplexed with it
+        this.handler.processRtcp(frame(bye(1, 10001, 20001), 100));
+        this.handler.processRtcp(frame(bye(3, 30000, 40000), 100));
+        assertThat(this.handler.getActiveStreams(), is(1));
+        assertThat(this.handler.getByeStreams(), is(2L));
+        assertThat(this.events, is(Arrays.asList("start 1", "start 2", "start 3", "end 1 3", "end 3 2")));
+
+        // the timers of the streams that are gone don't hold on to them
+        assertThat(this.handler.getScheduledTimers(), is(1));
+
+        // and the timer of a stream that is gone doesn't end anything
+        this.now = 20000000;
+        this.handler.expire();
+        assertThat(this.handler.getExpiredStreams(), is(1L));
+        assertThat(this.handler.getActiveStreams(), is(0));
+    }
+
+    /**
+     * The streams that are still going at the end of the capture are ended
+     * when the handler is flushed.
+     */
+    @Test
+    public void testFlush() throws Exception {
+        send(rtp(1, 10000, 20000, 0), 0);
+        send(rtp(2, 10000, 20000, 0), 0);
+        this.handler.flush();
+        assertThat(this.handler.getActiveStreams(), is(0));
+        assertThat(this.handler.getScheduledTimers(), is(0));
+        assertThat(this.events.size(), is(4));
+        assertThat(this.events.subList(2, 4).containsAll(Arrays.asList("end 1 2", "end 2 2")), is(true));
+    }
+
+    /**
+     * Send the frame to the handler at the given time in milliseconds.
+     */
+    private void send(final byte[] frame, final long time) throws Exception {
+        this.now = time * 1000;
+        this.handler.processFrame(frame(frame, time));
+    }
+
+    private static PCapPacketImpl frame(final byte[] frame, final long time) {
+        return new PCapPacketImpl(PcapRecordHeader.createDefaultHeader(time), Buffers.wrap(frame));
+    }
+
+    private byte[] rtp(final long ssrc, final int sourcePort, final int destinationPort, final int seq) {
+        final byte[] data = this.frame.clone();
+        setPorts(data, sourcePort, destinationPort);
+        data[44] = (byte) (seq >> 8);
+        data[45] = (byte) seq;
+        data[46] = (byte) (seq * 160 >> 24);
+        data[47] = (byte) (seq * 160 >> 16);
+        data[48] = (byte) (seq * 160 >> 8);
+        data[49] = (byte) (seq * 160);
+        setInt(data, 50, ssrc);
+        return data;
+    }
+
+    /**
+     * A RTCP packet with an empty RR followed by a BYE for the SSRC.
+     */
+    private byte[] bye(final long ssrc, final int sourcePort, final int destinationPort) throws IOException {
+        final byte[] data = Arrays.copyOf(this.frame, 42 + 16);
+        setPorts(data, sourcePort, destinationPort);
+        setInt(data, 42, 0x80 << 24 | 201 << 16 | 1);
+        setInt(data, 46, ssrc);
+        setInt(data, 50, 0x81 << 24 | 203 << 16 | 1);
+        setInt(data, 54, ssrc);
+
+        data[16] = 0;
+        data[17] = 20 + 8 + 16;
+        data[38] = 0;
+        data[39] = 8 + 16;
+        final UDPPacket udp = (UDPPacket) frame(data, 0).getPacket(Protocol.UDP);
+        assertThat(udp.getPayload().getReadableBytes(), is(16));
+        return data;
+    }
+
+    private static void setPorts(final byte[] data, final int sourcePort, final int destinationPort) {
+        data[34] = (byte) (sourcePort >> 8);
+        data[35] = (byte) sourcePort;
+        data[36] = (byte) (destinationPort >> 8);
+        data[37] = (byte) destinationPort;
+        data[40] = 0;
+        data[41] = 0;
+    }
+
+    private static void setInt(final byte[] data, final int index, final long value) {
+        data[index] = (byte) (value >> 24);
+        data[index + 1] = (byte) (value >> 16);
+        data[index + 2] = (byte) (value >> 8);
+        data[index + 3] = (byte) value;
+    }
+
+}
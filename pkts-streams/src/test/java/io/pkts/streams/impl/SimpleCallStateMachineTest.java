@@ -143,6 +143,48 @@ public class SimpleCallStateMachineTest extends StreamsTestBase {
         assertStates(fsm, INITIAL, TRYING, RINGING, IN_CALL, COMPLETED);
     }
 
+    /**
+     * In summary mode no messages are kept around but we still know what
+     * happened to the call and when.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSummary() throws Exception {
+        final List<SipPacket> messages = loadMessages("simple_invite_scenario.pcap");
+        SimpleCallStateMachine fsm = new SimpleCallStateMachine(getCallId(messages), true);
+        driveTraffic(fsm, messages);
+        assertStates(fsm, INITIAL, TRYING, RINGING, IN_CALL, COMPLETED);
+        assertThat(fsm.getMessages().isEmpty(), is(true));
+        assertThat(fsm.getPostDialDelay(), is(3104809L));
+        assertThat(fsm.getDuration(), is(16108868L));
+        assertThat(fsm.isHandshakeCompleted(), is(true));
+        assertThat(fsm.getRingingStatus(), is(180));
+        assertThat(fsm.getFinalStatus(), is(200));
+        assertThat(fsm.getTimeOfInvite(), is(messages.get(0).getArrivalTime()));
+        assertThat(fsm.getTimeOfRinging(), is(messages.get(2).getArrivalTime()));
+        assertThat(fsm.getTimeOfSuccess(), is(messages.get(3).getArrivalTime()));
+        assertThat(fsm.getTimeOfAck(), is(messages.get(4).getArrivalTime()));
+        assertThat(fsm.getTimeOfBye(), is(messages.get(5).getArrivalTime()));
+        assertThat(fsm.getTimeOfLastMessage(), is(messages.get(6).getArrivalTime()));
+        assertThat(fsm.getReTransmissions(), is(0));
+
+        // the INVITE and the BYE are sent again
+        fsm = new SimpleCallStateMachine(getCallId(messages), true);
+        driveTraffic(fsm, messages.subList(0, 1));
+        driveTraffic(fsm, messages);
+        driveTraffic(fsm, messages.subList(5, 6));
+        assertStates(fsm, INITIAL, TRYING, RINGING, IN_CALL, COMPLETED);
+        assertThat(fsm.getReTransmissions(), is(2));
+        assertThat(fsm.reTransmitsDetected(), is(true));
+
+        fsm = new SimpleCallStateMachine(getCallId(messages), true);
+        driveTraffic(fsm, loadMessages("cancel.pcap"));
+        assertStates(fsm, INITIAL, TRYING, RINGING, CANCELLING, CANCELLED);
+        assertThat(fsm.getPostDialDelay(), is(2104843L));
+        assertThat(fsm.getFinalStatus(), is(487));
+    }
+
     /**
      * Helper method for "deleting" a bunch of messages. They become "lost" so
      * to speak...
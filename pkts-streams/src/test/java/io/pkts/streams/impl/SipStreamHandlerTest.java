@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package io.pkts.streams.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import io.pkts.Clock;
+import io.pkts.packet.Packet;
+import io.pkts.packet.sip.SipPacket;
+import io.pkts.streams.Stream;
+import io.pkts.streams.StreamListener;
+import io.pkts.streams.StreamsTestBase;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class SipStreamHandlerTest extends StreamsTestBase {
+
+    /**
+     * The capture time, in microseconds.
+     */
+    private long now;
+
+    private final Clock clock = () -> this.now;
+
+    private SipStreamHandler handler;
+
+    private final List<String> events = new ArrayList<>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.handler = new SipStreamHandler(null, this.clock, Duration.ofSeconds(32), Duration.ofSeconds(60));
+        this.handler.addListener(new StreamListener<SipPacket>() {
+            @Override
+            public void startStream(final Stream<SipPacket> stream, final SipPacket packet) {
+                SipStreamHandlerTest.this.events.add("start");
+            }
+
+            @Override
+            public void packetReceived(final Stream<SipPacket> stream, final SipPacket packet) {
+                // not interested
+            }
+
+            @Override
+            public void endStream(final Stream<SipPacket> stream) {
+                SipStreamHandlerTest.this.events.add("end");
+            }
+        });
+    }
+
+    /**
+     * A call that terminates is kept around for a while so that
+     * retransmissions still end up in it but then it is gone.
+     */
+    @Test
+    public void testTerminatedStreamLingers() throws Exception {
+        final List<SipPacket> messages = loadMessages("simple_invite_scenario.pcap");
+        for (final SipPacket msg : messages) {
+            send(msg);
+        }
+        assertThat(this.handler.getActiveStreams(), is(0));
+        assertThat(this.handler.getTerminatedStreams(), is(1));
+        assertThat(this.events, is(Arrays.asList("start", "end")));
+
+        // the idle timer made way for the linger timer
+        assertThat(this.handler.getScheduledTimers(), is(1));
+
+        // a retransmission of the 200 OK to the BYE still belongs to the call
+        final SipPacket last = messages.get(messages.size() - 1);
+        final long time = last.getArrivalTime();
+        this.now = time + 20000000;
+        this.handler.processMessage(frame(last), last);
+        assertThat(this.handler.getTerminatedStreams(), is(1));
+
+        this.now = time + 31000000;
+        this.handler.expire();
+        assertThat(this.handler.getTerminatedStreams(), is(1));
+
+        this.now = time + 33000000;
+        this.handler.expire();
+        assertThat(this.handler.getTerminatedStreams(), is(0));
+        assertThat(this.handler.getRemovedStreams(), is(1L));
+        assertThat(this.handler.getExpiredStreams(), is(0L));
+        assertThat(this.events, is(Arrays.asList("start", "end")));
+        assertThat(this.handler.getScheduledTimers(), is(0));
+    }
+
+    /**
+     * A call we never see the end of is ended once it has been idle for too
+     * long.
+     */
+    @Test
+    public void testIdleTimeout() throws Exception {
+        final SipPacket invite = loadMessages("simple_invite_scenario.pcap").get(0);
+        send(invite);
+
+        this.now = invite.getArrivalTime() + 59000000;
+        this.handler.expire();
+        assertThat(this.handler.getActiveStreams(), is(1));
+
+        this.now = invite.getArrivalTime() + 61000000;
+        this.handler.expire();
+        assertThat(this.handler.getActiveStreams(), is(0));
+        assertThat(this.handler.getTerminatedStreams(), is(0));
+        assertThat(this.handler.getExpiredStreams(), is(1L));
+        assertThat(this.events, is(Arrays.asList("start", "end")));
+    }
+
+    /**
+     * When there are too many streams, the terminated ones go first and the
+     * ones that haven't terminated are ended before they go.
+     */
+    @Test
+    public void testMaxStreams() throws Exception {
+        this.handler.setMaxStreams(1);
+        for (final SipPacket msg : loadMessages("simple_invite_scenario.pcap")) {
+            send(msg);
+        }
+        final List<SipPacket> cancel = loadMessages("cancel.pcap");
+        send(cancel.get(0));
+        assertThat(this.handler.getActiveStreams(), is(1));
+        assertThat(this.handler.getTerminatedStreams(), is(0));
+        assertThat(this.handler.getEvictedStreams(), is(1L));
+        assertThat(this.events, is(Arrays.asList("start", "end", "start")));
+
+        send(loadMessages("sipp.pcap").get(0));
+        assertThat(this.handler.getActiveStreams(), is(1));
+        assertThat(this.handler.getEvictedStreams(), is(2L));
+        assertThat(this.events, is(Arrays.asList("start", "end", "start", "end", "start")));
+
+        // nothing holds on to the evicted streams
+        assertThat(this.handler.getScheduledTimers(), is(1));
+    }
+
+    private void send(final SipPacket msg) throws Exception {
+        this.now = msg.getArrivalTime();
+        this.handler.processMessage(frame(msg), msg);
+    }
+
+    /**
+     * @return the captured frame the message arrived in.
+     */
+    private static Packet frame(final SipPacket msg) {
+        Packet frame = msg;
+        while (frame.getParentPacket() != null) {
+            frame = frame.getParentPacket();
+        }
+        return frame;
+    }
+
+}
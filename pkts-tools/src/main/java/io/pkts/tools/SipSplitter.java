@@ -101,6 +101,7 @@ public final class SipSplitter implements StreamListener<SipPacket>, FragmentLis
         streamHandler.setFragmentListener(splitter);
         streamHandler.addStreamListener(splitter);
         pcap.loop(streamHandler);
+        streamHandler.flush();
         pcap.close();
 
         final long stop = System.currentTimeMillis();